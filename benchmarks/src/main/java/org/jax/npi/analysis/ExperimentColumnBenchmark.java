@@ -0,0 +1,69 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.benchmark.BenchmarkData;
+import org.jax.npi.data.ElementTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finishing an experiment, i.e., of turning the accumulated signal of the touched elements into
+ * the mean and maximum columns of the table ({@link ExperimentColumn#addToTable()}, formerly
+ * processLastExperiment). Every invocation adds to a fresh table so that the table does not grow.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExperimentColumnBenchmark {
+    @Param({"200000"})
+    public int elements;
+
+    /** Peaks per element; below about 0.8 the column is stored sparsely. */
+    @Param({"0.1", "0.5", "2"})
+    public double peaksPerElement;
+
+    private ElementTable elementTable;
+    private ExperimentColumn filled;
+    private ExperimentColumn column;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        elementTable = BenchmarkData.elements(elements, 24, 42L);
+        ChromosomeWithEnhancers chromwe = new ChromosomeWithEnhancers(elementTable);
+        filled = chromwe.readExperiment("benchmark", BenchmarkData.peaks(elementTable, peaksPerElement, 4242L).reader());
+    }
+
+    @Setup(Level.Invocation)
+    public void newTable() {
+        ElementTable table = new ElementTable(chromosomeNames(elementTable), chromosomeStarts(elementTable),
+                elementTable.getBegins(), elementTable.getEnds(), elementTable.getCpG());
+        column = new ExperimentColumn("benchmark", table);
+        column.mergeFrom(filled);
+    }
+
+    @Benchmark
+    public void addToTable() {
+        column.addToTable();
+    }
+
+    private static String[] chromosomeNames(ElementTable table) {
+        String[] names = new String[table.getNumberOfChromosomes()];
+        for (int c = 0; c < names.length; c++) {
+            names[c] = table.getChromosomeName(c);
+        }
+        return names;
+    }
+
+    private static int[] chromosomeStarts(ElementTable table) {
+        int[] starts = new int[table.getNumberOfChromosomes() + 1];
+        for (int c = 0; c < table.getNumberOfChromosomes(); c++) {
+            starts[c] = table.getChromosomeStart(c);
+        }
+        starts[table.getNumberOfChromosomes()] = table.size();
+        return starts;
+    }
+}
@@ -0,0 +1,60 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.benchmark.BenchmarkData;
+import org.jax.npi.data.ElementTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the CGI/non-CGI summary ({@link ChromosomeWithEnhancers#calculateMeanCGIvsNonCGI()}) over a table
+ * of dense experiments, about a third of the values being zero. The messages of the summary are discarded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MeanCgiBenchmark {
+    @Param({"200000"})
+    public int elements;
+
+    @Param({"1", "13"})
+    public int experiments;
+
+    private ChromosomeWithEnhancers chromwe;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ElementTable table = BenchmarkData.elements(elements, 24, 42L);
+        SplittableRandom random = new SplittableRandom(4242L);
+        for (int e = 0; e < experiments; e++) {
+            double[] means = new double[elements];
+            double[] maxima = new double[elements];
+            for (int id = 0; id < elements; id++) {
+                if (random.nextInt(3) > 0) {
+                    means[id] = 100.0 * random.nextDouble();
+                    maxima[id] = 50.0 * random.nextDouble();
+                }
+            }
+            table.addExperiment("experiment" + e, means, maxima);
+        }
+        chromwe = new ChromosomeWithEnhancers(table);
+        stdout = System.out;
+        System.setOut(BenchmarkData.nullPrintStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public void calculateMeanCGIvsNonCGI() {
+        chromwe.calculateMeanCGIvsNonCGI();
+    }
+}
@@ -0,0 +1,50 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.benchmark.BenchmarkData;
+import org.jax.npi.data.ElementTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of intersecting the peaks of one experiment with the elements (addDataPoint and the
+ * accumulation into an {@link ExperimentColumn}), for both overlap engines and several densities of
+ * elements and peaks. The score is the time per experiment; divide the number of peaks by it to get peaks/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OverlapBenchmark {
+    @Param({"INDEX", "SWEEP"})
+    public OverlapEngine engine;
+
+    @Param({"10000", "200000"})
+    public int elements;
+
+    /** Peaks per element, from sparse (most elements without signal) to dense (many peaks per element). */
+    @Param({"0.5", "2", "8"})
+    public double peaksPerElement;
+
+    private ChromosomeWithEnhancers chromwe;
+    private BenchmarkData.Peaks peaks;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ElementTable table = BenchmarkData.elements(elements, 24, 42L);
+        chromwe = new ChromosomeWithEnhancers(table);
+        chromwe.setOverlapEngine(engine);
+        peaks = BenchmarkData.peaks(table, peaksPerElement, 4242L);
+    }
+
+    @Benchmark
+    public int overlapExperiment() throws IOException {
+        ExperimentColumn column = chromwe.readExperiment("benchmark", peaks.reader());
+        int touched = column.getTouchedCount();
+        chromwe.releaseColumn(column);
+        return touched;
+    }
+}
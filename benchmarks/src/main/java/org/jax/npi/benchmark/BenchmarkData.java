@@ -0,0 +1,183 @@
+package org.jax.npi.benchmark;
+
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.io.PeakReader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic, seeded inputs for the benchmarks, so that the benchmarks do not need the ENCODE downloads or the
+ * stats files. Elements do not overlap each other, and neither do the peaks of one experiment (overlapping
+ * peaks would trip the sanity check of the signal accumulation).
+ */
+public final class BenchmarkData {
+    /** Mean distance between the starts of two neighboring elements. */
+    private static final int ELEMENT_SPACING = 5_000;
+
+    private BenchmarkData() {
+    }
+
+    /** @return {@code n} elements spread over chromosomes chr1..chr{@code chromosomes}, half of them CpG */
+    public static ElementTable elements(int n, int chromosomes, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        String[] names = new String[chromosomes];
+        int[] starts = new int[chromosomes + 1];
+        int[] begins = new int[n];
+        int[] ends = new int[n];
+        BitSet cpg = new BitSet(n);
+        for (int c = 0; c < chromosomes; c++) {
+            names[c] = "chr" + (c + 1);
+            starts[c] = (int) ((long) n * c / chromosomes);
+        }
+        starts[chromosomes] = n;
+        for (int c = 0; c < chromosomes; c++) {
+            int pos = 10_000;
+            for (int i = starts[c]; i < starts[c + 1]; i++) {
+                int width = 200 + random.nextInt(1_800);
+                begins[i] = pos;
+                ends[i] = pos + width;
+                pos += width + random.nextInt(2 * ELEMENT_SPACING - width);
+                cpg.set(i, random.nextBoolean());
+            }
+        }
+        return new ElementTable(names, starts, begins, ends, cpg);
+    }
+
+    /** Peaks of one experiment, in columns. */
+    public static final class Peaks {
+        public final String[] chromosomes;
+        public final int[] begins;
+        public final int[] ends;
+        public final double[] values;
+
+        Peaks(String[] chromosomes, int[] begins, int[] ends, double[] values) {
+            this.chromosomes = chromosomes;
+            this.begins = begins;
+            this.ends = ends;
+            this.values = values;
+        }
+
+        public int size() {
+            return begins.length;
+        }
+
+        /** @return a reader over the peaks, in sorted order */
+        public PeakReader reader() {
+            return new PeakReader() {
+                private int i = -1;
+
+                @Override
+                public boolean next() {
+                    return ++i < begins.length;
+                }
+
+                @Override
+                public String getChromosome() {
+                    return chromosomes[i];
+                }
+
+                @Override
+                public int getBegin() {
+                    return begins[i];
+                }
+
+                @Override
+                public int getEnd() {
+                    return ends[i];
+                }
+
+                @Override
+                public double getSignalValue() {
+                    return values[i];
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        /** @return the peaks as the text of a narrowPeak file */
+        public byte[] toNarrowPeak() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * size());
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.US_ASCII))) {
+                for (int i = 0; i < size(); i++) {
+                    out.write(String.format("%s\t%d\t%d\tPeak_%d\t%d\t.\t%.5f\t%.5f\t%.5f\t%d\n",
+                            chromosomes[i], begins[i], ends[i], i, (int) Math.min(1000, 10 * values[i]),
+                            values[i], values[i] / 2, values[i] / 3, (ends[i] - begins[i]) / 2));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * @param peaksPerElement number of peaks per element; the peaks are spread evenly over the range of the
+     * elements of each chromosome, so that this is also a measure of how many elements a peak overlaps
+     * @return sorted, non-overlapping peaks over the chromosomes of {@code table}
+     */
+    public static Peaks peaks(ElementTable table, double peaksPerElement, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int n = (int) Math.round(table.size() * peaksPerElement);
+        String[] chromosomes = new String[n];
+        int[] begins = new int[n];
+        int[] ends = new int[n];
+        double[] values = new double[n];
+        int k = 0;
+        for (int c = 0; c < table.getNumberOfChromosomes(); c++) {
+            int from = table.getChromosomeStart(c);
+            int to = table.getChromosomeEnd(c);
+            int count = c == table.getNumberOfChromosomes() - 1 ? n - k
+                    : (int) Math.round((double) n * to / table.size()) - k;
+            if (to == from || count <= 0) {
+                continue;
+            }
+            long span = table.getEnd(to - 1) - table.getBegin(from);
+            int slot = (int) Math.max(2, span / count);
+            for (int i = 0; i < count; i++) {
+                int width = Math.min(150 + random.nextInt(850), slot - 1);
+                int begin = (int) (table.getBegin(from) + (long) i * slot + random.nextInt(slot - width));
+                chromosomes[k] = table.getChromosomeName(c);
+                begins[k] = begin;
+                ends[k] = begin + width;
+                values[k] = 2.0 + 48.0 * random.nextDouble();
+                k++;
+            }
+        }
+        return new Peaks(chromosomes, begins, ends, values);
+    }
+
+    /** Write a cpg-hg38e.txt file with the elements of {@code table}, see TssEnhancerStatsParser. */
+    public static void writeEnhancerStats(ElementTable table, File file) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII))) {
+            out.write("(location)\tCpG+_anystrand\tCpG+_-strand\tCpG+_+strand\n");
+            for (int i = 0; i < table.size(); i++) {
+                out.write(String.format("%s:%d-%d\t%d\t0\t0\n", table.getChromosomeName(table.getChromosomeOfElement(i)),
+                        table.getBegin(i), table.getEnd(i), table.isCpG(i) ? 1 : 0));
+            }
+        }
+    }
+
+    /** Write a tss-stats-hg38p.txt file with one TSS per element of {@code table}, see TssPromoterStatsParser. */
+    public static void writePromoterStats(ElementTable table, File file) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII))) {
+            out.write("\"tss\"\t\"gene\"\t\"n\"\t\"a\"\t\"b\"\t\"c\"\t\"d\"\t\"CpG.p\"\t\"CpG.m\"\n");
+            for (int i = 0; i < table.size(); i++) {
+                int tss = table.getBegin(i) + 500;
+                out.write(String.format("\"%s:%d-%d,%s\"\tG%d\t1\t0\t0\t0\t0\t%d\t%d\n",
+                        table.getChromosomeName(table.getChromosomeOfElement(i)), tss, tss + 1,
+                        i % 2 == 0 ? "+" : "-", i, table.isCpG(i) ? 1 : 0, table.isCpG(i) ? 0 : 1));
+            }
+        }
+    }
+
+    /** @return a stream that discards everything, to keep the progress messages of the code out of the results */
+    public static PrintStream nullPrintStream() {
+        return new PrintStream(OutputStream.nullOutputStream());
+    }
+}
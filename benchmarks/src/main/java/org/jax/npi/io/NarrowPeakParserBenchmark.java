@@ -0,0 +1,44 @@
+package org.jax.npi.io;
+
+import org.jax.npi.benchmark.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of parsing narrowPeak lines from memory, without decompression or disk access. The score is
+ * the time per line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NarrowPeakParserBenchmark {
+    private static final int LINES = 100_000;
+
+    private byte[] narrowPeak;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkData.Peaks peaks = BenchmarkData.peaks(BenchmarkData.elements(LINES, 24, 42L), 1.0, 4242L);
+        narrowPeak = peaks.toNarrowPeak();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parse(Blackhole blackhole) throws IOException {
+        try (NarrowPeakParser parser = new NarrowPeakParser(new ByteArrayInputStream(narrowPeak))) {
+            while (parser.next()) {
+                blackhole.consume(parser.getChromosome());
+                blackhole.consume(parser.getBegin());
+                blackhole.consume(parser.getEnd());
+                blackhole.consume(parser.getSignalValue());
+            }
+        }
+    }
+}
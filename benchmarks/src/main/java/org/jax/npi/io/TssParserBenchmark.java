@@ -0,0 +1,63 @@
+package org.jax.npi.io;
+
+import org.jax.npi.benchmark.BenchmarkData;
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.data.RegulatoryElement;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to read the enhancer and promoter stats files ({@link TssEnhancerStatsParser},
+ * {@link TssPromoterStatsParser}) from synthetic files with one line per element.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TssParserBenchmark {
+    @Param({"100000"})
+    public int elements;
+
+    private File directory;
+    private File enhancerFile;
+    private File promoterFile;
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ElementTable table = BenchmarkData.elements(elements, 24, 42L);
+        directory = Files.createTempDirectory("npi-benchmark").toFile();
+        enhancerFile = new File(directory, "cpg-hg38e.txt");
+        promoterFile = new File(directory, "tss-stats-hg38p.txt");
+        BenchmarkData.writeEnhancerStats(table, enhancerFile);
+        BenchmarkData.writePromoterStats(table, promoterFile);
+        stdout = System.out;
+        System.setOut(BenchmarkData.nullPrintStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+        enhancerFile.delete();
+        promoterFile.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public List<RegulatoryElement> enhancers() {
+        return new TssEnhancerStatsParser(enhancerFile.getAbsolutePath()).getEnhancerList();
+    }
+
+    @Benchmark
+    public List<RegulatoryElement> promoters() {
+        return new TssPromoterStatsParser(promoterFile.getAbsolutePath()).getEnhancerList();
+    }
+}
@@ -0,0 +1,100 @@
+package org.jax.npi;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import org.jax.npi.io.SyntheticDataGenerator;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes synthetic enhancer, promoter and narrowPeak files for load and scaling tests, see
+ * {@link SyntheticDataGenerator}. The same seed and options always give the same files. Run it with
+ * {@code java -cp target/npi.jar org.jax.npi.GenerateSyntheticData --out synthetic}, then analyze the files
+ * with {@code cd synthetic; java -jar ../target/npi.jar -e cpg-hg38e.txt -p tss-stats-hg38p.txt --no-download}.
+ */
+public class GenerateSyntheticData {
+
+    @Parameter(names = {"-o","--out"}, description = "directory for the stats files; the narrowPeak files go to its data subdirectory")
+    private String outputDirectory = "synthetic";
+
+    @Parameter(names = {"--seed"}, description = "seed of the random numbers")
+    private long seed = 42;
+
+    @Parameter(names = {"--enhancers"}, description = "number of enhancers")
+    private int enhancers = 100_000;
+
+    @Parameter(names = {"--promoters"}, description = "number of promoters")
+    private int promoters = 50_000;
+
+    @Parameter(names = {"--experiments"}, description = "number of narrowPeak files")
+    private int experiments = 13;
+
+    @Parameter(names = {"--peaks"}, description = "number of peaks per narrowPeak file")
+    private long peaks = 100_000;
+
+    @Parameter(names = {"--element-width"}, description = "mean width of the enhancers")
+    private int elementWidth = 800;
+
+    @Parameter(names = {"--peak-width"}, description = "mean width of the peaks")
+    private int peakWidth = 500;
+
+    @Parameter(names = {"--enrichment"}, description = "fraction of the peaks that are placed over the start of an element")
+    private double enrichment = 0.5;
+
+    @Parameter(names = {"--nesting"}, description = "fraction of the enhancers that lie within another enhancer")
+    private double nesting = 0.05;
+
+    @Parameter(names = {"--cpg-fraction"}, description = "fraction of the enhancers and promoters that are CGI elements")
+    private double cpgFraction = 0.4;
+
+    @Parameter(names = {"--chromosomes"}, description = "number of main chromosomes (chr1, chr2, ..., chrX, chrY)")
+    private int chromosomes = 24;
+
+    @Parameter(names = {"--scaffold-fraction"}, description = "fraction of the peaks on unplaced scaffolds (chrUn_..., ..._random)")
+    private double scaffoldFraction = 0.001;
+
+    @Parameter(names = {"--bgzf"}, description = "compress the narrowPeak files with BGZF instead of plain gzip")
+    private boolean bgzf = false;
+
+    @Parameter(names = {"-t","--threads"}, description = "number of narrowPeak files to write in parallel")
+    private int threads = 1;
+
+    public static void main(String [] argv) {
+        GenerateSyntheticData m = new GenerateSyntheticData();
+        try {
+            JCommander.newBuilder()
+                    .addObject(m)
+                    .build().
+                    parse(argv);
+        } catch (ParameterException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            m.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run() throws IOException {
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(seed);
+        generator.setEnhancers(enhancers);
+        generator.setPromoters(promoters);
+        generator.setPeaksPerExperiment(peaks);
+        generator.setMeanElementWidth(elementWidth);
+        generator.setMeanPeakWidth(peakWidth);
+        generator.setEnrichment(enrichment);
+        generator.setNesting(nesting);
+        generator.setCpgFraction(cpgFraction);
+        generator.setChromosomes(chromosomes);
+        generator.setScaffoldFraction(scaffoldFraction);
+        generator.setBgzf(bgzf);
+        long start = System.currentTimeMillis();
+        generator.generate(new File(outputDirectory), experiments, threads);
+        System.out.printf("[INFO] Generated synthetic data in %s (%.1f s).\n", outputDirectory,
+                (System.currentTimeMillis() - start) / 1000.0);
+    }
+}
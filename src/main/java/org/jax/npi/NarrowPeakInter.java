@@ -4,14 +4,26 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import org.jax.npi.analysis.ChromosomeWithEnhancers;
+import org.jax.npi.analysis.OverlapEngine;
+import org.jax.npi.data.ElementTable;
 import org.jax.npi.data.RegulatoryElement;
+import org.jax.npi.io.BinaryPeakFile;
+import org.jax.npi.io.ElementColumnsFile;
+import org.jax.npi.io.ElementMatrixFile;
+import org.jax.npi.io.ElementTableCache;
 import org.jax.npi.io.NarrowPeakDownloader;
-import org.jax.npi.io.RegulatoryElementTssParser;
 import org.jax.npi.io.TssEnhancerStatsParser;
 import org.jax.npi.io.TssPromoterStatsParser;
+import org.jax.npi.metrics.FileMetrics;
+import org.jax.npi.metrics.RunMetrics;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
 public class NarrowPeakInter {
 
@@ -21,6 +33,78 @@ public class NarrowPeakInter {
     @Parameter(names = {"-p","--promoter"}, description = "path to tss-stats-hg38p.txt file", required = true)
     private String promoterPath;
 
+    @Parameter(names = {"--overlap-engine"}, description = "algorithm to intersect peaks with elements (INDEX, SWEEP, AUTO)")
+    private OverlapEngine overlapEngine = OverlapEngine.AUTO;
+
+    @Parameter(names = {"-t","--threads"}, description = "number of narrowPeak files to process in parallel")
+    private int threads = 1;
+
+    @Parameter(names = {"--no-cache"}, description = "always parse the tss-stats files instead of using the binary cache")
+    private boolean noCache = false;
+
+    @Parameter(names = {"--verify-cache"}, description = "also compare a checksum of the tss-stats files with the one in the binary cache")
+    private boolean verifyCache = false;
+
+    @Parameter(names = {"--ingest"}, description = "convert the narrowPeak files to binary peak files that are used by later runs")
+    private boolean ingest = false;
+
+    @Parameter(names = {"--inflate-threads"}, description = "number of threads to decompress BGZF-compressed narrowPeak files")
+    private int inflateThreads = 1;
+
+    @Parameter(names = {"--download-threads"}, description = "number of narrowPeak files to download at the same time")
+    private int downloadThreads = NarrowPeakDownloader.DEFAULT_DOWNLOAD_THREADS;
+
+    @Parameter(names = {"--ftp-connections"}, description = "maximum number of FTP connections per host when downloading")
+    private int ftpConnections = 2;
+
+    @Parameter(names = {"--refresh"}, description = "download narrowPeak files again if they changed on the server")
+    private boolean refresh = false;
+
+    @Parameter(names = {"--parse-threads"}, description = "number of threads that parse each narrowPeak file (0: no pipeline)")
+    private int parseThreads = 0;
+
+    @Parameter(names = {"--overlap-threads"}, description = "number of threads that intersect the peaks of a file with the elements, when parsing with --parse-threads")
+    private int overlapThreads = 1;
+
+    @Parameter(names = {"--no-download"}, description = "analyze the narrowPeak files in data/ without downloading (e.g., synthetic data)")
+    private boolean noDownload = false;
+
+    @Parameter(names = {"--stream"}, description = "analyze the narrowPeak files while they are downloaded")
+    private boolean stream = false;
+
+    @Parameter(names = {"--incremental"}, description = "keep the result of each narrowPeak file in data/.results and only read new or changed files")
+    private boolean incremental = false;
+
+    @Parameter(names = {"--permutations"}, description = "number of permutations of the CGI labels to test the CGI/non-CGI signal difference (0: none)")
+    private int permutations = 0;
+
+    @Parameter(names = {"--bootstrap"}, description = "number of bootstrap resamples for confidence intervals of the CGI/non-CGI signal difference (0: none)")
+    private int bootstrap = 0;
+
+    @Parameter(names = {"--seed"}, description = "seed of the permutations and bootstrap resamples")
+    private long seed = 42;
+
+    @Parameter(names = {"--gzip-output"}, description = "write gzip-compressed result files (h3k27ac-*.txt.gz)")
+    private boolean gzipOutput = false;
+
+    @Parameter(names = {"--columnar-output"}, description = "also write the signal of every element in every experiment to h3k27ac-*.npicols")
+    private boolean columnarOutput = false;
+
+    @Parameter(names = {"--matrix"}, description = "write the element x experiment matrix to h3k27ac-*-matrix.* (TSV, ROW_MAJOR, COLUMN_MAJOR; can be repeated)")
+    private List<ElementMatrixFile.Layout> matrixLayouts = new ArrayList<>();
+
+    @Parameter(names = {"--metrics"}, description = "write timing and throughput of the run to <prefix>.json and <prefix>.prom")
+    private String metricsPrefix = null;
+
+    /** Timing of the phases of the run; written only with --metrics. */
+    private final RunMetrics metrics = new RunMetrics();
+
+    /** Threads that inflate BGZF blocks, null if {@link #inflateThreads} is 1. */
+    private ExecutorService inflatePool = null;
+
+    /** Threads of the parse pipelines of all narrowPeak files, null if {@link #parseThreads} is 0. */
+    private ChromosomeWithEnhancers.PipelinePools pipelinePools = null;
+
 
 
 
@@ -48,44 +132,195 @@ public class NarrowPeakInter {
     public NarrowPeakInter() {
     }
 
-    private void analyzeH3K27ac(String group) {
-        String tssFile;
-        RegulatoryElementTssParser tssParser;
+    /** Load the regulatory elements of a group ("enhancer" or "promoter"); null if the group is not known. */
+    private ChromosomeWithEnhancers loadElements(String group) {
+        String tssFile = group.equals("enhancer") ? this.enhancerPath : this.promoterPath;
+        ElementTable enhancers;
+        try (RunMetrics.Timer timer = metrics.start(group + ".element_parse")) {
+            enhancers = readElements(group, tssFile, !noCache, verifyCache);
+            if (enhancers == null) {
+                return null;
+            }
+            timer.addRecords(enhancers.size());
+            timer.addBytes(new File(tssFile).length());
+        }
+        if (enhancers.size() == 0) {
+            throw new RuntimeException("Was not able to parse any enhancers");
+        }
+        ChromosomeWithEnhancers chromwe = new ChromosomeWithEnhancers(enhancers);
+        chromwe.setOverlapEngine(overlapEngine);
+        chromwe.setInflatePool(inflatePool);
+        chromwe.setPipeline(parseThreads, overlapThreads, pipelinePools);
+        if (metricsPrefix != null) {
+            chromwe.setMetrics(metrics, group);
+        }
+        if (incremental) {
+            chromwe.setResultStore(new File("data", ".results"));
+        }
+        return chromwe;
+    }
+
+    /**
+     * Read the regulatory elements of a group from its stats file, or from the binary cache of the file (see
+     * {@link ElementTableCache}).
+     * @param group "enhancer" (tss-stats-hg38e.txt) or "promoter" (tss-stats-hg38p.txt)
+     * @param useCache false to always parse the stats file
+     * @param verifyCache true to check the cache against a checksum of the stats file, not only against its
+     * size and modification time
+     * @return the elements, or null if the group is not known
+     */
+    static ElementTable readElements(String group, String tssFile, boolean useCache, boolean verifyCache) {
+        Supplier<List<RegulatoryElement>> tssParser;
+        String format;
         if (group.equals("enhancer")) {
-            tssFile = this.enhancerPath;
-            tssParser = new TssEnhancerStatsParser(tssFile);
+            tssParser = () -> new TssEnhancerStatsParser(tssFile).getEnhancerList();
+            format = TssEnhancerStatsParser.class.getSimpleName() + "/" + TssEnhancerStatsParser.FORMAT_VERSION;
         } else if (group.equals("promoter")) {
-            tssFile = this.promoterPath;
-            tssParser = new TssPromoterStatsParser(tssFile);
+            tssParser = () -> new TssPromoterStatsParser(tssFile).getEnhancerList();
+            format = TssPromoterStatsParser.class.getSimpleName() + "/" + TssPromoterStatsParser.FORMAT_VERSION;
         } else {
             System.err.println("[ERRROR] Did not recognize group:" + group);
-            return;
+            return null;
         }
+        if (useCache) {
+            ElementTableCache cache = new ElementTableCache(new File(tssFile), format);
+            cache.setVerifyChecksum(verifyCache);
+            return cache.loadOrParse(tssParser);
+        }
+        return ElementTable.fromElements(tssParser.get());
+    }
 
-        List<RegulatoryElement> enhancers = tssParser.getEnhancerList();
-        if (enhancers.isEmpty()) {
-            throw new RuntimeException("Was not able to parse any enhancers");
+    private void analyzeH3K27ac(String group, ChromosomeWithEnhancers chromwe) {
+        if (chromwe == null) {
+            return;
         }
-        ChromosomeWithEnhancers chromwe = new ChromosomeWithEnhancers(enhancers);
         File folder = new File("data");
+        List<File> bedfiles = new ArrayList<>();
         for (final File fileEntry : folder.listFiles()) {
             if (fileEntry.getAbsolutePath().endsWith(".bed.gz")) {
                 System.out.println(fileEntry.getName());
-                chromwe.addDataFromBedFile(fileEntry);
+                bedfiles.add(fileEntry);
+            }
+        }
+        try (RunMetrics.Timer timer = metrics.start(group + ".files")) {
+            chromwe.addDataFromBedFiles(bedfiles, threads);
+            for (FileMetrics f : metrics.getFiles()) {
+                if (f.group.equals(group)) {
+                    timer.addRecords(f.peaks);
+                    timer.addBytes(f.compressedBytes);
+                }
+            }
+        }
+        try (RunMetrics.Timer timer = metrics.start(group + ".stats")) {
+            chromwe.calculateMeanCGIvsNonCGI(threads);
+            timer.addRecords(chromwe.getElementTable().size());
+        }
+        if (permutations > 0 || bootstrap > 0) {
+            try (RunMetrics.Timer timer = metrics.start(group + ".resampling")) {
+                chromwe.compareCgiByResampling(permutations, bootstrap, seed, threads);
+                timer.addRecords((long) (permutations + bootstrap) * chromwe.getElementTable().size());
+            }
+        }
+        String suffix = gzipOutput ? ".gz" : "";
+        String outputfilename = String.format("h3k27ac-%s.txt", group) + suffix;
+        try (RunMetrics.Timer timer = metrics.start(group + ".output")) {
+            chromwe.output_for_R(outputfilename);
+            timer.addRecords(chromwe.getElementTable().size());
+            timer.addBytes(new File(outputfilename).length());
+            if (columnarOutput) {
+                String columnsfilename = String.format("h3k27ac-%s", group) + ElementColumnsFile.SUFFIX + suffix;
+                chromwe.output_columns(columnsfilename);
+                timer.addBytes(new File(columnsfilename).length());
+            }
+            for (ElementMatrixFile.Layout layout : matrixLayouts) {
+                String matrixfilename = String.format("h3k27ac-%s-matrix", group) + layout.getSuffix();
+                chromwe.output_matrix(matrixfilename, layout);
+                timer.addBytes(new File(matrixfilename).length());
+            }
+        }
+    }
+
+
+    /**
+     * Write a binary peak file for each narrowPeak file that does not have an up-to-date one yet.
+     * @return the number of peaks written
+     */
+    private long ingestNarrowPeakFiles() throws IOException {
+        long total = 0;
+        File folder = new File("data");
+        for (final File fileEntry : folder.listFiles()) {
+            if (fileEntry.getAbsolutePath().endsWith(".bed.gz") && !BinaryPeakFile.isUpToDate(fileEntry)) {
+                long n = BinaryPeakFile.ingest(fileEntry, inflatePool);
+                System.out.printf("[INFO] Wrote %d peaks to %s.\n", n, BinaryPeakFile.peakFileFor(fileEntry).getName());
+                total += n;
             }
         }
-        chromwe.calculateMeanCGIvsNonCGI();
-        String outputfilename = String.format("h3k27ac-%s.txt", group);
-        chromwe.output_for_R(outputfilename);
+        return total;
     }
 
 
-    private void run() {
-        NarrowPeakDownloader downloader = new NarrowPeakDownloader();
-        downloader.download();
-        analyzeH3K27ac("enhancer");
-        System.out.println("########################################");
-        analyzeH3K27ac("promoter");
+    /** Write the metrics of the run, also if it failed, so that a failed run shows up in the monitoring. */
+    private void writeMetrics() {
+        try {
+            metrics.writeJson(new File(metricsPrefix + ".json"));
+            metrics.writePrometheus(new File(metricsPrefix + ".prom"));
+            System.out.printf("[INFO] Wrote run metrics to %s.json and %s.prom.\n", metricsPrefix, metricsPrefix);
+        } catch (IOException e) {
+            System.err.printf("[ERROR] Could not write run metrics: %s\n", e.getMessage());
+        }
+    }
+
+    private void run() throws IOException {
+        if (inflateThreads > 1) {
+            inflatePool = Executors.newFixedThreadPool(inflateThreads, r -> {
+                Thread t = new Thread(r, "inflate");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        if (parseThreads > 0) {
+            pipelinePools = new ChromosomeWithEnhancers.PipelinePools(parseThreads);
+        }
+        try {
+            NarrowPeakDownloader downloader = new NarrowPeakDownloader();
+            downloader.setFtpConnectionsPerHost(ftpConnections);
+            downloader.setRefresh(refresh);
+            ChromosomeWithEnhancers enhancers = null;
+            ChromosomeWithEnhancers promoters = null;
+            if (stream) {
+                // the elements are needed before the download so that the files can be analyzed as they arrive
+                enhancers = loadElements("enhancer");
+                promoters = loadElements("promoter");
+                List<ChromosomeWithEnhancers> targets = List.of(enhancers, promoters);
+                downloader.setTee((dest, in) -> ChromosomeWithEnhancers.readExperimentFromStream(dest, in, targets));
+            }
+            if (!noDownload) {
+                try (RunMetrics.Timer timer = metrics.start("download")) {
+                    downloader.download(downloadThreads);
+                    timer.addRecords(downloader.getFilesDownloaded());
+                    timer.addBytes(downloader.getBytesDownloaded());
+                }
+            }
+            if (ingest) {
+                try (RunMetrics.Timer timer = metrics.start("ingest")) {
+                    timer.addRecords(ingestNarrowPeakFiles());
+                }
+            }
+            analyzeH3K27ac("enhancer", enhancers != null ? enhancers : loadElements("enhancer"));
+            enhancers = null;
+            System.out.println("########################################");
+            analyzeH3K27ac("promoter", promoters != null ? promoters : loadElements("promoter"));
+        } finally {
+            if (inflatePool != null) {
+                inflatePool.shutdownNow();
+            }
+            if (pipelinePools != null) {
+                pipelinePools.close();
+            }
+            if (metricsPrefix != null) {
+                writeMetrics();
+            }
+        }
 
     }
 
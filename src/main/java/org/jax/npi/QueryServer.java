@@ -0,0 +1,97 @@
+package org.jax.npi;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import org.jax.npi.analysis.ChromosomeWithEnhancers;
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.server.SignalServer;
+import org.jax.npi.server.SnapshotLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the H3K27ac signal over regions to other pipelines (see {@link SignalServer}), so that a query does
+ * not pay for starting the JVM and reading the narrowPeak files. The enhancers, promoters and the peaks of
+ * the narrowPeak files in {@code data/} are loaded once and kept indexed in memory; when files in
+ * {@code data/} are added, changed or removed, only these files are read again. Run it with
+ * {@code java -cp target/npi.jar org.jax.npi.QueryServer -e tss-stats-hg38e.txt -p tss-stats-hg38p.txt}.
+ */
+public class QueryServer {
+
+    @Parameter(names = {"-e","--enhancer"}, description = "path to tss-stats-hg38e.txt file", required = true)
+    private String enhancerPath;
+
+    @Parameter(names = {"-p","--promoter"}, description = "path to tss-stats-hg38p.txt file", required = true)
+    private String promoterPath;
+
+    @Parameter(names = {"--data"}, description = "directory with the narrowPeak files")
+    private String dataDirectory = "data";
+
+    @Parameter(names = {"--bind"}, description = "address to listen on")
+    private String bindAddress = "127.0.0.1";
+
+    @Parameter(names = {"--port"}, description = "port to listen on")
+    private int port = 8080;
+
+    @Parameter(names = {"-t","--threads"}, description = "number of queries answered in parallel")
+    private int threads = 4;
+
+    @Parameter(names = {"--load-threads"}, description = "number of narrowPeak files read in parallel")
+    private int loadThreads = 1;
+
+    @Parameter(names = {"--no-cache"}, description = "always parse the tss-stats files instead of using the binary cache")
+    private boolean noCache = false;
+
+    @Parameter(names = {"--verify-cache"}, description = "also compare a checksum of the tss-stats files with the one in the binary cache")
+    private boolean verifyCache = false;
+
+    @Parameter(names = {"--no-watch"}, description = "do not reload when the narrowPeak files change (POST /reload still works)")
+    private boolean noWatch = false;
+
+    public static void main(String [] argv) {
+        QueryServer m = new QueryServer();
+        try {
+            JCommander.newBuilder()
+                    .addObject(m)
+                    .build().
+                    parse(argv);
+        } catch (ParameterException e) {
+            e.printStackTrace();
+            return;
+        }
+        try {
+            m.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run() throws IOException {
+        Map<String, ChromosomeWithEnhancers> groups = new LinkedHashMap<>();
+        groups.put("enhancer", loadElements("enhancer", enhancerPath));
+        groups.put("promoter", loadElements("promoter", promoterPath));
+        SnapshotLoader loader = new SnapshotLoader(new File(dataDirectory), groups, loadThreads);
+        loader.reload();
+        if (!noWatch) {
+            loader.watch(SnapshotLoader.DEFAULT_QUIET_MILLIS);
+        }
+        SignalServer server = new SignalServer(loader, new InetSocketAddress(bindAddress, port), threads);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+        server.start();
+        System.out.printf("[INFO] Listening on http://%s:%d/.\n", bindAddress, server.getPort());
+    }
+
+    private ChromosomeWithEnhancers loadElements(String group, String tssFile) {
+        ElementTable elements = NarrowPeakInter.readElements(group, tssFile, !noCache, verifyCache);
+        if (elements == null || elements.size() == 0) {
+            throw new RuntimeException("Was not able to parse any " + group + "s");
+        }
+        System.out.printf("[INFO] Loaded %d %ss.\n", elements.size(), group);
+        return new ChromosomeWithEnhancers(elements);
+    }
+}
@@ -1,176 +1,717 @@
 package org.jax.npi.analysis;
 
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.data.ExperimentResult;
 import org.jax.npi.data.RegulatoryElement;
-import org.jax.npi.data.H3K27AcSignal;
+import org.jax.npi.io.BgzfInputStream;
+import org.jax.npi.io.BinaryPeakFile;
+import org.jax.npi.io.ElementColumnsFile;
+import org.jax.npi.io.ElementMatrixFile;
+import org.jax.npi.io.LineWriter;
+import org.jax.npi.io.NarrowPeakParser;
+import org.jax.npi.io.PeakReader;
+import org.jax.npi.io.ResultStore;
+import org.jax.npi.metrics.FileMetrics;
+import org.jax.npi.metrics.RunMetrics;
+import org.jax.npi.metrics.TimedInputStream;
+import org.jax.npi.stats.CgiResampling;
+import org.jax.npi.stats.CgiSummary;
+import org.jax.npi.stats.SignalSummary;
 
 import static org.apache.commons.math3.stat.inference.TestUtils.chiSquare;
 import static org.apache.commons.math3.stat.inference.TestUtils.chiSquareTest;
 
 import java.io.*;
 import java.util.*;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 public class ChromosomeWithEnhancers {
+    /** Number of elements per partial summary of {@link #summarizeCgi(int)}. */
+    private static final int SUMMARY_BLOCK = 1 << 16;
 
-    private final Map<String, List<RegulatoryElement>> chromosome2enhancerList;
+    /** Coordinates of the elements and their signal in each experiment. */
+    private final ElementTable table;
+    /** Interval index for each chromosome over the element ids of the chromosome. */
+    private final Map<String, IntervalIndex> chromosome2index;
 
     private int number_of_experiments;
+    /** Algorithm used to find the elements that overlap the peaks of a narrowPeak file. */
+    private OverlapEngine overlapEngine = OverlapEngine.AUTO;
+    /** Columns that were added to the table and can be reused for the next experiment. */
+    private final Queue<ExperimentColumn> columnPool = new ConcurrentLinkedQueue<>();
+    /** Threads used to inflate BGZF-compressed narrowPeak files, null to inflate on the reading thread. */
+    private ExecutorService inflatePool = null;
+    /** Number of threads that parse a narrowPeak file in a {@link PeakPipeline}, 0 to parse on one thread. */
+    private int parseThreads = 0;
+    /** Number of partitions (threads) of the overlap stage of the {@link PeakPipeline}. */
+    private int overlapPartitions = 1;
+    /** Threads of the {@link PeakPipeline}, shared by all files; null if there is no pipeline. */
+    private PipelinePools pipelinePools = null;
+    /** Default of {@link #setStreamedResultLimit(long)}. */
+    public static final long DEFAULT_STREAMED_RESULT_LIMIT = 256L << 20;
+    /** Results computed while the narrowPeak files were downloaded, by absolute path of the file. */
+    private final Map<String, StreamedExperiment> streamedExperiments = new ConcurrentHashMap<>();
+    /** Approximate memory used by {@link #streamedExperiments}. */
+    private final AtomicLong streamedBytes = new AtomicLong();
+    /** Maximum of {@link #streamedBytes}; results that do not fit are dropped and the file is read later. */
+    private volatile long streamedResultLimit = DEFAULT_STREAMED_RESULT_LIMIT;
+    /** Receives the timing of each narrowPeak file and of finishing the experiments, or null. */
+    private RunMetrics metrics = null;
+    /** Name of the elements in the metrics ("enhancer", "promoter"). */
+    private String metricsGroup = null;
+    /** Results of earlier runs, which are used instead of reading the narrowPeak files again; or null. */
+    private ResultStore resultStore = null;
+
+    /** A narrowPeak file that was read, or whose result was found in the {@link #resultStore}. */
+    private static final class PendingExperiment {
+        final String name;
+        /** Checksum of the narrowPeak file, null if there is no result store. */
+        final String checksum;
+        /** The signal read from the file, null if the result was stored or streamed. */
+        final ExperimentColumn column;
+        final ExperimentResult stored;
+        /** The result computed while the file was downloaded, or null. */
+        final ExperimentResult streamed;
+
+        PendingExperiment(String name, String checksum, ExperimentColumn column, ExperimentResult stored,
+                          ExperimentResult streamed) {
+            this.name = name;
+            this.checksum = checksum;
+            this.column = column;
+            this.stored = stored;
+            this.streamed = streamed;
+        }
+    }
+
+    /** The result of a narrowPeak file that was read while it was downloaded, with the counts for the metrics. */
+    private static final class StreamedExperiment {
+        final ExperimentResult result;
+        final long peaks;
+        final long overlaps;
+        final long skippedPeaks;
+
+        StreamedExperiment(ExperimentColumn column) {
+            this.result = column.toResult();
+            this.peaks = column.getPeakCount();
+            this.overlaps = column.getOverlapCount();
+            this.skippedPeaks = column.getSkippedPeakCount();
+        }
+
+        /** @return approximate memory used by the result (an int and two doubles per element) */
+        long bytes() {
+            return 20L * result.ids.length;
+        }
+    }
 
     public ChromosomeWithEnhancers(List<RegulatoryElement> enhancerList) {
-        chromosome2enhancerList = new HashMap<>();
-        number_of_experiments = 0;
-        for (RegulatoryElement e : enhancerList) {
-            chromosome2enhancerList.putIfAbsent(e.getChromosome(), new ArrayList<>());
-            List<RegulatoryElement> enlst = chromosome2enhancerList.get(e.getChromosome());
-            enlst.add(e);
+        this(ElementTable.fromElements(enhancerList));
+    }
+
+    public ChromosomeWithEnhancers(ElementTable table) {
+        this.table = table;
+        this.number_of_experiments = table.getNumberOfExperiments();
+        this.chromosome2index = new HashMap<>();
+        for (int c = 0; c < table.getNumberOfChromosomes(); c++) {
+            IntervalIndex index = new IntervalIndex(table.getBegins(), table.getEnds(),
+                    table.getChromosomeStart(c), table.getChromosomeEnd(c));
+            chromosome2index.put(table.getChromosomeName(c), index);
+        }
+    }
+
+    private ChromosomeWithEnhancers(ElementTable table, Map<String, IntervalIndex> chromosome2index) {
+        this.table = table;
+        this.number_of_experiments = table.getNumberOfExperiments();
+        this.chromosome2index = chromosome2index;
+    }
+
+    /**
+     * @return an object for the same elements, sharing the coordinates and interval indexes with this one,
+     * without any experiments and with the same overlap engine
+     */
+    public ChromosomeWithEnhancers withoutExperiments() {
+        ChromosomeWithEnhancers copy = new ChromosomeWithEnhancers(table.withoutExperiments(), chromosome2index);
+        copy.setOverlapEngine(overlapEngine);
+        return copy;
+    }
+
+    public ElementTable getElementTable() {
+        return table;
+    }
+
+
+    public OverlapEngine getOverlapEngine() {
+        return overlapEngine;
+    }
+
+    public void setOverlapEngine(OverlapEngine engine) {
+        this.overlapEngine = engine;
+    }
+
+    /**
+     * @param pool threads used to inflate the blocks of BGZF-compressed narrowPeak files (see
+     * {@link BgzfInputStream}), or null to decompress each file on the thread that reads it
+     */
+    public void setInflatePool(ExecutorService pool) {
+        this.inflatePool = pool;
+    }
+
+    /**
+     * Process each narrowPeak file in a {@link PeakPipeline} with separate read, parse and overlap stages.
+     * Binary peak files (see {@link BinaryPeakFile}) need no parsing and are still read on one thread.
+     * @param parseThreads threads that parse the text, 0 to switch the pipeline off
+     * @param overlapPartitions threads that intersect the peaks with the elements, each for a subset of the
+     * chromosomes
+     * @param pools threads of the pipelines, created once per run and shared by all files (and possibly by
+     * other objects); null if parseThreads is 0
+     */
+    public void setPipeline(int parseThreads, int overlapPartitions, PipelinePools pools) {
+        this.parseThreads = parseThreads;
+        this.overlapPartitions = overlapPartitions;
+        this.pipelinePools = pools;
+    }
+
+    /** The thread pools of the {@link PeakPipeline}s of a run; closing them stops the threads. */
+    public static final class PipelinePools implements AutoCloseable {
+        private final ExecutorService parsePool;
+        private final int parseThreads;
+        private final ExecutorService stagePool;
+
+        /** @param parseThreads threads that parse the text of the narrowPeak files */
+        public PipelinePools(int parseThreads) {
+            this.parseThreads = Math.max(1, parseThreads);
+            this.parsePool = PeakPipeline.newParsePool(this.parseThreads);
+            this.stagePool = PeakPipeline.newStagePool();
         }
-        // sort the Enhancers
-        for (List<RegulatoryElement> lst : chromosome2enhancerList.values()) {
-            Collections.sort(lst);
+
+        @Override
+        public void close() {
+            parsePool.shutdownNow();
+            stagePool.shutdownNow();
         }
     }
 
+    /**
+     * Record the inflate, parse and overlap time, the number of peaks and overlaps of each narrowPeak file
+     * and the time of finishing the experiments ({@code <group>.finalize}). The parse and overlap time is
+     * measured per peak, which slows the reading of the files down a little.
+     * @param group name of the elements, e.g. "enhancer"
+     */
+    public void setMetrics(RunMetrics metrics, String group) {
+        this.metrics = metrics;
+        this.metricsGroup = group;
+    }
+
 
     /**
-     *     [0] string chrom;        "Reference sequence chromosome or scaffold"
-     *     [1] uint   chromStart;   "Start position in chromosome"
-     *     [2] uint   chromEnd;     "End position in chromosome"
-     *     [3] string name;
-     *     [4] uint   score;        "Indicates how dark the peak will be displayed in the browser (0-1000) "
-     *     [5] char[1]  strand;     "+ or - or . for unknown"
-     *     [6] float  signalValue;  "Measurement of average enrichment for the region"
-     *     [7] float  pValue;       "Statistical significance of signal value (-log10). Set to -1 if not used."
-     *     [8] float  qValue;       "Statistical significance with multiple-test correction applied (FDR -log10). Set to -1 if not used."
-     *     [9] int   peak;         "Point-source called for this peak; 0-based offset from chromStart. Set to -1 if no point-source called."
-     * @param bedfile
+     * Keep the result of each narrowPeak file in a {@link ResultStore}, keyed by the contents of the file and
+     * the elements, and use the stored results instead of reading files that did not change.
+     * @param directory directory of the store, e.g., {@code data/.results}
+     */
+    public void setResultStore(File directory) {
+        this.resultStore = new ResultStore(directory, table);
+    }
+
+    /**
+     * Add the H3K27ac signal of one experiment, see {@link NarrowPeakParser} for the narrowPeak format.
+     * @param bedfile narrowPeak file (.bed.gz)
      */
     public void addDataFromBedFile(File bedfile){
+        addExperiment(prepareExperiment(bedfile));
+    }
+
+    /**
+     * Process several narrowPeak files. Each file is read and intersected with the elements on one of
+     * {@code threads} worker threads, and the results are added in the order of the list, so that the
+     * outcome is identical to calling {@link #addDataFromBedFile(File)} for one file after the other.
+     * At most two files per thread are kept in memory at any time.
+     * @param bedfiles narrowPeak files (.bed.gz)
+     * @param threads number of worker threads; with one thread the files are processed on the calling thread
+     */
+    public void addDataFromBedFiles(List<File> bedfiles, int threads) {
+        if (threads <= 1) {
+            for (File bedfile : bedfiles) {
+                addDataFromBedFile(bedfile);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
         try {
-            InputStream fileStream = new FileInputStream(bedfile);
-            InputStream gzipStream = new GZIPInputStream(fileStream);
-            Reader decoder = new InputStreamReader(gzipStream);
-            BufferedReader br = new BufferedReader(decoder);
-            String line;
-            while ((line = br.readLine())!=null) {
-                String []F = line.split("\t");
-                if (F.length != 10) {
-                    throw new RuntimeException("Malformed BED file line: " + line);
+            Deque<Future<PendingExperiment>> pending = new ArrayDeque<>();
+            Iterator<File> it = bedfiles.iterator();
+            while (it.hasNext() || !pending.isEmpty()) {
+                while (it.hasNext() && pending.size() < 2 * threads) {
+                    File bedfile = it.next();
+                    pending.add(executor.submit(() -> prepareExperiment(bedfile)));
                 }
-                String chrom = F[0];
-                int begin = Integer.parseInt(F[1]);
-                int end = Integer.parseInt(F[2]);
-                double value = Double.parseDouble(F[6]);
-                addDataPoint(chrom, begin, end, value);
+                addExperiment(pending.poll().get());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing narrowPeak files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Could not process narrowPeak files", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Look up the result of a narrowPeak file in the result store, or else read the file (see
+     * {@link #readExperiment(File)}). Like that method, this may be called from several threads at once.
+     */
+    private PendingExperiment prepareExperiment(File bedfile) {
+        ExperimentResult streamed = takeStreamedResult(bedfile);
+        if (resultStore == null) {
+            return streamed != null ? new PendingExperiment(bedfile.getName(), null, null, null, streamed)
+                    : new PendingExperiment(bedfile.getName(), null, readExperiment(bedfile), null, null);
+        }
+        String checksum;
+        try {
+            checksum = resultStore.contentChecksum(bedfile);
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException("Could not read " + bedfile.getAbsolutePath());
         }
+        if (streamed != null) {
+            return new PendingExperiment(bedfile.getName(), checksum, null, null, streamed);
+        }
+        long start = System.nanoTime();
+        ExperimentResult stored = resultStore.load(checksum, bedfile.getName());
+        if (stored != null) {
+            if (metrics != null) {
+                metrics.record(metricsGroup + ".stored", System.nanoTime() - start, 0, stored.ids.length, 0);
+            }
+            return new PendingExperiment(bedfile.getName(), checksum, null, stored, null);
+        }
+        return new PendingExperiment(bedfile.getName(), checksum, readExperiment(bedfile), null, null);
+    }
+
+    /**
+     * Remove the result that was computed while {@code bedfile} was downloaded, and add the file to the metrics.
+     * @return the result, or null if the file was not streamed
+     */
+    private ExperimentResult takeStreamedResult(File bedfile) {
+        StreamedExperiment streamed = streamedExperiments.remove(bedfile.getAbsolutePath());
+        if (streamed == null) {
+            return null;
+        }
+        streamedBytes.addAndGet(-streamed.bytes());
+        if (metrics != null) {
+            FileMetrics fileMetrics = new FileMetrics(metricsGroup, bedfile.getName());
+            fileMetrics.streamed = true;
+            fileMetrics.compressedBytes = bedfile.length();
+            fileMetrics.peaks = streamed.peaks;
+            fileMetrics.overlaps = streamed.overlaps;
+            fileMetrics.skippedScaffoldPeaks = streamed.skippedPeaks;
+            metrics.addFile(fileMetrics);
+        }
+        return streamed.result;
+    }
+
+    /**
+     * Read one narrowPeak file and intersect its peaks with the regulatory elements. This does not change
+     * the state of this object and may be called from several threads at once.
+     * @param bedfile narrowPeak file (.bed.gz)
+     * @return the accumulated signal of each element in this experiment
+     */
+    ExperimentColumn readExperiment(File bedfile) {
+        if (metrics != null) {
+            return readExperimentWithMetrics(bedfile);
+        }
+        if (parseThreads > 0 && !BinaryPeakFile.isUpToDate(bedfile)) {
+            return readExperimentPipelined(bedfile, null);
+        }
+        try (PeakReader parser = openPeaks(bedfile)) {
+            return readExperiment(bedfile.getName(), parser);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not read " + bedfile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Intersect the peaks of one experiment with the regulatory elements without adding the experiment to the
+     * table, e.g., to add it later with {@link #addResult(ExperimentResult)}. This does not change the state of
+     * this object and may be called from several threads at once.
+     * @param peaks the peaks; the reader is not closed
+     */
+    public ExperimentResult computeResult(String name, PeakReader peaks) throws IOException {
+        ExperimentColumn column = readExperiment(name, peaks);
+        ExperimentResult result = column.toResult();
+        releaseColumn(column);
+        return result;
+    }
+
+    /** Add the result of one experiment, see {@link #computeResult(String, PeakReader)}. */
+    public void addResult(ExperimentResult result) {
+        table.addExperiment(result);
         this.number_of_experiments += 1;
-        // process the data from this experment
-        for ( List<RegulatoryElement> lst : chromosome2enhancerList.values()) {
-            for (RegulatoryElement e : lst) {
-                e.processLastExperiment();
+    }
+
+    /**
+     * Report the id of every element on a chromosome that overlaps the closed interval [begin,end]. There are
+     * no overlaps on chromosomes without elements. This may be called from several threads at once.
+     * @return number of overlapping elements
+     */
+    public int forEachOverlappingElement(String chrom, int begin, int end, IntConsumer consumer) {
+        IntervalIndex index = chromosome2index.get(chrom);
+        return index == null ? 0 : index.forEachOverlap(begin, end, consumer);
+    }
+
+    /** @return for each element, the mean over the experiments of the mean H3K27ac signal per 1000 bp */
+    public double[] getMeanH3K27AcPer1000() {
+        return table.getMeanH3K27AcPer1000(number_of_experiments);
+    }
+
+    /** @return for each element, the mean over the experiments of the maximum H3K27ac signal */
+    public double[] getMeanMaxH3K27ac() {
+        return table.getMeanMaxH3K27ac(number_of_experiments);
+    }
+
+    /**
+     * Intersect the peaks of one experiment with the regulatory elements. Like {@link #readExperiment(File)},
+     * this does not change the state of this object.
+     * @param name name of the experiment
+     * @param parser the peaks; the reader is not closed
+     * @return the accumulated signal of each element in this experiment
+     */
+    ExperimentColumn readExperiment(String name, PeakReader parser) throws IOException {
+        OverlapSink sink = new OverlapSink(name);
+        while (parser.next()) {
+            sink.add(parser.getChromosome(), parser.getBegin(), parser.getEnd(), parser.getSignalValue());
+        }
+        return sink.column;
+    }
+
+    /** Like {@link #readExperiment(File)}, but measure the stages and add the file to the metrics. */
+    private ExperimentColumn readExperimentWithMetrics(File bedfile) {
+        FileMetrics fileMetrics = new FileMetrics(metricsGroup, bedfile.getName());
+        long start = System.nanoTime();
+        long startCpu = RunMetrics.threadCpuNanos();
+        ExperimentColumn column;
+        if (parseThreads > 0 && !BinaryPeakFile.isUpToDate(bedfile)) {
+            column = readExperimentPipelined(bedfile, fileMetrics);
+        } else {
+            TimedInputStream in = null;
+            PeakReader parser = null;
+            try {
+                if (BinaryPeakFile.isUpToDate(bedfile)) {
+                    parser = BinaryPeakFile.open(bedfile);
+                } else {
+                    in = new TimedInputStream(BgzfInputStream.open(bedfile, inflatePool));
+                    parser = new NarrowPeakParser(in);
+                }
+                OverlapSink sink = new OverlapSink(bedfile.getName());
+                long parseNanos = 0;
+                long overlapNanos = 0;
+                long t0 = System.nanoTime();
+                while (parser.next()) {
+                    long t1 = System.nanoTime();
+                    sink.add(parser.getChromosome(), parser.getBegin(), parser.getEnd(), parser.getSignalValue());
+                    long t2 = System.nanoTime();
+                    parseNanos += t1 - t0;
+                    overlapNanos += t2 - t1;
+                    t0 = t2;
+                }
+                parseNanos += System.nanoTime() - t0;
+                column = sink.column;
+                if (in != null) {
+                    fileMetrics.inflateNanos = in.getNanos();
+                    fileMetrics.decompressedBytes = in.getBytes();
+                    parseNanos -= in.getNanos();
+                }
+                fileMetrics.parseNanos = parseNanos;
+                fileMetrics.overlapNanos = overlapNanos;
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Could not read " + bedfile.getAbsolutePath());
+            } finally {
+                if (parser != null) {
+                    try {
+                        parser.close();
+                    } catch (IOException e) {
+                        // swallow, the file has been read
+                    }
+                }
             }
         }
+        fileMetrics.wallNanos = System.nanoTime() - start;
+        fileMetrics.cpuNanos = RunMetrics.threadCpuNanos() - startCpu;
+        recordFile(bedfile, fileMetrics, column);
+        return column;
+    }
+
+    private void recordFile(File bedfile, FileMetrics fileMetrics, ExperimentColumn column) {
+        fileMetrics.compressedBytes = bedfile.length();
+        fileMetrics.peaks = column.getPeakCount();
+        fileMetrics.overlaps = column.getOverlapCount();
+        fileMetrics.skippedScaffoldPeaks = column.getSkippedPeakCount();
+        metrics.addFile(fileMetrics);
     }
 
+    /**
+     * Set the maximum memory (approximately, in bytes) of the results that are kept from
+     * {@link #readExperimentFromStream}; files whose results do not fit are read from disk later.
+     */
+    public void setStreamedResultLimit(long bytes) {
+        this.streamedResultLimit = bytes;
+    }
+
+    /**
+     * Read a narrowPeak file from a stream, typically while it is downloaded (see
+     * {@link org.jax.npi.io.DownloadTee}), and intersect its peaks with the elements of each of the
+     * {@code targets}. The file is decompressed and parsed only once. The results are kept once the returned
+     * action is run, i.e., after the download was checked and saved, until the file is passed to
+     * {@link #addDataFromBedFiles(List, int)}, which then does not read it again, so that the experiments are
+     * still added in the order of the list. Nothing is kept if the stream fails, if it was not decompressed to
+     * its end, or if the results of a target would exceed its {@link #setStreamedResultLimit(long) limit}.
+     * @param bedfile the file the stream will be saved to
+     * @param compressed the gzip-compressed contents of the file
+     * @return the action that keeps the results, or null if there is nothing to keep
+     */
+    public static Runnable readExperimentFromStream(File bedfile, InputStream compressed,
+                                                    List<ChromosomeWithEnhancers> targets) throws IOException {
+        List<OverlapSink> sinks = new ArrayList<>();
+        for (ChromosomeWithEnhancers target : targets) {
+            sinks.add(target.new OverlapSink(bedfile.getName()));
+        }
+        ExecutorService pool = targets.isEmpty() ? null : targets.get(0).inflatePool;
+        boolean complete;
+        try (PeakReader parser = new NarrowPeakParser(BgzfInputStream.open(compressed, pool))) {
+            while (parser.next()) {
+                String chrom = parser.getChromosome();
+                int begin = parser.getBegin();
+                int end = parser.getEnd();
+                double value = parser.getSignalValue();
+                for (OverlapSink sink : sinks) {
+                    sink.add(chrom, begin, end, value);
+                }
+            }
+            // a gzip decoder may stop after a member if the next one has not arrived yet
+            complete = compressed.read() == -1;
+        }
+        List<StreamedExperiment> streamed = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            streamed.add(new StreamedExperiment(sinks.get(i).column));
+            targets.get(i).releaseColumn(sinks.get(i).column);
+        }
+        if (!complete) {
+            System.out.printf("[INFO] %s was not decompressed to its end while downloading it, it will be read again.\n",
+                    bedfile.getName());
+            return null;
+        }
+        return () -> {
+            for (int i = 0; i < targets.size(); i++) {
+                targets.get(i).keepStreamed(bedfile, streamed.get(i));
+            }
+        };
+    }
 
+    /** Keep the result of a streamed file unless that exceeds {@link #streamedResultLimit}. */
+    private void keepStreamed(File bedfile, StreamedExperiment streamed) {
+        long bytes = streamed.bytes();
+        if (streamedBytes.addAndGet(bytes) > streamedResultLimit) {
+            streamedBytes.addAndGet(-bytes);
+            System.out.printf("[INFO] Not keeping the streamed result of %s (limit of %d MB), it will be read again.\n",
+                    bedfile.getName(), streamedResultLimit >> 20);
+            return;
+        }
+        StreamedExperiment previous = streamedExperiments.put(bedfile.getAbsolutePath(), streamed);
+        if (previous != null) {
+            streamedBytes.addAndGet(-previous.bytes());
+        }
+    }
 
-    /** Naive algorithm, but fast enough in practice. */
-    private void addDataPoint(String chrom, int beginH3K27ac, int endH3K27ac, double value) {
-        if (! this.chromosome2enhancerList.containsKey(chrom)) {
-            if (chrom.contains("random") || chrom.contains("Un_")) {
-                // do not worry about these scaffolds, just skip
-                return;
+    /**
+     * Read one narrowPeak file with a {@link PeakPipeline}: the peaks are parsed on {@link #parseThreads}
+     * threads and intersected with the elements on {@link #overlapPartitions} threads, each of which handles
+     * a subset of the chromosomes and fills its own column. Since the partitions hold disjoint sets of elements
+     * and see the peaks of their chromosomes in file order, the merged column is the same as with
+     * {@link #readExperiment(File)} on one thread.
+     * @param fileMetrics receives the time of the stages, or null
+     */
+    private ExperimentColumn readExperimentPipelined(File bedfile, FileMetrics fileMetrics) {
+        List<OverlapSink> sinks = new ArrayList<>();
+        for (int p = 0; p < Math.max(1, overlapPartitions); p++) {
+            sinks.add(new OverlapSink(bedfile.getName()));
+        }
+        try (InputStream in = BgzfInputStream.open(bedfile, inflatePool)) {
+            PeakPipeline pipeline = new PeakPipeline(pipelinePools.parsePool, pipelinePools.parseThreads,
+                    pipelinePools.stagePool, sinks);
+            if (overlapEngine == OverlapEngine.SWEEP) {
+                pipeline.requireSortedChromosomes(bedfile.getName());
             }
-            throw new RuntimeException("Could not find chromosome " + chrom);
-        }
-        if (beginH3K27ac > endH3K27ac) {
-            throw new RuntimeException(String.format("Begin=%d and end =%d\n", beginH3K27ac, endH3K27ac));
-        }
-        List<RegulatoryElement> enhancers = this.chromosome2enhancerList.get(chrom);
-        for (RegulatoryElement e : enhancers) {
-            int enhancerStartPos = e.getBegin();
-            int enhancerEndPos = e.getEnd();
-            if (enhancerStartPos > endH3K27ac) {
-                // the enhancers are sorted -- the current enhancer is already beyond the end
-                // of the new interval and there was no match. There is no more hope
-                // of finding a match, so we can just return
-                return;
-            } else if (enhancerEndPos < beginH3K27ac) {
-                // The H3K27ac region is located 3' (downstream) to the current enhancer
-                // therefore, skip to the next enhancer and check for overlap
-                continue;
-            } else if (beginH3K27ac <= enhancerStartPos && endH3K27ac >= enhancerStartPos) {
-                /*
-                        |--enhancer--|
-                     |------ peak---------|
-                   begin                 end
-                        or
-                          |--enhancer--------|
-                     |------ peak---------|
-                   begin                 end
-                 */
-                int B = enhancerStartPos; //
-                int E = Math.min(endH3K27ac, enhancerEndPos);
-                H3K27AcSignal h3k27 = new H3K27AcSignal(B, E, value);
-                e.addH3K27AcValue(h3k27);
-            } else if (beginH3K27ac <= enhancerEndPos && endH3K27ac >= enhancerEndPos) {
-                  /*
-                        |--enhancer--|
-                     |------ peak---------|
-                   begin                 end
-                        or
-                 |--enhancer--------|
-                     |------ peak---------|
-                   begin                 end
-                 */
-                int B = beginH3K27ac < enhancerStartPos ? enhancerStartPos : beginH3K27ac;
-                int E = endH3K27ac > enhancerEndPos ? enhancerEndPos : endH3K27ac;
-                H3K27AcSignal h3k27 = new H3K27AcSignal(B, E, value);
-                e.addH3K27AcValue(h3k27);
-            } else if (enhancerStartPos <= beginH3K27ac &&  endH3K27ac <= enhancerEndPos) {
-                // H3K27Ac region including entirely within the enhancer
-                 /*
-                        |----enhancer----|
-                             |-- peak-|
-                            begin     end
-                */
-                int B = Math.max(enhancerStartPos, beginH3K27ac);
-                int E = Math.min(enhancerEndPos, endH3K27ac);
-                H3K27AcSignal h3k27 = new H3K27AcSignal(B, E, value);
-                e.addH3K27AcValue(h3k27);
-            } else if ( beginH3K27ac <=  enhancerStartPos &&  enhancerEndPos  <= endH3K27ac) {
-                // enhancer  including entirely within the H3K27Ac region
-                 /*
-                        |----enhancer----|
-                      |------- peak----------------|
-                */
-                int B = Math.max(enhancerStartPos, beginH3K27ac);
-                int E = Math.min(enhancerEndPos, endH3K27ac);
-                H3K27AcSignal h3k27 = new H3K27AcSignal(B, E, value);
-                e.addH3K27AcValue(h3k27);
-            } else {
-                // should never happen, actually
-                System.out.printf("begin:%d, end:%d, enhancerStartPos:%d, enhancerEndPos: %d\n",
-                        beginH3K27ac, endH3K27ac, enhancerStartPos, enhancerEndPos);
-                if (beginH3K27ac < enhancerStartPos) {
-                    System.out.println("H3K27ac-start is 5'");
-                } else {
-                    System.out.println("Enhancer-start is 5'");
+            PeakPipeline.Stats stats = pipeline.run(in);
+            System.out.printf("[INFO] %s: %s.\n", bedfile.getName(), stats);
+            if (fileMetrics != null) {
+                fileMetrics.inflateNanos = stats.getReadNanos();
+                fileMetrics.decompressedBytes = stats.getBytesRead();
+                fileMetrics.parseNanos = stats.getParseNanos();
+                fileMetrics.overlapNanos = stats.getOverlapNanos();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not read " + bedfile.getAbsolutePath());
+        }
+        ExperimentColumn column = sinks.get(0).column;
+        for (int p = 1; p < sinks.size(); p++) {
+            column.mergeFrom(sinks.get(p).column);
+            releaseColumn(sinks.get(p).column);
+        }
+        return column;
+    }
+
+    /**
+     * Intersects the peaks of one narrowPeak file with the elements and accumulates the signal in a column.
+     * The peaks are joined with a sweep as long as the file is sorted (unless the engine is INDEX); if a peak
+     * is out of order, the remaining peaks are looked up in the interval index (or, with the SWEEP engine,
+     * an exception is thrown). The sink itself receives the overlapping elements of the current peak, so that
+     * no callback object is created per peak.
+     */
+    private final class OverlapSink implements PeakPipeline.PeakSink, IntConsumer {
+        private final String filename;
+        private final ExperimentColumn column;
+        private SweepLineJoin sweep;
+        /** The current peak. */
+        private int peakBegin;
+        private int peakEnd;
+        private double peakValue;
+
+        OverlapSink(String filename) {
+            this.filename = filename;
+            this.column = takeColumn(filename);
+            this.sweep = overlapEngine == OverlapEngine.INDEX ? null : new SweepLineJoin(chromosome2index);
+        }
+
+        @Override
+        public void add(String chrom, int begin, int end, double value) {
+            column.countPeak();
+            if (sweep != null && !addDataPoint(chrom, begin, end, value)) {
+                if (overlapEngine == OverlapEngine.SWEEP) {
+                    throw new RuntimeException(String.format("%s is not sorted by coordinate (%s:%d-%d)",
+                            filename, chrom, begin, end));
                 }
-                if (endH3K27ac < enhancerEndPos) {
-                    System.out.println("H3K27ac-end is 5'");
-                } else {
-                    System.out.println("Enhancer-end is 5'");
+                System.out.printf("[INFO] %s is not sorted by coordinate, falling back to the interval index.\n",
+                        filename);
+                sweep = null;
+            }
+            if (sweep == null) {
+                addDataPoint(chrom, begin, end, value);
+            }
+        }
+
+        /**
+         * Add the signal of one peak to all regulatory elements it overlaps. The overlapping elements are found
+         * with the sweep if there is one, or else with the {@link IntervalIndex} of the chromosome. Each element
+         * receives the part of the peak that lies within the element.
+         * @return false if the sweep rejected the peak because the file is not sorted; nothing was added then
+         */
+        private boolean addDataPoint(String chrom, int beginH3K27ac, int endH3K27ac, double value) {
+            IntervalIndex index = chromosome2index.get(chrom);
+            if (index == null) {
+                if (chrom.contains("random") || chrom.contains("Un_")) {
+                    // do not worry about these scaffolds, just skip
+                    column.countSkippedPeak();
+                    return true;
                 }
-                throw new RuntimeException("Missed case for overlap between H3K27Ac and Ehancer");
+                throw new RuntimeException("Could not find chromosome " + chrom);
+            }
+            if (beginH3K27ac > endH3K27ac) {
+                throw new RuntimeException(String.format("Begin=%d and end =%d\n", beginH3K27ac, endH3K27ac));
             }
+            peakBegin = beginH3K27ac;
+            peakEnd = endH3K27ac;
+            peakValue = value;
+            if (sweep != null) {
+                return sweep.forEachOverlap(chrom, beginH3K27ac, endH3K27ac, this);
+            }
+            index.forEachOverlap(beginH3K27ac, endH3K27ac, this);
+            return true;
         }
+
+        @Override
+        public void accept(int id) {
+            // clip the peak to the enhancer
+            int B = Math.max(table.getBegin(id), peakBegin);
+            int E = Math.min(table.getEnd(id), peakEnd);
+            column.addSignal(id, B, E, peakValue);
+        }
+    }
+
+    /** @return an empty column from the pool, or a new one */
+    private ExperimentColumn takeColumn(String name) {
+        ExperimentColumn column = columnPool.poll();
+        if (column == null) {
+            return new ExperimentColumn(name, table);
+        }
+        column.clear(name);
+        return column;
     }
 
+    /**
+     * Open the peaks of a narrowPeak file. If there is an up-to-date binary peak file (see
+     * {@link BinaryPeakFile#ingest(File)}), it is memory-mapped; otherwise the .bed.gz file is decompressed
+     * and parsed.
+     */
+    private PeakReader openPeaks(File bedfile) throws IOException {
+        if (BinaryPeakFile.isUpToDate(bedfile)) {
+            return BinaryPeakFile.open(bedfile);
+        }
+        return new NarrowPeakParser(BgzfInputStream.open(bedfile, inflatePool));
+    }
+
+    /**
+     * Add the mean and maximum signal of the elements touched in one experiment to the table, and store the
+     * result if it was not stored yet.
+     */
+    private void addExperiment(PendingExperiment experiment) {
+        if (experiment.stored != null) {
+            System.out.printf("[INFO] Using the stored result of %s.\n", experiment.name);
+            addResult(experiment.stored);
+            return;
+        }
+        ExperimentResult result = experiment.streamed;
+        if (result != null) {
+            addResult(result);
+        } else {
+            ExperimentColumn column = experiment.column;
+            long start = metrics != null ? System.nanoTime() : 0;
+            long startCpu = metrics != null ? RunMetrics.threadCpuNanos() : 0;
+            result = column.toResult();
+            addResult(result);
+            if (metrics != null) {
+                metrics.record(metricsGroup + ".finalize", System.nanoTime() - start,
+                        RunMetrics.threadCpuNanos() - startCpu, column.getTouchedCount(), 0);
+            }
+            releaseColumn(column);
+        }
+        if (experiment.checksum != null) {
+            try {
+                resultStore.store(experiment.checksum, result);
+            } catch (IOException e) {
+                System.err.printf("[WARNING] Could not store the result of %s: %s\n", experiment.name, e.getMessage());
+            }
+        }
+    }
+
+    /** Return a column that is no longer needed to the pool, so that its arrays can be reused. */
+    void releaseColumn(ExperimentColumn column) {
+        columnPool.offer(column);
+    }
+
+
 
     private void performChiSquareTest(long a, long b, long c, long d) {
         long A[][] = new long[2][2];
@@ -185,88 +726,215 @@ public class ChromosomeWithEnhancers {
     }
 
 
+    /** Print the summary of {@link #summarizeCgi(int)}, computed on one thread. */
     public void calculateMeanCGIvsNonCGI() {
-        List<Double> cgi = new ArrayList<>();
-        List<Double> noncgi = new ArrayList<>();
-        int total = 0;
-        int totalabovezero = 0;
-        for (List<RegulatoryElement> enhs : chromosome2enhancerList.values()) {
-            for (RegulatoryElement enh : enhs) {
-                total++;
-                double mean = enh.getMeanH3K27AcPer1000(number_of_experiments);
-                if (mean > 0) {
-                    totalabovezero++;
-                }
-                if (enh.isCpG()) {
-                    cgi.add(mean);
+        calculateMeanCGIvsNonCGI(1);
+    }
+
+    /**
+     * Print how many CGI and non-CGI elements have zero signal (with a chi-square test), and the mean, standard
+     * deviation, median and quartiles of the non-zero signal of both.
+     * @param threads number of threads that summarize the elements
+     */
+    public void calculateMeanCGIvsNonCGI(int threads) {
+        CgiSummary summary = summarizeCgi(threads);
+        SignalSummary cgi = summary.getCgi();
+        SignalSummary noncgi = summary.getNonCgi();
+        long zeroActivityCGI = cgi.getZeroCount(); // count of CGI-items with ZERO h3K28ac
+        long nonZeroActivityCGI = cgi.getNonZeroCount();
+        long zeroActivityNonCGI = noncgi.getZeroCount(); // count of non-CGI-items with ZERO h3K28ac
+        long nonZeroActivityNonCGI = noncgi.getNonZeroCount();
+        long totalCGI = cgi.getCount();
+        System.out.printf("[INFO] CGI: Zero: %d (%.1f%%), Nonzero: %d (%.1f%%)\n",
+                zeroActivityCGI,
+                (double)zeroActivityCGI*100.0/(double)(totalCGI),
+                nonZeroActivityCGI,
+                (double)nonZeroActivityCGI*100.0/(double)(totalCGI));
+        long totalNonCGI = noncgi.getCount();
+        System.out.printf("[INFO] non-CGI: Zero: %d (%.1f%%), Nonzero: %d (%.1f%%)\n",
+                zeroActivityNonCGI,
+                (double)zeroActivityNonCGI*100.0/(double)(totalNonCGI),
+                nonZeroActivityNonCGI,
+                (double)nonZeroActivityNonCGI*100.0/(double)(totalNonCGI));
+        performChiSquareTest(zeroActivityCGI, nonZeroActivityCGI, zeroActivityNonCGI, nonZeroActivityNonCGI);
+        System.out.printf("[INFO] Analyzed %d regulatory elements (%d were above zero)\n", totalCGI + totalNonCGI,
+                nonZeroActivityCGI + nonZeroActivityNonCGI);
+        System.out.printf("[INFO] Mean H3K27Ac (CGI): %f.\n", cgi.getMean());
+        System.out.printf("[INFO] Mean H3K27Ac (Non-CGI): %f.\n", noncgi.getMean());
+        printDistribution("CGI", cgi);
+        printDistribution("Non-CGI", noncgi);
+    }
+
+    private static void printDistribution(String label, SignalSummary stats) {
+        System.out.printf("[INFO] H3K27Ac (%s): sd %f, median %f, quartiles %f-%f, range %f-%f.\n", label,
+                stats.getStandardDeviation(), stats.getMedian(), stats.getQuantile(0.25), stats.getQuantile(0.75),
+                stats.getMin(), stats.getMax());
+    }
+
+    /**
+     * Summarize the mean signal per 1000 bp of the CGI and of the non-CGI elements (averaged over the
+     * experiments, as in {@link #output_for_R(String)}) in one pass. The elements are summarized in blocks of
+     * {@link #SUMMARY_BLOCK} ids, several blocks at a time, and the partial summaries are merged in the order
+     * of the blocks, so that the result does not depend on the number of threads. Only the values of the
+     * blocks in progress are kept in memory.
+     * @param threads number of threads that summarize blocks of elements
+     */
+    public CgiSummary summarizeCgi(int threads) {
+        int blocks = (table.size() + SUMMARY_BLOCK - 1) / SUMMARY_BLOCK;
+        if (threads <= 1 || blocks <= 1) {
+            CgiSummary summary = new CgiSummary();
+            for (int b = 0; b < blocks; b++) {
+                summary.merge(summarizeBlock(b));
+            }
+            return summary;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, blocks));
+        try {
+            List<Future<CgiSummary>> partials = new ArrayList<>();
+            for (int b = 0; b < blocks; b++) {
+                int block = b;
+                partials.add(executor.submit(() -> summarizeBlock(block)));
+            }
+            CgiSummary summary = new CgiSummary();
+            for (Future<CgiSummary> partial : partials) {
+                summary.merge(partial.get());
+            }
+            return summary;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while summarizing the elements");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Could not summarize the elements", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private CgiSummary summarizeBlock(int block) {
+        int from = block * SUMMARY_BLOCK;
+        int to = Math.min(from + SUMMARY_BLOCK, table.size());
+        double[] means = table.getMeanH3K27AcPer1000(from, to, number_of_experiments);
+        CgiSummary summary = new CgiSummary();
+        for (int id = from; id < to; id++) {
+            summary.add(table.isCpG(id), means[id - from]);
+        }
+        return summary;
+    }
+
+    /**
+     * Compare the non-zero signal of the CGI and of the non-CGI elements (as in
+     * {@link #calculateMeanCGIvsNonCGI(int)}; the zeros are compared by the chi-square test) with a permutation
+     * test of the CGI labels and bootstrap confidence intervals, see {@link CgiResampling}.
+     * @param permutations number of permutations of the CGI labels
+     * @param resamples number of bootstrap resamples
+     * @param seed seed of the random generators; the result depends only on the seed, not on the threads
+     * @param threads number of threads that compute the permutations and resamples
+     * @return the result, or null if one of the groups has no elements with signal
+     */
+    public CgiResampling.Result compareCgiByResampling(int permutations, int resamples, long seed, int threads) {
+        double[] means = table.getMeanH3K27AcPer1000(number_of_experiments);
+        int cgiCount = 0;
+        int nonCgiCount = 0;
+        for (int id = 0; id < table.size(); id++) {
+            if (means[id] != 0.0) {
+                if (table.isCpG(id)) {
+                    cgiCount++;
                 } else {
-                    noncgi.add(mean);
+                    nonCgiCount++;
                 }
             }
         }
-        DescriptiveStatistics cgistats = new DescriptiveStatistics();
-        DescriptiveStatistics noncgistats = new DescriptiveStatistics();
-        int zeroActivityCGI = 0; // count of CGI-items with ZERO h3K28ac
-        int nonZeroActivityCGI = 0;
-        int zeroActivityNonCGI = 0;// count of non-CGI-items with ZERO h3K28ac
-        int nonZeroActivityNonCGI = 0;
-
-        for (Double v : cgi) {
-            if (v == 0.0) {
-                zeroActivityCGI++;
-            } else {
-                cgistats.addValue(v);
-                nonZeroActivityCGI++;
-            }
+        if (cgiCount == 0 || nonCgiCount == 0) {
+            System.err.printf("[WARNING] Cannot compare CGI and non-CGI signal: %d CGI and %d non-CGI elements with signal.\n",
+                    cgiCount, nonCgiCount);
+            return null;
         }
-        for (Double v : noncgi){
-            if (v == 0.0) {
-                zeroActivityNonCGI++;
-            } else {
-                noncgistats.addValue(v);
-                nonZeroActivityNonCGI++;
+        double[] cgi = new double[cgiCount];
+        double[] noncgi = new double[nonCgiCount];
+        cgiCount = 0;
+        nonCgiCount = 0;
+        for (int id = 0; id < table.size(); id++) {
+            if (means[id] != 0.0) {
+                if (table.isCpG(id)) {
+                    cgi[cgiCount++] = means[id];
+                } else {
+                    noncgi[nonCgiCount++] = means[id];
+                }
             }
         }
-	int totalCGI = zeroActivityCGI + nonZeroActivityCGI;
-        System.out.printf("[INFO] CGI: Zero: %d (%.1f%%), Nonzero: %d (%.1f%%)\n",
-			  zeroActivityCGI,
-			  (double)zeroActivityCGI*100.0/(double)(totalCGI),
-			  nonZeroActivityCGI,
-			  (double)nonZeroActivityCGI*100.0/(double)(totalCGI));
-	int totalNonCGI = zeroActivityNonCGI + nonZeroActivityNonCGI;
-        System.out.printf("[INFO] non-CGI: Zero: %d (%.1f%%), Nonzero: %d (%.1f%%)\n",
-			  zeroActivityNonCGI,
-			  (double)zeroActivityNonCGI*100.0/(double)(totalNonCGI),
-			  nonZeroActivityNonCGI,
-			  (double)nonZeroActivityNonCGI*100.0/(double)(totalNonCGI));
-        performChiSquareTest(zeroActivityCGI, nonZeroActivityCGI, zeroActivityNonCGI, nonZeroActivityNonCGI);
-        System.out.printf("[INFO] Analyzed %d regulatory elements (%d were above zero)\n", total, totalabovezero);
-        System.out.printf("[INFO] Mean H3K27Ac (CGI): %f.\n", cgistats.getMean());
-        System.out.printf("[INFO] Mean H3K27Ac (Non-CGI): %f.\n", noncgistats.getMean());
+        CgiResampling.Result result = new CgiResampling(cgi, noncgi).run(permutations, resamples, seed, threads);
+        if (permutations > 0) {
+            System.out.printf("[INFO] Permutation test (%d permutations, seed %d): mean difference CGI - non-CGI %f (p = %.4g), median difference %f (p = %.4g).\n",
+                    permutations, seed, result.getMeanDifference(), result.getMeanPValue(),
+                    result.getMedianDifference(), result.getMedianPValue());
+        }
+        if (resamples > 0) {
+            double[] meanCi = result.getMeanInterval(0.95);
+            double[] medianCi = result.getMedianInterval(0.95);
+            System.out.printf("[INFO] Bootstrap (%d resamples, seed %d): 95%% CI of the mean difference %f-%f, of the median difference %f-%f.\n",
+                    resamples, seed, meanCi[0], meanCi[1], medianCi[0], medianCi[1]);
+        }
+        return result;
     }
 
 
+    /**
+     * Write the mean signal per 1000 bp of each element with signal, averaged over the experiments, with
+     * "cgi" or "non.cgi" (the input of the R script).
+     * @param filename output file; gzip-compressed if the name ends with {@code .gz}
+     */
     public void output_for_R(String filename) {
-        try {
-            BufferedWriter bw = new BufferedWriter(new FileWriter(filename));
-            for (List<RegulatoryElement> enhs : chromosome2enhancerList.values()) {
-                for (RegulatoryElement enh : enhs) {
-                    double mean = enh.getMeanH3K27AcPer1000(number_of_experiments);
-                    if (mean==0.0) continue;
-                    if (enh.isCpG()) {
-                        bw.write(String.format("%s\t%f\n", "cgi", mean ));
-                    } else {
-                        bw.write(String.format("%s\t%f\n", "non.cgi", mean ));
-                    }
-                }
+        try (LineWriter out = new LineWriter(openOutput(filename))) {
+            double[] means = table.getMeanH3K27AcPer1000(number_of_experiments);
+            for (int id = 0; id < table.size(); id++) {
+                double mean = means[id];
+                if (mean==0.0) continue;
+                out.append(table.isCpG(id) ? "cgi" : "non.cgi").append('\t').appendFormatted(mean).newLine();
             }
-            bw.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
+    /**
+     * Write the coordinates, CpG flag and the mean and maximum signal of every element in every experiment
+     * to an {@link ElementColumnsFile}.
+     * @param filename output file; gzip-compressed if the name ends with {@code .gz}
+     */
+    public void output_columns(String filename) {
+        try (OutputStream out = openOutput(filename)) {
+            ElementColumnsFile.write(table, out);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * Write the element x experiment matrix of the mean signal, see {@link ElementMatrixFile}.
+     * @param filename output file
+     */
+    public void output_matrix(String filename, ElementMatrixFile.Layout layout) {
+        try {
+            ElementMatrixFile.write(table, layout, new File(filename));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
+    private static OutputStream openOutput(String filename) throws IOException {
+        OutputStream out = new FileOutputStream(filename);
+        if (filename.endsWith(".gz")) {
+            return new GZIPOutputStream(out, 1 << 16) {
+                {
+                    // the digits of the values hardly compress better with more effort
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+        }
+        return out;
+    }
 
 }
@@ -0,0 +1,164 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.data.ExperimentResult;
+
+import java.util.Arrays;
+
+/**
+ * The H3K27ac signal of one experiment (narrowPeak file), accumulated for each regulatory element while the
+ * peaks are streamed through the overlap engine. For every element we keep the length-weighted sum of the
+ * signal values, the total length covered by peaks and the maximum signal value, so adding an overlap does
+ * not allocate anything. Elements are identified by their id in the {@link ElementTable}.
+ *
+ * The column also records which elements were touched by at least one peak. Only these elements are
+ * finalized and added (sparsely) to the table, and {@link #clear(String)} resets only these elements, so that
+ * finishing an experiment and reusing the column for the next one costs O(hits) rather than O(elements).
+ *
+ * A column is filled by a single thread and does not touch the table, so that the columns of several
+ * experiments can be computed at the same time and added to the table afterwards.
+ */
+class ExperimentColumn {
+    /** Name of the narrowPeak file the column is computed from. */
+    private String name;
+    /** The elements. */
+    private final ElementTable table;
+    /** Sum of length times signal value of the overlapping parts of the peaks, for each element. */
+    private final double[] weightedSums;
+    /** Total length of the overlapping parts of the peaks, for each element. */
+    private final int[] coveredLengths;
+    /** Maximum signal value of the overlapping peaks, {@link Double#NEGATIVE_INFINITY} if there were none. */
+    private final double[] maxima;
+    /** Ids of the elements with at least one overlapping peak, in the order they were first touched. */
+    private int[] touched = new int[1024];
+    /** Number of entries of {@link #touched} that are in use. */
+    private int touchedCount = 0;
+    /** Number of peaks, overlaps of peaks with elements, and peaks on skipped scaffolds (for the run metrics). */
+    private long peakCount = 0;
+    private long overlapCount = 0;
+    private long skippedPeakCount = 0;
+
+    ExperimentColumn(String name, ElementTable table) {
+        this.name = name;
+        this.table = table;
+        this.weightedSums = new double[table.size()];
+        this.coveredLengths = new int[table.size()];
+        this.maxima = new double[table.size()];
+        Arrays.fill(maxima, Double.NEGATIVE_INFINITY);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /** Reset the column (only the touched elements) so that it can be used for another experiment. */
+    void clear(String newName) {
+        for (int i = 0; i < touchedCount; i++) {
+            int id = touched[i];
+            weightedSums[id] = 0.0;
+            coveredLengths[id] = 0;
+            maxima[id] = Double.NEGATIVE_INFINITY;
+        }
+        touchedCount = 0;
+        peakCount = 0;
+        overlapCount = 0;
+        skippedPeakCount = 0;
+        this.name = newName;
+    }
+
+    /** @return number of elements overlapped by at least one peak */
+    int getTouchedCount() {
+        return touchedCount;
+    }
+
+    /** Count a peak of the experiment. */
+    void countPeak() {
+        peakCount++;
+    }
+
+    /** Count a peak that was skipped because it lies on a scaffold without elements. */
+    void countSkippedPeak() {
+        skippedPeakCount++;
+    }
+
+    long getPeakCount() {
+        return peakCount;
+    }
+
+    /** @return number of (peak, element) overlaps added with {@link #addSignal} */
+    long getOverlapCount() {
+        return overlapCount;
+    }
+
+    long getSkippedPeakCount() {
+        return skippedPeakCount;
+    }
+
+    /**
+     * Add the part [begin,end) of a peak that lies within element {@code elementId}.
+     * @throws RuntimeException if the peaks cover more than the length of the element, which means that
+     * the peaks of the experiment overlap each other
+     */
+    void addSignal(int elementId, int begin, int end, double value) {
+        // BED format no need to substract 1
+        int len = end - begin;
+        if (maxima[elementId] == Double.NEGATIVE_INFINITY) {
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, 2 * touchedCount);
+            }
+            touched[touchedCount++] = elementId;
+        }
+        overlapCount++;
+        weightedSums[elementId] += len * value;
+        coveredLengths[elementId] += len;
+        maxima[elementId] = Math.max(maxima[elementId], value);
+        int enhancerlen = table.getEnd(elementId) - table.getBegin(elementId);
+        if (coveredLengths[elementId] > enhancerlen) {
+            System.err.printf("totallen=%d (last segment: %d-%d, len=%d), enhancer len=%d.\n",
+                    coveredLengths[elementId], begin, end, len, enhancerlen);
+            // should never happen. Sanity check
+            throw new RuntimeException("BADNESS -- Total len of segments more than enhancer len");
+        }
+    }
+
+    /**
+     * Copy the elements touched in another column of the same experiment into this one. The two columns
+     * must have been filled with peaks of different chromosomes, so that no element was touched in both.
+     */
+    void mergeFrom(ExperimentColumn other) {
+        for (int i = 0; i < other.touchedCount; i++) {
+            int id = other.touched[i];
+            if (maxima[id] != Double.NEGATIVE_INFINITY) {
+                throw new IllegalStateException("Element " + id + " was touched in both columns");
+            }
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, 2 * touchedCount);
+            }
+            touched[touchedCount++] = id;
+            weightedSums[id] = other.weightedSums[id];
+            coveredLengths[id] = other.coveredLengths[id];
+            maxima[id] = other.maxima[id];
+        }
+        peakCount += other.peakCount;
+        overlapCount += other.overlapCount;
+        skippedPeakCount += other.skippedPeakCount;
+    }
+
+    /**
+     * Compute the maximum signal and the length-weighted mean signal per 1000 bp of the touched elements.
+     * Elements that were not touched have zero signal.
+     */
+    ExperimentResult toResult() {
+        int[] ids = Arrays.copyOf(touched, touchedCount);
+        Arrays.sort(ids);
+        double[] means = new double[ids.length];
+        double[] maxColumn = new double[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            int enhancerlen = table.getEnd(id) - table.getBegin(id);
+            means[i] = weightedSums[id] * 1000.0/enhancerlen;
+            maxColumn[i] = maxima[id];
+        }
+        return new ExperimentResult(name, ids, means, maxColumn);
+    }
+}
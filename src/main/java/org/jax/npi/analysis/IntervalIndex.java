@@ -0,0 +1,191 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.data.RegulatoryElement;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Static interval index over the regulatory elements of one chromosome. The elements are kept in a range of
+ * an array sorted by begin position, which is interpreted as an implicit binary tree (the node at index {@code i}
+ * on level {@code k} has its children at {@code i -/+ 2^(k-1)}). Each node is augmented with the maximum
+ * end position of its subtree, so that a query only descends into subtrees that can still contain an overlap.
+ * Queries return all overlapping elements in O(log n + k), including elements that are nested within or
+ * overlap each other.
+ *
+ * Intervals are treated as closed, i.e., an element overlaps a peak if
+ * {@code element.begin <= peak.end && element.end >= peak.begin}; this is the same convention as the original
+ * linear scan in {@link ChromosomeWithEnhancers}.
+ *
+ * The index can cover a range [from,to) of larger arrays (e.g., the elements of one chromosome in an
+ * {@link org.jax.npi.data.ElementTable}); all indices used by the methods of this class are positions in
+ * these arrays. The index is immutable after construction and can be queried from several threads.
+ */
+public final class IntervalIndex {
+    /** Subtrees at or below this level are scanned linearly, which is faster than descending further. */
+    private static final int LINEAR_SCAN_LEVEL = 3;
+    /** begin positions, sorted in ascending order within [from,to) */
+    private final int[] begins;
+    /** end positions in the same order as {@link #begins} */
+    private final int[] ends;
+    /** First position of the indexed range. */
+    private final int from;
+    /** Number of indexed intervals. */
+    private final int n;
+    /** Maximum end position of the subtree rooted at each node of the implicit tree (relative to {@link #from}). */
+    private final int[] maxEnds;
+    /** Level of the root node of the implicit tree (-1 for an empty index). */
+    private final int maxLevel;
+
+    /**
+     * @param begins begin positions, must be sorted in ascending order
+     * @param ends end positions in the same order as the begin positions
+     */
+    public IntervalIndex(int[] begins, int[] ends) {
+        this(begins, ends, 0, begins.length);
+    }
+
+    /**
+     * Index the intervals in the range [from,to) of the given arrays.
+     * @param begins begin positions, must be sorted in ascending order within the range
+     * @param ends end positions in the same order as the begin positions
+     */
+    public IntervalIndex(int[] begins, int[] ends, int from, int to) {
+        if (begins.length != ends.length) {
+            throw new IllegalArgumentException(String.format("Got %d begin but %d end positions",
+                    begins.length, ends.length));
+        }
+        if (from < 0 || to > begins.length || from > to) {
+            throw new IllegalArgumentException(String.format("Bad range [%d,%d) for %d intervals", from, to, begins.length));
+        }
+        for (int i = from + 1; i < to; i++) {
+            if (begins[i] < begins[i - 1]) {
+                throw new IllegalArgumentException("Intervals must be sorted by begin position");
+            }
+        }
+        this.begins = begins;
+        this.ends = ends;
+        this.from = from;
+        this.n = to - from;
+        this.maxEnds = new int[n];
+        this.maxLevel = buildMaxEnds();
+    }
+
+    /**
+     * Create an index for a list of elements that is already sorted by begin position. The position of an
+     * element in the list is its index in the {@link IntervalIndex}.
+     */
+    public static IntervalIndex of(List<RegulatoryElement> sortedElements) {
+        int n = sortedElements.size();
+        int[] b = new int[n];
+        int[] e = new int[n];
+        for (int i = 0; i < n; i++) {
+            RegulatoryElement re = sortedElements.get(i);
+            b[i] = re.getBegin();
+            e[i] = re.getEnd();
+        }
+        return new IntervalIndex(b, e);
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /** @return the first position of the indexed range */
+    public int getFrom() {
+        return from;
+    }
+
+    /** @return the position one past the end of the indexed range */
+    public int getTo() {
+        return from + n;
+    }
+
+    public int getBegin(int i) {
+        return begins[i];
+    }
+
+    public int getEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * Compute the max-end augmentation bottom-up, level by level. Nodes that would lie beyond the end of the
+     * array do not exist; their max-end value is taken to be the largest end seen in the last partial subtree.
+     * @return the level of the root node
+     */
+    private int buildMaxEnds() {
+        if (n == 0) {
+            return -1;
+        }
+        int lastIndex = 0;
+        int last = 0;
+        for (int i = 0; i < n; i += 2) { // leaves
+            lastIndex = i;
+            maxEnds[i] = ends[from + i];
+            last = ends[from + i];
+        }
+        int k;
+        for (k = 1; (1 << k) <= n; ++k) {
+            int x = 1 << (k - 1);
+            int i0 = (x << 1) - 1;
+            int step = x << 2;
+            for (int i = i0; i < n; i += step) {
+                int leftMax = maxEnds[i - x];
+                int rightMax = i + x < n ? maxEnds[i + x] : last;
+                maxEnds[i] = Math.max(ends[from + i], Math.max(leftMax, rightMax));
+            }
+            lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x;
+            if (lastIndex < n && maxEnds[lastIndex] > last) {
+                last = maxEnds[lastIndex];
+            }
+        }
+        return k - 1;
+    }
+
+    /**
+     * Report the position of every interval that overlaps the closed interval [begin,end]. The tree is
+     * traversed in order, so the positions are reported in ascending order. A query allocates nothing; the
+     * recursion is at most as deep as the tree (31 levels).
+     * @param begin begin of the query interval
+     * @param end end of the query interval
+     * @param consumer callback for the position of each overlapping interval
+     * @return number of overlapping intervals
+     */
+    public int forEachOverlap(int begin, int end, IntConsumer consumer) {
+        if (maxLevel < 0) {
+            return 0;
+        }
+        return forEachOverlap((1 << maxLevel) - 1, maxLevel, begin, end, consumer);
+    }
+
+    /** In-order traversal of the subtree rooted at node {@code x} on level {@code k}. */
+    private int forEachOverlap(int x, int k, int begin, int end, IntConsumer consumer) {
+        int hits = 0;
+        if (k <= LINEAR_SCAN_LEVEL) {
+            // small subtree, scan all of its nodes
+            int i0 = x >> k << k;
+            int i1 = Math.min(i0 + (1 << (k + 1)) - 1, n);
+            for (int i = i0; i < i1 && begins[from + i] <= end; ++i) {
+                if (ends[from + i] >= begin) {
+                    consumer.accept(from + i);
+                    hits++;
+                }
+            }
+            return hits;
+        }
+        int y = x - (1 << (k - 1)); // left child
+        if (y >= n || maxEnds[y] >= begin) {
+            hits += forEachOverlap(y, k - 1, begin, end, consumer);
+        }
+        if (x < n && begins[from + x] <= end) {
+            // the node itself, then the right subtree (whose begins are all >= the begin of x)
+            if (ends[from + x] >= begin) {
+                consumer.accept(from + x);
+                hits++;
+            }
+            hits += forEachOverlap(x + (1 << (k - 1)), k - 1, begin, end, consumer);
+        }
+        return hits;
+    }
+}
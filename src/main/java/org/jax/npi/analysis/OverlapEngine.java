@@ -0,0 +1,19 @@
+package org.jax.npi.analysis;
+
+/**
+ * Algorithms that can be used to find the regulatory elements overlapped by the peaks of a narrowPeak file.
+ */
+public enum OverlapEngine {
+    /** Query the {@link IntervalIndex} of the chromosome for every peak. Works for any order of the peaks. */
+    INDEX,
+    /**
+     * Sweep through the peaks and the sorted elements of each chromosome in parallel. The narrowPeak file
+     * must be sorted by chromosome and start position; an exception is thrown if it is not.
+     */
+    SWEEP,
+    /**
+     * Use the sweep as long as the peaks are sorted by chromosome and start position, and fall back to
+     * {@link #INDEX} for the rest of the file as soon as a peak is out of order.
+     */
+    AUTO
+}
@@ -0,0 +1,212 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.io.BgzfInputStream;
+import org.jax.npi.io.BinaryPeakFile;
+import org.jax.npi.io.NarrowPeakParser;
+import org.jax.npi.io.PeakReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.function.IntConsumer;
+
+/**
+ * The peaks of one experiment in memory, grouped by chromosome, sorted by begin position and indexed with an
+ * {@link IntervalIndex} per chromosome, so that the signal over arbitrary regions can be looked up without
+ * reading the narrowPeak file again. Peaks with the same begin keep their order from the file, and
+ * {@link #reader()} returns the peaks in the order of the file, so that the signal of the elements computed
+ * from an index is the same as when the file is read.
+ *
+ * The index is immutable after construction and can be queried from several threads.
+ */
+public final class PeakIndex {
+    /** Name of the experiment (the narrowPeak file name). */
+    private final String name;
+    private final String[] chromosomes;
+    /** Interval index over the peaks of each chromosome. */
+    private final Map<String, IntervalIndex> chromosome2index;
+    /** The peaks of chromosome {@code c} are at [chromosomeStarts[c], chromosomeStarts[c+1]). */
+    private final int[] chromosomeStarts;
+    private final int[] begins;
+    private final int[] ends;
+    private final double[] values;
+    /** Position of the i-th peak of the file in the sorted columns, null if the file was sorted. */
+    private final int[] fileOrder;
+
+    private PeakIndex(String name, String[] chromosomes, int[] chromosomeStarts, int[] begins, int[] ends,
+                      double[] values, int[] fileOrder) {
+        this.name = name;
+        this.chromosomes = chromosomes;
+        this.chromosomeStarts = chromosomeStarts;
+        this.begins = begins;
+        this.ends = ends;
+        this.values = values;
+        this.fileOrder = fileOrder;
+        this.chromosome2index = new HashMap<>();
+        for (int c = 0; c < chromosomes.length; c++) {
+            chromosome2index.put(chromosomes[c],
+                    new IntervalIndex(begins, ends, chromosomeStarts[c], chromosomeStarts[c + 1]));
+        }
+    }
+
+    /**
+     * Read the peaks of a narrowPeak file, from its binary peak file if there is an up-to-date one (see
+     * {@link BinaryPeakFile}).
+     * @param inflatePool threads used to inflate a BGZF-compressed file, see {@link BgzfInputStream#open}
+     */
+    public static PeakIndex read(File bedfile, ExecutorService inflatePool) throws IOException {
+        PeakReader parser = BinaryPeakFile.isUpToDate(bedfile) ? BinaryPeakFile.open(bedfile)
+                : new NarrowPeakParser(BgzfInputStream.open(bedfile, inflatePool));
+        try (PeakReader peaks = parser) {
+            return read(bedfile.getName(), peaks);
+        }
+    }
+
+    /**
+     * Read the peaks of one experiment.
+     * @param peaks the peaks; the reader is not closed
+     */
+    public static PeakIndex read(String name, PeakReader peaks) throws IOException {
+        Map<String, Integer> chromosome2index = new LinkedHashMap<>();
+        int[] fileChromosomes = new int[1024];
+        int[] fileBegins = new int[1024];
+        int[] fileEnds = new int[1024];
+        double[] fileValues = new double[1024];
+        int n = 0;
+        String chrom = null;
+        int c = -1;
+        while (peaks.next()) {
+            if (!peaks.getChromosome().equals(chrom)) {
+                chrom = peaks.getChromosome();
+                c = chromosome2index.computeIfAbsent(chrom, k -> chromosome2index.size());
+            }
+            if (n == fileBegins.length) {
+                fileChromosomes = Arrays.copyOf(fileChromosomes, 2 * n);
+                fileBegins = Arrays.copyOf(fileBegins, 2 * n);
+                fileEnds = Arrays.copyOf(fileEnds, 2 * n);
+                fileValues = Arrays.copyOf(fileValues, 2 * n);
+            }
+            fileChromosomes[n] = c;
+            fileBegins[n] = peaks.getBegin();
+            fileEnds[n] = peaks.getEnd();
+            fileValues[n] = peaks.getSignalValue();
+            n++;
+        }
+        String[] chromosomes = chromosome2index.keySet().toArray(new String[0]);
+        int[] chromosomeStarts = new int[chromosomes.length + 1];
+        for (int i = 0; i < n; i++) {
+            chromosomeStarts[fileChromosomes[i] + 1]++;
+        }
+        for (int k = 0; k < chromosomes.length; k++) {
+            chromosomeStarts[k + 1] += chromosomeStarts[k];
+        }
+        // begin in the (signed) high bits, position in the file in the low bits, so that ties keep their order
+        long[] keys = new long[n];
+        int[] fill = Arrays.copyOf(chromosomeStarts, chromosomes.length);
+        for (int i = 0; i < n; i++) {
+            keys[fill[fileChromosomes[i]]++] = ((long) fileBegins[i] << 32) | i;
+        }
+        int[] begins = new int[n];
+        int[] ends = new int[n];
+        double[] values = new double[n];
+        int[] fileOrder = new int[n];
+        boolean sorted = true;
+        for (int k = 0; k < chromosomes.length; k++) {
+            Arrays.sort(keys, chromosomeStarts[k], chromosomeStarts[k + 1]);
+        }
+        for (int j = 0; j < n; j++) {
+            int i = (int) keys[j];
+            begins[j] = fileBegins[i];
+            ends[j] = fileEnds[i];
+            values[j] = fileValues[i];
+            fileOrder[i] = j;
+            sorted &= i == j;
+        }
+        return new PeakIndex(name, chromosomes, chromosomeStarts, begins, ends, values, sorted ? null : fileOrder);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** @return number of peaks */
+    public int size() {
+        return begins.length;
+    }
+
+    /**
+     * Report the position of every peak on a chromosome that overlaps the closed interval [begin,end], with
+     * the same convention as {@link IntervalIndex#forEachOverlap}.
+     * @return number of overlapping peaks
+     */
+    public int forEachOverlap(String chromosome, int begin, int end, IntConsumer consumer) {
+        IntervalIndex index = chromosome2index.get(chromosome);
+        return index == null ? 0 : index.forEachOverlap(begin, end, consumer);
+    }
+
+    /** @return the interval index of each chromosome, whose positions are those of the getters */
+    Map<String, IntervalIndex> getIndexes() {
+        return chromosome2index;
+    }
+
+    public int getBegin(int i) {
+        return begins[i];
+    }
+
+    public int getEnd(int i) {
+        return ends[i];
+    }
+
+    public double getSignalValue(int i) {
+        return values[i];
+    }
+
+    /** @return a reader over the peaks in the order of the narrowPeak file */
+    public PeakReader reader() {
+        return new PeakReader() {
+            private int next = 0;
+            private int i = -1;
+            private int c = 0;
+
+            @Override
+            public boolean next() {
+                if (next == begins.length) {
+                    return false;
+                }
+                i = fileOrder == null ? next : fileOrder[next];
+                next++;
+                if (i < chromosomeStarts[c] || i >= chromosomeStarts[c + 1]) {
+                    c = Arrays.binarySearch(chromosomeStarts, i);
+                    // every chromosome has at least one peak, so the starts are distinct
+                    c = c < 0 ? -c - 2 : c;
+                }
+                return true;
+            }
+
+            @Override
+            public String getChromosome() {
+                return chromosomes[c];
+            }
+
+            @Override
+            public int getBegin() {
+                return begins[i];
+            }
+
+            @Override
+            public int getEnd() {
+                return ends[i];
+            }
+
+            @Override
+            public double getSignalValue() {
+                return values[i];
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
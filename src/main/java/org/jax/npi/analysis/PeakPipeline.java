@@ -0,0 +1,443 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.io.NarrowPeakParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes the peaks of one narrowPeak file in three stages that run at the same time:
+ * <ol>
+ *     <li>read: one thread reads the (inflated) stream in chunks of about {@link #CHUNK_SIZE} bytes that end
+ *     at a line break,</li>
+ *     <li>parse: a pool of threads parses the chunks into batches of primitive records,</li>
+ *     <li>overlap: one thread per partition adds the peaks to the elements. The chromosomes are assigned to
+ *     the partitions in the order in which they first appear, so each partition sees all peaks of its
+ *     chromosomes in file order.</li>
+ * </ol>
+ * The calling thread takes the parsed batches in file order and hands them to the partitions. The stages are
+ * connected by bounded queues of {@link #QUEUE_CAPACITY} entries, so a slow stage blocks the stages before it
+ * rather than letting chunks pile up in memory.
+ *
+ * The threads come from two pools that are created once per run and shared by all files (see
+ * {@link #newParsePool(int)} and {@link #newStagePool()}), so several files may go through pipelines at the
+ * same time.
+ *
+ * Each stage records the time it spent working and the number of items it handled, and the queue depths are
+ * sampled whenever a batch is dispatched; see {@link Stats}. A queue that is mostly full sits in front of the
+ * stage that limits the run.
+ */
+final class PeakPipeline {
+    /** Target number of bytes per chunk. */
+    static final int CHUNK_SIZE = 1 << 20;
+    /** Capacity of each queue between two stages. */
+    static final int QUEUE_CAPACITY = 8;
+    /** Interval in ms at which a blocked stage checks whether the other stages are still alive. */
+    private static final long POLL_MS = 100;
+
+    /** Receives the peaks of one partition; only ever called from one thread. */
+    interface PeakSink {
+        void add(String chrom, int begin, int end, double value);
+    }
+
+    /** Peaks parsed from one chunk. */
+    private static final class PeakBatch {
+        final String[] chromosomes;
+        final int[] begins;
+        final int[] ends;
+        final double[] values;
+        final int size;
+
+        PeakBatch(String[] chromosomes, int[] begins, int[] ends, double[] values, int size) {
+            this.chromosomes = chromosomes;
+            this.begins = begins;
+            this.ends = ends;
+            this.values = values;
+            this.size = size;
+        }
+    }
+
+    /** The positions of the peaks of a batch that belong to one partition. */
+    private static final class PartitionSlice {
+        final PeakBatch batch;
+        final int[] positions;
+        final int size;
+
+        PartitionSlice(PeakBatch batch, int[] positions, int size) {
+            this.batch = batch;
+            this.positions = positions;
+            this.size = size;
+        }
+    }
+
+    /** Marks the end of the input in the queues. */
+    private static final Future<PeakBatch> END_OF_CHUNKS = CompletableFuture.completedFuture(null);
+    private static final PartitionSlice END_OF_SLICES = new PartitionSlice(null, null, 0);
+
+    /** Throughput and queue depths of one run of the pipeline. */
+    static final class Stats {
+        private final AtomicLong readNanos = new AtomicLong();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong parseNanos = new AtomicLong();
+        private final AtomicLong peaksParsed = new AtomicLong();
+        private final AtomicLong overlapNanos = new AtomicLong();
+        private final AtomicLong peaksOverlapped = new AtomicLong();
+        private final int parseThreads;
+        private final int partitions;
+        private long samples = 0;
+        private long parseQueueDepthSum = 0;
+        private int parseQueueDepthMax = 0;
+        private long overlapQueueDepthSum = 0;
+        private int overlapQueueDepthMax = 0;
+        private long wallNanos = 0;
+
+        Stats(int parseThreads, int partitions) {
+            this.parseThreads = parseThreads;
+            this.partitions = partitions;
+        }
+
+        private void sample(int parseQueueDepth, int overlapQueueDepth) {
+            samples++;
+            parseQueueDepthSum += parseQueueDepth;
+            parseQueueDepthMax = Math.max(parseQueueDepthMax, parseQueueDepth);
+            overlapQueueDepthSum += overlapQueueDepth;
+            overlapQueueDepthMax = Math.max(overlapQueueDepthMax, overlapQueueDepth);
+        }
+
+        long getBytesRead() {
+            return bytesRead.get();
+        }
+
+        long getPeaksParsed() {
+            return peaksParsed.get();
+        }
+
+        long getPeaksOverlapped() {
+            return peaksOverlapped.get();
+        }
+
+        /** @return time spent reading and inflating */
+        long getReadNanos() {
+            return readNanos.get();
+        }
+
+        /** @return time spent parsing, summed over the parse threads */
+        long getParseNanos() {
+            return parseNanos.get();
+        }
+
+        /** @return time spent intersecting, summed over the overlap threads */
+        long getOverlapNanos() {
+            return overlapNanos.get();
+        }
+
+        /** @return throughput of a stage in items per second of working time of all of its threads together */
+        private static double rate(long items, long nanos, int threads) {
+            return nanos == 0 ? 0.0 : items * 1e9 * threads / nanos;
+        }
+
+        @Override
+        public String toString() {
+            double n = Math.max(1, samples);
+            return String.format("%.1f s; read %.1f MB (%.1f MB/s); parse %d peaks (%.0f peaks/s on %d threads); " +
+                            "overlap %d peaks (%.0f peaks/s on %d threads); " +
+                            "queue depth read->parse avg %.1f max %d, parse->overlap avg %.1f max %d (capacity %d)",
+                    wallNanos * 1e-9,
+                    bytesRead.get() * 1e-6, rate(bytesRead.get(), readNanos.get(), 1) * 1e-6,
+                    peaksParsed.get(), rate(peaksParsed.get(), parseNanos.get(), parseThreads), parseThreads,
+                    peaksOverlapped.get(), rate(peaksOverlapped.get(), overlapNanos.get(), partitions), partitions,
+                    parseQueueDepthSum / n, parseQueueDepthMax,
+                    overlapQueueDepthSum / n, overlapQueueDepthMax, QUEUE_CAPACITY);
+        }
+    }
+
+    private final ExecutorService parsePool;
+    private final int parseThreads;
+    private final ExecutorService stagePool;
+    private final List<? extends PeakSink> sinks;
+    /** Name of the file for the error message if it must be sorted, or null if the order is not checked. */
+    private String sortedName = null;
+
+    /**
+     * @param parsePool threads that parse chunks, see {@link #newParsePool(int)}
+     * @param parseThreads number of threads of the parse pool (for the statistics)
+     * @param stagePool threads of the read and overlap stages, see {@link #newStagePool()}
+     * @param sinks one sink per partition of the overlap stage
+     */
+    PeakPipeline(ExecutorService parsePool, int parseThreads, ExecutorService stagePool,
+                 List<? extends PeakSink> sinks) {
+        this.parsePool = parsePool;
+        this.parseThreads = Math.max(1, parseThreads);
+        this.stagePool = stagePool;
+        this.sinks = sinks;
+    }
+
+    /**
+     * @return a pool for the parse stage of all pipelines of a run; parse tasks never block, so a fixed
+     * number of threads is enough for any number of files
+     */
+    static ExecutorService newParsePool(int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), daemon("parse"));
+    }
+
+    /**
+     * @return a pool for the read and overlap stages of all pipelines of a run. These stages block on the
+     * queues of their own file, so the pool must not limit the number of threads (a fixed pool could run the
+     * overlap stage of one file while its read stage waits behind the stages of another file); the threads are
+     * reused from one file to the next.
+     */
+    static ExecutorService newStagePool() {
+        return Executors.newCachedThreadPool(daemon("pipeline"));
+    }
+
+    /**
+     * Fail if a chromosome comes back after peaks of another chromosome. Each partition only sees its own
+     * chromosomes, so its sink cannot notice this; a single sweep over the file would reject such a peak.
+     * @param name name of the file for the error message
+     */
+    void requireSortedChromosomes(String name) {
+        this.sortedName = name;
+    }
+
+    /**
+     * Run the pipeline over a decompressed narrowPeak stream. All peaks have been handed to the sinks when
+     * the method returns.
+     * @return throughput and queue depths of the stages
+     * @throws RuntimeException if a line is malformed or a sink fails
+     */
+    Stats run(InputStream in) throws IOException {
+        long start = System.nanoTime();
+        Stats stats = new Stats(parseThreads, sinks.size());
+        BlockingQueue<Future<PeakBatch>> parsed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        List<BlockingQueue<PartitionSlice>> slices = new ArrayList<>();
+        for (int p = 0; p < sinks.size(); p++) {
+            slices.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+        }
+        List<Future<?>> workers = new ArrayList<>();
+        Future<?> reader = null;
+        try {
+            reader = stagePool.submit(() -> {
+                read(in, parsePool, parsed, stats);
+                return null;
+            });
+            for (int p = 0; p < sinks.size(); p++) {
+                PeakSink sink = sinks.get(p);
+                BlockingQueue<PartitionSlice> queue = slices.get(p);
+                workers.add(stagePool.submit(() -> {
+                    overlap(queue, sink, stats);
+                    return null;
+                }));
+            }
+            dispatch(parsed, slices, reader, workers, stats);
+            reader.get();
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing narrowPeak file");
+        } catch (ExecutionException e) {
+            throw failure(e);
+        } finally {
+            // the pools are shared; stop only the stages of this file if it failed
+            if (reader != null) {
+                reader.cancel(true);
+            }
+            for (Future<PeakBatch> chunk : parsed) {
+                chunk.cancel(true);
+            }
+            for (Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+        }
+        stats.wallNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    /** Read stage: split the stream into chunks that end at a line break and submit them to the parse pool. */
+    private static void read(InputStream in, ExecutorService parsePool, BlockingQueue<Future<PeakBatch>> parsed,
+                             Stats stats) throws IOException, InterruptedException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length = 0;
+        while (true) {
+            long t = System.nanoTime();
+            if (length == chunk.length) {
+                // a single line longer than the chunk
+                chunk = Arrays.copyOf(chunk, 2 * chunk.length);
+            }
+            int n = in.read(chunk, length, chunk.length - length);
+            if (n < 0) {
+                stats.readNanos.addAndGet(System.nanoTime() - t);
+                break;
+            }
+            stats.bytesRead.addAndGet(n);
+            length += n;
+            int lastLineEnd = length - 1;
+            while (lastLineEnd >= 0 && chunk[lastLineEnd] != '\n') {
+                lastLineEnd--;
+            }
+            if (length < chunk.length / 2 || lastLineEnd < 0) {
+                // fill the chunk before handing it off
+                stats.readNanos.addAndGet(System.nanoTime() - t);
+                continue;
+            }
+            int rest = length - lastLineEnd - 1;
+            byte[] next = new byte[Math.max(CHUNK_SIZE, rest * 2)];
+            System.arraycopy(chunk, lastLineEnd + 1, next, 0, rest);
+            byte[] full = chunk;
+            int fullLength = lastLineEnd + 1;
+            stats.readNanos.addAndGet(System.nanoTime() - t);
+            parsed.put(parsePool.submit(() -> parse(full, fullLength, stats)));
+            chunk = next;
+            length = rest;
+        }
+        if (length > 0) {
+            byte[] last = chunk;
+            int lastLength = length;
+            parsed.put(parsePool.submit(() -> parse(last, lastLength, stats)));
+        }
+        parsed.put(END_OF_CHUNKS);
+    }
+
+    /** Parse stage: convert the lines of a chunk to a batch of peaks. */
+    private static PeakBatch parse(byte[] chunk, int length, Stats stats) throws IOException {
+        long t = System.nanoTime();
+        int capacity = 1024;
+        String[] chromosomes = new String[capacity];
+        int[] begins = new int[capacity];
+        int[] ends = new int[capacity];
+        double[] values = new double[capacity];
+        int size = 0;
+        try (NarrowPeakParser parser = new NarrowPeakParser(new ByteArrayInputStream(chunk, 0, length))) {
+            while (parser.next()) {
+                if (size == capacity) {
+                    capacity *= 2;
+                    chromosomes = Arrays.copyOf(chromosomes, capacity);
+                    begins = Arrays.copyOf(begins, capacity);
+                    ends = Arrays.copyOf(ends, capacity);
+                    values = Arrays.copyOf(values, capacity);
+                }
+                chromosomes[size] = parser.getChromosome();
+                begins[size] = parser.getBegin();
+                ends[size] = parser.getEnd();
+                values[size] = parser.getSignalValue();
+                size++;
+            }
+        }
+        stats.peaksParsed.addAndGet(size);
+        stats.parseNanos.addAndGet(System.nanoTime() - t);
+        return new PeakBatch(chromosomes, begins, ends, values, size);
+    }
+
+    /** Take the parsed batches in file order and split them by partition. Runs on the calling thread. */
+    private void dispatch(BlockingQueue<Future<PeakBatch>> parsed, List<BlockingQueue<PartitionSlice>> slices,
+                          Future<?> reader, List<Future<?>> workers, Stats stats)
+            throws InterruptedException, ExecutionException {
+        Map<String, Integer> chromosome2partition = new HashMap<>();
+        String previousChromosome = null;
+        int partitions = sinks.size();
+        int[][] positions = new int[partitions][];
+        int[] counts = new int[partitions];
+        while (true) {
+            Future<PeakBatch> future = parsed.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            if (future == null) {
+                if (reader.isDone()) {
+                    reader.get(); // rethrows if the reader failed
+                }
+                continue;
+            }
+            if (future == END_OF_CHUNKS) {
+                break;
+            }
+            int overlapDepth = 0;
+            for (BlockingQueue<PartitionSlice> queue : slices) {
+                overlapDepth += queue.size();
+            }
+            stats.sample(parsed.size(), overlapDepth);
+            PeakBatch batch = future.get();
+            Arrays.fill(counts, 0);
+            for (int p = 0; p < partitions; p++) {
+                positions[p] = new int[batch.size];
+            }
+            for (int i = 0; i < batch.size; i++) {
+                String chrom = batch.chromosomes[i];
+                Integer p = chromosome2partition.get(chrom);
+                if (p == null) {
+                    p = chromosome2partition.size() % partitions;
+                    chromosome2partition.put(chrom, p);
+                } else if (sortedName != null && !chrom.equals(previousChromosome)) {
+                    throw new RuntimeException(String.format("%s is not sorted by coordinate (%s:%d-%d)",
+                            sortedName, chrom, batch.begins[i], batch.ends[i]));
+                }
+                previousChromosome = chrom;
+                positions[p][counts[p]++] = i;
+            }
+            for (int p = 0; p < partitions; p++) {
+                if (counts[p] > 0) {
+                    put(slices.get(p), new PartitionSlice(batch, positions[p], counts[p]), workers);
+                }
+            }
+        }
+        for (BlockingQueue<PartitionSlice> queue : slices) {
+            put(queue, END_OF_SLICES, workers);
+        }
+    }
+
+    /** Put a slice into a queue; fails instead of blocking forever if a worker has died. */
+    private static void put(BlockingQueue<PartitionSlice> queue, PartitionSlice slice, List<Future<?>> workers)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(slice, POLL_MS, TimeUnit.MILLISECONDS)) {
+            for (Future<?> worker : workers) {
+                if (worker.isDone()) {
+                    worker.get();
+                }
+            }
+        }
+    }
+
+    /** Overlap stage: hand the peaks of one partition to its sink. */
+    private static void overlap(BlockingQueue<PartitionSlice> queue, PeakSink sink, Stats stats)
+            throws InterruptedException {
+        while (true) {
+            PartitionSlice slice = queue.take();
+            if (slice == END_OF_SLICES) {
+                return;
+            }
+            long t = System.nanoTime();
+            PeakBatch batch = slice.batch;
+            for (int k = 0; k < slice.size; k++) {
+                int i = slice.positions[k];
+                sink.add(batch.chromosomes[i], batch.begins[i], batch.ends[i], batch.values[i]);
+            }
+            stats.peaksOverlapped.addAndGet(slice.size);
+            stats.overlapNanos.addAndGet(System.nanoTime() - t);
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /** @return the exception that made a stage fail; an IOException is thrown rather than returned */
+    private static RuntimeException failure(ExecutionException e) throws IOException {
+        Throwable cause = e.getCause();
+        while (cause instanceof ExecutionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new RuntimeException("Could not process narrowPeak file: " + cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,230 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.io.NarrowPeakParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * The H3K27ac signal of a set of experiments over arbitrary regions, for use as a library: load the narrowPeak
+ * files once with {@link #load(List, int)} and compute a {@link SignalMatrix} for each batch of regions with
+ * {@link #query}. The signal of a region is computed like the signal of an element (see
+ * {@link ChromosomeWithEnhancers}): the length-weighted mean signal per 1000 bp of the parts of the overlapping
+ * peaks that lie within the region, and the maximum signal of the overlapping peaks.
+ *
+ * A query sorts the regions by chromosome and begin position and joins them with the peaks of each experiment
+ * in one sweep per chromosome (see {@link SweepLineJoin}), so that a large batch costs
+ * O(regions + peaks + overlaps) per experiment. For a chromosome with only a few regions, the regions are
+ * looked up in the {@link IntervalIndex} of the peaks instead, which does not touch the peaks in between. Both
+ * report the peaks in ascending order, so the values do not depend on the rest of the batch.
+ *
+ * The experiments are immutable, and all state of a query is local to the call, so that one object can be queried
+ * from several threads at once.
+ */
+public final class RegionSignalQuery {
+    /** Sweep through a chromosome if it has at least 1/SWEEP_RATIO regions per peak. */
+    private static final int SWEEP_RATIO = 16;
+
+    private final List<PeakIndex> experiments;
+    /** The experiments by file name (ENCFF757CYP.bed.gz) and by accession (ENCFF757CYP). */
+    private final Map<String, PeakIndex> name2experiment = new HashMap<>();
+    private OverlapEngine overlapEngine = OverlapEngine.AUTO;
+
+    public RegionSignalQuery(List<PeakIndex> experiments) {
+        this.experiments = Collections.unmodifiableList(new ArrayList<>(experiments));
+        for (PeakIndex experiment : experiments) {
+            name2experiment.put(experiment.getName(), experiment);
+            name2experiment.put(NarrowPeakParser.accession(experiment.getName()), experiment);
+        }
+    }
+
+    /**
+     * Read the peaks of narrowPeak files (see {@link PeakIndex#read(File, ExecutorService)}).
+     * @param threads number of files to read at the same time
+     */
+    public static RegionSignalQuery load(List<File> bedfiles, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<PeakIndex>> futures = new ArrayList<>();
+            for (File bedfile : bedfiles) {
+                futures.add(executor.submit(() -> PeakIndex.read(bedfile, null)));
+            }
+            List<PeakIndex> experiments = new ArrayList<>();
+            for (Future<PeakIndex> future : futures) {
+                experiments.add(future.get());
+            }
+            return new RegionSignalQuery(experiments);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading narrowPeak files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Could not read narrowPeak files", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public OverlapEngine getOverlapEngine() {
+        return overlapEngine;
+    }
+
+    /**
+     * Join the regions of every chromosome with the peaks by a sweep (SWEEP) or with the interval index (INDEX),
+     * instead of choosing by the number of regions per peak (AUTO, the default). The result is the same.
+     */
+    public void setOverlapEngine(OverlapEngine engine) {
+        this.overlapEngine = engine;
+    }
+
+    /** @return the experiments, in the order in which they were given */
+    public List<PeakIndex> getExperiments() {
+        return experiments;
+    }
+
+    /**
+     * @param name file name (ENCFF757CYP.bed.gz) or accession (ENCFF757CYP) of an experiment
+     * @return the experiment, or null if there is none with that name
+     */
+    public PeakIndex getExperiment(String name) {
+        return name2experiment.get(name);
+    }
+
+    /** @return the signal of the regions in all experiments */
+    public SignalMatrix query(String[] chromosomes, int[] begins, int[] ends) {
+        return query(chromosomes, begins, ends, experiments);
+    }
+
+    /**
+     * @param experimentNames file names or accessions of the experiments, in the order of the columns
+     * @return the signal of the regions in the given experiments
+     * @throws IllegalArgumentException if there is no experiment with one of the names
+     */
+    public SignalMatrix query(String[] chromosomes, int[] begins, int[] ends, Collection<String> experimentNames) {
+        List<PeakIndex> selected = new ArrayList<>();
+        for (String name : experimentNames) {
+            PeakIndex experiment = name2experiment.get(name);
+            if (experiment == null) {
+                throw new IllegalArgumentException("Unknown experiment: " + name);
+            }
+            selected.add(experiment);
+        }
+        return query(chromosomes, begins, ends, selected);
+    }
+
+    /**
+     * @param chromosomes chromosome of each region
+     * @param begins begin of each region
+     * @param ends end of each region, greater than its begin
+     * @param selected the experiments, in the order of the columns
+     * @return the signal of region {@code i} in the experiments, in row {@code i} of the matrix
+     */
+    private SignalMatrix query(String[] chromosomes, int[] begins, int[] ends, List<PeakIndex> selected) {
+        int n = begins.length;
+        if (chromosomes.length != n || ends.length != n) {
+            throw new IllegalArgumentException(String.format("Got %d chromosomes, %d begin and %d end positions",
+                    chromosomes.length, n, ends.length));
+        }
+        for (int i = 0; i < n; i++) {
+            if (begins[i] < 0 || ends[i] <= begins[i]) {
+                throw new IllegalArgumentException(String.format("Empty region %s:%d-%d", chromosomes[i], begins[i], ends[i]));
+            }
+        }
+        // group the regions by chromosome and sort them by begin (the low bits keep the order of ties)
+        Map<String, Integer> chromosome2group = new LinkedHashMap<>();
+        int[] groupOfRegion = new int[n];
+        for (int i = 0; i < n; i++) {
+            groupOfRegion[i] = chromosome2group.computeIfAbsent(chromosomes[i], k -> chromosome2group.size());
+        }
+        String[] groupChromosomes = chromosome2group.keySet().toArray(new String[0]);
+        int[] groupStarts = new int[groupChromosomes.length + 1];
+        for (int i = 0; i < n; i++) {
+            groupStarts[groupOfRegion[i] + 1]++;
+        }
+        for (int g = 0; g < groupChromosomes.length; g++) {
+            groupStarts[g + 1] += groupStarts[g];
+        }
+        long[] keys = new long[n];
+        int[] fill = Arrays.copyOf(groupStarts, groupChromosomes.length);
+        for (int i = 0; i < n; i++) {
+            keys[fill[groupOfRegion[i]]++] = ((long) begins[i] << 32) | i;
+        }
+        for (int g = 0; g < groupChromosomes.length; g++) {
+            Arrays.sort(keys, groupStarts[g], groupStarts[g + 1]);
+        }
+
+        int m = selected.size();
+        String[] names = new String[m];
+        double[] means = new double[n * m];
+        double[] maxima = new double[n * m];
+        Accumulator acc = new Accumulator();
+        for (int j = 0; j < m; j++) {
+            PeakIndex experiment = selected.get(j);
+            names[j] = experiment.getName();
+            acc.experiment = experiment;
+            Map<String, IntervalIndex> peakIndexes = experiment.getIndexes();
+            SweepLineJoin sweep = new SweepLineJoin(peakIndexes);
+            for (int g = 0; g < groupChromosomes.length; g++) {
+                String chrom = groupChromosomes[g];
+                IntervalIndex index = peakIndexes.get(chrom);
+                if (index == null) {
+                    continue; // no peaks, zero signal
+                }
+                boolean sweepChromosome = overlapEngine == OverlapEngine.AUTO
+                        ? (long) SWEEP_RATIO * (groupStarts[g + 1] - groupStarts[g]) >= index.size()
+                        : overlapEngine == OverlapEngine.SWEEP;
+                for (int k = groupStarts[g]; k < groupStarts[g + 1]; k++) {
+                    int i = (int) keys[k];
+                    acc.reset(begins[i], ends[i]);
+                    if (sweepChromosome) {
+                        sweep.forEachOverlap(chrom, begins[i], ends[i], acc);
+                    } else {
+                        index.forEachOverlap(begins[i], ends[i], acc);
+                    }
+                    means[i * m + j] = acc.sum * 1000.0 / (ends[i] - begins[i]);
+                    maxima[i * m + j] = acc.hits > 0 ? acc.max : 0.0;
+                }
+            }
+        }
+        return new SignalMatrix(names, n, means, maxima);
+    }
+
+    /** Sums up the signal of the peaks that overlap one region. */
+    private static final class Accumulator implements IntConsumer {
+        PeakIndex experiment;
+        int begin;
+        int end;
+        double sum;
+        double max;
+        int hits;
+
+        void reset(int begin, int end) {
+            this.begin = begin;
+            this.end = end;
+            this.sum = 0.0;
+            this.max = Double.NEGATIVE_INFINITY;
+            this.hits = 0;
+        }
+
+        @Override
+        public void accept(int peak) {
+            // clip the peak to the region
+            int len = Math.min(end, experiment.getEnd(peak)) - Math.max(begin, experiment.getBegin(peak));
+            double value = experiment.getSignalValue(peak);
+            sum += len * value;
+            max = Math.max(max, value);
+            hits++;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.jax.npi.analysis;
+
+/**
+ * The signal of a batch of regions in a set of experiments, see {@link RegionSignalQuery}. The values are kept
+ * in two primitive region-major matrices: the value of region {@code i} in experiment {@code j} is at
+ * {@code [i * getNumberOfExperiments() + j]}. The regions are in the order in which they were passed to the
+ * query.
+ */
+public final class SignalMatrix {
+    private final String[] experimentNames;
+    private final int regions;
+    /** Length-weighted mean signal per 1000 bp of each region in each experiment. */
+    private final double[] means;
+    /** Maximum signal of the peaks that overlap each region in each experiment, zero if there are none. */
+    private final double[] maxima;
+
+    SignalMatrix(String[] experimentNames, int regions, double[] means, double[] maxima) {
+        this.experimentNames = experimentNames;
+        this.regions = regions;
+        this.means = means;
+        this.maxima = maxima;
+    }
+
+    public int getNumberOfRegions() {
+        return regions;
+    }
+
+    public int getNumberOfExperiments() {
+        return experimentNames.length;
+    }
+
+    /** @return name of the experiment in column {@code j} (the narrowPeak file name) */
+    public String getExperimentName(int j) {
+        return experimentNames[j];
+    }
+
+    public double getMean(int region, int experiment) {
+        return means[region * experimentNames.length + experiment];
+    }
+
+    public double getMax(int region, int experiment) {
+        return maxima[region * experimentNames.length + experiment];
+    }
+
+    /** @return the mean signal of all regions, region-major; the array must not be modified */
+    public double[] getMeans() {
+        return means;
+    }
+
+    /** @return the maximum signal of all regions, region-major; the array must not be modified */
+    public double[] getMaxima() {
+        return maxima;
+    }
+}
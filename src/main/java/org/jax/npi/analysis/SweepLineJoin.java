@@ -0,0 +1,89 @@
+package org.jax.npi.analysis;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntConsumer;
+
+/**
+ * Two-pointer sweep that joins the peaks of one coordinate-sorted narrowPeak file with the sorted
+ * regulatory elements of each chromosome. For every chromosome we keep a pointer to the next element that
+ * has not been reached yet and an active set of elements that have begun but might still overlap a later
+ * peak. Since the peaks arrive sorted by start position, an element whose end lies before the start of the
+ * current peak can never be overlapped again and is retired from the active set. Each file therefore takes
+ * O(peaks + elements + overlaps) without any per-peak search.
+ *
+ * The sweep checks the order of the peaks as it goes. If a peak starts before the previous peak on the same
+ * chromosome, or if a chromosome shows up again after another chromosome was started, the peak is rejected
+ * and the caller must use a different strategy for the rest of the file. One object is used for one file.
+ */
+class SweepLineJoin {
+    /** The interval index of every chromosome, which holds the sorted element coordinates. */
+    private final Map<String, IntervalIndex> chromosome2index;
+    /** Chromosomes we have already left; seeing one of them again means the input is not sorted. */
+    private final Set<String> finishedChromosomes = new HashSet<>();
+    /** Chromosome of the previous peak. */
+    private String currentChromosome = null;
+    /** Elements of {@link #currentChromosome}. */
+    private IntervalIndex index = null;
+    /** Position of the next element that has not yet entered the active set. */
+    private int next;
+    /** Start position of the previous peak. */
+    private int lastBegin;
+    /** Positions of the elements that may overlap the current or a later peak, in ascending order. */
+    private int[] active = new int[16];
+    /** Number of entries of {@link #active} that are in use. */
+    private int activeCount;
+
+    SweepLineJoin(Map<String, IntervalIndex> chromosome2index) {
+        this.chromosome2index = chromosome2index;
+    }
+
+    /**
+     * Report the elements that overlap the closed interval [begin,end] of the next peak of the file.
+     * @return false if the peak is out of coordinate order; nothing is reported in this case
+     */
+    boolean forEachOverlap(String chrom, int begin, int end, IntConsumer consumer) {
+        if (!chrom.equals(currentChromosome)) {
+            if (finishedChromosomes.contains(chrom)) {
+                return false;
+            }
+            if (currentChromosome != null) {
+                finishedChromosomes.add(currentChromosome);
+            }
+            currentChromosome = chrom;
+            index = chromosome2index.get(chrom);
+            next = index.getFrom();
+            activeCount = 0;
+        } else if (begin < lastBegin) {
+            return false;
+        }
+        lastBegin = begin;
+        // retire elements that end before this peak -- later peaks do not start before this one
+        int w = 0;
+        for (int r = 0; r < activeCount; r++) {
+            if (index.getEnd(active[r]) >= begin) {
+                active[w++] = active[r];
+            }
+        }
+        activeCount = w;
+        // let the elements that begin within the peak enter the active set
+        int to = index.getTo();
+        while (next < to && index.getBegin(next) <= end) {
+            if (index.getEnd(next) >= begin) {
+                if (activeCount == active.length) {
+                    int[] grown = new int[2 * active.length];
+                    System.arraycopy(active, 0, grown, 0, activeCount);
+                    active = grown;
+                }
+                active[activeCount++] = next;
+            }
+            next++;
+        }
+        // an earlier, longer peak may have let in elements that begin after the end of this peak
+        for (int r = 0; r < activeCount && index.getBegin(active[r]) <= end; r++) {
+            consumer.accept(active[r]);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,323 @@
+package org.jax.npi.data;
+
+import java.util.*;
+
+/**
+ * Column-oriented store of a set of regulatory elements and their H3K27ac signal in each experiment.
+ * Element {@code id} has the coordinates {@code begin[id]}, {@code end[id]} and the CpG flag
+ * {@code cpg.get(id)}. The elements of one chromosome occupy a contiguous range of ids and are sorted by
+ * begin position. For each experiment, there is one primitive column with the mean signal (per 1000 bp) of
+ * every element and one with the maximum signal, i.e., the matrices are indexed by [experiment][element].
+ * Since a narrowPeak file usually overlaps only a small part of the elements, experiments can also be added
+ * sparsely (ids of the overlapped elements and their values); the other elements count as zero, which is
+ * only taken into account when the values are aggregated.
+ *
+ * The coordinates are fixed at construction; experiments are appended with {@link #addExperiment}.
+ */
+public class ElementTable {
+    /** Size of the buffer used to average the values of a block of elements. */
+    private static final int AVERAGE_BLOCK_VALUES = 64 * 1024;
+    /** Chromosome names in the order in which they appear in the table. */
+    private final String[] chromosomes;
+    /** The elements of chromosome {@code c} have the ids [chromosomeStarts[c], chromosomeStarts[c+1]). */
+    private final int[] chromosomeStarts;
+    private final Map<String, Integer> chromosome2index;
+    private final int[] begins;
+    private final int[] ends;
+    private final BitSet cpg;
+    private final List<String> experimentNames = new ArrayList<>();
+    /** Mean and maximum signal of each experiment. */
+    private final List<SignalColumn> columns = new ArrayList<>();
+
+    /**
+     * @param chromosomes chromosome names
+     * @param chromosomeStarts id of the first element of each chromosome, plus the total number of elements
+     * @param begins begin positions, sorted within each chromosome
+     * @param ends end positions
+     * @param cpg bit {@code id} is set if element {@code id} is a CGI element
+     */
+    public ElementTable(String[] chromosomes, int[] chromosomeStarts, int[] begins, int[] ends, BitSet cpg) {
+        if (chromosomeStarts.length != chromosomes.length + 1
+                || chromosomeStarts[chromosomes.length] != begins.length
+                || begins.length != ends.length) {
+            throw new IllegalArgumentException("Inconsistent dimensions of the element table");
+        }
+        this.chromosomes = chromosomes;
+        this.chromosomeStarts = chromosomeStarts;
+        this.begins = begins;
+        this.ends = ends;
+        this.cpg = cpg;
+        this.chromosome2index = new HashMap<>();
+        for (int c = 0; c < chromosomes.length; c++) {
+            chromosome2index.put(chromosomes[c], c);
+        }
+    }
+
+    /**
+     * Build a table from the elements returned by a {@link org.jax.npi.io.RegulatoryElementTssParser}.
+     * The elements are grouped by chromosome and (stably) sorted by begin position.
+     */
+    public static ElementTable fromElements(List<RegulatoryElement> elementList) {
+        Map<String, List<RegulatoryElement>> chromosome2elementList = new HashMap<>();
+        for (RegulatoryElement e : elementList) {
+            chromosome2elementList.computeIfAbsent(e.getChromosome(), k -> new ArrayList<>()).add(e);
+        }
+        String[] chromosomes = new String[chromosome2elementList.size()];
+        int[] chromosomeStarts = new int[chromosomes.length + 1];
+        int[] begins = new int[elementList.size()];
+        int[] ends = new int[elementList.size()];
+        BitSet cpg = new BitSet(elementList.size());
+        int c = 0;
+        int id = 0;
+        for (Map.Entry<String, List<RegulatoryElement>> entry : chromosome2elementList.entrySet()) {
+            List<RegulatoryElement> lst = entry.getValue();
+            Collections.sort(lst);
+            chromosomes[c] = entry.getKey();
+            chromosomeStarts[c] = id;
+            for (RegulatoryElement e : lst) {
+                begins[id] = e.getBegin();
+                ends[id] = e.getEnd();
+                cpg.set(id, e.isCpG());
+                id++;
+            }
+            c++;
+        }
+        chromosomeStarts[c] = id;
+        return new ElementTable(chromosomes, chromosomeStarts, begins, ends, cpg);
+    }
+
+    /** @return total number of elements */
+    public int size() {
+        return begins.length;
+    }
+
+    public int getNumberOfChromosomes() {
+        return chromosomes.length;
+    }
+
+    public String getChromosomeName(int c) {
+        return chromosomes[c];
+    }
+
+    /** @return index of the chromosome with the given name, or -1 if there are no elements on it */
+    public int getChromosomeIndex(String chromosome) {
+        Integer c = chromosome2index.get(chromosome);
+        return c == null ? -1 : c;
+    }
+
+    /** @return id of the first element of chromosome {@code c} */
+    public int getChromosomeStart(int c) {
+        return chromosomeStarts[c];
+    }
+
+    /** @return id one past the last element of chromosome {@code c} */
+    public int getChromosomeEnd(int c) {
+        return chromosomeStarts[c + 1];
+    }
+
+    /** @return index of the chromosome of element {@code id} */
+    public int getChromosomeOfElement(int id) {
+        int c = Arrays.binarySearch(chromosomeStarts, id);
+        if (c < 0) {
+            return -c - 2;
+        }
+        // skip chromosomes without elements
+        while (chromosomeStarts[c + 1] == id) {
+            c++;
+        }
+        return c;
+    }
+
+    public int getBegin(int id) {
+        return begins[id];
+    }
+
+    public int getEnd(int id) {
+        return ends[id];
+    }
+
+    public boolean isCpG(int id) {
+        return cpg.get(id);
+    }
+
+    /** @return the begin positions of all elements; the array must not be modified */
+    public int[] getBegins() {
+        return begins;
+    }
+
+    /** @return the end positions of all elements; the array must not be modified */
+    public int[] getEnds() {
+        return ends;
+    }
+
+    /** @return the CpG flags of all elements; the bit set must not be modified */
+    public BitSet getCpG() {
+        return cpg;
+    }
+
+    /** @return a table with the same elements (sharing the coordinate arrays) and no experiments */
+    public ElementTable withoutExperiments() {
+        return new ElementTable(chromosomes, chromosomeStarts, begins, ends, cpg);
+    }
+
+    /** @return a {@link RegulatoryElement} view of element {@code id} */
+    public RegulatoryElement getElement(int id) {
+        return new RegulatoryElement(this, id);
+    }
+
+    /**
+     * Append the results of one experiment.
+     * @param name name of the experiment (e.g., the narrowPeak file name)
+     * @param meanColumn mean signal per 1000 bp of every element
+     * @param maxColumn maximum signal of every element
+     */
+    public void addExperiment(String name, double[] meanColumn, double[] maxColumn) {
+        if (meanColumn.length != size() || maxColumn.length != size()) {
+            throw new IllegalArgumentException(String.format("Experiment %s has %d/%d values for %d elements",
+                    name, meanColumn.length, maxColumn.length, size()));
+        }
+        experimentNames.add(name);
+        columns.add(new SignalColumn.Dense(meanColumn, maxColumn));
+    }
+
+    /**
+     * Append the results of one experiment in which only some elements have a signal. The values are stored
+     * sparsely unless most elements have a signal.
+     * @param name name of the experiment (e.g., the narrowPeak file name)
+     * @param ids ids of the elements with signal, in ascending order
+     * @param meanValues mean signal per 1000 bp of the elements in {@code ids}
+     * @param maxValues maximum signal of the elements in {@code ids}
+     */
+    public void addExperiment(String name, int[] ids, double[] meanValues, double[] maxValues) {
+        if (meanValues.length != ids.length || maxValues.length != ids.length) {
+            throw new IllegalArgumentException(String.format("Experiment %s has %d/%d values for %d elements",
+                    name, meanValues.length, maxValues.length, ids.length));
+        }
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i] <= ids[i - 1]) {
+                throw new IllegalArgumentException("Element ids must be in ascending order");
+            }
+        }
+        experimentNames.add(name);
+        // an id and two doubles per stored value against two doubles per element
+        if (5L * ids.length < 4L * size()) {
+            columns.add(new SignalColumn.Sparse(ids, meanValues, maxValues));
+        } else {
+            double[] meanColumn = new double[size()];
+            double[] maxColumn = new double[size()];
+            for (int i = 0; i < ids.length; i++) {
+                meanColumn[ids[i]] = meanValues[i];
+                maxColumn[ids[i]] = maxValues[i];
+            }
+            columns.add(new SignalColumn.Dense(meanColumn, maxColumn));
+        }
+    }
+
+    /** Append the results of one experiment, see {@link #addExperiment(String, int[], double[], double[])}. */
+    public void addExperiment(ExperimentResult result) {
+        addExperiment(result.name, result.ids, result.means, result.maxima);
+    }
+
+    public int getNumberOfExperiments() {
+        return experimentNames.size();
+    }
+
+    public String getExperimentName(int experiment) {
+        return experimentNames.get(experiment);
+    }
+
+    public double getMean(int experiment, int id) {
+        return columns.get(experiment).getMean(id);
+    }
+
+    public double getMax(int experiment, int id) {
+        return columns.get(experiment).getMax(id);
+    }
+
+    /**
+     * Copy the means or maxima of one experiment for the elements [from,to) to
+     * {@code out[(id - from) * stride + offset]}, with zeros for the elements without signal.
+     * @param max copy the maxima if true, the means otherwise
+     */
+    public void copyValues(int experiment, boolean max, int from, int to, double[] out, int stride, int offset) {
+        for (int i = offset; i < offset + (to - from) * stride; i += stride) {
+            out[i] = 0.0;
+        }
+        columns.get(experiment).scatter(max, from, to, out, stride, offset);
+    }
+
+    /** @return number of values stored for an experiment, which is less than {@link #size()} for sparse columns */
+    public int getStoredValues(int experiment) {
+        return columns.get(experiment).storedValues();
+    }
+
+    /**
+     * @param expectedTotal number of experiments to average over; experiments beyond those in the table
+     *                      count as zero
+     * @return mean over the experiments of the mean H3K27ac signal per 1000 bp of element {@code id}
+     */
+    public double getMeanH3K27AcPer1000(int id, int expectedTotal) {
+        return average(false, id, id + 1, expectedTotal)[0];
+    }
+
+    /**
+     * @param expectedTotal number of experiments to average over; experiments beyond those in the table
+     *                      count as zero
+     * @return for each element, the mean over the experiments of the mean H3K27ac signal per 1000 bp
+     */
+    public double[] getMeanH3K27AcPer1000(int expectedTotal) {
+        return average(false, 0, size(), expectedTotal);
+    }
+
+    /**
+     * @param expectedTotal number of experiments to average over; experiments beyond those in the table
+     *                      count as zero
+     * @return for each element in [from,to), the mean over the experiments of the mean H3K27ac signal per
+     * 1000 bp; the values are the same as those of {@link #getMeanH3K27AcPer1000(int)}
+     */
+    public double[] getMeanH3K27AcPer1000(int from, int to, int expectedTotal) {
+        return average(false, from, to, expectedTotal);
+    }
+
+    /**
+     * @param expectedTotal number of experiments to average over; experiments beyond those in the table
+     *                      count as zero
+     * @return mean over the experiments of the maximum H3K27ac signal of element {@code id}
+     */
+    public double getMeanMaxH3K27ac(int id, int expectedTotal) {
+        return average(true, id, id + 1, expectedTotal)[0];
+    }
+
+    /**
+     * @param expectedTotal number of experiments to average over; experiments beyond those in the table
+     *                      count as zero
+     * @return for each element, the mean over the experiments of the maximum H3K27ac signal
+     */
+    public double[] getMeanMaxH3K27ac(int expectedTotal) {
+        return average(true, 0, size(), expectedTotal);
+    }
+
+    /**
+     * Average the values of the elements [from,to) over the experiments. The values are gathered block by
+     * block into a row-major buffer, with zeros for the elements that a sparse column does not store.
+     */
+    private double[] average(boolean max, int from, int to, int expectedTotal) {
+        int n = Math.max(expectedTotal, columns.size());
+        int block = Math.max(1, Math.min(to - from, AVERAGE_BLOCK_VALUES / Math.max(n, 1)));
+        double[] buffer = new double[block * n];
+        double[] result = new double[to - from];
+        for (int start = from; start < to; start += block) {
+            int end = Math.min(start + block, to);
+            Arrays.fill(buffer, 0.0);
+            for (int j = 0; j < columns.size(); j++) {
+                columns.get(j).scatter(max, start, end, buffer, n, j);
+            }
+            for (int id = start; id < end; id++) {
+                int row = (id - start) * n;
+                // DoubleStream.average uses compensated summation, keep it for consistent results
+                result[id - from] = Arrays.stream(buffer, row, row + n).average().getAsDouble();
+            }
+        }
+        return result;
+    }
+}
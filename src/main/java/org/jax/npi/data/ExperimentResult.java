@@ -0,0 +1,27 @@
+package org.jax.npi.data;
+
+/**
+ * The signal of one experiment in the form in which it is added to an {@link ElementTable}: the mean signal
+ * per 1000 bp and the maximum signal of the elements that overlap at least one peak. All other elements have
+ * zero signal.
+ */
+public class ExperimentResult {
+    /** Name of the experiment (e.g., the narrowPeak file name). */
+    public final String name;
+    /** Ids of the elements with signal, in ascending order. */
+    public final int[] ids;
+    public final double[] means;
+    public final double[] maxima;
+
+    public ExperimentResult(String name, int[] ids, double[] means, double[] maxima) {
+        this.name = name;
+        this.ids = ids;
+        this.means = means;
+        this.maxima = maxima;
+    }
+
+    /** @return the same values under another name */
+    public ExperimentResult rename(String newName) {
+        return new ExperimentResult(newName, ids, means, maxima);
+    }
+}
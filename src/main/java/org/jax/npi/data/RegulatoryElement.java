@@ -3,17 +3,26 @@ package org.jax.npi.data;
 import java.util.*;
 
 /**
- * Represents a promoter or enhancer with its H3K27ac signals
+ * Represents a promoter or enhancer. Elements created by the parsers only hold the coordinates; the
+ * H3K27ac signals are stored in an {@link ElementTable}, and {@link ElementTable#getElement(int)} returns
+ * elements that are views of one row of the table.
+ *
+ * For code written against the old API, an element that is not part of a table can still collect its own
+ * signals with the deprecated {@link #addH3K27AcValue}, {@link #processLastExperiment} and
+ * {@link #addExperiment} methods; the lists for these are only created when one of them is used.
  */
 public class RegulatoryElement implements Comparable<RegulatoryElement> {
 
     private final String chromosome;
     private final int begin;
     private final int end;
-    private final List<Double> means;
-    private final List<Double> maxima;
-    private List<H3K27AcSignal> signals;
     private final boolean isCpG;
+    /** Table with the signals of this element, or null if the element only holds coordinates. */
+    private final ElementTable table;
+    /** Id of this element in {@link #table}. */
+    private final int id;
+    /** Signals added with the deprecated methods, null until one of them is used. */
+    private StandaloneSignals standalone = null;
 
     public RegulatoryElement(String chrom, int b, int e, boolean cpg) {
         this.chromosome = chrom;
@@ -23,10 +32,19 @@ public class RegulatoryElement implements Comparable<RegulatoryElement> {
             System.err.printf("[ERROR] Could not construct enhancer with begin>end.\n");
             System.err.printf("[ERROR] chrom=%s, begin=%d, end=%d CpG=%b\n", chrom, begin, end, cpg);
         }
-        this.means = new ArrayList<>();
-        this.maxima = new ArrayList<>();
         this.isCpG = cpg;
-        signals = new ArrayList<>();
+        this.table = null;
+        this.id = -1;
+    }
+
+    /** View of element {@code id} of a table. */
+    RegulatoryElement(ElementTable table, int id) {
+        this.chromosome = table.getChromosomeName(table.getChromosomeOfElement(id));
+        this.begin = table.getBegin(id);
+        this.end = table.getEnd(id);
+        this.isCpG = table.isCpG(id);
+        this.table = table;
+        this.id = id;
     }
 
 
@@ -47,67 +65,116 @@ public class RegulatoryElement implements Comparable<RegulatoryElement> {
         return isCpG;
     }
 
+    /**
+     * @param signal signal of the current experiment that overlaps this element
+     * @deprecated the signals are collected in an {@link ElementTable}; only for elements that are not part of
+     * a table
+     */
+    @Deprecated
     public void addH3K27AcValue(H3K27AcSignal signal) {
-        signals.add(signal);
+        standaloneSignals().signals.add(signal);
     }
 
+    /**
+     * Record the mean and maximum of the signals added since the last experiment.
+     * @deprecated see {@link #addH3K27AcValue(H3K27AcSignal)}
+     */
+    @Deprecated
     public void processLastExperiment() {
-        // process the H3K27AcSignal from the last experiment and then reset the list
-        if (this.signals.isEmpty()) {
-            this.means.add(0.0);
-            this.maxima.add(0.0);
-            return; // no need to reset
+        StandaloneSignals s = standaloneSignals();
+        addExperiment(s.signals);
+        if (!s.signals.isEmpty()) {
+            s.signals = new ArrayList<>(); // reset
+        }
+    }
+
+    /**
+     * Record the mean and maximum H3K27ac signal of one experiment.
+     * @param experimentSignals all signals of the experiment that overlap this element
+     * @deprecated see {@link #addH3K27AcValue(H3K27AcSignal)}
+     */
+    @Deprecated
+    public void addExperiment(List<H3K27AcSignal> experimentSignals) {
+        StandaloneSignals s = standaloneSignals();
+        if (experimentSignals.isEmpty()) {
+            s.means.add(0.0);
+            s.maxima.add(0.0);
+            return;
         }
-        double max = this.signals.stream().mapToDouble(H3K27AcSignal::getValue).max().orElse(1.0);
-        this.maxima.add(max);
+        double max = experimentSignals.stream().mapToDouble(H3K27AcSignal::getValue).max().orElse(1.0);
+        s.maxima.add(max);
         double weightedSum = 0.0;
         int totallen = 0;
-        for (H3K27AcSignal h3 : this.signals) {
+        for (H3K27AcSignal h3 : experimentSignals) {
             int len = h3.getLen();
             weightedSum += len * h3.getValue();
             totallen += len;
         }
         int enhancerlen = this.end - this.begin;
         if (totallen > enhancerlen) {
-            System.err.println("totallen="+totallen);
-            int cumulative = 0;
-            for (H3K27AcSignal h3 : this.signals) {
-                int len = h3.getLen();
-                cumulative += len;
-                System.err.printf("Len=%d (cumulative=%d).\n", len, cumulative);
-            }
             // should never happen. Sanity check
             throw new RuntimeException("BADNESS -- Total len of segments more than enhancer len");
         }
-        weightedSum = weightedSum * 1000.0/enhancerlen;
-        means.add(weightedSum);
-        this.signals = new ArrayList<>(); // reset
+        weightedSum = weightedSum * 1000.0 / enhancerlen;
+        s.means.add(weightedSum);
+    }
+
+    private StandaloneSignals standaloneSignals() {
+        if (table != null) {
+            throw new IllegalStateException("The signal of an element of an ElementTable is added to the table");
+        }
+        if (standalone == null) {
+            standalone = new StandaloneSignals();
+        }
+        return standalone;
     }
 
+    /**
+     * @param expectedTotal number of experiments; experiments without data for this region count as zero
+     * @return mean over the experiments of the mean H3K27ac signal per 1000 bp
+     * @throws IllegalStateException if the element is not part of a table and no experiment was added with
+     * the deprecated methods
+     */
     public double getMeanH3K27AcPer1000(int expectedTotal) {
-        if (expectedTotal > means.size()) {
-            // in this case, some experiments are missing data for this region. Assume that
-            // this means there is a zero value
-            int delta = expectedTotal - means.size();
-            for (int j = 0; j < delta; j++) {
-                means.add(0.0); // adding 'fake' value for missing experiment
-            }
+        if (table != null) {
+            return table.getMeanH3K27AcPer1000(id, expectedTotal);
         }
-        double m = means.stream().mapToDouble(Double::doubleValue).average().getAsDouble();
-        return m;
+        return average(checkStandalone().means, expectedTotal);
     }
 
+    /**
+     * @param expectedTotal number of experiments; experiments without data for this region count as zero
+     * @return mean over the experiments of the maximum H3K27ac signal
+     * @throws IllegalStateException see {@link #getMeanH3K27AcPer1000(int)}
+     */
     public double getMeanMaxH3K27ac(int expectedTotal) {
-        if (expectedTotal > means.size()) {
-            // in this case, some experiments are missing data for this region. Assume that
-            // this means there is a zero value
-            int delta = expectedTotal - means.size();
-            for (int j = 0; j < delta; ++j) {
-                maxima.add(0.0);
-            }
+        if (table != null) {
+            return table.getMeanMaxH3K27ac(id, expectedTotal);
         }
-        double m = maxima.stream().mapToDouble(Double::doubleValue).average().getAsDouble();
-        return m;
+        return average(checkStandalone().maxima, expectedTotal);
+    }
+
+    private StandaloneSignals checkStandalone() {
+        if (standalone == null) {
+            throw new IllegalStateException(String.format("No H3K27ac signal for %s:%d-%d, which is not part of "
+                    + "an ElementTable (see ElementTable#getElement)", chromosome, begin, end));
+        }
+        return standalone;
+    }
+
+    /** Experiments that are missing for this region count as zero. */
+    private static double average(List<Double> values, int expectedTotal) {
+        while (values.size() < expectedTotal) {
+            values.add(0.0); // adding 'fake' value for missing experiment
+        }
+        return values.stream().mapToDouble(Double::doubleValue).average().getAsDouble();
+    }
+
+    /** Per-element signals of the old API. */
+    private static final class StandaloneSignals {
+        final List<Double> means = new ArrayList<>();
+        final List<Double> maxima = new ArrayList<>();
+        List<H3K27AcSignal> signals = new ArrayList<>();
     }
 
 
@@ -0,0 +1,100 @@
+package org.jax.npi.data;
+
+import java.util.Arrays;
+
+/**
+ * The mean and maximum signal of all elements of an {@link ElementTable} in one experiment. Elements that
+ * are not stored in a column have zero signal.
+ */
+abstract class SignalColumn {
+
+    abstract double getMean(int id);
+
+    abstract double getMax(int id);
+
+    /** @return number of values that are stored (as opposed to implicit zeros) */
+    abstract int storedValues();
+
+    /**
+     * Write the values of the elements [from,to) to {@code out[(id - from) * stride + offset]}. Elements
+     * without a stored value are skipped, so the caller must zero the output first.
+     * @param maxima write the maxima if true, the means otherwise
+     */
+    abstract void scatter(boolean maxima, int from, int to, double[] out, int stride, int offset);
+
+    /** Column with a value for every element. */
+    static final class Dense extends SignalColumn {
+        private final double[] means;
+        private final double[] maxima;
+
+        Dense(double[] means, double[] maxima) {
+            this.means = means;
+            this.maxima = maxima;
+        }
+
+        @Override
+        double getMean(int id) {
+            return means[id];
+        }
+
+        @Override
+        double getMax(int id) {
+            return maxima[id];
+        }
+
+        @Override
+        int storedValues() {
+            return means.length;
+        }
+
+        @Override
+        void scatter(boolean max, int from, int to, double[] out, int stride, int offset) {
+            double[] values = max ? maxima : means;
+            for (int id = from; id < to; id++) {
+                out[(id - from) * stride + offset] = values[id];
+            }
+        }
+    }
+
+    /** Column that stores only the elements that were overlapped by a peak, sorted by id. */
+    static final class Sparse extends SignalColumn {
+        private final int[] ids;
+        private final double[] means;
+        private final double[] maxima;
+
+        Sparse(int[] ids, double[] means, double[] maxima) {
+            this.ids = ids;
+            this.means = means;
+            this.maxima = maxima;
+        }
+
+        @Override
+        double getMean(int id) {
+            int i = Arrays.binarySearch(ids, id);
+            return i < 0 ? 0.0 : means[i];
+        }
+
+        @Override
+        double getMax(int id) {
+            int i = Arrays.binarySearch(ids, id);
+            return i < 0 ? 0.0 : maxima[i];
+        }
+
+        @Override
+        int storedValues() {
+            return ids.length;
+        }
+
+        @Override
+        void scatter(boolean max, int from, int to, double[] out, int stride, int offset) {
+            double[] values = max ? maxima : means;
+            int i = Arrays.binarySearch(ids, from);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            for (; i < ids.length && ids[i] < to; i++) {
+                out[(ids[i] - from) * stride + offset] = values[i];
+            }
+        }
+    }
+}
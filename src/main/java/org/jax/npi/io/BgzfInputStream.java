@@ -0,0 +1,220 @@
+package org.jax.npi.io;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a BGZF file (a series of gzip members of at most 64 KiB each, whose header records the size of
+ * the compressed member) on several threads. Since the size of each block is known from its header, blocks
+ * can be split off without inflating them; they are inflated on a thread pool and returned in their original
+ * order. At most {@link #READ_AHEAD_BLOCKS} blocks are in flight at any time.
+ *
+ * Use {@link #open(File, ExecutorService)} to open a .gz file: it checks whether the file is BGZF and otherwise
+ * returns a streaming {@link GZIPInputStream} with large buffers (which also handles plain multi-member gzip
+ * files, whose member boundaries are only known after inflating).
+ */
+public class BgzfInputStream extends InputStream {
+    /** Maximum number of blocks that are read ahead and inflated in the background. */
+    private static final int READ_AHEAD_BLOCKS = 64;
+    /** Buffer size for reading plain gzip files. */
+    private static final int STREAMING_BUFFER_SIZE = 1 << 20;
+    /** Length of the fixed part of a gzip member header. */
+    private static final int GZIP_HEADER_LENGTH = 12;
+    private static final int FEXTRA = 4;
+
+    private final InputStream in;
+    private final ExecutorService pool;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private boolean endOfInput = false;
+    private byte[] block = new byte[0];
+    private int blockPos = 0;
+
+    /**
+     * @param in the compressed BGZF data
+     * @param pool threads used to inflate the blocks
+     */
+    public BgzfInputStream(InputStream in, ExecutorService pool) {
+        this.in = in;
+        this.pool = pool;
+    }
+
+    /**
+     * Open a gzip-compressed file for reading.
+     * @param pool threads used to inflate BGZF blocks, or null to always decompress on the calling thread
+     * @return a {@link BgzfInputStream} for BGZF files (if there is a pool), a {@link GZIPInputStream} otherwise
+     */
+    public static InputStream open(File file, ExecutorService pool) throws IOException {
+        return open(new FileInputStream(file), pool);
+    }
+
+    /**
+     * Decompress a gzip-compressed stream, e.g., a file that is being downloaded.
+     * @param pool threads used to inflate BGZF blocks, or null to always decompress on the calling thread
+     * @return a {@link BgzfInputStream} for BGZF data (if there is a pool), a {@link GZIPInputStream} otherwise
+     */
+    public static InputStream open(InputStream compressed, ExecutorService pool) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(compressed, STREAMING_BUFFER_SIZE);
+        try {
+            if (pool != null && isBgzf(in)) {
+                return new BgzfInputStream(in, pool);
+            }
+            return new GZIPInputStream(in, 64 * 1024);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /** @return true if the stream starts with a BGZF block; the stream is reset to its start */
+    static boolean isBgzf(BufferedInputStream in) throws IOException {
+        byte[] header = new byte[GZIP_HEADER_LENGTH + 6];
+        in.mark(header.length);
+        int n = in.readNBytes(header, 0, header.length);
+        in.reset();
+        return n == header.length && bsize(header) >= 0;
+    }
+
+    /**
+     * @param header the first 18 bytes of a gzip member
+     * @return the BSIZE field (total block size minus 1) of a BGZF header, or -1 if this is not BGZF
+     */
+    private static int bsize(byte[] header) {
+        if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || header[2] != 8 || (header[3] & FEXTRA) == 0) {
+            return -1;
+        }
+        int xlen = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+        // the BC subfield is the first (and usually only) one
+        if (xlen < 6 || header[12] != 'B' || header[13] != 'C' || header[14] != 2 || header[15] != 0) {
+            return -1;
+        }
+        return (header[16] & 0xff) | (header[17] & 0xff) << 8;
+    }
+
+    /** Read the next compressed block and submit it for inflating. @return false at the end of the input */
+    private boolean submitNextBlock() throws IOException {
+        byte[] header = new byte[GZIP_HEADER_LENGTH + 6];
+        int n = in.readNBytes(header, 0, header.length);
+        if (n == 0) {
+            return false;
+        }
+        int bsize = n == header.length ? bsize(header) : -1;
+        if (bsize < 0) {
+            throw new IOException("Malformed BGZF block header");
+        }
+        int xlen = (header[10] & 0xff) | (header[11] & 0xff) << 8;
+        byte[] rest = new byte[bsize + 1 - header.length];
+        if (in.readNBytes(rest, 0, rest.length) != rest.length) {
+            throw new IOException("Truncated BGZF block");
+        }
+        // rest = remaining extra subfields, compressed data, CRC32, ISIZE
+        int dataOffset = xlen - 6;
+        int dataLength = rest.length - dataOffset - 8;
+        if (dataLength < 0) {
+            throw new IOException("Malformed BGZF block");
+        }
+        pending.add(pool.submit(() -> inflate(rest, dataOffset, dataLength)));
+        return true;
+    }
+
+    /** Inflate the data of one block and check its length and CRC32. */
+    private static byte[] inflate(byte[] rest, int dataOffset, int dataLength) throws IOException {
+        int trailer = dataOffset + dataLength;
+        int crc = readIntLE(rest, trailer);
+        int isize = readIntLE(rest, trailer + 4);
+        byte[] out = new byte[isize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(rest, dataOffset, dataLength);
+            int total = 0;
+            while (total < isize && !inflater.finished()) {
+                int k = inflater.inflate(out, total, isize - total);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                total += k;
+            }
+            if (total != isize) {
+                throw new IOException("BGZF block inflated to " + total + " bytes instead of " + isize);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(out, 0, isize);
+        if ((int) crc32.getValue() != crc) {
+            throw new IOException("CRC mismatch in BGZF block");
+        }
+        return out;
+    }
+
+    private static int readIntLE(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    /** Make sure that {@link #block} has unread bytes. @return false at the end of the data */
+    private boolean ensureBlock() throws IOException {
+        while (blockPos == block.length) {
+            while (!endOfInput && pending.size() < READ_AHEAD_BLOCKS) {
+                endOfInput = !submitNextBlock();
+            }
+            Future<byte[]> next = pending.poll();
+            if (next == null) {
+                return false;
+            }
+            try {
+                block = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while inflating BGZF block");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Could not inflate BGZF block", e.getCause());
+            }
+            blockPos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureBlock()) {
+            return -1;
+        }
+        return block[blockPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, block.length - blockPos);
+        System.arraycopy(block, blockPos, b, off, n);
+        blockPos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> f : pending) {
+            f.cancel(true);
+        }
+        pending.clear();
+        in.close();
+    }
+}
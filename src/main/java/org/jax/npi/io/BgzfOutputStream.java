@@ -0,0 +1,109 @@
+package org.jax.npi.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF (blocked gzip, as written by {@code bgzip}): a series of gzip members of at most 64 KiB each
+ * whose header records the size of the compressed member, followed by the empty end-of-file block. The
+ * output is an ordinary gzip file that {@link BgzfInputStream} can inflate on several threads.
+ */
+class BgzfOutputStream extends FilterOutputStream {
+    /** Maximum number of uncompressed bytes per block, so that even incompressible blocks fit in 64 KiB. */
+    private static final int MAX_BLOCK_INPUT = 0xff00;
+    private static final byte[] EOF_BLOCK = {
+            31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private final byte[] input = new byte[MAX_BLOCK_INPUT];
+    private int inputLength = 0;
+    /** Room for the compressed data of a block: 64 KiB minus header (18 bytes) and trailer (8 bytes). */
+    private final byte[] compressed = new byte[0x10000 - 26];
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private boolean closed = false;
+
+    /** @param level compression level of {@link Deflater} */
+    BgzfOutputStream(OutputStream out, int level) {
+        super(out);
+        this.deflater = new Deflater(level, true);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (inputLength == input.length) {
+            writeBlock();
+        }
+        input[inputLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (inputLength == input.length) {
+                writeBlock();
+            }
+            int n = Math.min(len, input.length - inputLength);
+            System.arraycopy(b, off, input, inputLength, n);
+            inputLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        deflater.reset();
+        deflater.setInput(input, 0, inputLength);
+        deflater.finish();
+        int dataLength = 0;
+        while (!deflater.finished()) {
+            dataLength += deflater.deflate(compressed, dataLength, compressed.length - dataLength);
+            if (dataLength == compressed.length && !deflater.finished()) {
+                throw new IOException("BGZF block does not fit into 64 KiB");
+            }
+        }
+        crc.reset();
+        crc.update(input, 0, inputLength);
+        int bsize = 18 + dataLength + 8 - 1;
+        byte[] header = {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, (byte) bsize, (byte) (bsize >>> 8)};
+        out.write(header);
+        out.write(compressed, 0, dataLength);
+        writeIntLE((int) crc.getValue());
+        writeIntLE(inputLength);
+        inputLength = 0;
+    }
+
+    private void writeIntLE(int v) throws IOException {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+        out.write(v >>> 24);
+    }
+
+    /** Write the pending data as a block; a BGZF stream is flushed only at block boundaries. */
+    @Override
+    public void flush() throws IOException {
+        if (inputLength > 0) {
+            writeBlock();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            out.write(EOF_BLOCK);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.jax.npi.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Pre-decoded, columnar copy of a narrowPeak file. {@link #ingest(File)} parses a {@code .bed.gz} file once
+ * and writes the peaks next to it ({@code ENCFF757CYP.bed.gz.npipeaks}), grouped by chromosome and sorted by
+ * start position. Later runs memory-map that file with {@link #open(File)} and read the peaks straight out of
+ * the mapped buffer, which avoids inflating and parsing the text again. Since the peaks are sorted, the
+ * sweep-line overlap engine can always be used.
+ *
+ * The signal values are kept as doubles (the values that {@link Double#parseDouble} returns for the text)
+ * rather than floats, so that no precision is lost. Peaks with the same start keep their order from the
+ * narrowPeak file. For a narrowPeak file that was not sorted, the signal of an element is accumulated in
+ * sorted rather than file order, which can change the last bits of its mean.
+ *
+ * A peak file records the size and modification time of the narrowPeak file it was made from and is only
+ * used if they still match.
+ *
+ * <pre>
+ *     int    magic, int version
+ *     long   source size, long source mtime (ms)
+ *     int    number of chromosomes C
+ *     C x    (int length of name, bytes (UTF-8), int number of peaks, long offset of the peak data)
+ *     C x    (n x int start, n x int end, n x double signalValue)
+ * </pre>
+ */
+public final class BinaryPeakFile {
+    private static final int MAGIC = 0x4E504950; // NPIP
+    private static final int VERSION = 1;
+    public static final String SUFFIX = ".npipeaks";
+
+    private BinaryPeakFile() {
+    }
+
+    /** @return the path of the binary peak file for a narrowPeak file */
+    public static File peakFileFor(File bedfile) {
+        return new File(bedfile.getPath() + SUFFIX);
+    }
+
+    /** @return true if there is a binary peak file that was made from the current version of the narrowPeak file */
+    public static boolean isUpToDate(File bedfile) {
+        File peakFile = peakFileFor(bedfile);
+        if (!peakFile.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(peakFile), 64))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION
+                    && in.readLong() == bedfile.length() && in.readLong() == bedfile.lastModified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parse a narrowPeak file (.bed.gz) and write its binary peak file.
+     * @return number of peaks
+     */
+    public static long ingest(File bedfile) throws IOException {
+        return ingest(bedfile, null);
+    }
+
+    /**
+     * Parse a narrowPeak file (.bed.gz) and write its binary peak file.
+     * @param inflatePool threads used to inflate a BGZF-compressed file, see {@link BgzfInputStream#open}
+     * @return number of peaks
+     */
+    public static long ingest(File bedfile, ExecutorService inflatePool) throws IOException {
+        Map<String, PeakColumns> chromosome2peaks = new LinkedHashMap<>();
+        long count = 0;
+        try (NarrowPeakParser parser = new NarrowPeakParser(BgzfInputStream.open(bedfile, inflatePool))) {
+            PeakColumns current = null;
+            while (parser.next()) {
+                String chrom = parser.getChromosome();
+                if (current == null || !current.chromosome.equals(chrom)) {
+                    current = chromosome2peaks.computeIfAbsent(chrom, PeakColumns::new);
+                }
+                current.add(parser.getBegin(), parser.getEnd(), parser.getSignalValue());
+                count++;
+            }
+        }
+        File peakFile = peakFileFor(bedfile);
+        File tmp = new File(peakFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(bedfile.length());
+            out.writeLong(bedfile.lastModified());
+            out.writeInt(chromosome2peaks.size());
+            long offset = 4 + 4 + 8 + 8 + 4;
+            for (String chrom : chromosome2peaks.keySet()) {
+                offset += 4 + chrom.getBytes(StandardCharsets.UTF_8).length + 4 + 8;
+            }
+            for (PeakColumns peaks : chromosome2peaks.values()) {
+                byte[] name = peaks.chromosome.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeInt(peaks.size);
+                out.writeLong(offset);
+                offset += 16L * peaks.size;
+            }
+            for (PeakColumns peaks : chromosome2peaks.values()) {
+                peaks.write(out);
+            }
+        }
+        Files.move(tmp.toPath(), peakFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Memory-map the binary peak file of a narrowPeak file.
+     * @throws IOException if the binary peak file cannot be read or is not up to date
+     */
+    public static PeakReader open(File bedfile) throws IOException {
+        if (!isUpToDate(bedfile)) {
+            throw new IOException("No up-to-date binary peak file for " + bedfile.getAbsolutePath());
+        }
+        return new MappedPeakReader(peakFileFor(bedfile));
+    }
+
+    /** Peaks of one chromosome collected during ingestion. */
+    private static final class PeakColumns {
+        private final String chromosome;
+        private int[] begins = new int[1024];
+        private int[] ends = new int[1024];
+        private double[] values = new double[1024];
+        private int size = 0;
+
+        PeakColumns(String chromosome) {
+            this.chromosome = chromosome;
+        }
+
+        void add(int begin, int end, double value) {
+            if (size == begins.length) {
+                begins = Arrays.copyOf(begins, 2 * size);
+                ends = Arrays.copyOf(ends, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            begins[size] = begin;
+            ends[size] = end;
+            values[size] = value;
+            size++;
+        }
+
+        /** Write the columns sorted by begin; ties keep the order of the narrowPeak file. */
+        void write(DataOutputStream out) throws IOException {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                // begin in the (signed) high bits, input position in the low bits
+                keys[i] = ((long) begins[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            for (long key : keys) {
+                out.writeInt(begins[(int) key]);
+            }
+            for (long key : keys) {
+                out.writeInt(ends[(int) key]);
+            }
+            for (long key : keys) {
+                out.writeDouble(values[(int) key]);
+            }
+        }
+    }
+
+    /** Reads the peaks chromosome by chromosome from the mapped file, without copying the columns. */
+    private static final class MappedPeakReader implements PeakReader {
+        private final FileChannel channel;
+        private final String[] chromosomes;
+        private final int[] counts;
+        private final long[] offsets;
+        /** Index of the current chromosome. */
+        private int c = -1;
+        /** Index of the current peak within the current chromosome. */
+        private int i = -1;
+        /** Mapped peak data of the current chromosome. */
+        private ByteBuffer buffer;
+
+        MappedPeakReader(File peakFile) throws IOException {
+            this.channel = FileChannel.open(peakFile.toPath(), StandardOpenOption.READ);
+            try {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+                header.position(4 + 4 + 8 + 8);
+                int n = header.getInt();
+                chromosomes = new String[n];
+                counts = new int[n];
+                offsets = new long[n];
+                for (int k = 0; k < n; k++) {
+                    byte[] name = new byte[header.getInt()];
+                    header.get(name);
+                    chromosomes[k] = new String(name, StandardCharsets.UTF_8);
+                    counts[k] = header.getInt();
+                    offsets[k] = header.getLong();
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw new IOException("Corrupt binary peak file " + peakFile + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            i++;
+            while (c < 0 || i >= counts[c]) {
+                c++;
+                if (c >= chromosomes.length) {
+                    return false;
+                }
+                i = 0;
+                buffer = counts[c] == 0 ? null : channel.map(FileChannel.MapMode.READ_ONLY, offsets[c], 16L * counts[c]);
+            }
+            return true;
+        }
+
+        @Override
+        public String getChromosome() {
+            return chromosomes[c];
+        }
+
+        @Override
+        public int getBegin() {
+            return buffer.getInt(4 * i);
+        }
+
+        @Override
+        public int getEnd() {
+            return buffer.getInt(4 * (counts[c] + i));
+        }
+
+        @Override
+        public double getSignalValue() {
+            return buffer.getDouble(8 * counts[c] + 8 * i);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
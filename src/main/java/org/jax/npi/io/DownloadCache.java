@@ -0,0 +1,175 @@
+package org.jax.npi.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Properties;
+
+/**
+ * Metadata and content-addressed storage for downloaded files.
+ *
+ * For each downloaded file, a sidecar {@code <file>.meta} records the URL, the {@code ETag} and
+ * {@code Last-Modified} headers of the response, the length and the SHA-256 checksum of the file. The
+ * validators are sent back with the next refresh ({@code If-None-Match}, {@code If-Modified-Since}), so that
+ * the server can answer with a short "304 Not Modified" instead of the file.
+ *
+ * The contents are stored once per checksum in {@code <directory>/.objects/<sha256>} and the downloaded files
+ * are hard links to these objects, so that files with the same contents (e.g., the same peaks published
+ * under two accessions) take up space only once. Objects are never written in place: a new download is
+ * written to a new file and renamed over the link, so that other links to the old object are not affected.
+ * When the sidecar of a file is replaced, the old object is deleted unless another file still links to it.
+ * If the file system does not support hard links, the files are simply kept as they are.
+ */
+public class DownloadCache {
+    private static final Logger logger = LoggerFactory.getLogger(DownloadCache.class);
+    private static final String META_SUFFIX = ".meta";
+
+    /** What we know about a downloaded file. */
+    public static class Metadata {
+        public final String url;
+        /** ETag header of the response, or null. */
+        public final String etag;
+        /** Last-Modified header of the response in ms since the epoch, or 0. */
+        public final long lastModified;
+        public final long length;
+        public final String sha256;
+
+        public Metadata(String url, String etag, long lastModified, long length, String sha256) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.sha256 = sha256;
+        }
+    }
+
+    /** Directory with the content-addressed objects. */
+    private final File objectDirectory;
+
+    /** @param directory the directory the files are downloaded to */
+    public DownloadCache(String directory) {
+        this.objectDirectory = new File(directory, ".objects");
+    }
+
+    static File metadataFileFor(File file) {
+        return new File(file.getPath() + META_SUFFIX);
+    }
+
+    /**
+     * @return the metadata of a file, or null if there is no sidecar or the file was changed since the
+     * sidecar was written (different length)
+     */
+    public Metadata readMetadata(File file) {
+        File metaFile = metadataFileFor(file);
+        if (!metaFile.isFile() || !file.isFile()) {
+            return null;
+        }
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(metaFile)) {
+            p.load(in);
+            Metadata meta = new Metadata(p.getProperty("url"), p.getProperty("etag"),
+                    Long.parseLong(p.getProperty("lastModified", "0")),
+                    Long.parseLong(p.getProperty("length", "-1")), p.getProperty("sha256"));
+            return meta.length == file.length() ? meta : null;
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("Ignoring unreadable metadata file {}: {}", metaFile, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Record a file that was just downloaded: compute its checksum, replace it by a link to the object with
+     * the same contents (adding the object if it is new) and write the sidecar. The object of the previous
+     * download of the file is deleted if no other file links to it.
+     * @param etag ETag header of the response, or null
+     * @param lastModified Last-Modified header of the response (ms since the epoch), or 0
+     */
+    public Metadata add(File file, String url, String etag, long lastModified) throws IOException {
+        String sha256 = sha256(file);
+        Metadata meta = new Metadata(url, etag, lastModified, file.length(), sha256);
+        String previous = readPreviousChecksum(file);
+        deduplicate(file, sha256);
+        writeMetadata(file, meta);
+        if (previous != null && !previous.equals(sha256)) {
+            deleteUnlinkedObject(previous);
+        }
+        return meta;
+    }
+
+    /** @return the checksum recorded in the sidecar of a file, even if the file changed since; or null */
+    private static String readPreviousChecksum(File file) {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(metadataFileFor(file))) {
+            p.load(in);
+            return p.getProperty("sha256");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Delete an object that is no longer linked from any downloaded file, i.e., whose only remaining link is the
+     * object itself. Objects are kept if the file system does not report the number of links.
+     */
+    private synchronized void deleteUnlinkedObject(String sha256) {
+        if (!sha256.matches("[0-9a-f]{64}")) {
+            return;
+        }
+        Path object = new File(objectDirectory, sha256).toPath();
+        try {
+            if (Files.isRegularFile(object) && ((Number) Files.getAttribute(object, "unix:nlink")).intValue() == 1) {
+                Files.delete(object);
+                logger.debug("Deleted {}, which is no longer used", object);
+            }
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            logger.warn("Could not remove {} from the download cache: {}", object, e.getMessage());
+        }
+    }
+
+    private synchronized void deduplicate(File file, String sha256) {
+        File object = new File(objectDirectory, sha256);
+        try {
+            if (object.isFile() && object.length() == file.length()) {
+                if (!Files.isSameFile(object.toPath(), file.toPath())) {
+                    // same contents as a file we already have: keep one copy
+                    File tmp = new File(file.getPath() + ".link");
+                    Files.deleteIfExists(tmp.toPath());
+                    Files.createLink(tmp.toPath(), object.toPath());
+                    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    System.out.printf("[INFO] %s has the same contents as an earlier download, stored only once.\n",
+                            file.getName());
+                }
+            } else {
+                Files.createDirectories(objectDirectory.toPath());
+                Files.deleteIfExists(object.toPath());
+                Files.createLink(object.toPath(), file.toPath());
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.warn("Could not link {} into the download cache: {}", file, e.getMessage());
+        }
+    }
+
+    private static void writeMetadata(File file, Metadata meta) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("url", meta.url);
+        if (meta.etag != null) {
+            p.setProperty("etag", meta.etag);
+        }
+        p.setProperty("lastModified", Long.toString(meta.lastModified));
+        p.setProperty("length", Long.toString(meta.length));
+        p.setProperty("sha256", meta.sha256);
+        File metaFile = metadataFileFor(file);
+        File tmp = new File(metaFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, "download metadata of " + file.getName());
+        }
+        Files.move(tmp.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return hexadecimal SHA-256 checksum of a file */
+    static String sha256(File file) throws IOException {
+        return FileDownloader.checksum(file, "SHA-256");
+    }
+}
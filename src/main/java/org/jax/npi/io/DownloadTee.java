@@ -0,0 +1,27 @@
+package org.jax.npi.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the bytes of a file while it is downloaded, so that the file can be analyzed without reading it
+ * from disk again. {@link #consume} is called on a thread of its own and should read the stream to its end.
+ * If the download fails, reading from the stream throws an {@link IOException}; the consumer should then
+ * discard what it computed.
+ *
+ * Whatever the consumer computed should only be used by the action it returns, which is run once the download
+ * has been checked (size and checksum) and renamed to its final name. If that does not happen, the action is
+ * dropped.
+ *
+ * The consumer does not slow down the download beyond a small buffer: if it stops reading or throws, the
+ * remaining bytes are only written to disk.
+ */
+public interface DownloadTee {
+    /**
+     * @param dest the file the download is written to (it is only complete once the download succeeded)
+     * @param in the downloaded bytes, exactly as they are written to {@code dest}
+     * @return an action to run once {@code dest} is complete, or null
+     */
+    Runnable consume(File dest, InputStream in) throws IOException;
+}
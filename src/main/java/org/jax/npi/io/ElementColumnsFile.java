@@ -0,0 +1,91 @@
+package org.jax.npi.io;
+
+import org.jax.npi.data.ElementTable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact, columnar result file ({@code h3k27ac-enhancer.npicols}) with the coordinates, the CpG flag and the
+ * mean and maximum signal of every element in every experiment, for programs that need more than the
+ * averaged values of {@code h3k27ac-enhancer.txt}. The file is written chromosome by chromosome straight from
+ * the {@link ElementTable}, so that nothing but a small buffer is kept besides the table. All numbers are
+ * big-endian (as written by {@link DataOutputStream}); a mean is the length-weighted mean signal per 1000 bp,
+ * and zero where no peak overlaps the element.
+ *
+ * <pre>
+ *     int    magic, int version
+ *     int    number of experiments E
+ *     E x    (int length of name, bytes (UTF-8))
+ *     int    number of chromosomes C
+ *     C x    (int length of name, bytes (UTF-8), int number of elements n,
+ *             n x int begin, n x int end, n x byte CpG (0 or 1),
+ *             E x (n x double mean), E x (n x double max))
+ * </pre>
+ */
+public final class ElementColumnsFile {
+    private static final int MAGIC = 0x4E504943; // NPIC
+    private static final int VERSION = 1;
+    public static final String SUFFIX = ".npicols";
+    /** Number of values of an experiment that are copied out of the table at a time. */
+    private static final int BLOCK = 1 << 16;
+
+    private ElementColumnsFile() {
+    }
+
+    /**
+     * Write the elements and their signal to a stream; the stream is not closed.
+     * @return number of elements written
+     */
+    public static long write(ElementTable table, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        int experiments = table.getNumberOfExperiments();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(experiments);
+        for (int j = 0; j < experiments; j++) {
+            writeName(out, table.getExperimentName(j));
+        }
+        out.writeInt(table.getNumberOfChromosomes());
+        double[] buffer = new double[BLOCK];
+        for (int c = 0; c < table.getNumberOfChromosomes(); c++) {
+            int from = table.getChromosomeStart(c);
+            int to = table.getChromosomeEnd(c);
+            writeName(out, table.getChromosomeName(c));
+            out.writeInt(to - from);
+            for (int id = from; id < to; id++) {
+                out.writeInt(table.getBegin(id));
+            }
+            for (int id = from; id < to; id++) {
+                out.writeInt(table.getEnd(id));
+            }
+            for (int id = from; id < to; id++) {
+                out.writeByte(table.isCpG(id) ? 1 : 0);
+            }
+            writeValues(out, table, false, from, to, buffer);
+            writeValues(out, table, true, from, to, buffer);
+        }
+        out.flush();
+        return table.size();
+    }
+
+    /** Write the means or maxima of the elements [from,to), one experiment after the other, block by block. */
+    private static void writeValues(DataOutputStream out, ElementTable table, boolean max, int from, int to,
+                                    double[] buffer) throws IOException {
+        for (int j = 0; j < table.getNumberOfExperiments(); j++) {
+            for (int start = from; start < to; start += buffer.length) {
+                int end = Math.min(start + buffer.length, to);
+                table.copyValues(j, max, start, end, buffer, 1, 0);
+                for (int i = 0; i < end - start; i++) {
+                    out.writeDouble(buffer[i]);
+                }
+            }
+        }
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,251 @@
+package org.jax.npi.io;
+
+import org.jax.npi.data.ElementTable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Export of the element x experiment matrix of the mean H3K27ac signal per 1000 bp (the values that
+ * {@code h3k27ac-*.txt} averages over the experiments), e.g., for clustering. The rows are the elements, in the
+ * order of the {@link ElementTable} (by chromosome and begin), the columns the experiments, named by their
+ * ENCODE accession. The matrix is written chromosome by chromosome in blocks of about {@link #BLOCK_VALUES}
+ * values taken straight out of the table, so that the memory does not grow with the size of the matrix.
+ *
+ * {@link Layout#TSV} writes a tab-separated text file with a header line
+ * ({@code chrom begin end cpg ENCFF757CYP ...}) and one line per element, the values formatted like
+ * {@code %f}; gzip-compressed if the file name ends with {@code .gz}. The binary layouts write a big-endian
+ * file whose matrix starts at an offset that is a multiple of 8, so that it can be memory-mapped, e.g., as a
+ * NumPy array of {@code >f8} with shape (rows, columns) for {@link Layout#ROW_MAJOR} or (columns, rows) for
+ * {@link Layout#COLUMN_MAJOR}:
+ *
+ * <pre>
+ *     int    magic, int version
+ *     int    layout (0: row-major, 1: column-major)
+ *     int    number of rows (elements) N, int number of columns (experiments) E
+ *     E x    (int length of accession, bytes (UTF-8))
+ *     int    number of chromosomes C
+ *     C x    (int length of name, bytes (UTF-8), int first row, int number of rows)
+ *     N x int begin, N x int end, N x byte CpG (0 or 1)
+ *     zero bytes up to a multiple of 8
+ *     N x E double (row-major) or E x N double (column-major)
+ * </pre>
+ */
+public final class ElementMatrixFile {
+    private static final int MAGIC = 0x4E50494D; // NPIM
+    private static final int VERSION = 1;
+    /** Number of values that are copied out of the table and formatted or written at a time. */
+    private static final int BLOCK_VALUES = 1 << 20;
+
+    public enum Layout {
+        /** Tab-separated text with one line per element. */
+        TSV(".tsv.gz"),
+        /** Binary, the values of an element next to each other. */
+        ROW_MAJOR(".rows.npimatrix"),
+        /** Binary, the values of an experiment next to each other. */
+        COLUMN_MAJOR(".columns.npimatrix");
+
+        private final String suffix;
+
+        Layout(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /** @return default suffix of the file name, e.g., {@code .tsv.gz} */
+        public String getSuffix() {
+            return suffix;
+        }
+    }
+
+    private ElementMatrixFile() {
+    }
+
+    /**
+     * Write the matrix of the elements and experiments in the table.
+     * @param file output file; for {@link Layout#TSV}, gzip-compressed if the name ends with {@code .gz}
+     * @return number of values written
+     */
+    public static long write(ElementTable table, Layout layout, File file) throws IOException {
+        switch (layout) {
+            case TSV:
+                return writeTsv(table, file);
+            case ROW_MAJOR:
+            case COLUMN_MAJOR:
+                return writeBinary(table, layout == Layout.COLUMN_MAJOR, file);
+            default:
+                throw new IllegalArgumentException("Unknown layout " + layout);
+        }
+    }
+
+    private static long writeTsv(ElementTable table, File file) throws IOException {
+        int experiments = table.getNumberOfExperiments();
+        OutputStream stream = new FileOutputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            stream = new GZIPOutputStream(stream, 1 << 16) {
+                {
+                    // the digits of the values hardly compress better with more effort
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+        }
+        try (LineWriter out = new LineWriter(stream)) {
+            out.append("chrom\tbegin\tend\tcpg");
+            for (int j = 0; j < experiments; j++) {
+                out.append('\t').append(NarrowPeakParser.accession(table.getExperimentName(j)));
+            }
+            out.newLine();
+            int rowsPerBlock = rowsPerBlock(experiments);
+            double[] block = new double[rowsPerBlock * experiments];
+            for (int c = 0; c < table.getNumberOfChromosomes(); c++) {
+                String chrom = table.getChromosomeName(c);
+                int to = table.getChromosomeEnd(c);
+                for (int start = table.getChromosomeStart(c); start < to; start += rowsPerBlock) {
+                    int end = Math.min(start + rowsPerBlock, to);
+                    copyRows(table, start, end, block);
+                    for (int id = start; id < end; id++) {
+                        out.append(chrom).append('\t').append(table.getBegin(id)).append('\t').append(table.getEnd(id))
+                                .append('\t').append(table.isCpG(id) ? '1' : '0');
+                        int row = (id - start) * experiments;
+                        for (int j = 0; j < experiments; j++) {
+                            out.append('\t').appendFormatted(block[row + j]);
+                        }
+                        out.newLine();
+                    }
+                }
+            }
+        }
+        return (long) table.size() * experiments;
+    }
+
+    private static long writeBinary(ElementTable table, boolean columnMajor, File file) throws IOException {
+        int n = table.size();
+        int experiments = table.getNumberOfExperiments();
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(columnMajor ? 1 : 0);
+        header.writeInt(n);
+        header.writeInt(experiments);
+        for (int j = 0; j < experiments; j++) {
+            writeName(header, NarrowPeakParser.accession(table.getExperimentName(j)));
+        }
+        header.writeInt(table.getNumberOfChromosomes());
+        for (int c = 0; c < table.getNumberOfChromosomes(); c++) {
+            writeName(header, table.getChromosomeName(c));
+            header.writeInt(table.getChromosomeStart(c));
+            header.writeInt(table.getChromosomeEnd(c) - table.getChromosomeStart(c));
+        }
+        long matrixOffset = headerBytes.size() + 9L * n;
+        matrixOffset = (matrixOffset + 7) / 8 * 8;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8 * Math.max(BLOCK_VALUES, experiments));
+            buffer.put(headerBytes.toByteArray());
+            for (int id = 0; id < n; id++) {
+                ensure(channel, buffer, 4);
+                buffer.putInt(table.getBegin(id));
+            }
+            for (int id = 0; id < n; id++) {
+                ensure(channel, buffer, 4);
+                buffer.putInt(table.getEnd(id));
+            }
+            for (int id = 0; id < n; id++) {
+                ensure(channel, buffer, 1);
+                buffer.put((byte) (table.isCpG(id) ? 1 : 0));
+            }
+            ensure(channel, buffer, 8);
+            while ((channel.position() + buffer.position()) % 8 != 0) {
+                buffer.put((byte) 0);
+            }
+            drain(channel, buffer);
+            if (columnMajor) {
+                writeColumns(table, channel, buffer, matrixOffset);
+            } else {
+                writeRows(table, channel, buffer);
+            }
+        }
+        return (long) n * experiments;
+    }
+
+    /** Write the rows block by block at the current position of the channel. */
+    private static void writeRows(ElementTable table, FileChannel channel, ByteBuffer buffer) throws IOException {
+        int experiments = table.getNumberOfExperiments();
+        int rowsPerBlock = rowsPerBlock(experiments);
+        double[] block = new double[rowsPerBlock * experiments];
+        for (int c = 0; c < table.getNumberOfChromosomes(); c++) {
+            int to = table.getChromosomeEnd(c);
+            for (int start = table.getChromosomeStart(c); start < to; start += rowsPerBlock) {
+                int end = Math.min(start + rowsPerBlock, to);
+                copyRows(table, start, end, block);
+                buffer.asDoubleBuffer().put(block, 0, (end - start) * experiments);
+                buffer.position((end - start) * experiments * 8);
+                drain(channel, buffer);
+            }
+        }
+    }
+
+    /** Write the part of each column that belongs to a block of rows at its place in the column. */
+    private static void writeColumns(ElementTable table, FileChannel channel, ByteBuffer buffer, long matrixOffset)
+            throws IOException {
+        long n = table.size();
+        double[] block = new double[BLOCK_VALUES];
+        for (int c = 0; c < table.getNumberOfChromosomes(); c++) {
+            int to = table.getChromosomeEnd(c);
+            for (int start = table.getChromosomeStart(c); start < to; start += BLOCK_VALUES) {
+                int end = Math.min(start + BLOCK_VALUES, to);
+                for (int j = 0; j < table.getNumberOfExperiments(); j++) {
+                    table.copyValues(j, false, start, end, block, 1, 0);
+                    buffer.asDoubleBuffer().put(block, 0, end - start);
+                    buffer.position((end - start) * 8);
+                    buffer.flip();
+                    long position = matrixOffset + 8 * (j * n + start);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    buffer.clear();
+                }
+            }
+        }
+    }
+
+    /** Copy the means of the elements [start,end) row-major into the block. */
+    private static void copyRows(ElementTable table, int start, int end, double[] block) {
+        int experiments = table.getNumberOfExperiments();
+        for (int j = 0; j < experiments; j++) {
+            table.copyValues(j, false, start, end, block, experiments, j);
+        }
+    }
+
+    private static int rowsPerBlock(int experiments) {
+        return Math.max(1, BLOCK_VALUES / Math.max(1, experiments));
+    }
+
+    /** Drain the buffer to the channel if it has less than {@code n} bytes left. */
+    private static void ensure(FileChannel channel, ByteBuffer buffer, int n) throws IOException {
+        if (buffer.remaining() < n) {
+            drain(channel, buffer);
+        }
+    }
+
+    /** Write the bytes in the buffer at the current position of the channel and clear the buffer. */
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
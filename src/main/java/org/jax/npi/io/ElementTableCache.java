@@ -0,0 +1,206 @@
+package org.jax.npi.io;
+
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.data.RegulatoryElement;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary cache of a parsed set of regulatory elements, stored next to the text file it was parsed from
+ * (e.g., {@code cpg-hg38e.txt.npicache}). The cache holds the {@link ElementTable} coordinates in columnar
+ * form and is memory-mapped when it is read, so that the stats files need to be parsed only once.
+ *
+ * The cache records the size and the modification time of the source file together with a format tag that
+ * identifies the parser and its version. If any of these do not match, the cache is ignored and rewritten.
+ * Like the {@link ResultStore}, the cache trusts an unchanged size and modification time; with
+ * {@link #setVerifyChecksum(boolean)}, a CRC32C checksum of the source file is recorded and compared as well,
+ * which means reading the whole source file on every run.
+ *
+ * <pre>
+ *     int    magic, int version
+ *     int    length of format tag, bytes (UTF-8)
+ *     long   source size, long source mtime (ms)
+ *     byte   1 if a checksum follows, int source CRC32C (0 if there is none)
+ *     int    number of chromosomes C
+ *     C x    (int length of name, bytes (UTF-8), int id of first element)
+ *     int    number of elements N
+ *     N x int begin, N x int end
+ *     int    number of words W of the CpG bit set, W x long
+ * </pre>
+ */
+public class ElementTableCache {
+    private static final int MAGIC = 0x4E504945; // NPIE
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".npicache";
+
+    /** The text file the elements are parsed from. */
+    private final File source;
+    /** Identifies the parser (and its settings) that produced the elements. */
+    private final String format;
+    private final File cacheFile;
+    /** Whether to record and compare a checksum of the source file. */
+    private boolean verifyChecksum = false;
+
+    /**
+     * @param source path to the file that is parsed, e.g., tss-stats-hg38p.txt
+     * @param format name and version of the parser, a cache written with a different format is not used
+     */
+    public ElementTableCache(File source, String format) {
+        this.source = source;
+        this.format = format;
+        this.cacheFile = new File(source.getPath() + SUFFIX);
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * @param verifyChecksum true to also compare a CRC32C checksum of the source file with the one in the
+     * cache (and to record it when the cache is written); a cache without a checksum is then rebuilt
+     */
+    public void setVerifyChecksum(boolean verifyChecksum) {
+        this.verifyChecksum = verifyChecksum;
+    }
+
+    /**
+     * Load the elements from the cache if it is up to date, and otherwise parse the source file and try to
+     * write the cache for the next run.
+     * @param parser parses the source file
+     */
+    public ElementTable loadOrParse(Supplier<List<RegulatoryElement>> parser) {
+        try {
+            ElementTable table = load();
+            if (table != null) {
+                System.out.printf("[INFO] Loaded %d elements from %s.\n", table.size(), cacheFile.getAbsolutePath());
+                return table;
+            }
+        } catch (IOException e) {
+            System.err.printf("[WARNING] Could not read element cache %s: %s\n", cacheFile, e.getMessage());
+        }
+        ElementTable table = ElementTable.fromElements(parser.get());
+        try {
+            store(table);
+        } catch (IOException e) {
+            System.err.printf("[WARNING] Could not write element cache %s: %s\n", cacheFile, e.getMessage());
+        }
+        return table;
+    }
+
+    /** @return the cached elements, or null if there is no cache or it does not match the source file */
+    public ElementTable load() throws IOException {
+        if (!cacheFile.isFile() || !source.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 8 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                return null;
+            }
+            if (!format.equals(readString(buf))) {
+                return null;
+            }
+            long size = buf.getLong();
+            long mtime = buf.getLong();
+            boolean hasChecksum = buf.get() != 0;
+            int crc = buf.getInt();
+            if (size != source.length() || mtime != source.lastModified()) {
+                return null;
+            }
+            if (verifyChecksum && (!hasChecksum || crc != checksum(source))) {
+                return null;
+            }
+            int nChromosomes = buf.getInt();
+            String[] chromosomes = new String[nChromosomes];
+            int[] chromosomeStarts = new int[nChromosomes + 1];
+            for (int c = 0; c < nChromosomes; c++) {
+                chromosomes[c] = readString(buf);
+                chromosomeStarts[c] = buf.getInt();
+            }
+            int n = buf.getInt();
+            chromosomeStarts[nChromosomes] = n;
+            int[] begins = new int[n];
+            int[] ends = new int[n];
+            buf.asIntBuffer().get(begins);
+            buf.position(buf.position() + 4 * n);
+            buf.asIntBuffer().get(ends);
+            buf.position(buf.position() + 4 * n);
+            long[] words = new long[buf.getInt()];
+            buf.asLongBuffer().get(words);
+            return new ElementTable(chromosomes, chromosomeStarts, begins, ends, BitSet.valueOf(words));
+        } catch (RuntimeException e) {
+            // truncated or otherwise corrupt cache
+            throw new IOException("Corrupt element cache: " + e.getMessage(), e);
+        }
+    }
+
+    /** Write the cache. The file is written under a temporary name and then renamed. */
+    public void store(ElementTable table) throws IOException {
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, format);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeBoolean(verifyChecksum);
+            out.writeInt(verifyChecksum ? checksum(source) : 0);
+            out.writeInt(table.getNumberOfChromosomes());
+            for (int c = 0; c < table.getNumberOfChromosomes(); c++) {
+                writeString(out, table.getChromosomeName(c));
+                out.writeInt(table.getChromosomeStart(c));
+            }
+            out.writeInt(table.size());
+            for (int b : table.getBegins()) {
+                out.writeInt(b);
+            }
+            for (int e : table.getEnds()) {
+                out.writeInt(e);
+            }
+            long[] words = table.getCpG().toLongArray();
+            out.writeInt(words.length);
+            for (long w : words) {
+                out.writeLong(w);
+            }
+        }
+        Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return CRC32C checksum of the contents of a file */
+    static int checksum(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long pos = 0;
+            while (pos < size) {
+                long len = Math.min(size - pos, Integer.MAX_VALUE);
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, len));
+                pos += len;
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -1,14 +1,21 @@
 package org.jax.npi.io;
 
-import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 
 /**
@@ -40,6 +47,22 @@ public class FileDownloader {
 
     /** configuration for the downloader */
     private final Options options;
+    /** receives the bytes of HTTP(S) downloads while they are written to disk, or null */
+    private DownloadTee tee = null;
+    /** logged-in FTP sessions shared with other downloaders, or null to connect for each file */
+    private FtpConnectionPool ftpPool = null;
+    /** ETag of the copy we have, sent as If-None-Match, or null */
+    private String ifNoneMatch = null;
+    /** Last-Modified time of the copy we have (ms), sent as If-Modified-Since, or 0 */
+    private long ifModifiedSince = 0;
+    /** ETag header of the last HTTP(S) response, or null */
+    private String responseETag = null;
+    /** Last-Modified header of the last HTTP(S) response (ms), or 0 */
+    private long responseLastModified = 0;
+    /** number of bytes received from servers by this downloader, in all calls and including failed attempts */
+    private long bytesTransferred = 0;
+    /** action returned by the {@link #tee} for the current download, run once the file is in place; or null */
+    private Runnable teeCommit = null;
 
     /** Initializer FileDownloader with the given options string */
     public FileDownloader(Options options) {
@@ -51,6 +74,52 @@ public class FileDownloader {
         options=new Options();
     }
 
+    /**
+     * Download FTP files with sessions from {@code pool}, which may be shared by several downloaders (and
+     * threads). Without a pool, FTP is only used directly if an FTP proxy is configured.
+     */
+    void setFtpPool(FtpConnectionPool pool) {
+        this.ftpPool = pool;
+    }
+
+    /**
+     * Only download the file over HTTP(S) if it differs from the copy we have. If the server answers
+     * "304 Not Modified", {@link #copyURLToFile} returns false and leaves the destination alone.
+     * @param etag ETag of our copy, or null
+     * @param lastModified Last-Modified time of our copy (ms since the epoch), or 0
+     */
+    void setConditional(String etag, long lastModified) {
+        this.ifNoneMatch = etag;
+        this.ifModifiedSince = lastModified;
+    }
+
+    /** @return ETag header of the last HTTP(S) response, or null */
+    String getResponseETag() {
+        return responseETag;
+    }
+
+    /** @return Last-Modified header of the last HTTP(S) response (ms since the epoch), or 0 */
+    long getResponseLastModified() {
+        return responseLastModified;
+    }
+
+    /**
+     * @return number of bytes received by this downloader: only the rest of resumed files, but also the bytes
+     * of attempts that failed
+     */
+    long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * Pass the bytes of each download to {@code tee} while they are written to disk. Only downloads that
+     * start at the beginning of the file are passed on; resumed downloads are not. The action returned by the
+     * tee is run by {@link #copyURLToFile} after the checksum was checked and the file was renamed.
+     */
+    void setTee(DownloadTee tee) {
+        this.tee = tee;
+    }
+
     /**
      * This method downloads a file to the specified local file path. If the file already exists, it will
      * overwrite it and emit a warning.
@@ -64,6 +133,34 @@ public class FileDownloader {
      *             on problems with downloading
      */
     boolean copyURLToFile(URL src, File dest) throws FileDownloadException {
+        return copyURLToFile(src, dest, (String) null);
+    }
+
+    /**
+     * Download a file like {@link #copyURLToFile(URL, File, Supplier)}, with an MD5 checksum that is known
+     * beforehand.
+     *
+     * @param expectedMd5 MD5 checksum of the file (hexadecimal), or null to skip the check
+     */
+    boolean copyURLToFile(URL src, File dest, String expectedMd5) throws FileDownloadException {
+        return copyURLToFile(src, dest, () -> expectedMd5);
+    }
+
+    /**
+     * Download a file to the specified local file path. The data are first written to {@code dest.part},
+     * which is renamed to {@code dest} only after the download is complete, so that an interrupted download
+     * never looks like a complete file. If a {@code .part} file from an earlier attempt exists, an HTTP(S)
+     * download continues where it stopped (with a {@code Range} request). The size of the file is checked
+     * against the size reported by the server, and the MD5 checksum against {@code expectedMd5} if given.
+     *
+     * @param expectedMd5 supplies the MD5 checksum of the file (hexadecimal), or null to skip the check; it is
+     * only asked once a body was transferred, so that a file that was not modified does not cost a lookup
+     * @return <code>true</code> if the file was downloaded and <code>false</code> if not (e.g., if the server
+     * reported that it was not modified, see {@link #setConditional}).
+     * @throws FileDownloadException on problems with downloading, or if the file does not have the expected
+     * size or checksum; the {@code .part} file is kept if the download can be resumed
+     */
+    boolean copyURLToFile(URL src, File dest, Supplier<String> expectedMd5) throws FileDownloadException {
         if (dest.exists()) {
             logger.warn("Overwriting file at "+dest);
         }
@@ -73,46 +170,127 @@ public class FileDownloader {
             logger.info("Creating directory {}"+ dest.getParentFile().getAbsolutePath());
             dest.getParentFile().mkdirs();
         }
-
-        if (src.getProtocol().equals("ftp") && options.ftp.host != null)
-            return copyURLToFileWithFTP(src, dest);
+        File part = partFileFor(dest);
+        teeCommit = null;
+        boolean downloaded;
+        if (src.getProtocol().equals("ftp") && (options.ftp.host != null || ftpPool != null))
+            downloaded = copyURLToFileWithFTP(src, part);
+        else if (!copyURLToFileThroughURL(src, part, dest))
+            return false; // not modified
         else
-            return copyURLToFileThroughURL(src, dest);
+            downloaded = true;
+        String expected = expectedMd5.get();
+        if (expected != null) {
+            String md5 = md5(part);
+            if (!md5.equalsIgnoreCase(expected)) {
+                part.delete();
+                validatorFileFor(part).delete();
+                throw new FileDownloadException(String.format("ERROR: MD5 checksum of %s is %s, expected %s",
+                        dest.getName(), md5, expected));
+            }
+        }
+        try {
+            Files.move(part.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new FileDownloadException("ERROR: could not rename " + part + " to " + dest, e);
+        }
+        validatorFileFor(part).delete();
+        if (teeCommit != null) {
+            teeCommit.run();
+            teeCommit = null;
+        }
+        return downloaded;
     }
 
-    private boolean copyURLToFileWithFTP(URL src, File dest) throws FileDownloadException {
-        final FTPClient ftp = new FTPClient();
-        ftp.enterLocalPassiveMode(); // passive mode for firewalls
+    /** @return the file an unfinished download of {@code dest} is written to */
+    static File partFileFor(File dest) {
+        return new File(dest.getPath() + ".part");
+    }
 
+    /**
+     * @return the file next to a {@code .part} file that holds the validator (ETag or Last-Modified header) of
+     * the response it was downloaded from, which is sent as {@code If-Range} when the download is resumed
+     */
+    static File validatorFileFor(File part) {
+        return new File(part.getPath() + ".validator");
+    }
+
+    /** @return the validator of a {@code .part} file, or null if there is none */
+    private static String readValidator(File part) {
         try {
-            if (src.getPort() != -1)
-                ftp.connect(src.getHost(), src.getPort());
-            else
-                ftp.connect(src.getHost());
-            if (!ftp.login("anonymous", "anonymous@example.com"))
-                throw new IOException("Could not login with anonymous:anonymous@example.com");
-            if (!ftp.isConnected())
-                logger.error("Weird, not connected!");
+            String validator = new String(Files.readAllBytes(validatorFileFor(part).toPath()), StandardCharsets.US_ASCII).trim();
+            return validator.isEmpty() ? null : validator;
         } catch (IOException e) {
-            throw new FileDownloadException("ERROR: problem connecting when downloading file.", e);
+            return null;
         }
+    }
+
+    /**
+     * Record the validator of a response whose body is written to {@code part} from its start: a strong ETag, or
+     * else the Last-Modified header. Without one, the download cannot be resumed safely.
+     */
+    private static void writeValidator(File part, HttpURLConnection http) throws IOException {
+        String validator = http.getHeaderField("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = http.getHeaderField("Last-Modified");
+        }
+        File file = validatorFileFor(part);
+        if (validator == null) {
+            Files.deleteIfExists(file.toPath());
+        } else {
+            Files.write(file.toPath(), validator.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /** @return hexadecimal MD5 checksum of a file */
+    static String md5(File file) throws FileDownloadException {
         try {
-            ftp.setFileType(FTP.BINARY_FILE_TYPE); // binary file transfer
+            return checksum(file, "MD5");
         } catch (IOException e) {
-            try {
-                ftp.logout();
-                ftp.disconnect();
-            } catch (IOException e1) {
-                // swallow, nothing we can do about it
+            throw new FileDownloadException("ERROR: could not compute MD5 checksum of " + file, e);
+        }
+    }
+
+    /** @return hexadecimal checksum of a file, e.g., with the MD5 or SHA-256 algorithm */
+    static String checksum(File file, String algorithm) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            byte[] buffer = new byte[128 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
             }
-            throw new FileDownloadException("ERROR: could not use binary transfer.", e);
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(algorithm + " is not available", e);
+        }
+    }
+
+    /**
+     * Download a file with an FTP session from {@link #ftpPool} (or a session of its own if there is no pool).
+     * The session is returned to the pool afterwards unless a command failed.
+     */
+    private boolean copyURLToFileWithFTP(URL src, File dest) throws FileDownloadException {
+        FtpConnectionPool pool = ftpPool != null ? ftpPool : new FtpConnectionPool(1);
+        FtpConnectionPool.Session session;
+        try {
+            session = pool.borrow(src);
+        } catch (IOException e) {
+            throw new FileDownloadException("ERROR: problem connecting when downloading file: " + e.getMessage(), e);
         }
+        final FTPClient ftp = session.client;
+        boolean healthy = false;
         InputStream in = null;
         OutputStream out = null;
         try {
             final String parentDir = new File(src.getPath()).getParent().substring(1);
             final String fileName = new File(src.getPath()).getName();
-            if (!ftp.changeWorkingDirectory(parentDir))
+            // a reused session may be in another directory
+            if (!ftp.changeWorkingDirectory(session.home) || !ftp.changeWorkingDirectory(parentDir))
                 throw new FileNotFoundException("Could not change directory to " + parentDir);
             // Try to get file size.
             FTPFile[] files = ftp.listFiles(fileName);
@@ -123,7 +301,6 @@ public class FileDownloader {
                     break;
                 }
             }
-            ftp.pwd();
             ProgressBar pb = null;
             if (fileSize != -1)
                 pb = new ProgressBar(0, fileSize, options.printProgressBar);
@@ -144,38 +321,29 @@ public class FileDownloader {
             while ((readCount = inBf.read(buffer)) > 0) {
                 out.write(buffer, 0, readCount);
                 pos += readCount;
+                bytesTransferred += readCount;
                 if (pb != null)
                     pb.print(pos);
             }
             in.close();
+            in = null;
             out.close();
             if (pb != null && pos != pb.getMax())
                 pb.print(fileSize);
-            // if (!ftp.completePendingCommand())
-            // throw new IOException("Could not finish download!");
-
+            // the session can only be reused after the server confirmed the end of the transfer
+            if (!ftp.completePendingCommand())
+                throw new IOException("Could not finish download!");
+            if (fileSize != -1 && pos != fileSize)
+                throw new IOException(String.format("Downloaded %d bytes of %s, expected %d", pos, fileName, fileSize));
+            healthy = true;
         } catch (FileNotFoundException e) {
             dest.delete();
-            try {
-                ftp.logout();
-            } catch (IOException e1) {
-                // swallow, nothing we can do about it
-            }
-            try {
-                ftp.disconnect();
-            } catch (IOException e1) {
-                // swallow, nothing we can do about it
-            }
-            throw new FileDownloadException("ERROR: problem downloading file.", e);
+            // the session itself is fine unless a transfer was started
+            healthy = in == null && ftp.isConnected();
+            throw new FileDownloadException("ERROR: problem downloading file: " + e.getMessage(), e);
         } catch (IOException e) {
             dest.delete();
-            try {
-                ftp.logout();
-                ftp.disconnect();
-            } catch (IOException e1) {
-                // swallow, nothing we can do about it
-            }
-            throw new FileDownloadException("ERROR: problem downloading file.", e);
+            throw new FileDownloadException("ERROR: problem downloading file: " + e.getMessage(), e);
         } finally {
             if (in != null) {
                 try {
@@ -191,8 +359,12 @@ public class FileDownloader {
                     // swallow, nothing we can do
                 }
             }
+            pool.release(session, healthy);
+            if (pool != ftpPool) {
+                pool.close();
+            }
         }
-        return false;
+        return true;
     }
 
     /**
@@ -200,49 +372,166 @@ public class FileDownloader {
      *
      * This works for the HTTP and the HTTPS protocol and for FTP through a proxy. For plain FTP, we need to use the
      * passive mode.
+     *
+     * If {@code dest} already holds the beginning of the file, only the rest is requested from an HTTP(S) server,
+     * with the validator of the earlier response as {@code If-Range}. If the file changed on the server since (or
+     * the server ignores the range), it answers with the whole file, which is then downloaded from the start.
+     * A {@code .part} file without a validator is not resumed. If the connection breaks, what was received so far
+     * is kept in {@code dest}.
+     *
+     * @param target the file {@code dest} will be renamed to, which is reported to the {@link #tee}
+     * @return false if the server reported that the file was not modified
      */
-    private boolean copyURLToFileThroughURL(URL src, File dest) throws FileDownloadException {
+    private boolean copyURLToFileThroughURL(URL src, File dest, File target) throws FileDownloadException {
         setProxyProperties();
 
-        // actually copy the file
-        BufferedInputStream in;
-        FileOutputStream out;
+        long offset = dest.isFile() ? dest.length() : 0;
+        String validator = offset > 0 ? readValidator(dest) : null;
+        if (offset > 0 && validator == null) {
+            logger.info("Cannot resume {} without the ETag or date of the earlier response, starting over", dest);
+            offset = 0;
+        }
         try {
             URLConnection connection =  src.openConnection();
-            final int fileSize = connection.getContentLength();
-            in = new BufferedInputStream(connection.getInputStream());
-            out = new FileOutputStream(dest);
-
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", validator);
+            } else {
+                if (ifNoneMatch != null)
+                    connection.setRequestProperty("If-None-Match", ifNoneMatch);
+                if (ifModifiedSince > 0)
+                    connection.setIfModifiedSince(ifModifiedSince);
+            }
+            boolean append = false;
+            long fileSize = connection.getContentLengthLong();
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                int code = http.getResponseCode();
+                responseETag = http.getHeaderField("ETag");
+                responseLastModified = http.getLastModified();
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    http.disconnect();
+                    return false;
+                } else if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    append = true;
+                    fileSize = totalLengthFromContentRange(http.getHeaderField("Content-Range"));
+                } else if (code == 416 && offset > 0) {
+                    // range not satisfiable: the .part file is complete or does not belong to this file
+                    long total = totalLengthFromContentRange(http.getHeaderField("Content-Range"));
+                    http.disconnect();
+                    if (total == offset) {
+                        return true;
+                    }
+                    dest.delete();
+                    validatorFileFor(dest).delete();
+                    return copyURLToFileThroughURL(src, dest, target);
+                } else if (code >= 400) {
+                    throw new FileDownloadException(String.format("ERROR: Server returned HTTP %d for %s", code, src));
+                }
+                if (!append) {
+                    writeValidator(dest, http);
+                }
+            }
+            long pos = append ? offset : 0;
+            if (offset > 0) {
+                logger.info(append ? String.format("Resuming download of %s at byte %d", src, offset)
+                        : String.format("%s changed on the server or it does not support resuming, downloading it again", src));
+            }
             ProgressBar pb = null;
             if (fileSize != -1)
                 pb = new ProgressBar(0, fileSize, options.printProgressBar);
             else
                 logger.info("(server did not tell us the file size, no progress bar)");
 
+            TeePipe pipe = null;
+            Thread consumer = null;
+            AtomicReference<Runnable> commit = new AtomicReference<>();
+            if (tee != null && !append) {
+                pipe = new TeePipe();
+                consumer = startTee(pipe, target, commit);
+            }
             // Download file.
-            byte [] buffer = new byte[128 * 1024];
-            int readCount;
-            long pos = 0;
-            if (pb != null)
-                pb.print(pos);
-
-            while ((readCount = in.read(buffer)) > 0) {
-                out.write(buffer, 0, readCount);
-                pos += readCount;
+            try (BufferedInputStream in = new BufferedInputStream(connection.getInputStream());
+                 FileOutputStream out = new FileOutputStream(dest, append)) {
+                byte [] buffer = new byte[128 * 1024];
+                int readCount;
                 if (pb != null)
                     pb.print(pos);
+
+                while ((readCount = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, readCount);
+                    if (pipe != null)
+                        pipe.write(buffer, readCount);
+                    pos += readCount;
+                    bytesTransferred += readCount;
+                    if (pb != null)
+                        pb.print(pos);
+                }
+            } catch (IOException e) {
+                if (pipe != null)
+                    pipe.fail(e);
+                throw e;
             }
-            in.close();
-            out.close();
             if (pb != null && pos != pb.getMax())
                 pb.print(fileSize);
+            if (fileSize != -1 && pos != fileSize) {
+                if (pos > fileSize) {
+                    dest.delete();
+                }
+                FileDownloadException e = new FileDownloadException(String.format(
+                        "ERROR: Downloaded %d bytes of %s, expected %d", pos, src, fileSize));
+                if (pipe != null)
+                    pipe.fail(new IOException(e.getMessage()));
+                throw e;
+            }
+            if (pipe != null) {
+                pipe.finish();
+                consumer.join();
+                teeCommit = commit.get();
+            }
         } catch (IOException | IllegalStateException e) {
             logger.error(String.format("Failed to downloaded file from %s",src.getHost()),e);
             throw new FileDownloadException("ERROR: Problem downloading file: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileDownloadException("ERROR: Interrupted while downloading " + src);
         }
         return true;
     }
 
+    /**
+     * Start a thread that passes the data written to {@code pipe} to {@link #tee}, for the file {@code dest}.
+     * @param commit receives the action returned by the tee
+     */
+    private Thread startTee(TeePipe pipe, File dest, AtomicReference<Runnable> commit) {
+        Thread consumer = new Thread(() -> {
+            try (InputStream in = pipe.inputStream()) {
+                commit.set(tee.consume(dest, in));
+            } catch (IOException | RuntimeException e) {
+                logger.warn(String.format("Could not process %s while downloading it: %s", dest.getName(), e.getMessage()));
+            }
+        }, "tee-" + dest.getName());
+        consumer.setDaemon(true);
+        consumer.start();
+        return consumer;
+    }
+
+    /** @return the total length from a header such as {@code bytes 100-199/200}, or -1 if it is not known */
+    private static long totalLengthFromContentRange(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0 || contentRange.endsWith("*")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Set system properties from {@link #options}.
      */
@@ -0,0 +1,182 @@
+package org.jax.npi.io;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps logged-in FTP sessions per host so that several files can be downloaded over the same session instead
+ * of connecting and logging in for every file. At most {@code maxConnectionsPerHost} sessions per host are in
+ * use at the same time; further requests wait until a session is returned.
+ *
+ * A session that has been idle is checked with a NOOP command before it is handed out, and replaced by a new
+ * one if the server does not answer or if it has been idle longer than {@link #MAX_IDLE_MS}. Sessions that
+ * failed during a transfer must be returned with {@code healthy=false} and are closed.
+ */
+public class FtpConnectionPool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FtpConnectionPool.class);
+    /** Sessions that have been idle for longer than this are not reused (servers close idle sessions). */
+    static final long MAX_IDLE_MS = 60_000;
+
+    /** A logged-in session. */
+    static class Session {
+        final FTPClient client;
+        final String hostKey;
+        /** Working directory right after login; paths of URLs are relative to it. */
+        final String home;
+        long lastUsed;
+
+        Session(FTPClient client, String hostKey, String home) {
+            this.client = client;
+            this.hostKey = hostKey;
+            this.home = home;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /** Idle sessions and permits of one host. */
+    private static class HostPool {
+        final Semaphore permits;
+        final Deque<Session> idle = new ArrayDeque<>();
+
+        HostPool(int maxConnections) {
+            this.permits = new Semaphore(maxConnections, true);
+        }
+    }
+
+    private final int maxConnectionsPerHost;
+    private final Map<String, HostPool> host2pool = new ConcurrentHashMap<>();
+
+    /** @param maxConnectionsPerHost maximum number of sessions (and thus transfers) per host at the same time */
+    public FtpConnectionPool(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+    }
+
+    private static String hostKey(URL url) {
+        return url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+    }
+
+    /**
+     * Get a session for the host of {@code url}, waiting if all sessions of the host are in use. The session
+     * must be given back with {@link #release(Session, boolean)}.
+     */
+    Session borrow(URL url) throws IOException {
+        String hostKey = hostKey(url);
+        HostPool pool = host2pool.computeIfAbsent(hostKey, k -> new HostPool(maxConnectionsPerHost));
+        try {
+            pool.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an FTP connection to " + hostKey);
+        }
+        try {
+            while (true) {
+                Session session;
+                synchronized (pool) {
+                    session = pool.idle.pollFirst();
+                }
+                if (session == null) {
+                    return connect(url, hostKey);
+                }
+                if (isAlive(session)) {
+                    return session;
+                }
+                logger.info("Replacing stale FTP connection to {}", hostKey);
+                disconnect(session);
+            }
+        } catch (IOException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give a session back to the pool.
+     * @param healthy false if a command failed, the session is then closed
+     */
+    void release(Session session, boolean healthy) {
+        HostPool pool = host2pool.get(session.hostKey);
+        if (healthy && session.client.isConnected()) {
+            session.lastUsed = System.currentTimeMillis();
+            synchronized (pool) {
+                pool.idle.addFirst(session);
+            }
+        } else {
+            disconnect(session);
+        }
+        pool.permits.release();
+    }
+
+    private static boolean isAlive(Session session) {
+        if (!session.client.isConnected() || System.currentTimeMillis() - session.lastUsed > MAX_IDLE_MS) {
+            return false;
+        }
+        try {
+            return session.client.sendNoOp();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Session connect(URL url, String hostKey) throws IOException {
+        final FTPClient ftp = new FTPClient();
+        try {
+            if (url.getPort() != -1)
+                ftp.connect(url.getHost(), url.getPort());
+            else
+                ftp.connect(url.getHost());
+            ftp.enterLocalPassiveMode(); // passive mode for firewalls
+            if (!ftp.login("anonymous", "anonymous@example.com"))
+                throw new IOException("Could not login with anonymous:anonymous@example.com");
+            if (!ftp.setFileType(FTP.BINARY_FILE_TYPE)) // binary file transfer
+                throw new IOException("Could not use binary transfer");
+            logger.debug("Opened FTP connection to {}", hostKey);
+            return new Session(ftp, hostKey, ftp.printWorkingDirectory());
+        } catch (IOException e) {
+            if (ftp.isConnected()) {
+                try {
+                    ftp.disconnect();
+                } catch (IOException e1) {
+                    // swallow, nothing we can do about it
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static void disconnect(Session session) {
+        try {
+            session.client.logout();
+        } catch (IOException e) {
+            // swallow, the connection is broken anyway
+        }
+        try {
+            session.client.disconnect();
+        } catch (IOException e) {
+            // swallow, nothing we can do about it
+        }
+    }
+
+    /** Close all idle sessions. */
+    @Override
+    public void close() {
+        for (HostPool pool : host2pool.values()) {
+            synchronized (pool) {
+                for (Session session : pool.idle) {
+                    disconnect(session);
+                }
+                pool.idle.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.jax.npi.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Writes ASCII text lines through one reusable byte buffer, formatting numbers straight into the buffer
+ * instead of creating a string for each value. {@link #appendFormatted(double)} writes the same text as
+ * {@code String.format("%f", v)}, so that result files stay byte-for-byte the same.
+ */
+public final class LineWriter implements Closeable {
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L
+    };
+    /** Largest value that {@link #appendFormatted(double)} formats itself; larger ones go to {@link String#format}. */
+    private static final double MAX_FAST_VALUE = 1e9;
+    /** Whether the default locale formats {@code %f} with '.' and the digits 0-9. */
+    private static final boolean PLAIN_LOCALE;
+
+    static {
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+        PLAIN_LOCALE = symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0'
+                && symbols.getMinusSign() == '-';
+    }
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[1 << 16];
+    private int length = 0;
+
+    public LineWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    private void ensure(int n) throws IOException {
+        if (length + n > buffer.length) {
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+    }
+
+    public LineWriter append(char c) throws IOException {
+        ensure(1);
+        buffer[length++] = (byte) c;
+        return this;
+    }
+
+    /** Append a string of ASCII characters. */
+    public LineWriter append(String s) throws IOException {
+        int n = s.length();
+        if (n > buffer.length) {
+            ensure(buffer.length);
+            out.write(s.getBytes(StandardCharsets.US_ASCII));
+            return this;
+        }
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    public LineWriter append(long v) throws IOException {
+        if (v == Long.MIN_VALUE) {
+            return append(Long.toString(v));
+        }
+        ensure(20);
+        if (v < 0) {
+            buffer[length++] = '-';
+            v = -v;
+        }
+        appendDigits(v, 1);
+        return this;
+    }
+
+    /**
+     * Append a non-negative value rounded (as by {@link Math#round(double)}) to the given number of decimals.
+     * @param decimals number of decimals, 1 to 9
+     */
+    public LineWriter appendFixed(double v, int decimals) throws IOException {
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(v * scale);
+        ensure(21 + decimals);
+        appendDigits(scaled / scale, 1);
+        buffer[length++] = '.';
+        appendDigits(scaled % scale, decimals);
+        return this;
+    }
+
+    /**
+     * Append a value with six decimals, the same text as {@code String.format("%f", v)}. The formatter rounds
+     * the shortest decimal representation of {@code v} half up; the value scaled by 10^6 is rounded directly
+     * unless it lies so close to a tie that the two could differ, in which case (and for very large values,
+     * NaN, infinities and locales without '.' as separator) the formatter is used.
+     */
+    public LineWriter appendFormatted(double v) throws IOException {
+        double abs = Math.abs(v);
+        if (!PLAIN_LOCALE || !(abs < MAX_FAST_VALUE)) {
+            return append(String.format("%f", v));
+        }
+        double scaled = abs * 1e6;
+        double fraction = scaled - Math.floor(scaled);
+        if (Math.abs(fraction - 0.5) <= scaled * 1e-15 + 1e-9) {
+            return append(String.format("%f", v));
+        }
+        long rounded = (long) Math.floor(scaled + 0.5);
+        ensure(32);
+        if (v < 0 || (v == 0.0 && 1.0 / v < 0)) {
+            buffer[length++] = '-';
+        }
+        appendDigits(rounded / 1_000_000, 1);
+        buffer[length++] = '.';
+        appendDigits(rounded % 1_000_000, 6);
+        return this;
+    }
+
+    public LineWriter newLine() throws IOException {
+        return append('\n');
+    }
+
+    /** Write the digits of a non-negative value, padded with zeros to at least {@code width} digits. */
+    private void appendDigits(long v, int width) {
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10) {
+            digits++;
+        }
+        for (int i = digits; i < width; i++) {
+            buffer[length++] = '0';
+        }
+        int end = length + digits;
+        for (int p = end - 1; p >= length; p--) {
+            buffer[p] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        length = end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write(buffer, 0, length);
+            length = 0;
+        } finally {
+            out.close();
+        }
+    }
+}
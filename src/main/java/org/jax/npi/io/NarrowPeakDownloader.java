@@ -3,11 +3,24 @@ package org.jax.npi.io;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.css.CSSFontFaceRule;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Command to download the {@code hp.obo} and {@code phenotype.hpoa} files that
@@ -16,7 +29,15 @@ import java.net.URL;
 public class NarrowPeakDownloader {
     private static final Logger logger = LoggerFactory.getLogger(NarrowPeakDownloader.class);
     /** Directory to which we will download the files. */
-    private final String downloadDirectory = "data";
+    private final String downloadDirectory;
+    /** Number of files that are downloaded at the same time by default. */
+    public static final int DEFAULT_DOWNLOAD_THREADS = 4;
+    /** Number of times a download is attempted before it is given up; later attempts resume the {@code .part} file. */
+    public static final int DEFAULT_ATTEMPTS = 3;
+    /** ENCODE download URL; group 1 is the URL of the file object, whose JSON metadata includes the MD5 checksum. */
+    private static final Pattern ENCODE_DOWNLOAD = Pattern.compile("^(https?://[^/]+/files/[^/]+/)@@download/[^/]+$");
+    /** MD5 checksum in the JSON metadata of an ENCODE file. */
+    private static final Pattern ENCODE_MD5 = Pattern.compile("\"md5sum\"\\s*:\\s*\"([0-9a-fA-F]{32})\"");
     /**     Homo sapiens hepatocyte originated from H9 */
     String ENCFF757CYP = "https://www.encodeproject.org/files/ENCFF757CYP/@@download/ENCFF757CYP.bed.gz";
     /**     Homo sapiens neural progenitor cell originated from H9 */
@@ -43,27 +64,150 @@ public class NarrowPeakDownloader {
     String ENCFF088CLP = "https://www.encodeproject.org/files/ENCFF088CLP/@@download/ENCFF088CLP.bed.gz";
     /**     Homo sapiens myotube originated from skeletal muscle myoblast */
     String ENCFF626ZXA = "https://www.encodeproject.org/files/ENCFF626ZXA/@@download/ENCFF626ZXA.bed.gz";
+    /** URLs of the files to download. */
+    private final List<String> webAddresses;
+    /** Expected MD5 checksums of the files, by URL. */
+    private final Map<String, String> expectedMd5 = new ConcurrentHashMap<>();
+    /** Whether the MD5 checksums of ENCODE files are looked up in their metadata if they were not set. */
+    private boolean lookUpMd5 = true;
+    /** Number of times a download is attempted. */
+    private int attempts = DEFAULT_ATTEMPTS;
+    /** Time to wait before the second attempt (ms); it doubles for each further attempt. */
+    private long retryDelay = 2000;
+    /** Receives the bytes of the files while they are downloaded, or null. */
+    private DownloadTee tee = null;
+    /** Sidecar metadata and content-addressed storage of the downloaded files. */
+    private final DownloadCache cache;
+    /** Whether files that are present are revalidated with the server (and downloaded again if they changed). */
+    private boolean refresh = false;
+    /** Maximum number of FTP sessions per host. */
+    private int ftpConnectionsPerHost = 2;
+    /** FTP sessions shared by the downloads of one call of {@link #download(int)}. */
+    private FtpConnectionPool ftpPool = null;
+    /** Number of files that were (completely or partly) transferred, for the run metrics. */
+    private final AtomicInteger filesDownloaded = new AtomicInteger();
+    /** Number of bytes that were transferred, without the parts of resumed files from earlier runs. */
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
     public NarrowPeakDownloader(){
+        this.downloadDirectory = "data";
+        this.cache = new DownloadCache(downloadDirectory);
+        this.webAddresses = List.of(ENCFF757CYP, ENCFF779WYN, ENCFF698NII, ENCFF459UTL, ENCFF874YBQ, ENCFF196AMI,
+                ENCFF587KQG, ENCFF812JNL, ENCFF110UVX, ENCFF783DOC, ENCFF168FUG, ENCFF088CLP, ENCFF626ZXA);
+    }
+
+    /**
+     * Download other files, e.g., from a local HTTP server.
+     * @param downloadDirectory directory to which the files are downloaded
+     * @param webAddresses URLs of the files; the last part of the path is used as local file name
+     */
+    public NarrowPeakDownloader(String downloadDirectory, List<String> webAddresses) {
+        this.downloadDirectory = downloadDirectory;
+        this.webAddresses = List.copyOf(webAddresses);
+        this.cache = new DownloadCache(downloadDirectory);
+    }
+
+    /**
+     * Check the file downloaded from {@code webAddress} against an MD5 checksum (hexadecimal). For ENCODE files
+     * without a checksum, it is taken from the metadata of the file (see {@link #setLookUpMd5}).
+     */
+    public void setExpectedMd5(String webAddress, String md5) {
+        expectedMd5.put(webAddress, md5);
+    }
+
+    /**
+     * Look up the MD5 checksums of ENCODE files ({@code .../files/<accession>/@@download/...}) in the JSON
+     * metadata of the file ({@code .../files/<accession>/?format=json}) once a file was transferred, so that
+     * revalidating an unchanged file does not cost a lookup. If the lookup fails, the file is accepted without
+     * checking it. On by default.
+     */
+    public void setLookUpMd5(boolean lookUpMd5) {
+        this.lookUpMd5 = lookUpMd5;
+    }
+
+    /**
+     * Attempt each download up to {@code attempts} times. Each retry waits twice as long as the one before,
+     * starting with {@code delayMillis}, and continues where the previous attempt stopped.
+     */
+    public void setRetries(int attempts, long delayMillis) {
+        this.attempts = Math.max(1, attempts);
+        this.retryDelay = delayMillis;
+    }
+
+    /**
+     * Process the files while they are downloaded, see {@link DownloadTee}. Files that are already present or
+     * whose download is resumed are not passed to the tee.
+     */
+    public void setTee(DownloadTee tee) {
+        this.tee = tee;
+    }
+
+    /**
+     * Check the files that are already present with the server and download them again if they changed. The
+     * requests are conditional (ETag and Last-Modified of the copy we have), so an unchanged file costs only
+     * one request without body.
+     */
+    public void setRefresh(boolean refresh) {
+        this.refresh = refresh;
+    }
+
+    /** Set the maximum number of FTP files that are downloaded from the same host at the same time. */
+    public void setFtpConnectionsPerHost(int n) {
+        this.ftpConnectionsPerHost = n;
+    }
+
+    /** @return number of files that were downloaded (not counting files that were present or up to date) */
+    public int getFilesDownloaded() {
+        return filesDownloaded.get();
+    }
+
+    /**
+     * @return number of bytes that were transferred: for resumed files only the rest, and including the bytes of
+     * failed attempts
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
     }
 
     /**
      * Download the files unless they are already present.
      */
     public void download() {
-        downloadFileIfNeeded(ENCFF757CYP);
-        downloadFileIfNeeded(ENCFF779WYN);
-        downloadFileIfNeeded(ENCFF698NII);
-        downloadFileIfNeeded(ENCFF459UTL);
-        downloadFileIfNeeded(ENCFF874YBQ);
-        downloadFileIfNeeded(ENCFF196AMI);
-        downloadFileIfNeeded(ENCFF587KQG);
-        downloadFileIfNeeded(ENCFF812JNL);
-        downloadFileIfNeeded(ENCFF110UVX);
-        downloadFileIfNeeded(ENCFF783DOC);
-        downloadFileIfNeeded(ENCFF168FUG);
-        downloadFileIfNeeded(ENCFF088CLP);
-        downloadFileIfNeeded(ENCFF626ZXA);
+        download(DEFAULT_DOWNLOAD_THREADS);
+    }
 
+    /**
+     * Download the files that are not present yet, up to {@code threads} at a time. Unfinished downloads from
+     * an earlier run ({@code .part} files) are resumed.
+     * @return the number of files that could not be downloaded
+     */
+    public int download(int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, webAddresses.size())));
+        int failures = 0;
+        ftpPool = new FtpConnectionPool(ftpConnectionsPerHost);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (String webAddress : webAddresses) {
+                results.add(executor.submit(() -> downloadFileIfNeeded(webAddress)));
+            }
+            for (Future<Boolean> result : results) {
+                if (!result.get()) {
+                    failures++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while downloading narrowPeak files");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not download narrowPeak files", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            ftpPool.close();
+        }
+        if (failures > 0) {
+            System.err.printf("[ERROR] Could not download %d of %d files.\n", failures, webAddresses.size());
+        }
+        return failures;
     }
 
 
@@ -80,31 +224,145 @@ public class NarrowPeakDownloader {
     }
 
 
-    private void downloadFileIfNeeded(String webAddress) {
+    /** @return true if the file is present after the call */
+    private boolean downloadFileIfNeeded(String webAddress) {
         String localName = extractLocalName(webAddress);
         File f = new File(localName);
-        if (f.exists()) {
+        if (f.exists() && !refresh) {
             System.out.println(String.format("Cowardly refusing to download %s since we found it at %s",
                     localName,
                     f.getAbsolutePath()));
             logger.trace(String.format("Cowardly refusing to download %s since we found it at %s",
                     localName,
                     f.getAbsolutePath()));
-            return;
+            return true;
         }
         FileDownloader downloader=new FileDownloader();
+        downloader.setTee(tee);
+        downloader.setFtpPool(ftpPool);
+        DownloadCache.Metadata meta = cache.readMetadata(f);
+        boolean revalidate = f.exists();
+        if (revalidate) {
+            if (meta != null) {
+                downloader.setConditional(meta.etag, meta.lastModified);
+            } else {
+                downloader.setConditional(null, f.lastModified());
+            }
+        }
+        URL url;
         try {
-            URL url = new URL(webAddress);
-            logger.debug("Created url from "+webAddress+": "+url.toString());
-            downloader.copyURLToFile(url, new File(f.getAbsolutePath()));
+            url = new URL(webAddress);
         } catch (MalformedURLException e) {
             logger.error(String.format("Malformed URL for %s [%s]",localName, webAddress));
             logger.error(e.getMessage());
-        } catch (FileDownloadException e) {
-            logger.error(String.format("Error downloading %s from %s" ,localName, webAddress));
-            logger.error(e.getMessage());
+            return false;
+        }
+        logger.debug("Created url from "+webAddress+": "+url.toString());
+        Supplier<String> md5 = expectedMd5For(webAddress);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    if (!downloader.copyURLToFile(url, new File(f.getAbsolutePath()), md5)) {
+                        System.out.println("[INFO] " + localName + " is up to date");
+                        if (meta == null) {
+                            addToCache(f, webAddress, downloader);
+                        }
+                        return true;
+                    }
+                    break;
+                } catch (FileDownloadException e) {
+                    logger.error(String.format("Error downloading %s from %s" ,localName, webAddress));
+                    logger.error(e.getMessage());
+                    if (attempt >= attempts) {
+                        return false;
+                    }
+                }
+                long delay = retryDelay << (attempt - 1);
+                System.err.printf("[WARNING] Download %d of %s failed, trying again in %d ms.\n", attempt, localName, delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        } finally {
+            bytesDownloaded.addAndGet(downloader.getBytesTransferred());
         }
         System.out.println("[INFO] Downloaded " + localName);
+        filesDownloaded.incrementAndGet();
+        addToCache(f, webAddress, downloader);
+        return true;
+    }
+
+    /**
+     * @return the MD5 checksum given for {@code webAddress}, or else one that is looked up in the metadata the first
+     * time it is asked for (and not again on a retry)
+     */
+    private Supplier<String> expectedMd5For(String webAddress) {
+        String md5 = expectedMd5.get(webAddress);
+        if (md5 != null || !lookUpMd5) {
+            return () -> md5;
+        }
+        return new Supplier<>() {
+            private boolean lookedUp = false;
+            private String lookedUpMd5;
+
+            @Override
+            public String get() {
+                if (!lookedUp) {
+                    lookedUpMd5 = lookUpEncodeMd5(webAddress);
+                    lookedUp = true;
+                }
+                return lookedUpMd5;
+            }
+        };
+    }
+
+    /**
+     * @return the MD5 checksum from the metadata of an ENCODE file, or null if {@code webAddress} is not an ENCODE
+     * download URL or the metadata could not be read
+     */
+    private String lookUpEncodeMd5(String webAddress) {
+        Matcher download = ENCODE_DOWNLOAD.matcher(webAddress);
+        if (!download.matches()) {
+            return null;
+        }
+        String metadataAddress = download.group(1) + "?format=json";
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(metadataAddress).openConnection();
+            connection.setConnectTimeout(30_000);
+            connection.setReadTimeout(30_000);
+            connection.setRequestProperty("Accept", "application/json");
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP " + connection.getResponseCode());
+                }
+                ByteArrayOutputStream json = new ByteArrayOutputStream();
+                try (InputStream in = connection.getInputStream()) {
+                    in.transferTo(json);
+                }
+                Matcher md5 = ENCODE_MD5.matcher(new String(json.toByteArray(), StandardCharsets.UTF_8));
+                if (md5.find()) {
+                    return md5.group(1);
+                }
+                throw new IOException("no md5sum in the metadata");
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException | ClassCastException e) {
+            System.err.printf("[WARNING] Could not look up the MD5 checksum of %s (%s), it will not be checked.\n",
+                    webAddress, e.getMessage());
+            return null;
+        }
+    }
+
+    private void addToCache(File f, String webAddress, FileDownloader downloader) {
+        try {
+            cache.add(f, webAddress, downloader.getResponseETag(), downloader.getResponseLastModified());
+        } catch (IOException e) {
+            logger.warn(String.format("Could not record %s in the download cache: %s", f, e.getMessage()));
+        }
     }
 
 
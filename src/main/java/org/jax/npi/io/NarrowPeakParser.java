@@ -0,0 +1,91 @@
+package org.jax.npi.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming parser for the records of a (decompressed) narrowPeak file. Only the fields we need for the
+ * analysis are converted; the other fields are checked to be present but are not touched. The parser does
+ * not allocate per record -- the chromosome name is a String that is shared by all records of the chromosome.
+ *
+ * <pre>
+ *     [0] string chrom;        "Reference sequence chromosome or scaffold"
+ *     [1] uint   chromStart;   "Start position in chromosome"
+ *     [2] uint   chromEnd;     "End position in chromosome"
+ *     [3] string name;
+ *     [4] uint   score;        "Indicates how dark the peak will be displayed in the browser (0-1000) "
+ *     [5] char[1]  strand;     "+ or - or . for unknown"
+ *     [6] float  signalValue;  "Measurement of average enrichment for the region"
+ *     [7] float  pValue;       "Statistical significance of signal value (-log10). Set to -1 if not used."
+ *     [8] float  qValue;       "Statistical significance with multiple-test correction applied (FDR -log10). Set to -1 if not used."
+ *     [9] int   peak;         "Point-source called for this peak; 0-based offset from chromStart. Set to -1 if no point-source called."
+ * </pre>
+ */
+public class NarrowPeakParser implements PeakReader {
+    /** Number of columns of a narrowPeak line. */
+    public static final int NARROWPEAK_COLUMNS = 10;
+
+    /** @return the ENCODE accession of a narrowPeak file name (ENCFF757CYP for ENCFF757CYP.bed.gz) */
+    public static String accession(String filename) {
+        return filename.endsWith(".bed.gz") ? filename.substring(0, filename.length() - ".bed.gz".length()) : filename;
+    }
+
+    private final TabDelimitedLineReader reader;
+    private String chromosome;
+    private int begin;
+    private int end;
+    private double signalValue;
+
+    public NarrowPeakParser(InputStream in) {
+        this.reader = new TabDelimitedLineReader(in);
+    }
+
+    /**
+     * Advance to the next record.
+     * @return false at the end of the file
+     * @throws RuntimeException if the line does not have 10 columns or a number cannot be parsed
+     */
+    @Override
+    public boolean next() throws IOException {
+        if (!reader.nextLine()) {
+            return false;
+        }
+        if (reader.getFieldCount() != NARROWPEAK_COLUMNS) {
+            throw new RuntimeException("Malformed BED file line: " + reader.getLine());
+        }
+        try {
+            chromosome = reader.getSymbol(0);
+            begin = reader.getInt(1);
+            end = reader.getInt(2);
+            signalValue = reader.getDouble(6);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Malformed BED file line: " + reader.getLine(), e);
+        }
+        return true;
+    }
+
+    @Override
+    public String getChromosome() {
+        return chromosome;
+    }
+
+    @Override
+    public int getBegin() {
+        return begin;
+    }
+
+    @Override
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public double getSignalValue() {
+        return signalValue;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,24 @@
+package org.jax.npi.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Iterates over the peaks of one experiment. The getters refer to the current peak, i.e., the peak most
+ * recently returned by {@link #next()}.
+ */
+public interface PeakReader extends Closeable {
+    /**
+     * Advance to the next peak.
+     * @return false if there are no more peaks
+     */
+    boolean next() throws IOException;
+
+    String getChromosome();
+
+    int getBegin();
+
+    int getEnd();
+
+    double getSignalValue();
+}
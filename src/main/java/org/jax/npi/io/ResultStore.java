@@ -0,0 +1,184 @@
+package org.jax.npi.io;
+
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.data.ExperimentResult;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Persists the result of each experiment (the mean and maximum signal of the elements with signal, see
+ * {@link ExperimentResult}), so that a rerun only needs to read the narrowPeak files that are new or changed.
+ * A result is stored under the SHA-256 checksum of the contents of the narrowPeak file, in a subdirectory
+ * for the set of elements it was computed for (a checksum of their coordinates and CpG flags), so that
+ * renamed files are recognized and results for other element sets are never mixed up:
+ *
+ * <pre>
+ *     &lt;directory&gt;/files/&lt;narrowPeak file name&gt;.sha256       size, mtime and checksum of the file
+ *     &lt;directory&gt;/&lt;element set checksum&gt;/&lt;file checksum&gt;.npires
+ * </pre>
+ *
+ * The checksum of a narrowPeak file is computed once and reused as long as the size and modification time of
+ * the file do not change. The values are stored as they are, so results read from the store are
+ * bit-for-bit the same as freshly computed ones.
+ *
+ * <pre>
+ *     int    magic, int version
+ *     int    number of elements of the set
+ *     int    number of stored values n
+ *     n x int id, n x double mean, n x double max
+ * </pre>
+ */
+public class ResultStore {
+    private static final int MAGIC = 0x4E504952; // NPIR
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".npires";
+
+    private final File directory;
+    private final File elementSetDirectory;
+    private final int numberOfElements;
+
+    /**
+     * @param directory directory of the store, e.g., {@code data/.results}
+     * @param elements the elements the results are computed for
+     */
+    public ResultStore(File directory, ElementTable elements) {
+        this.directory = directory;
+        this.elementSetDirectory = new File(directory, elementSetChecksum(elements));
+        this.numberOfElements = elements.size();
+    }
+
+    /** @return the directory in which the results for this set of elements are stored */
+    public File getElementSetDirectory() {
+        return elementSetDirectory;
+    }
+
+    /**
+     * @return the SHA-256 checksum of the contents of a narrowPeak file; computed only if the file changed
+     * since the checksum was last recorded
+     */
+    public String contentChecksum(File bedfile) throws IOException {
+        File checksumFile = new File(new File(directory, "files"), bedfile.getName() + ".sha256");
+        long size = bedfile.length();
+        long mtime = bedfile.lastModified();
+        if (checksumFile.isFile()) {
+            String[] fields = new String(Files.readAllBytes(checksumFile.toPath()), StandardCharsets.US_ASCII).trim().split("\t");
+            if (fields.length == 3 && fields[0].equals(Long.toString(size)) && fields[1].equals(Long.toString(mtime))) {
+                return fields[2];
+            }
+        }
+        String checksum = FileDownloader.checksum(bedfile, "SHA-256");
+        try {
+            writeAtomically(checksumFile, (size + "\t" + mtime + "\t" + checksum + "\n").getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            System.err.printf("[WARNING] Could not record checksum of %s: %s\n", bedfile.getName(), e.getMessage());
+        }
+        return checksum;
+    }
+
+    /**
+     * @param checksum checksum of the narrowPeak file, see {@link #contentChecksum(File)}
+     * @param name name the experiment gets in the table
+     * @return the stored result, or null if there is none (or it cannot be read)
+     */
+    public ExperimentResult load(String checksum, String name) {
+        File file = resultFile(checksum);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 16 || buf.getInt() != MAGIC || buf.getInt() != VERSION
+                    || buf.getInt() != numberOfElements) {
+                return null;
+            }
+            int n = buf.getInt();
+            if (n < 0 || n > numberOfElements || buf.remaining() != 20L * n) {
+                return null;
+            }
+            int[] ids = new int[n];
+            double[] means = new double[n];
+            double[] maxima = new double[n];
+            buf.asIntBuffer().get(ids);
+            buf.position(buf.position() + 4 * n);
+            buf.asDoubleBuffer().get(means);
+            buf.position(buf.position() + 8 * n);
+            buf.asDoubleBuffer().get(maxima);
+            return new ExperimentResult(name, ids, means, maxima);
+        } catch (IOException e) {
+            System.err.printf("[WARNING] Could not read stored result %s: %s\n", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /** Store the result of the narrowPeak file with the given checksum. */
+    public void store(String checksum, ExperimentResult result) throws IOException {
+        int n = result.ids.length;
+        ByteBuffer buf = ByteBuffer.allocate(16 + 20 * n);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(numberOfElements).putInt(n);
+        buf.asIntBuffer().put(result.ids);
+        buf.position(buf.position() + 4 * n);
+        buf.asDoubleBuffer().put(result.means);
+        buf.position(buf.position() + 8 * n);
+        buf.asDoubleBuffer().put(result.maxima);
+        writeAtomically(resultFile(checksum), buf.array());
+    }
+
+    private File resultFile(String checksum) {
+        return new File(elementSetDirectory, checksum + SUFFIX);
+    }
+
+    /** Write to a temporary file and rename it, so that a file in the store is always complete. */
+    private static void writeAtomically(File file, byte[] contents) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            Files.write(tmp.toPath(), contents);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /** @return the first 16 hex digits of a SHA-256 checksum of the chromosomes, coordinates and CpG flags */
+    static String elementSetChecksum(ElementTable elements) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(8 * 1024);
+        buf.putInt(VERSION).putInt(elements.getNumberOfChromosomes());
+        for (int c = 0; c < elements.getNumberOfChromosomes(); c++) {
+            byte[] name = elements.getChromosomeName(c).getBytes(StandardCharsets.UTF_8);
+            buf.putInt(name.length);
+            digest.update(buf.flip());
+            buf.clear();
+            digest.update(name);
+            buf.putInt(elements.getChromosomeStart(c)).putInt(elements.getChromosomeEnd(c));
+        }
+        for (int id = 0; id < elements.size(); id++) {
+            if (buf.remaining() < 9) {
+                digest.update(buf.flip());
+                buf.clear();
+            }
+            buf.putInt(elements.getBegin(id)).putInt(elements.getEnd(id)).put((byte) (elements.isCpG(id) ? 1 : 0));
+        }
+        digest.update(buf.flip());
+        StringBuilder sb = new StringBuilder();
+        byte[] hash = digest.digest();
+        for (int i = 0; i < 8; i++) {
+            sb.append(String.format("%02x", hash[i]));
+        }
+        return sb.toString();
+    }
+}
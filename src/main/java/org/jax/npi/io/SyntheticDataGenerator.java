@@ -0,0 +1,394 @@
+package org.jax.npi.io;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes synthetic input for load and scaling tests, so that they do not depend on the ENCODE downloads or on
+ * the stats files: an enhancer file ({@code cpg-hg38e.txt}, see {@link TssEnhancerStatsParser}), a promoter
+ * file ({@code tss-stats-hg38p.txt}, see {@link TssPromoterStatsParser}) and any number of narrowPeak files
+ * ({@code data/SYN00001.bed.gz}, ...).
+ *
+ * The output only depends on the seed and the settings, not on the number of threads: every chromosome of
+ * every file draws from its own random stream. Elements are placed uniformly on the main chromosomes of hg38
+ * (in proportion to their length); a fraction of the enhancers is nested inside the preceding enhancer. The
+ * peaks of a file are sorted, do not overlap each other and are written as they are drawn, so that files with
+ * any number of peaks can be written in constant memory. A fraction of the peaks is placed over the start of
+ * an element, the others fall anywhere on the chromosome, and a few lie on unplaced scaffolds
+ * ({@code chr1_KI270706v1_random}, {@code chrUn_...}) that the analysis skips. A chromosome holds at most one
+ * peak per four bases; very dense settings get narrower peaks (and, beyond that, fewer peaks).
+ */
+public class SyntheticDataGenerator {
+    public static final String ENHANCER_FILE = "cpg-hg38e.txt";
+    public static final String PROMOTER_FILE = "tss-stats-hg38p.txt";
+
+    private static final String[] CHROMOSOMES = {"chr1", "chr2", "chr3", "chr4", "chr5", "chr6", "chr7", "chr8",
+            "chr9", "chr10", "chr11", "chr12", "chr13", "chr14", "chr15", "chr16", "chr17", "chr18", "chr19",
+            "chr20", "chr21", "chr22", "chrX", "chrY"};
+    private static final int[] CHROMOSOME_LENGTHS = {248956422, 242193529, 198295559, 190214555, 181538259,
+            170805979, 159345973, 145138636, 138394717, 133797422, 135086622, 133275309, 114364328, 107043718,
+            101991189, 90338345, 83257441, 80373285, 58617616, 64444167, 46709983, 50818468, 156040895, 57227415};
+    private static final String[] SCAFFOLDS = {"chr1_KI270706v1_random", "chr1_KI270707v1_random",
+            "chr2_KI270715v1_random", "chr14_GL000009v2_random", "chr17_GL000205v2_random", "chrUn_KI270742v1",
+            "chrUn_GL000220v1", "chrUn_KI270442v1"};
+    private static final int[] SCAFFOLD_LENGTHS = {175055, 32032, 161471, 201709, 185591, 186739, 161802, 392061};
+
+    /** Offsets that separate the random streams of the different kinds of data. */
+    private static final long ENHANCER_STREAM = 1;
+    private static final long PROMOTER_STREAM = 2;
+    private static final long PEAK_STREAM = 3;
+
+    private final long seed;
+    private int enhancers = 100_000;
+    private int promoters = 50_000;
+    private long peaksPerExperiment = 100_000;
+    private int meanElementWidth = 800;
+    private int meanPeakWidth = 500;
+    private double enrichment = 0.5;
+    private double nesting = 0.05;
+    private double cpgFraction = 0.4;
+    private int chromosomes = CHROMOSOMES.length;
+    private double scaffoldFraction = 0.001;
+    private boolean bgzf = false;
+
+    /** Elements per main chromosome, drawn on first use. */
+    private Elements[] elements = null;
+
+    /** Enhancers and promoters of one chromosome. */
+    private static class Elements {
+        /** Enhancers, sorted by start. */
+        int[] enhancerBegins;
+        int[] enhancerEnds;
+        BitSet enhancerCpg;
+        /** Transcription start sites of the promoters, sorted. */
+        int[] tss;
+        BitSet plusStrand;
+        BitSet promoterCpg;
+        /** Sorted starts of all elements (for promoters, of the window that the parser makes of the TSS). */
+        int[] anchors;
+    }
+
+    public SyntheticDataGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    public void setEnhancers(int enhancers) {
+        this.enhancers = enhancers;
+    }
+
+    public void setPromoters(int promoters) {
+        this.promoters = promoters;
+    }
+
+    public void setPeaksPerExperiment(long peaksPerExperiment) {
+        this.peaksPerExperiment = peaksPerExperiment;
+    }
+
+    public void setMeanElementWidth(int meanElementWidth) {
+        this.meanElementWidth = Math.max(4, meanElementWidth);
+    }
+
+    public void setMeanPeakWidth(int meanPeakWidth) {
+        this.meanPeakWidth = Math.max(4, meanPeakWidth);
+    }
+
+    /** @param enrichment fraction of the peaks that are placed over the start of an element */
+    public void setEnrichment(double enrichment) {
+        this.enrichment = enrichment;
+    }
+
+    /** @param nesting fraction of the enhancers that lie within the preceding enhancer */
+    public void setNesting(double nesting) {
+        this.nesting = nesting;
+    }
+
+    /** @param cpgFraction fraction of the enhancers and promoters that are CGI elements */
+    public void setCpgFraction(double cpgFraction) {
+        this.cpgFraction = cpgFraction;
+    }
+
+    /** @param chromosomes number of main chromosomes to use (chr1, chr2, ..., chrX, chrY), at most 24 */
+    public void setChromosomes(int chromosomes) {
+        this.chromosomes = Math.max(1, Math.min(CHROMOSOMES.length, chromosomes));
+    }
+
+    /** @param scaffoldFraction fraction of the peaks that lie on unplaced scaffolds without elements */
+    public void setScaffoldFraction(double scaffoldFraction) {
+        this.scaffoldFraction = scaffoldFraction;
+    }
+
+    /** @param bgzf true to compress the narrowPeak files with BGZF (as bgzip does) instead of plain gzip */
+    public void setBgzf(boolean bgzf) {
+        this.bgzf = bgzf;
+    }
+
+    /**
+     * Write the enhancer and promoter files to {@code directory} and {@code experiments} narrowPeak files to
+     * {@code directory/data}.
+     * @param threads number of narrowPeak files to write at the same time
+     */
+    public void generate(File directory, int experiments, int threads) throws IOException {
+        File data = new File(directory, "data");
+        if (!data.isDirectory() && !data.mkdirs()) {
+            throw new IOException("Could not create directory " + data.getAbsolutePath());
+        }
+        writeEnhancerStats(new File(directory, ENHANCER_FILE));
+        writePromoterStats(new File(directory, PROMOTER_FILE));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int e = 0; e < experiments; e++) {
+                int experiment = e;
+                File bedfile = new File(data, String.format("SYN%05d.bed.gz", experiment + 1));
+                futures.add(executor.submit(() -> writeExperiment(experiment, bedfile)));
+            }
+            long total = 0;
+            for (int e = 0; e < experiments; e++) {
+                long n = futures.get(e).get();
+                System.out.printf("[INFO] Wrote %d peaks to SYN%05d.bed.gz.\n", n, e + 1);
+                total += n;
+            }
+            System.out.printf("[INFO] Wrote %d peaks in %d narrowPeak files.\n", total, experiments);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing narrowPeak files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException("Could not write narrowPeak files", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Write the enhancers in the format of {@link TssEnhancerStatsParser}. @return the number of enhancers */
+    public int writeEnhancerStats(File file) throws IOException {
+        Elements[] all = elements();
+        int n = 0;
+        try (LineWriter out = new LineWriter(new FileOutputStream(file))) {
+            out.append("(location)\tCpG+_anystrand\tCpG+_-strand\tCpG+_+strand").newLine();
+            for (int c = 0; c < chromosomes; c++) {
+                Elements el = all[c];
+                for (int i = 0; i < el.enhancerBegins.length; i++) {
+                    int cpg = el.enhancerCpg.get(i) ? 1 : 0;
+                    out.append(CHROMOSOMES[c]).append(':').append(el.enhancerBegins[i]).append('-')
+                            .append(el.enhancerEnds[i]).append('\t').append(cpg).append('\t').append(cpg)
+                            .append("\t0").newLine();
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /** Write the promoters in the format of {@link TssPromoterStatsParser}. @return the number of promoters */
+    public int writePromoterStats(File file) throws IOException {
+        Elements[] all = elements();
+        int n = 0;
+        try (LineWriter out = new LineWriter(new FileOutputStream(file))) {
+            out.append("tss\tgene\ttags\ttau.c\ttau.t\tdispersion\tdispersion<=12\tCpG.p\tCpG.m").newLine();
+            for (int c = 0; c < chromosomes; c++) {
+                Elements el = all[c];
+                for (int i = 0; i < el.tss.length; i++) {
+                    int tss = el.tss[i];
+                    int cpg = el.promoterCpg.get(i) ? 1 : 0;
+                    n++;
+                    out.append('"').append(CHROMOSOMES[c]).append(':').append(tss).append('-').append(tss + 1)
+                            .append(',').append(el.plusStrand.get(i) ? '+' : '-').append("\"\tSYN").append(n)
+                            .append('\t').append(10 + (tss % 990)).append('\t').append(tss).append('\t')
+                            .append(tss).append("\t1\t1\t").append(cpg).append('\t').append(1 - cpg).newLine();
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Write the peaks of one experiment as a gzip- or BGZF-compressed narrowPeak file.
+     * @param experiment number of the experiment, which selects its random streams
+     * @return the number of peaks
+     */
+    public long writeExperiment(int experiment, File bedfile) throws IOException {
+        Elements[] all = elements();
+        long mainLength = 0;
+        for (int c = 0; c < chromosomes; c++) {
+            mainLength += CHROMOSOME_LENGTHS[c];
+        }
+        long scaffoldLength = 0;
+        for (int length : SCAFFOLD_LENGTHS) {
+            scaffoldLength += length;
+        }
+        long onScaffolds = Math.round(peaksPerExperiment * scaffoldFraction);
+        long[] mainCounts = split(peaksPerExperiment - onScaffolds, CHROMOSOME_LENGTHS, chromosomes, mainLength);
+        long[] scaffoldCounts = split(onScaffolds, SCAFFOLD_LENGTHS, SCAFFOLDS.length, scaffoldLength);
+        OutputStream file = new BufferedOutputStream(new FileOutputStream(bedfile), 1 << 16);
+        OutputStream compressed = bgzf ? new BgzfOutputStream(file, Deflater.BEST_SPEED) : new GZIPOutputStream(file, 1 << 16) {
+            {
+                // the random digits hardly compress better with more effort
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+        long n = 0;
+        try (LineWriter out = new LineWriter(compressed)) {
+            for (int c = 0; c < chromosomes; c++) {
+                SplittableRandom random = random(PEAK_STREAM, (long) experiment * 64 + c);
+                n = writePeaks(out, CHROMOSOMES[c], CHROMOSOME_LENGTHS[c], mainCounts[c], all[c].anchors, random, n);
+            }
+            for (int s = 0; s < SCAFFOLDS.length; s++) {
+                SplittableRandom random = random(PEAK_STREAM, (long) experiment * 64 + CHROMOSOMES.length + s);
+                n = writePeaks(out, SCAFFOLDS[s], SCAFFOLD_LENGTHS[s], scaffoldCounts[s], new int[0], random, n);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Write {@code count} sorted, non-overlapping peaks of one chromosome. Each peak takes its share of the
+     * space that is left, so that exactly {@code count} peaks fit whatever the random draws are.
+     * @param anchors sorted starts of the elements of the chromosome
+     * @param written number of peaks written so far (for the peak names)
+     * @return the number of peaks written so far, including those of this chromosome
+     */
+    private long writePeaks(LineWriter out, String chrom, int length, long count, int[] anchors,
+                            SplittableRandom random, long written) throws IOException {
+        count = Math.min(count, length / 4);
+        double meanWidth = Math.min(meanPeakWidth, length / (4.0 * Math.max(1, count)));
+        long pos = 0; // end of the previous peak
+        int a = 0;
+        for (long i = 0; i < count; i++) {
+            long remaining = count - i;
+            long free = length - pos;
+            double room = (double) free / remaining;
+            int width = (int) Math.max(1, Math.min(sampleWidth(random, meanWidth), room / 2));
+            // leave at least two bases for every peak that is still to come
+            long maxGap = free - width - 2 * (remaining - 1);
+            long gap = Math.min(maxGap, 1 + (long) (random.nextDouble() * 2 * Math.max(0, room - meanWidth - 1)));
+            if (random.nextDouble() < enrichment) {
+                while (a < anchors.length && anchors[a] <= pos) {
+                    a++;
+                }
+                if (a < anchors.length && anchors[a] - pos <= Math.min(maxGap, 4 * room)) {
+                    // over the start of the next element
+                    gap = Math.max(1, anchors[a] - pos - random.nextInt(width));
+                }
+            }
+            long begin = pos + gap;
+            long end = begin + width;
+            double signal = 2.0 - 8.0 * Math.log(1.0 - random.nextDouble());
+            written++;
+            out.append(chrom).append('\t').append(begin).append('\t').append(end).append("\tPeak_").append(written)
+                    .append('\t').append((int) Math.min(1000, 25 * signal)).append("\t.\t").appendFixed(signal, 5)
+                    .append('\t').appendFixed(3.1 * signal, 5).append('\t').appendFixed(2.7 * signal, 5).append('\t')
+                    .append(random.nextInt(width)).newLine();
+            pos = end;
+        }
+        return written;
+    }
+
+    /** @return a width with the given mean: a quarter of the mean plus an exponentially distributed part */
+    private static double sampleWidth(SplittableRandom random, double mean) {
+        return 0.25 * mean - 0.75 * mean * Math.log(1.0 - random.nextDouble());
+    }
+
+    /** Split {@code total} among the first {@code n} sequences in proportion to their length. */
+    private static long[] split(long total, int[] lengths, int n, long sumOfLengths) {
+        long[] counts = new long[n];
+        long cumulative = 0;
+        long assigned = 0;
+        for (int i = 0; i < n; i++) {
+            cumulative += lengths[i];
+            long upTo = Math.round((double) total * cumulative / sumOfLengths);
+            counts[i] = upTo - assigned;
+            assigned = upTo;
+        }
+        return counts;
+    }
+
+    private SplittableRandom random(long stream, long index) {
+        return new SplittableRandom(seed ^ 0x9E3779B97F4A7C15L * ((stream << 40) + index + 1));
+    }
+
+    private synchronized Elements[] elements() {
+        if (elements != null) {
+            return elements;
+        }
+        long mainLength = 0;
+        for (int c = 0; c < chromosomes; c++) {
+            mainLength += CHROMOSOME_LENGTHS[c];
+        }
+        long[] enhancerCounts = split(enhancers, CHROMOSOME_LENGTHS, chromosomes, mainLength);
+        long[] promoterCounts = split(promoters, CHROMOSOME_LENGTHS, chromosomes, mainLength);
+        Elements[] all = new Elements[chromosomes];
+        for (int c = 0; c < chromosomes; c++) {
+            Elements el = new Elements();
+            drawEnhancers(el, CHROMOSOME_LENGTHS[c], (int) enhancerCounts[c], random(ENHANCER_STREAM, c));
+            drawPromoters(el, CHROMOSOME_LENGTHS[c], (int) promoterCounts[c], random(PROMOTER_STREAM, c));
+            int[] anchors = Arrays.copyOf(el.enhancerBegins, el.enhancerBegins.length + el.tss.length);
+            for (int i = 0; i < el.tss.length; i++) {
+                anchors[el.enhancerBegins.length + i] = el.tss[i] - (el.plusStrand.get(i) ? 500 : 200);
+            }
+            Arrays.sort(anchors);
+            el.anchors = anchors;
+            all[c] = el;
+        }
+        elements = all;
+        return all;
+    }
+
+    private void drawEnhancers(Elements el, int length, int count, SplittableRandom random) {
+        // at most a quarter of the chromosome is covered by enhancers
+        double meanWidth = Math.min(meanElementWidth, length / (4.0 * Math.max(1, count)));
+        long[] packed = new long[count];
+        for (int i = 0; i < count; i++) {
+            long previousBegin = i > 0 ? packed[i - 1] >>> 32 : 0;
+            long previousEnd = i > 0 ? packed[i - 1] & 0xffffffffL : 0;
+            long begin;
+            long end;
+            if (i > 0 && previousEnd - previousBegin >= 2 && random.nextDouble() < nesting) {
+                begin = previousBegin + random.nextInt((int) (previousEnd - previousBegin - 1));
+                end = begin + 1 + random.nextInt((int) (previousEnd - begin));
+            } else {
+                int width = (int) Math.max(1, Math.min(sampleWidth(random, meanWidth), length / 2.0));
+                begin = random.nextInt(length - width);
+                end = begin + width;
+            }
+            packed[i] = begin << 32 | end;
+        }
+        Arrays.sort(packed);
+        el.enhancerBegins = new int[count];
+        el.enhancerEnds = new int[count];
+        el.enhancerCpg = new BitSet(count);
+        for (int i = 0; i < count; i++) {
+            el.enhancerBegins[i] = (int) (packed[i] >>> 32);
+            el.enhancerEnds[i] = (int) packed[i];
+            el.enhancerCpg.set(i, random.nextDouble() < cpgFraction);
+        }
+    }
+
+    private void drawPromoters(Elements el, int length, int count, SplittableRandom random) {
+        // the parser extends the TSS by 500 bases upstream, which must not go past the chromosome ends
+        int[] tss = new int[count];
+        for (int i = 0; i < count; i++) {
+            tss[i] = 1000 + random.nextInt(length - 2000);
+        }
+        Arrays.sort(tss);
+        el.tss = tss;
+        el.plusStrand = new BitSet(count);
+        el.promoterCpg = new BitSet(count);
+        for (int i = 0; i < count; i++) {
+            el.plusStrand.set(i, random.nextBoolean());
+            el.promoterCpg.set(i, random.nextDouble() < cpgFraction);
+        }
+    }
+}
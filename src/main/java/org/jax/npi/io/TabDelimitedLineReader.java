@@ -0,0 +1,430 @@
+package org.jax.npi.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads tab-separated ASCII lines from a stream into a reused byte buffer and splits them into fields
+ * without creating a String for each line or field. Fields are addressed either by their number or by
+ * absolute offsets into the buffer (for parsing parts of a field such as {@code chr1:100-200}); the offsets
+ * are only valid until the next call of {@link #nextLine()}.
+ *
+ * A line is split like {@code line.split("\t")}: empty fields at the end of a line are dropped (a trailing
+ * tab does not add a field), except that an empty line has one empty field.
+ *
+ * Numbers are parsed directly from the bytes. Decimal numbers with at most 15 significant digits and a small
+ * exponent are converted exactly (one correctly rounded multiplication or division); anything else is
+ * handed to {@link Double#parseDouble(String)}, so the result is always identical to that method.
+ * Repeated strings such as chromosome names are returned as shared String objects by {@link #getSymbol}.
+ */
+public class TabDelimitedLineReader implements Closeable {
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /** Decimal fractions with at most this many significant digits are exact as a long and as a double. */
+    private static final int MAX_FAST_DIGITS = 15;
+    /** Powers of ten that are exactly representable as a double. */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final InputStream in;
+    private byte[] buffer;
+    /** Number of valid bytes in {@link #buffer}. */
+    private int limit = 0;
+    /** Offset of the first byte that has not been returned as part of a line. */
+    private int pos = 0;
+    private boolean eof = false;
+    private int lineStart;
+    private int lineEnd;
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private int fieldCount;
+    /** Number of lines read so far. */
+    private long lineNumber = 0;
+    private final SymbolTable symbols = new SymbolTable();
+
+    public TabDelimitedLineReader(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public TabDelimitedLineReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[Math.max(bufferSize, 1024)];
+    }
+
+    /**
+     * Advance to the next line and split it into fields. A trailing carriage return is removed.
+     * @return false at the end of the stream
+     */
+    public boolean nextLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            int nl = -1;
+            for (int i = scan; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    nl = i;
+                    break;
+                }
+            }
+            if (nl >= 0) {
+                lineStart = pos;
+                lineEnd = nl;
+                pos = nl + 1;
+                break;
+            }
+            if (eof) {
+                if (pos == limit) {
+                    return false;
+                }
+                // last line without newline
+                lineStart = pos;
+                lineEnd = limit;
+                pos = limit;
+                break;
+            }
+            scan = limit - pos;
+            fill();
+            // fill() moves the unread bytes to the start of the buffer
+        }
+        if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+            lineEnd--;
+        }
+        lineNumber++;
+        splitFields();
+        return true;
+    }
+
+    /** Move the unread bytes to the start of the buffer (growing it if it is full) and read more. */
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+        }
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    private void splitFields() {
+        fieldCount = 0;
+        int start = lineStart;
+        for (int i = lineStart; i <= lineEnd; i++) {
+            if (i == lineEnd || buffer[i] == '\t') {
+                if (fieldCount == fieldStarts.length) {
+                    fieldStarts = Arrays.copyOf(fieldStarts, 2 * fieldCount);
+                    fieldEnds = Arrays.copyOf(fieldEnds, 2 * fieldCount);
+                }
+                fieldStarts[fieldCount] = start;
+                fieldEnds[fieldCount] = i;
+                fieldCount++;
+                start = i + 1;
+            }
+        }
+        if (lineEnd > lineStart) {
+            // like String.split, drop trailing empty fields
+            while (fieldCount > 0 && fieldStarts[fieldCount - 1] == fieldEnds[fieldCount - 1]) {
+                fieldCount--;
+            }
+        }
+    }
+
+    /**
+     * @return number of tab-separated fields of the current line, not counting empty fields at the end of the
+     * line (an empty line has one empty field)
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /** @return 1-based number of the current line */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /** @return offset of the first byte of field {@code i} */
+    public int fieldStart(int i) {
+        checkField(i);
+        return fieldStarts[i];
+    }
+
+    /** @return offset one past the last byte of field {@code i} */
+    public int fieldEnd(int i) {
+        checkField(i);
+        return fieldEnds[i];
+    }
+
+    private void checkField(int i) {
+        if (i < 0 || i >= fieldCount) {
+            throw new IndexOutOfBoundsException(String.format("Field %d requested but line %d has %d fields: %s",
+                    i, lineNumber, fieldCount, getLine()));
+        }
+    }
+
+    /** @return offset of the first occurrence of {@code b} in [from,to), or -1 */
+    public int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove every occurrence of {@code b} from field {@code i} by moving the remaining bytes of the field to the
+     * left; the field ends earlier afterwards. The bytes freed at the end of the field are set to blanks, which
+     * {@link #getLine()} shows as well.
+     * @return the new end of the field
+     */
+    public int removeByte(int i, byte b) {
+        int from = fieldStart(i);
+        int to = fieldEnd(i);
+        int w = from;
+        for (int r = from; r < to; r++) {
+            if (buffer[r] != b) {
+                buffer[w++] = buffer[r];
+            }
+        }
+        Arrays.fill(buffer, w, to, (byte) ' ');
+        fieldEnds[i] = w;
+        return w;
+    }
+
+    /** @return the byte at the given offset */
+    public byte byteAt(int offset) {
+        return buffer[offset];
+    }
+
+    /** @return true if field {@code i} consists of exactly the (ASCII) characters of {@code s} */
+    public boolean fieldEquals(int i, String s) {
+        return rangeEquals(fieldStart(i), fieldEnd(i), s);
+    }
+
+    /** @return true if the bytes in [from,to) are exactly the (ASCII) characters of {@code s} */
+    public boolean rangeEquals(int from, int to, String s) {
+        if (to - from != s.length()) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (buffer[i] != s.charAt(i - from)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getInt(int field) {
+        return parseInt(fieldStart(field), fieldEnd(field));
+    }
+
+    public double getDouble(int field) {
+        return parseDouble(fieldStart(field), fieldEnd(field));
+    }
+
+    /** @return a (newly allocated) String with the contents of field {@code i} */
+    public String getString(int field) {
+        return getString(fieldStart(field), fieldEnd(field));
+    }
+
+    /** @return a (newly allocated) String with the bytes in [from,to) */
+    public String getString(int from, int to) {
+        return new String(buffer, from, to - from, StandardCharsets.US_ASCII);
+    }
+
+    /** @return the current line as a String, meant for error messages */
+    public String getLine() {
+        return getString(lineStart, lineEnd);
+    }
+
+    /**
+     * @return a String with the bytes in [from,to); the same String object is returned every time the same
+     * bytes are seen, so that only the first occurrence of e.g. a chromosome name allocates
+     */
+    public String getSymbol(int from, int to) {
+        return symbols.get(buffer, from, to);
+    }
+
+    /** @return the contents of field {@code i} as a shared String, see {@link #getSymbol(int, int)} */
+    public String getSymbol(int field) {
+        return getSymbol(fieldStart(field), fieldEnd(field));
+    }
+
+    /**
+     * Parse a decimal integer with an optional sign.
+     * @throws NumberFormatException if the bytes are not a valid int
+     */
+    public int parseInt(int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        if (i == to) {
+            throw new NumberFormatException("For input string: \"" + getString(from, to) + "\"");
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int d = buffer[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("For input string: \"" + getString(from, to) + "\"");
+            }
+            value = value * 10 + d;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                throw new NumberFormatException("For input string: \"" + getString(from, to) + "\"");
+            }
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \"" + getString(from, to) + "\"");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parse a decimal floating-point number. The result is identical to {@link Double#parseDouble(String)}.
+     * @throws NumberFormatException if the bytes are not a valid number
+     */
+    public double parseDouble(int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+            negative = buffer[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        for (; i < to && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+            anyDigit = true;
+            mantissa = mantissa * 10 + (buffer[i] - '0');
+            if (mantissa != 0) {
+                significantDigits++;
+            }
+        }
+        if (i < to && buffer[i] == '.') {
+            i++;
+            for (; i < to && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+                anyDigit = true;
+                mantissa = mantissa * 10 + (buffer[i] - '0');
+                if (mantissa != 0) {
+                    significantDigits++;
+                }
+                exponent--;
+            }
+        }
+        if (i < to && (buffer[i] == 'e' || buffer[i] == 'E') && anyDigit) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+                negativeExponent = buffer[i] == '-';
+                i++;
+            }
+            int e = 0;
+            int expDigits = 0;
+            for (; i < to && buffer[i] >= '0' && buffer[i] <= '9' && expDigits < 4; i++, expDigits++) {
+                e = e * 10 + (buffer[i] - '0');
+            }
+            if (expDigits == 0) {
+                anyDigit = false; // e.g. "1e" -- let Double.parseDouble decide
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != to || !anyDigit || significantDigits > MAX_FAST_DIGITS
+                || exponent < -22 || exponent > 22) {
+            // unusual input (NaN, Infinity, hex, suffixes, many digits, large exponents)
+            return Double.parseDouble(getString(from, to));
+        }
+        double value = (double) mantissa;
+        if (exponent < 0) {
+            value /= POWERS_OF_TEN[-exponent];
+        } else {
+            value *= POWERS_OF_TEN[exponent];
+        }
+        return negative ? -value : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /** Small open-addressing hash table from byte sequences to Strings. */
+    private static final class SymbolTable {
+        private byte[][] keys = new byte[64][];
+        private String[] values = new String[64];
+        private int size = 0;
+
+        String get(byte[] buf, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + buf[i];
+            }
+            int mask = keys.length - 1;
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (keys[slot] != null) {
+                byte[] key = keys[slot];
+                if (key.length == to - from && equalBytes(key, buf, from)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            byte[] key = Arrays.copyOfRange(buf, from, to);
+            String value = new String(key, StandardCharsets.US_ASCII);
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+            if (2 * size > keys.length) {
+                rehash();
+            }
+            return value;
+        }
+
+        private static boolean equalBytes(byte[] key, byte[] buf, int from) {
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buf[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rehash() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[2 * oldKeys.length][];
+            values = new String[2 * oldKeys.length];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    byte[] k = oldKeys[i];
+                    int h = 0;
+                    for (byte b : k) {
+                        h = 31 * h + b;
+                    }
+                    int mask = keys.length - 1;
+                    int slot = (h ^ (h >>> 16)) & mask;
+                    while (keys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = k;
+                    values[slot] = oldValues[i];
+                    size++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.jax.npi.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the buffers of a download from the downloading thread to a {@link DownloadTee} on another thread.
+ * At most {@link #CAPACITY} buffers are queued; when the queue is full, the download waits for the consumer.
+ * Once the consumer has closed its end, buffers are dropped instead, so that a failed consumer never blocks
+ * the download.
+ */
+class TeePipe {
+    /** Maximum number of queued buffers. */
+    private static final int CAPACITY = 64;
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private volatile boolean readerClosed = false;
+    private volatile IOException failure = null;
+
+    /** Pass a copy of {@code buffer[0..length)} to the consumer. */
+    void write(byte[] buffer, int length) throws InterruptedIOException {
+        if (length > 0) {
+            put(Arrays.copyOf(buffer, length));
+        }
+    }
+
+    /** Signal the end of the download to the consumer. */
+    void finish() throws InterruptedIOException {
+        put(END);
+    }
+
+    /** Signal that the download failed; the consumer gets an IOException. */
+    void fail(IOException e) {
+        failure = e;
+        // only the downloading thread adds to the queue, so there is room for END after clearing it
+        queue.clear();
+        queue.offer(END);
+    }
+
+    private void put(byte[] chunk) throws InterruptedIOException {
+        try {
+            while (!readerClosed) {
+                if (queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while passing on downloaded data");
+        }
+    }
+
+    /** @return the consumer's end of the pipe; closing it drops all further data */
+    InputStream inputStream() {
+        return new InputStream() {
+            private byte[] chunk = null;
+            private int pos = 0;
+
+            private boolean ensureChunk() throws IOException {
+                while (chunk == null || pos == chunk.length) {
+                    if (chunk == END) {
+                        return false;
+                    }
+                    try {
+                        chunk = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for downloaded data");
+                    }
+                    pos = 0;
+                    if (chunk == END && failure != null) {
+                        throw new IOException("Download failed: " + failure.getMessage(), failure);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (!ensureChunk()) {
+                    return -1;
+                }
+                return chunk[pos++] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!ensureChunk()) {
+                    return -1;
+                }
+                int n = Math.min(len, chunk.length - pos);
+                System.arraycopy(chunk, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            /** @return the bytes that can be read without waiting for the download: the current and the next buffer */
+            @Override
+            public int available() {
+                if (chunk != null && pos < chunk.length) {
+                    return chunk.length - pos;
+                }
+                byte[] next = queue.peek();
+                return next == null ? 0 : next.length;
+            }
+
+            @Override
+            public void close() {
+                readerClosed = true;
+                queue.clear();
+            }
+        };
+    }
+}
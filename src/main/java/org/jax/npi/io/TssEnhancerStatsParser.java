@@ -2,13 +2,17 @@ package org.jax.npi.io;
 
 import org.jax.npi.data.RegulatoryElement;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 public class TssEnhancerStatsParser implements RegulatoryElementTssParser {
+    /**
+     * Version of the parsing rules. It is part of the format of the {@link ElementTableCache}, so it must be
+     * increased whenever a change of this class changes the parsed elements.
+     */
+    public static final int FORMAT_VERSION = 2;
 
     /** path to tss-stats-hg38e.txt file. */
     private final String pathToTssStatsFile;
@@ -37,28 +41,28 @@ public class TssEnhancerStatsParser implements RegulatoryElementTssParser {
         if (! this.pathToTssStatsFile.contains("cpg-hg38e.txt")) {
             throw new RuntimeException("Enhancer file must be 'cpg-hg38e.txt' and not 'tss-stats-hg38e.txt'");
         }
-        try (BufferedReader br = new BufferedReader(new FileReader(this.pathToTssStatsFile))) {
-            String line = br.readLine(); // discard header
-            while ((line = br.readLine())!= null) {
-                String []F = line.split("\t");
-                if (F.length < 4) {
-                    System.err.printf("[ERROR] malformed line with %d fields: %s\n", F.length, line);
+        try (TabDelimitedLineReader reader = new TabDelimitedLineReader(new FileInputStream(this.pathToTssStatsFile))) {
+            reader.nextLine(); // discard header
+            while (reader.nextLine()) {
+                if (reader.getFieldCount() < 4) {
+                    System.err.printf("[ERROR] malformed line with %d fields: %s\n", reader.getFieldCount(), reader.getLine());
                     continue;
                 }
-                String pos = F[0];
-                String cpg = F[1];
-                String []A = pos.split(":");
-                if (A.length != 2) {
-                    throw new RuntimeException("Bad position string: " + pos);
+                // position, e.g., chr10:100006233-100006603
+                int from = reader.fieldStart(0);
+                int to = reader.fieldEnd(0);
+                int colon = reader.indexOf((byte) ':', from, to);
+                int dash = colon < 0 ? -1 : reader.indexOf((byte) '-', colon + 1, to);
+                if (colon < 0 || reader.indexOf((byte) ':', colon + 1, to) >= 0) {
+                    throw new RuntimeException("Bad position string: " + reader.getString(0));
                 }
-                String chrom = A[0];
-                String []B = A[1].split("-");
-                if (B.length != 2) {
-                    throw new RuntimeException("Bad position string: " + pos);
+                if (dash < 0 || dash + 1 == to || reader.indexOf((byte) '-', dash + 1, to) >= 0) {
+                    throw new RuntimeException("Bad position string: " + reader.getString(0));
                 }
-                int start = Integer.parseInt(B[0]);
-                int end = Integer.parseInt(B[1]);
-                if (cpg.equals("1")) {
+                String chrom = reader.getSymbol(from, colon);
+                int start = reader.parseInt(colon + 1, dash);
+                int end = reader.parseInt(dash + 1, to);
+                if (reader.fieldEquals(1, "1")) {
                     enhancerList.add(new RegulatoryElement(chrom, start, end, true));
                     cpg_count++;
                 } else {
@@ -2,13 +2,17 @@ package org.jax.npi.io;
 
 import org.jax.npi.data.RegulatoryElement;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 public class TssPromoterStatsParser implements RegulatoryElementTssParser {
+    /**
+     * Version of the parsing rules. It is part of the format of the {@link ElementTableCache}, so it must be
+     * increased whenever a change of this class changes the parsed elements.
+     */
+    public static final int FORMAT_VERSION = 2;
 
     /** path to tss-stats-hg38e.txt file. */
     private final String pathToTssStatsFile;
@@ -40,28 +44,27 @@ public class TssPromoterStatsParser implements RegulatoryElementTssParser {
     private void parse() {
         int cpg_count = 0;
         int non_cpg_count = 0;
-        try (BufferedReader br = new BufferedReader(new FileReader(this.pathToTssStatsFile))) {
-            String line = br.readLine(); // discard header
-            while ((line = br.readLine())!= null) {
-                String []F = line.split("\t");
-                String tss = F[0].replaceAll("\"","");
-                boolean isPlusStrand = tss.contains("+");
-                String []AA = tss.split(",");
-                String pos = AA[0];
-                String cpgp = F[7];
-                String cpcm = F[8];
-                String []A = pos.split(":");
-                if (A.length != 2) {
-                    throw new RuntimeException("Bad position string: " + pos);
+        try (TabDelimitedLineReader reader = new TabDelimitedLineReader(new FileInputStream(this.pathToTssStatsFile))) {
+            reader.nextLine(); // discard header
+            while (reader.nextLine()) {
+                // TSS, e.g., "chr1:959255-959256,-" (with or without the quotes)
+                int from = reader.fieldStart(0);
+                int to = reader.removeByte(0, (byte) '"');
+                boolean isPlusStrand = reader.indexOf((byte) '+', from, to) >= 0;
+                int comma = reader.indexOf((byte) ',', from, to);
+                int posEnd = comma < 0 ? to : comma;
+                int colon = reader.indexOf((byte) ':', from, posEnd);
+                int dash = colon < 0 ? -1 : reader.indexOf((byte) '-', colon + 1, posEnd);
+                if (colon < 0 || reader.indexOf((byte) ':', colon + 1, posEnd) >= 0) {
+                    throw new RuntimeException("Bad position string: " + reader.getString(from, posEnd));
                 }
-                String chrom = A[0];
-                String []B = A[1].split("-");
-                if (B.length != 2) {
-                    throw new RuntimeException("Bad position string: " + pos);
+                if (dash < 0 || dash + 1 == posEnd || reader.indexOf((byte) '-', dash + 1, posEnd) >= 0) {
+                    throw new RuntimeException("Bad position string: " + reader.getString(from, posEnd));
                 }
+                String chrom = reader.getSymbol(from, colon);
                 // The position needs to be extended 500 bp upsteam and 50 bp downstream from the tss
-                int start = Integer.parseInt(B[0]);
-                int end = Integer.parseInt(B[1]);
+                int start = reader.parseInt(colon + 1, dash);
+                int end = reader.parseInt(dash + 1, posEnd);
                 if (isPlusStrand) {
                     start -= 500;
                     end += 200;
@@ -69,14 +72,15 @@ public class TssPromoterStatsParser implements RegulatoryElementTssParser {
                     start -= 200;
                     end += 500;
                 }
-                if (cpgp.equals("1") && cpcm.equals("0")) {
+                // F[7] CpG.p, F[8] CpG.m
+                if (reader.fieldEquals(7, "1") && reader.fieldEquals(8, "0")) {
                     enhancerList.add(new RegulatoryElement(chrom, start, end, true));
                     cpg_count++;
-                } else if (cpgp.equals("0") && cpcm.equals("1")) {
+                } else if (reader.fieldEquals(7, "0") && reader.fieldEquals(8, "1")) {
                     enhancerList.add(new RegulatoryElement(chrom, start, end, false));
                     non_cpg_count++;
                 } else {
-                    System.err.printf("Bad code cpcp=%s cpcm=%s\n", cpgp, cpcm);
+                    System.err.printf("Bad code cpcp=%s cpcm=%s\n", reader.getString(7), reader.getString(8));
                 }
             }
 
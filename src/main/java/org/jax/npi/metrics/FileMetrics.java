@@ -0,0 +1,37 @@
+package org.jax.npi.metrics;
+
+/**
+ * What it took to read one narrowPeak file and intersect it with one set of elements. The fields are filled
+ * in by the code that reads the file; times are in nanoseconds. The inflate, parse and overlap times add up
+ * the time of all threads of the stage, so with a pipeline they can exceed the wall time.
+ */
+public class FileMetrics {
+    /** Set of elements the file was intersected with ("enhancer", "promoter"). */
+    public final String group;
+    /** Name of the narrowPeak file. */
+    public final String name;
+    /** True if the file was analyzed while it was downloaded; then there are no times. */
+    public boolean streamed = false;
+    public long compressedBytes = 0;
+    /** Number of bytes after decompression, 0 for binary peak files. */
+    public long decompressedBytes = 0;
+    public long peaks = 0;
+    /** Number of (peak, element) pairs that overlap. */
+    public long overlaps = 0;
+    /** Number of peaks on scaffolds (chrUn_..., ..._random) that were skipped. */
+    public long skippedScaffoldPeaks = 0;
+    /** Time spent reading and decompressing. */
+    public long inflateNanos = 0;
+    /** Time spent parsing the text (or reading a binary peak file), without decompressing. */
+    public long parseNanos = 0;
+    /** Time spent finding the overlapping elements and accumulating the signal. */
+    public long overlapNanos = 0;
+    public long wallNanos = 0;
+    /** CPU time of the thread that read the file (the threads of a pipeline are not included). */
+    public long cpuNanos = 0;
+
+    public FileMetrics(String group, String name) {
+        this.group = group;
+        this.name = name;
+    }
+}
@@ -0,0 +1,315 @@
+package org.jax.npi.metrics;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Timing and throughput of the phases of one run (download, parsing the elements, reading the narrowPeak
+ * files, finishing the experiments, statistics, output) and of each narrowPeak file, written as a JSON
+ * summary and in the Prometheus text format (e.g., for the textfile collector of the node exporter), so that
+ * a batch scheduler can alert on throughput regressions.
+ *
+ * A phase is timed with {@link #start(String)} (wall time, CPU time of the whole process and peak heap) or
+ * recorded with {@link #record(String, long, long, long, long)} by code that measures itself. Phases with the
+ * same name are added up. The methods may be called from several threads.
+ */
+public class RunMetrics {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /** A phase of the run, summed over all its invocations. */
+    public static class Phase {
+        public final String name;
+        public long invocations = 0;
+        public long wallNanos = 0;
+        public long cpuNanos = 0;
+        /** Number of records (peaks, elements, files, ...) that the phase processed. */
+        public long records = 0;
+        public long bytes = 0;
+        /** Highest heap use during the phase, 0 if it was not measured. */
+        public long peakHeapBytes = 0;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    /** Times a phase from {@link #start(String)} until {@link #close()}. */
+    public final class Timer implements AutoCloseable {
+        private final String phase;
+        private final long startNanos = System.nanoTime();
+        private final long startCpu = processCpuNanos();
+        private long records = 0;
+        private long bytes = 0;
+
+        private Timer(String phase) {
+            this.phase = phase;
+        }
+
+        public void addRecords(long n) {
+            records += n;
+        }
+
+        public void addBytes(long n) {
+            bytes += n;
+        }
+
+        @Override
+        public void close() {
+            long peakHeap = samplePeakHeap();
+            synchronized (RunMetrics.this) {
+                Phase p = add(phase, System.nanoTime() - startNanos, processCpuNanos() - startCpu, records, bytes);
+                p.peakHeapBytes = Math.max(p.peakHeapBytes, peakHeap);
+            }
+        }
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final long startCpu = processCpuNanos();
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+    private final List<FileMetrics> files = new ArrayList<>();
+    /** Highest heap use seen so far, in any phase. */
+    private long peakHeapBytes = 0;
+
+    /**
+     * Start timing a phase. The peak heap use is reset, so phases timed this way should not overlap (the
+     * phases recorded with {@link #record(String, long, long, long, long)} can).
+     */
+    public Timer start(String phase) {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+        return new Timer(phase);
+    }
+
+    /** Add to a phase that was measured by the caller. */
+    public synchronized void record(String phase, long wallNanos, long cpuNanos, long records, long bytes) {
+        add(phase, wallNanos, cpuNanos, records, bytes);
+    }
+
+    private Phase add(String phase, long wallNanos, long cpuNanos, long records, long bytes) {
+        Phase p = phases.computeIfAbsent(phase, Phase::new);
+        p.invocations++;
+        p.wallNanos += wallNanos;
+        p.cpuNanos += cpuNanos;
+        p.records += records;
+        p.bytes += bytes;
+        return p;
+    }
+
+    public synchronized void addFile(FileMetrics file) {
+        files.add(file);
+    }
+
+    /** @return the phases in the order they were first recorded */
+    public synchronized List<Phase> getPhases() {
+        return new ArrayList<>(phases.values());
+    }
+
+    public synchronized List<FileMetrics> getFiles() {
+        return new ArrayList<>(files);
+    }
+
+    /** @return CPU time of the current thread in ns, or 0 if the JVM does not measure it */
+    public static long threadCpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /** @return CPU time of the process in ns, or the CPU time of the current thread if it is not available */
+    static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long cpu = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            if (cpu >= 0) {
+                return cpu;
+            }
+        }
+        return threadCpuNanos();
+    }
+
+    /**
+     * @return heap use since the peaks of the heap pools were last reset (sum of the peaks of the pools), which
+     * is also taken into account for {@link #peakHeapBytes()}
+     */
+    private long samplePeakHeap() {
+        long sum = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                sum += pool.getPeakUsage().getUsed();
+            }
+        }
+        synchronized (this) {
+            peakHeapBytes = Math.max(peakHeapBytes, sum);
+        }
+        return sum;
+    }
+
+    /** @return highest heap use of the run, including the phases before the pools were last reset */
+    private synchronized long peakHeapBytes() {
+        samplePeakHeap();
+        return peakHeapBytes;
+    }
+
+    private static double seconds(long nanos) {
+        return nanos * 1e-9;
+    }
+
+    private static double rate(long count, long nanos) {
+        return nanos <= 0 ? 0.0 : count / seconds(nanos);
+    }
+
+    /** Write the summary as JSON. */
+    public synchronized void writeJson(File file) throws IOException {
+        long wall = System.nanoTime() - startNanos;
+        long cpu = processCpuNanos() - startCpu;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"wallSeconds\": ").append(number(seconds(wall))).append(",\n");
+        sb.append("  \"cpuSeconds\": ").append(number(seconds(cpu))).append(",\n");
+        sb.append("  \"peakHeapBytes\": ").append(peakHeapBytes()).append(",\n");
+        sb.append("  \"phases\": [");
+        String separator = "\n";
+        for (Phase p : phases.values()) {
+            sb.append(separator).append("    {\"name\": ").append(string(p.name))
+                    .append(", \"invocations\": ").append(p.invocations)
+                    .append(", \"wallSeconds\": ").append(number(seconds(p.wallNanos)))
+                    .append(", \"cpuSeconds\": ").append(number(seconds(p.cpuNanos)))
+                    .append(", \"records\": ").append(p.records)
+                    .append(", \"bytes\": ").append(p.bytes)
+                    .append(", \"recordsPerSecond\": ").append(number(rate(p.records, p.wallNanos)))
+                    .append(", \"bytesPerSecond\": ").append(number(rate(p.bytes, p.wallNanos)))
+                    .append(", \"peakHeapBytes\": ").append(p.peakHeapBytes).append('}');
+            separator = ",\n";
+        }
+        sb.append("\n  ],\n");
+        sb.append("  \"files\": [");
+        separator = "\n";
+        for (FileMetrics f : files) {
+            sb.append(separator).append("    {\"group\": ").append(string(f.group))
+                    .append(", \"name\": ").append(string(f.name))
+                    .append(", \"streamed\": ").append(f.streamed)
+                    .append(", \"compressedBytes\": ").append(f.compressedBytes)
+                    .append(", \"decompressedBytes\": ").append(f.decompressedBytes)
+                    .append(", \"peaks\": ").append(f.peaks)
+                    .append(", \"overlaps\": ").append(f.overlaps)
+                    .append(", \"skippedScaffoldPeaks\": ").append(f.skippedScaffoldPeaks)
+                    .append(", \"inflateSeconds\": ").append(number(seconds(f.inflateNanos)))
+                    .append(", \"parseSeconds\": ").append(number(seconds(f.parseNanos)))
+                    .append(", \"overlapSeconds\": ").append(number(seconds(f.overlapNanos)))
+                    .append(", \"wallSeconds\": ").append(number(seconds(f.wallNanos)))
+                    .append(", \"cpuSeconds\": ").append(number(seconds(f.cpuNanos)))
+                    .append(", \"peaksPerSecond\": ").append(number(rate(f.peaks, f.wallNanos)))
+                    .append(", \"bytesPerSecond\": ").append(number(rate(f.compressedBytes, f.wallNanos))).append('}');
+            separator = ",\n";
+        }
+        sb.append("\n  ]\n}\n");
+        write(file, sb.toString());
+    }
+
+    /**
+     * Write the summary in the Prometheus text exposition format. All metrics are gauges with the prefix
+     * {@code npi_}; phases are labeled with {@code phase}, files with {@code group} and {@code file}.
+     */
+    public synchronized void writePrometheus(File file) throws IOException {
+        long wall = System.nanoTime() - startNanos;
+        long cpu = processCpuNanos() - startCpu;
+        StringBuilder sb = new StringBuilder();
+        gauge(sb, "npi_run_wall_seconds", "Wall time of the run.");
+        sb.append("npi_run_wall_seconds ").append(number(seconds(wall))).append('\n');
+        gauge(sb, "npi_run_cpu_seconds", "CPU time of the run.");
+        sb.append("npi_run_cpu_seconds ").append(number(seconds(cpu))).append('\n');
+        gauge(sb, "npi_run_peak_heap_bytes", "Highest heap use of the run.");
+        sb.append("npi_run_peak_heap_bytes ").append(peakHeapBytes()).append('\n');
+
+        phaseGauge(sb, "wall_seconds", "Wall time of a phase.", p -> number(seconds(p.wallNanos)));
+        phaseGauge(sb, "cpu_seconds", "CPU time of the process during a phase.", p -> number(seconds(p.cpuNanos)));
+        phaseGauge(sb, "records", "Records (peaks, elements, files) processed in a phase.", p -> Long.toString(p.records));
+        phaseGauge(sb, "bytes", "Bytes processed in a phase.", p -> Long.toString(p.bytes));
+        phaseGauge(sb, "records_per_second", "Records per second of wall time of a phase.",
+                p -> number(rate(p.records, p.wallNanos)));
+        phaseGauge(sb, "bytes_per_second", "Bytes per second of wall time of a phase.",
+                p -> number(rate(p.bytes, p.wallNanos)));
+        phaseGauge(sb, "peak_heap_bytes", "Highest heap use during a phase.", p -> Long.toString(p.peakHeapBytes));
+
+        fileGauge(sb, "compressed_bytes", "Size of a narrowPeak file.", f -> Long.toString(f.compressedBytes));
+        fileGauge(sb, "peaks", "Peaks of a narrowPeak file.", f -> Long.toString(f.peaks));
+        fileGauge(sb, "overlaps", "Overlaps of the peaks of a narrowPeak file with elements.",
+                f -> Long.toString(f.overlaps));
+        fileGauge(sb, "skipped_scaffold_peaks", "Peaks of a narrowPeak file on scaffolds that were skipped.",
+                f -> Long.toString(f.skippedScaffoldPeaks));
+        fileGauge(sb, "inflate_seconds", "Time spent decompressing a narrowPeak file.",
+                f -> number(seconds(f.inflateNanos)));
+        fileGauge(sb, "parse_seconds", "Time spent parsing a narrowPeak file.", f -> number(seconds(f.parseNanos)));
+        fileGauge(sb, "overlap_seconds", "Time spent intersecting the peaks of a narrowPeak file with elements.",
+                f -> number(seconds(f.overlapNanos)));
+        fileGauge(sb, "wall_seconds", "Wall time of a narrowPeak file.", f -> number(seconds(f.wallNanos)));
+        fileGauge(sb, "cpu_seconds", "CPU time of the thread that read a narrowPeak file.",
+                f -> number(seconds(f.cpuNanos)));
+        fileGauge(sb, "peaks_per_second", "Peaks per second of wall time of a narrowPeak file.",
+                f -> number(rate(f.peaks, f.wallNanos)));
+        write(file, sb.toString());
+    }
+
+    private void phaseGauge(StringBuilder sb, String name, String help, java.util.function.Function<Phase, String> value) {
+        gauge(sb, "npi_phase_" + name, help);
+        for (Phase p : phases.values()) {
+            sb.append("npi_phase_").append(name).append("{phase=").append(label(p.name)).append("} ")
+                    .append(value.apply(p)).append('\n');
+        }
+    }
+
+    private void fileGauge(StringBuilder sb, String name, String help, java.util.function.Function<FileMetrics, String> value) {
+        if (files.isEmpty()) {
+            return;
+        }
+        gauge(sb, "npi_file_" + name, help);
+        for (FileMetrics f : files) {
+            sb.append("npi_file_").append(name).append("{group=").append(label(f.group)).append(",file=")
+                    .append(label(f.name)).append("} ").append(value.apply(f)).append('\n');
+        }
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+    }
+
+    private static String number(double v) {
+        return String.format(Locale.ROOT, "%.6f", v);
+    }
+
+    private static String label(String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+    private static String string(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /** Write a file atomically, so that a collector never reads half a file. */
+    private static void write(File file, String contents) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            out.write(contents);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
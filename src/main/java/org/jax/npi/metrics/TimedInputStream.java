@@ -0,0 +1,60 @@
+package org.jax.npi.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Measures the time spent in reading from a stream and counts the bytes, e.g., to separate the time of
+ * decompressing a file from the time of parsing it. Reads should be done in blocks, since every read is
+ * timed.
+ */
+public class TimedInputStream extends FilterInputStream {
+    private long nanos = 0;
+    private long bytes = 0;
+
+    public TimedInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = in.read();
+        nanos += System.nanoTime() - start;
+        if (b >= 0) {
+            bytes++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int n = in.read(b, off, len);
+        nanos += System.nanoTime() - start;
+        if (n > 0) {
+            bytes += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long start = System.nanoTime();
+        long skipped = in.skip(n);
+        nanos += System.nanoTime() - start;
+        bytes += skipped;
+        return skipped;
+    }
+
+    /** @return time spent in reading so far */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /** @return number of bytes read so far */
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,70 @@
+package org.jax.npi.server;
+
+import java.util.Arrays;
+
+/**
+ * The regions of a query, in columns. A region is given either as {@code chr1:1000-2000} or as the first
+ * three fields of a BED line ({@code chr1 1000 2000 ...}, separated by tabs or spaces); empty lines and
+ * {@code #}, {@code track} and {@code browser} lines are skipped.
+ */
+final class Regions {
+    final String[] chromosomes;
+    final int[] begins;
+    final int[] ends;
+
+    private Regions(String[] chromosomes, int[] begins, int[] ends) {
+        this.chromosomes = chromosomes;
+        this.begins = begins;
+        this.ends = ends;
+    }
+
+    int size() {
+        return begins.length;
+    }
+
+    /** @return the region as {@code chr1:1000-2000} */
+    String label(int i) {
+        return chromosomes[i] + ":" + begins[i] + "-" + ends[i];
+    }
+
+    /**
+     * @param text the regions, one per line
+     * @throws IllegalArgumentException if a region cannot be parsed or is empty
+     */
+    static Regions parse(String text) {
+        String[] lines = text.split("\r?\n");
+        String[] chromosomes = new String[lines.length];
+        int[] begins = new int[lines.length];
+        int[] ends = new int[lines.length];
+        int n = 0;
+        for (String line : lines) {
+            String region = line.trim();
+            if (region.isEmpty() || region.startsWith("#") || region.startsWith("track") || region.startsWith("browser")) {
+                continue;
+            }
+            String[] fields = region.split("\\s+");
+            if (fields.length == 1) {
+                int colon = region.lastIndexOf(':');
+                int dash = region.indexOf('-', colon + 1);
+                if (colon <= 0 || dash < 0) {
+                    throw new IllegalArgumentException("Not a region: " + region);
+                }
+                fields = new String[]{region.substring(0, colon), region.substring(colon + 1, dash), region.substring(dash + 1)};
+            } else if (fields.length < 3) {
+                throw new IllegalArgumentException("Not a region: " + region);
+            }
+            chromosomes[n] = fields[0];
+            try {
+                begins[n] = Integer.parseInt(fields[1]);
+                ends[n] = Integer.parseInt(fields[2]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a region: " + region);
+            }
+            if (begins[n] < 0 || ends[n] <= begins[n]) {
+                throw new IllegalArgumentException("Empty region: " + region);
+            }
+            n++;
+        }
+        return new Regions(Arrays.copyOf(chromosomes, n), Arrays.copyOf(begins, n), Arrays.copyOf(ends, n));
+    }
+}
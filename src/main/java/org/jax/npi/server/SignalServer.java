@@ -0,0 +1,262 @@
+package org.jax.npi.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jax.npi.analysis.PeakIndex;
+import org.jax.npi.analysis.SignalMatrix;
+import org.jax.npi.data.ElementTable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Answers queries for the H3K27ac signal over regions with JSON over HTTP, from the current {@link Snapshot}
+ * of a {@link SnapshotLoader}. Queries are answered on a pool of threads; each query uses the snapshot that
+ * was current when it arrived. The regions are given in the {@code regions} parameter (separated by commas)
+ * or, with POST, in the body (one per line), see {@link Regions}. Since the comma separates regions, positions
+ * in the parameter are written without thousands separators ({@code chr1:1000-2000}, not
+ * {@code chr1:1,000-2,000}); a query with thousands separators is rejected with a message that says so.
+ *
+ * <pre>
+ *     GET  /experiments                       the experiments and groups of elements
+ *     GET  /signal?regions=chr1:1000-2000     mean signal per 1000 bp and maximum signal of each region in
+ *          [&amp;experiments=ENCFF757CYP,...]     each experiment (default: all)
+ *     GET  /elements?group=enhancer&amp;regions=...  the elements that overlap each region, with the signal
+ *                                             averaged over the experiments (as in h3k27ac-enhancer.txt)
+ *     POST /reload                            read the data directory again
+ * </pre>
+ */
+public class SignalServer {
+    /** A digit, a comma and three digits, as in {@code chr1:1,000-2,000}. */
+    private static final Pattern THOUSANDS_SEPARATOR = Pattern.compile("\\d,\\d{3}(\\D|$)");
+
+    private final SnapshotLoader loader;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /** A query that writes its answer as JSON. */
+    private interface Query {
+        void answer(Snapshot snapshot, Map<String, String> parameters, String body, StringBuilder json);
+    }
+
+    /**
+     * @param address address and port to listen on; port 0 picks a free port
+     * @param threads number of queries that are answered at the same time
+     */
+    public SignalServer(SnapshotLoader loader, InetSocketAddress address, int threads) throws IOException {
+        this.loader = loader;
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "query");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/experiments", exchange -> handle(exchange, false, this::experiments));
+        server.createContext("/signal", exchange -> handle(exchange, false, this::signal));
+        server.createContext("/elements", exchange -> handle(exchange, false, this::elements));
+        server.createContext("/reload", exchange -> handle(exchange, true, (snapshot, parameters, body, json) ->
+                experiments(loader.reload(), parameters, body, json)));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /** Stop accepting queries and wait up to {@code delaySeconds} for the running ones. */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdownNow();
+    }
+
+    /** @return the port the server listens on */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange, boolean postOnly, Query query) throws IOException {
+        int status = 200;
+        StringBuilder json = new StringBuilder();
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("POST") && (postOnly || !method.equals("GET"))) {
+                status = 405;
+                error(json, "Method " + method + " is not allowed");
+            } else {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+                query.answer(loader.getSnapshot(), parameters, body, json);
+            }
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            json.setLength(0);
+            error(json, e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.printf("[ERROR] Could not answer %s: %s\n", exchange.getRequestURI(), e);
+            status = 500;
+            json.setLength(0);
+            error(json, e.toString());
+        }
+        byte[] response = json.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private static Map<String, String> parameters(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            parameters.put(name, value);
+        }
+        return parameters;
+    }
+
+    /** @return the regions of the {@code regions} parameter and of the body */
+    private static Regions regions(Map<String, String> parameters, String body) {
+        String parameter = parameters.getOrDefault("regions", "");
+        Regions regions;
+        try {
+            regions = Regions.parse(parameter.replace(',', '\n') + "\n" + body);
+        } catch (IllegalArgumentException e) {
+            if (THOUSANDS_SEPARATOR.matcher(parameter).find()) {
+                throw new IllegalArgumentException("Regions are separated by commas, write positions without "
+                        + "thousands separators (chr1:1000-2000, not chr1:1,000-2,000): " + parameter);
+            }
+            throw e;
+        }
+        if (regions.size() == 0) {
+            throw new IllegalArgumentException("No regions given");
+        }
+        return regions;
+    }
+
+    private void experiments(Snapshot snapshot, Map<String, String> parameters, String body, StringBuilder json) {
+        json.append("{\"loaded\": ").append(snapshot.getLoadedMillis()).append(", \"experiments\": [");
+        String separator = "";
+        for (PeakIndex experiment : snapshot.getExperiments()) {
+            json.append(separator).append("{\"name\": ");
+            string(json, experiment.getName());
+            json.append(", \"peaks\": ").append(experiment.size()).append('}');
+            separator = ", ";
+        }
+        json.append("], \"groups\": [");
+        separator = "";
+        for (Map.Entry<String, Snapshot.ElementGroup> group : snapshot.getGroups().entrySet()) {
+            json.append(separator).append("{\"name\": ");
+            string(json, group.getKey());
+            json.append(", \"elements\": ").append(group.getValue().getElements().getElementTable().size()).append('}');
+            separator = ", ";
+        }
+        json.append("]}");
+    }
+
+    private void signal(Snapshot snapshot, Map<String, String> parameters, String body, StringBuilder json) {
+        Regions regions = regions(parameters, body);
+        String names = parameters.get("experiments");
+        SignalMatrix matrix;
+        if (names == null || names.isEmpty()) {
+            matrix = snapshot.getSignals().query(regions.chromosomes, regions.begins, regions.ends);
+        } else {
+            List<String> experiments = new ArrayList<>();
+            for (String name : names.split(",")) {
+                experiments.add(name.trim());
+            }
+            matrix = snapshot.getSignals().query(regions.chromosomes, regions.begins, regions.ends, experiments);
+        }
+        json.append("{\"experiments\": [");
+        for (int j = 0; j < matrix.getNumberOfExperiments(); j++) {
+            json.append(j > 0 ? ", " : "");
+            string(json, matrix.getExperimentName(j));
+        }
+        json.append("], \"regions\": [");
+        for (int i = 0; i < regions.size(); i++) {
+            json.append(i > 0 ? ",\n" : "\n").append("{\"region\": ");
+            string(json, regions.label(i));
+            json.append(", \"mean\": [");
+            for (int j = 0; j < matrix.getNumberOfExperiments(); j++) {
+                json.append(j > 0 ? ", " : "").append(matrix.getMean(i, j));
+            }
+            json.append("], \"max\": [");
+            for (int j = 0; j < matrix.getNumberOfExperiments(); j++) {
+                json.append(j > 0 ? ", " : "").append(matrix.getMax(i, j));
+            }
+            json.append("]}");
+        }
+        json.append("]}");
+    }
+
+    private void elements(Snapshot snapshot, Map<String, String> parameters, String body, StringBuilder json) {
+        String groupName = parameters.getOrDefault("group", "enhancer");
+        Snapshot.ElementGroup group = snapshot.getGroups().get(groupName);
+        if (group == null) {
+            throw new IllegalArgumentException("Unknown group: " + groupName);
+        }
+        ElementTable table = group.getElements().getElementTable();
+        Regions regions = regions(parameters, body);
+        json.append("{\"group\": ");
+        string(json, groupName);
+        json.append(", \"experiments\": ").append(table.getNumberOfExperiments()).append(", \"regions\": [");
+        int[][] ids = {new int[16]};
+        for (int i = 0; i < regions.size(); i++) {
+            int[] count = {0};
+            group.getElements().forEachOverlappingElement(regions.chromosomes[i], regions.begins[i], regions.ends[i], id -> {
+                if (count[0] == ids[0].length) {
+                    ids[0] = Arrays.copyOf(ids[0], 2 * count[0]);
+                }
+                ids[0][count[0]++] = id;
+            });
+            Arrays.sort(ids[0], 0, count[0]);
+            json.append(i > 0 ? ",\n" : "\n").append("{\"region\": ");
+            string(json, regions.label(i));
+            json.append(", \"elements\": [");
+            for (int k = 0; k < count[0]; k++) {
+                int id = ids[0][k];
+                json.append(k > 0 ? ", " : "").append("{\"chromosome\": ");
+                string(json, regions.chromosomes[i]);
+                json.append(", \"begin\": ").append(table.getBegin(id))
+                        .append(", \"end\": ").append(table.getEnd(id))
+                        .append(", \"cgi\": ").append(table.isCpG(id))
+                        .append(", \"mean\": ").append(group.getMean(id))
+                        .append(", \"max\": ").append(group.getMax(id)).append('}');
+            }
+            json.append("]}");
+        }
+        json.append("]}");
+    }
+
+    private static void error(StringBuilder json, String message) {
+        json.append("{\"error\": ");
+        string(json, message == null ? "" : message);
+        json.append('}');
+    }
+
+    private static void string(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,73 @@
+package org.jax.npi.server;
+
+import org.jax.npi.analysis.ChromosomeWithEnhancers;
+import org.jax.npi.analysis.PeakIndex;
+import org.jax.npi.analysis.RegionSignalQuery;
+
+import java.util.*;
+
+/**
+ * Everything the {@link SignalServer} answers queries from: the indexed peaks of each experiment in
+ * {@code data/} and, for each group of elements, the elements with the signal of all experiments. A snapshot
+ * is immutable; when the data change, {@link SnapshotLoader} builds a new one and the server switches to it,
+ * so that a query that already started still sees a consistent set of experiments.
+ */
+public final class Snapshot {
+    /** The elements of one group with the signal of the experiments of the snapshot. */
+    public static final class ElementGroup {
+        private final ChromosomeWithEnhancers elements;
+        /** Mean over the experiments of the mean signal per 1000 bp of each element. */
+        private final double[] means;
+        /** Mean over the experiments of the maximum signal of each element. */
+        private final double[] maxima;
+
+        ElementGroup(ChromosomeWithEnhancers elements) {
+            this.elements = elements;
+            this.means = elements.getMeanH3K27AcPer1000();
+            this.maxima = elements.getMeanMaxH3K27ac();
+        }
+
+        public ChromosomeWithEnhancers getElements() {
+            return elements;
+        }
+
+        public double getMean(int id) {
+            return means[id];
+        }
+
+        public double getMax(int id) {
+            return maxima[id];
+        }
+    }
+
+    /** The indexed peaks of the experiments. */
+    private final RegionSignalQuery signals;
+    private final Map<String, ElementGroup> groups;
+    /** Time at which the snapshot was built (ms since the epoch). */
+    private final long loadedMillis;
+
+    Snapshot(List<PeakIndex> experiments, Map<String, ElementGroup> groups) {
+        this.signals = new RegionSignalQuery(experiments);
+        this.groups = Collections.unmodifiableMap(new LinkedHashMap<>(groups));
+        this.loadedMillis = System.currentTimeMillis();
+    }
+
+    /** @return the experiments, in the order of the listing of the data directory */
+    public List<PeakIndex> getExperiments() {
+        return signals.getExperiments();
+    }
+
+    /** @return the signal of the experiments over regions */
+    public RegionSignalQuery getSignals() {
+        return signals;
+    }
+
+    /** @return the groups of elements ("enhancer", "promoter") */
+    public Map<String, ElementGroup> getGroups() {
+        return groups;
+    }
+
+    public long getLoadedMillis() {
+        return loadedMillis;
+    }
+}
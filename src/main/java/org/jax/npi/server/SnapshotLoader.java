@@ -0,0 +1,201 @@
+package org.jax.npi.server;
+
+import org.jax.npi.analysis.ChromosomeWithEnhancers;
+import org.jax.npi.analysis.PeakIndex;
+import org.jax.npi.data.ExperimentResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the narrowPeak files of a directory into a {@link Snapshot} and keeps it up to date. A file is read
+ * only once: {@link #reload()} reuses the peaks and element results of all files whose size and modification
+ * time did not change, reads new and changed files (on several threads), and drops removed ones. With
+ * {@link #watch(long)}, the directory is watched and reloaded automatically when files change.
+ */
+public class SnapshotLoader {
+    /** Wait this long after the last change of the directory before reloading, so that copies can finish. */
+    public static final long DEFAULT_QUIET_MILLIS = 2_000;
+
+    private final File dataDirectory;
+    /** The elements of each group, without experiments; used to compute the results of the files. */
+    private final Map<String, ChromosomeWithEnhancers> groups;
+    /** Number of narrowPeak files read at the same time. */
+    private final int threads;
+    /** The files of the current snapshot, by file name. */
+    private Map<String, LoadedFile> files = new HashMap<>();
+    private volatile Snapshot snapshot;
+
+    /** The peaks of one narrowPeak file and its results for each group of elements. */
+    private static final class LoadedFile {
+        final long size;
+        final long mtime;
+        final PeakIndex peaks;
+        final Map<String, ExperimentResult> results;
+
+        LoadedFile(long size, long mtime, PeakIndex peaks, Map<String, ExperimentResult> results) {
+            this.size = size;
+            this.mtime = mtime;
+            this.peaks = peaks;
+            this.results = results;
+        }
+
+        boolean isCurrent(File file) {
+            return file.length() == size && file.lastModified() == mtime;
+        }
+    }
+
+    /**
+     * @param dataDirectory directory with the narrowPeak files (.bed.gz)
+     * @param groups the elements of each group (e.g., "enhancer", "promoter"), without experiments
+     * @param threads number of narrowPeak files to read at the same time
+     */
+    public SnapshotLoader(File dataDirectory, Map<String, ChromosomeWithEnhancers> groups, int threads) {
+        this.dataDirectory = dataDirectory;
+        this.groups = new LinkedHashMap<>(groups);
+        this.threads = Math.max(1, threads);
+    }
+
+    /** @return the current snapshot, null before the first {@link #reload()} */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Bring the snapshot up to date with the narrowPeak files in the data directory. A file that cannot be
+     * read (e.g., because it is still being written) is skipped with a warning, or its previous version is
+     * kept, and is tried again on the next reload.
+     * @return the new snapshot
+     */
+    public synchronized Snapshot reload() {
+        long start = System.currentTimeMillis();
+        File[] listing = dataDirectory.listFiles((dir, name) -> name.endsWith(".bed.gz"));
+        if (listing == null) {
+            throw new RuntimeException("Could not list " + dataDirectory.getAbsolutePath());
+        }
+        // keep the order of the listing, in which NarrowPeakInter adds the experiments, so that the averages
+        // over the experiments are the same to the last digit
+        Map<String, LoadedFile> loaded = new LinkedHashMap<>();
+        Map<String, Future<LoadedFile>> pending = new LinkedHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (File file : listing) {
+                LoadedFile previous = files.get(file.getName());
+                if (previous != null && previous.isCurrent(file)) {
+                    loaded.put(file.getName(), previous);
+                } else {
+                    loaded.put(file.getName(), null);
+                    pending.put(file.getName(), executor.submit(() -> load(file)));
+                }
+            }
+            for (Map.Entry<String, Future<LoadedFile>> entry : pending.entrySet()) {
+                try {
+                    loaded.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    LoadedFile previous = files.get(entry.getKey());
+                    System.err.printf("[WARNING] Could not load %s (%s)%s.\n", entry.getKey(), e.getCause(),
+                            previous != null ? ", keeping the previous version" : "");
+                    loaded.put(entry.getKey(), previous);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading narrowPeak files");
+        } finally {
+            executor.shutdownNow();
+        }
+        loaded.values().removeIf(Objects::isNull);
+        files = loaded;
+        snapshot = buildSnapshot(loaded.values());
+        long peaks = loaded.values().stream().mapToLong(f -> f.peaks.size()).sum();
+        System.out.printf("[INFO] Loaded %d experiments with %d peaks (%d read again) in %.1f s.\n",
+                loaded.size(), peaks, pending.size(), (System.currentTimeMillis() - start) / 1000.0);
+        return snapshot;
+    }
+
+    /** Read one narrowPeak file and compute its results for each group. */
+    private LoadedFile load(File file) throws IOException {
+        long size = file.length();
+        long mtime = file.lastModified();
+        PeakIndex peaks = PeakIndex.read(file, null);
+        Map<String, ExperimentResult> results = new HashMap<>();
+        for (Map.Entry<String, ChromosomeWithEnhancers> group : groups.entrySet()) {
+            results.put(group.getKey(), group.getValue().computeResult(file.getName(), peaks.reader()));
+        }
+        return new LoadedFile(size, mtime, peaks, results);
+    }
+
+    private Snapshot buildSnapshot(Collection<LoadedFile> loaded) {
+        List<PeakIndex> experiments = new ArrayList<>();
+        for (LoadedFile file : loaded) {
+            experiments.add(file.peaks);
+        }
+        Map<String, Snapshot.ElementGroup> elementGroups = new LinkedHashMap<>();
+        for (Map.Entry<String, ChromosomeWithEnhancers> group : groups.entrySet()) {
+            ChromosomeWithEnhancers elements = group.getValue().withoutExperiments();
+            for (LoadedFile file : loaded) {
+                elements.addResult(file.results.get(group.getKey()));
+            }
+            elementGroups.put(group.getKey(), new Snapshot.ElementGroup(elements));
+        }
+        return new Snapshot(experiments, elementGroups);
+    }
+
+    /**
+     * Watch the data directory on a daemon thread and reload once no file has changed for
+     * {@code quietMillis}.
+     * @return the thread
+     */
+    public Thread watch(long quietMillis) throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        dataDirectory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(() -> {
+            try (WatchService w = watcher) {
+                while (!Thread.currentThread().isInterrupted()) {
+                    WatchKey key = w.take();
+                    boolean changed = isRelevant(key);
+                    // collect further changes until the directory has been quiet for a while
+                    while ((key = w.poll(quietMillis, TimeUnit.MILLISECONDS)) != null) {
+                        changed |= isRelevant(key);
+                    }
+                    if (changed) {
+                        try {
+                            reload();
+                        } catch (RuntimeException e) {
+                            System.err.printf("[ERROR] Could not reload %s: %s\n", dataDirectory, e.getMessage());
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | ClosedWatchServiceException e) {
+                System.err.printf("[ERROR] Stopped watching %s: %s\n", dataDirectory, e.getMessage());
+            }
+        }, "reload");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /** @return true if one of the events of the key concerns a narrowPeak file */
+    private static boolean isRelevant(WatchKey key) {
+        boolean relevant = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                relevant = true;
+            } else {
+                relevant |= event.context().toString().endsWith(".bed.gz");
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+}
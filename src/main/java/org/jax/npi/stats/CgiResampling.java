@@ -0,0 +1,357 @@
+package org.jax.npi.stats;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * Permutation test and bootstrap confidence intervals for the difference (CGI minus non-CGI) of the mean and of
+ * the median signal of two groups of elements.
+ *
+ * The permutation test draws the CGI labels anew, keeping the size of both groups, and counts how often the
+ * difference is at least as large (in absolute value) as the observed one. The bootstrap resamples each group
+ * with replacement and takes the percentiles of the differences as the confidence interval.
+ *
+ * Each permutation and each resample has its own {@link SplittableRandom}, split in a fixed order from a
+ * generator with the given seed, and its result is stored by its number. The replicates are computed by a
+ * {@link ForkJoinPool}, but the results depend only on the seed, not on the number of threads.
+ */
+public final class CgiResampling {
+    /** Number of replicates that a task computes without splitting. */
+    private static final int LEAF = 8;
+
+    private final double[] cgi;
+    private final double[] nonCgi;
+    /** The values of both groups, CGI first. */
+    private final double[] all;
+
+    /**
+     * @param cgi values of the CGI elements
+     * @param nonCgi values of the non-CGI elements
+     * @throws IllegalArgumentException if one of the groups is empty
+     */
+    public CgiResampling(double[] cgi, double[] nonCgi) {
+        if (cgi.length == 0 || nonCgi.length == 0) {
+            throw new IllegalArgumentException(String.format("Need values in both groups, got %d CGI and %d non-CGI",
+                    cgi.length, nonCgi.length));
+        }
+        this.cgi = cgi.clone();
+        this.nonCgi = nonCgi.clone();
+        this.all = new double[cgi.length + nonCgi.length];
+        System.arraycopy(cgi, 0, all, 0, cgi.length);
+        System.arraycopy(nonCgi, 0, all, cgi.length, nonCgi.length);
+    }
+
+    /**
+     * @param permutations number of label permutations (0: no permutation test)
+     * @param resamples number of bootstrap resamples (0: no confidence intervals)
+     * @param seed seed of the random generators
+     * @param threads number of threads of the fork-join pool
+     */
+    public Result run(int permutations, int resamples, long seed, int threads) {
+        if (permutations < 0 || resamples < 0) {
+            throw new IllegalArgumentException("Negative number of replicates");
+        }
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom[] permutationRandoms = split(root, permutations);
+        SplittableRandom[] resampleRandoms = split(root, resamples);
+        double[] permutedMeans = new double[permutations];
+        double[] permutedMedians = new double[permutations];
+        double[] resampledMeans = new double[resamples];
+        double[] resampledMedians = new double[resamples];
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            pool.invoke(new Replicates(0, permutations, () -> {
+                double[] scratch = new double[all.length];
+                return (i, diff) -> permute(permutationRandoms[i], scratch, diff);
+            }, permutedMeans, permutedMedians));
+            pool.invoke(new Replicates(0, resamples, () -> {
+                double[] a = new double[cgi.length];
+                double[] b = new double[nonCgi.length];
+                return (i, diff) -> resample(resampleRandoms[i], a, b, diff);
+            }, resampledMeans, resampledMedians));
+        } finally {
+            pool.shutdownNow();
+        }
+        double meanDifference = mean(cgi, 0, cgi.length) - mean(nonCgi, 0, nonCgi.length);
+        double medianDifference = median(cgi.clone(), 0, cgi.length) - median(nonCgi.clone(), 0, nonCgi.length);
+        Arrays.sort(resampledMeans);
+        Arrays.sort(resampledMedians);
+        return new Result(cgi.length, nonCgi.length, permutations, resamples, seed,
+                meanDifference, pValue(permutedMeans, meanDifference), resampledMeans,
+                medianDifference, pValue(permutedMedians, medianDifference), resampledMedians);
+    }
+
+    /**
+     * Draw the CGI group as a random subset of all values (a partial Fisher-Yates shuffle of a copy of the
+     * values, so that the result does not depend on earlier replicates).
+     */
+    private void permute(SplittableRandom random, double[] scratch, double[] diff) {
+        int n = scratch.length;
+        int k = cgi.length;
+        System.arraycopy(all, 0, scratch, 0, n);
+        for (int i = 0; i < k; i++) {
+            int j = i + random.nextInt(n - i);
+            double t = scratch[i];
+            scratch[i] = scratch[j];
+            scratch[j] = t;
+        }
+        diff[0] = mean(scratch, 0, k) - mean(scratch, k, n);
+        diff[1] = median(scratch, 0, k) - median(scratch, k, n);
+    }
+
+    /** Resample both groups with replacement. */
+    private void resample(SplittableRandom random, double[] a, double[] b, double[] diff) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] = cgi[random.nextInt(cgi.length)];
+        }
+        for (int i = 0; i < b.length; i++) {
+            b[i] = nonCgi[random.nextInt(nonCgi.length)];
+        }
+        diff[0] = mean(a, 0, a.length) - mean(b, 0, b.length);
+        diff[1] = median(a, 0, a.length) - median(b, 0, b.length);
+    }
+
+    private static SplittableRandom[] split(SplittableRandom root, int n) {
+        SplittableRandom[] randoms = new SplittableRandom[n];
+        for (int i = 0; i < n; i++) {
+            randoms[i] = root.split();
+        }
+        return randoms;
+    }
+
+    /** @return two-sided p-value, with the observed value counted as one of the permutations */
+    private static double pValue(double[] permuted, double observed) {
+        if (permuted.length == 0) {
+            return Double.NaN;
+        }
+        int extreme = 0;
+        for (double d : permuted) {
+            if (Math.abs(d) >= Math.abs(observed)) {
+                extreme++;
+            }
+        }
+        return (extreme + 1.0) / (permuted.length + 1.0);
+    }
+
+    private static double mean(double[] x, int from, int to) {
+        double sum = 0.0;
+        for (int i = from; i < to; i++) {
+            sum += x[i];
+        }
+        return sum / (to - from);
+    }
+
+    /** @return median of x[from,to); reorders the values */
+    static double median(double[] x, int from, int to) {
+        int n = to - from;
+        int mid = from + n / 2;
+        select(x, from, to, mid);
+        if (n % 2 == 1) {
+            return x[mid];
+        }
+        double lower = x[from];
+        for (int i = from + 1; i < mid; i++) {
+            lower = Math.max(lower, x[i]);
+        }
+        return (lower + x[mid]) / 2;
+    }
+
+    /**
+     * Reorder x[from,to) so that x[k] is the value that would be there if the range were sorted, with smaller
+     * or equal values before it and greater or equal values after it (Hoare's selection with a median-of-three
+     * pivot).
+     */
+    private static void select(double[] x, int from, int to, int k) {
+        int lo = from;
+        int hi = to - 1;
+        while (hi > lo) {
+            int m = (lo + hi) >>> 1;
+            if (x[m] < x[lo]) {
+                swap(x, m, lo);
+            }
+            if (x[hi] < x[lo]) {
+                swap(x, hi, lo);
+            }
+            if (x[hi] < x[m]) {
+                swap(x, hi, m);
+            }
+            double pivot = x[m];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (x[i] < pivot) {
+                    i++;
+                }
+                while (x[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(x, i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static void swap(double[] x, int i, int j) {
+        double t = x[i];
+        x[i] = x[j];
+        x[j] = t;
+    }
+
+    /** Computes one replicate into {@code diff[0]} (mean difference) and {@code diff[1]} (median difference). */
+    private interface Replicate {
+        void compute(int i, double[] diff);
+    }
+
+    /** Computes replicates [from,to), splitting the range in halves down to {@link #LEAF} replicates. */
+    private static final class Replicates extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final Supplier<Replicate> factory;
+        private final double[] means;
+        private final double[] medians;
+
+        Replicates(int from, int to, Supplier<Replicate> factory, double[] means, double[] medians) {
+            this.from = from;
+            this.to = to;
+            this.factory = factory;
+            this.means = means;
+            this.medians = medians;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Replicates(from, mid, factory, means, medians),
+                        new Replicates(mid, to, factory, means, medians));
+                return;
+            }
+            if (from == to) {
+                return;
+            }
+            Replicate replicate = factory.get(); // with its own scratch arrays
+            double[] diff = new double[2];
+            for (int i = from; i < to; i++) {
+                replicate.compute(i, diff);
+                means[i] = diff[0];
+                medians[i] = diff[1];
+            }
+        }
+    }
+
+    /** Observed differences (CGI minus non-CGI), permutation p-values and bootstrap confidence intervals. */
+    public static final class Result {
+        private final int cgiCount;
+        private final int nonCgiCount;
+        private final int permutations;
+        private final int resamples;
+        private final long seed;
+        private final double meanDifference;
+        private final double meanPValue;
+        /** Sorted bootstrap differences of the means. */
+        private final double[] resampledMeans;
+        private final double medianDifference;
+        private final double medianPValue;
+        /** Sorted bootstrap differences of the medians. */
+        private final double[] resampledMedians;
+
+        Result(int cgiCount, int nonCgiCount, int permutations, int resamples, long seed,
+               double meanDifference, double meanPValue, double[] resampledMeans,
+               double medianDifference, double medianPValue, double[] resampledMedians) {
+            this.cgiCount = cgiCount;
+            this.nonCgiCount = nonCgiCount;
+            this.permutations = permutations;
+            this.resamples = resamples;
+            this.seed = seed;
+            this.meanDifference = meanDifference;
+            this.meanPValue = meanPValue;
+            this.resampledMeans = resampledMeans;
+            this.medianDifference = medianDifference;
+            this.medianPValue = medianPValue;
+            this.resampledMedians = resampledMedians;
+        }
+
+        public int getCgiCount() {
+            return cgiCount;
+        }
+
+        public int getNonCgiCount() {
+            return nonCgiCount;
+        }
+
+        public int getPermutations() {
+            return permutations;
+        }
+
+        public int getResamples() {
+            return resamples;
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        /** @return mean of the CGI values minus mean of the non-CGI values */
+        public double getMeanDifference() {
+            return meanDifference;
+        }
+
+        /** @return two-sided permutation p-value of the mean difference, NaN without permutations */
+        public double getMeanPValue() {
+            return meanPValue;
+        }
+
+        public double getMedianDifference() {
+            return medianDifference;
+        }
+
+        /** @return two-sided permutation p-value of the median difference, NaN without permutations */
+        public double getMedianPValue() {
+            return medianPValue;
+        }
+
+        /**
+         * @param level confidence level, e.g., 0.95
+         * @return lower and upper bound of the bootstrap percentile interval of the mean difference; NaN
+         * without resamples
+         */
+        public double[] getMeanInterval(double level) {
+            return interval(resampledMeans, level);
+        }
+
+        /** @see #getMeanInterval(double) */
+        public double[] getMedianInterval(double level) {
+            return interval(resampledMedians, level);
+        }
+
+        private static double[] interval(double[] sorted, double level) {
+            double alpha = (1.0 - level) / 2;
+            return new double[]{percentile(sorted, alpha), percentile(sorted, 1.0 - alpha)};
+        }
+
+        /** @return the q-th percentile of the sorted values, interpolated between neighbors */
+        private static double percentile(double[] sorted, double q) {
+            if (sorted.length == 0) {
+                return Double.NaN;
+            }
+            double pos = q * (sorted.length - 1);
+            int i = (int) Math.floor(pos);
+            if (i >= sorted.length - 1) {
+                return sorted[sorted.length - 1];
+            }
+            return sorted[i] + (pos - i) * (sorted[i + 1] - sorted[i]);
+        }
+    }
+}
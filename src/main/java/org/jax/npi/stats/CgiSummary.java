@@ -0,0 +1,25 @@
+package org.jax.npi.stats;
+
+/** {@link SignalSummary summaries} of the signal of the CGI and of the non-CGI elements of a set of elements. */
+public final class CgiSummary {
+    private final SignalSummary cgi = new SignalSummary();
+    private final SignalSummary nonCgi = new SignalSummary();
+
+    public void add(boolean isCpG, double value) {
+        (isCpG ? cgi : nonCgi).add(value);
+    }
+
+    /** Add the values summarized by another summary; the other summary is not changed. */
+    public void merge(CgiSummary other) {
+        cgi.merge(other.cgi);
+        nonCgi.merge(other.nonCgi);
+    }
+
+    public SignalSummary getCgi() {
+        return cgi;
+    }
+
+    public SignalSummary getNonCgi() {
+        return nonCgi;
+    }
+}
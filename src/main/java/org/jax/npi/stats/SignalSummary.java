@@ -0,0 +1,91 @@
+package org.jax.npi.stats;
+
+/**
+ * One-pass, mergeable summary of the H3K27ac signal of a set of elements: the number of elements, the number
+ * of elements without signal, and the mean, variance and quantiles of the non-zero values. The mean and
+ * variance are accumulated with Welford's algorithm and merged with the update of Chan et al., the quantiles
+ * are estimated with a {@link TDigest}. The memory does not grow with the number of values, so summaries can
+ * be kept per block of elements or per thread and merged afterwards.
+ */
+public final class SignalSummary {
+    private long count = 0;
+    private long zeros = 0;
+    /** Number, mean and sum of squared deviations from the mean of the non-zero values. */
+    private long n = 0;
+    private double mean = 0.0;
+    private double m2 = 0.0;
+    private final TDigest digest = new TDigest();
+
+    public void add(double value) {
+        count++;
+        if (value == 0.0) {
+            zeros++;
+            return;
+        }
+        n++;
+        double delta = value - mean;
+        mean += delta / n;
+        m2 += delta * (value - mean);
+        digest.add(value);
+    }
+
+    /** Add the values summarized by another summary; the other summary is not changed. */
+    public void merge(SignalSummary other) {
+        count += other.count;
+        zeros += other.zeros;
+        if (other.n == 0) {
+            return;
+        }
+        long total = n + other.n;
+        double delta = other.mean - mean;
+        mean += delta * other.n / total;
+        m2 += other.m2 + delta * delta * ((double) n * other.n / total);
+        n = total;
+        digest.merge(other.digest);
+    }
+
+    /** @return number of values */
+    public long getCount() {
+        return count;
+    }
+
+    /** @return number of values that are zero */
+    public long getZeroCount() {
+        return zeros;
+    }
+
+    public long getNonZeroCount() {
+        return n;
+    }
+
+    /** @return mean of the non-zero values, NaN if there are none */
+    public double getMean() {
+        return n == 0 ? Double.NaN : mean;
+    }
+
+    /** @return sample variance of the non-zero values, NaN if there are fewer than two */
+    public double getVariance() {
+        return n < 2 ? Double.NaN : m2 / (n - 1);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /** @return estimated quantile {@code q} (between 0 and 1) of the non-zero values, NaN if there are none */
+    public double getQuantile(double q) {
+        return digest.quantile(q);
+    }
+
+    public double getMedian() {
+        return getQuantile(0.5);
+    }
+
+    public double getMin() {
+        return digest.getMin();
+    }
+
+    public double getMax() {
+        return digest.getMax();
+    }
+}
@@ -0,0 +1,197 @@
+package org.jax.npi.stats;
+
+import java.util.Arrays;
+
+/**
+ * Merging t-digest (Dunning and Ertl, "Computing extremely accurate quantiles using t-digests") for estimating
+ * quantiles of a stream of values in constant memory. Values are collected in a buffer; when it is full, the
+ * buffer and the centroids are merged in sorted order into at most about {@code compression} centroids. The
+ * size of a centroid is bounded by the k1 scale function {@code k(q) = compression / (2 pi) * asin(2q - 1)},
+ * which keeps the centroids near the tails small, so that quartiles and medians are accurate and extreme
+ * quantiles still reasonable.
+ *
+ * Two digests can be merged, e.g., the digests of the parts of a data set that were summarized on different
+ * threads. The digest depends on the order in which the values were added and the digests merged, so merging
+ * the same partial digests in the same order always gives the same digest.
+ */
+public final class TDigest {
+    public static final double DEFAULT_COMPRESSION = 200;
+
+    private final double compression;
+    /** Means and weights of the centroids, sorted by mean. */
+    private double[] means;
+    private double[] weights;
+    private int centroids = 0;
+    /** Values that have not yet been merged into the centroids. */
+    private final double[] buffer;
+    private int buffered = 0;
+    private double totalWeight = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    public TDigest(double compression) {
+        this.compression = compression;
+        int capacity = (int) Math.ceil(2 * compression) + 10;
+        this.means = new double[capacity];
+        this.weights = new double[capacity];
+        this.buffer = new double[(int) Math.ceil(5 * compression)];
+    }
+
+    public void add(double value) {
+        if (buffered == buffer.length) {
+            compress();
+        }
+        buffer[buffered++] = value;
+        totalWeight++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /** Add all values summarized by another digest; the other digest is not changed. */
+    public void merge(TDigest other) {
+        if (other.totalWeight == 0) {
+            return;
+        }
+        compress();
+        double[] otherBuffer = Arrays.copyOf(other.buffer, other.buffered);
+        Arrays.sort(otherBuffer);
+        double[] ones = new double[otherBuffer.length];
+        Arrays.fill(ones, 1.0);
+        int n = other.centroids + otherBuffer.length;
+        double[] m = new double[n];
+        double[] w = new double[n];
+        mergeSorted(other.means, other.weights, other.centroids, otherBuffer, ones, otherBuffer.length, m, w);
+        double[] mergedMeans = new double[centroids + n];
+        double[] mergedWeights = new double[centroids + n];
+        mergeSorted(means, weights, centroids, m, w, n, mergedMeans, mergedWeights);
+        totalWeight += other.totalWeight;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        collapse(mergedMeans, mergedWeights, centroids + n);
+    }
+
+    /** @return number of values */
+    public long size() {
+        return (long) totalWeight;
+    }
+
+    public double getMin() {
+        return totalWeight == 0 ? Double.NaN : min;
+    }
+
+    public double getMax() {
+        return totalWeight == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * @param q quantile between 0 and 1
+     * @return estimated value of the quantile, interpolated between the centroids; NaN if there are no values
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + q);
+        }
+        compress();
+        if (centroids == 0) {
+            return Double.NaN;
+        }
+        if (centroids == 1) {
+            return means[0];
+        }
+        double index = q * totalWeight;
+        // the values of a centroid are taken to be spread evenly around its mean
+        if (index < weights[0] / 2) {
+            return min + (means[0] - min) * index / (weights[0] / 2);
+        }
+        double cumulative = weights[0] / 2;
+        for (int i = 0; i < centroids - 1; i++) {
+            double dw = (weights[i] + weights[i + 1]) / 2;
+            if (cumulative + dw > index) {
+                double z = (index - cumulative) / dw;
+                return means[i] + z * (means[i + 1] - means[i]);
+            }
+            cumulative += dw;
+        }
+        double last = weights[centroids - 1] / 2;
+        double z = Math.min(1.0, (index - cumulative) / last);
+        return means[centroids - 1] + z * (max - means[centroids - 1]);
+    }
+
+    /** Merge the buffered values into the centroids. */
+    private void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, buffered);
+        double[] ones = new double[buffered];
+        Arrays.fill(ones, 1.0);
+        double[] m = new double[centroids + buffered];
+        double[] w = new double[centroids + buffered];
+        mergeSorted(means, weights, centroids, buffer, ones, buffered, m, w);
+        buffered = 0;
+        collapse(m, w, m.length);
+    }
+
+    /**
+     * Replace the centroids by the greedy merge of the sorted weighted points: neighbors are combined as long
+     * as the combined centroid spans at most one unit of the scale function.
+     */
+    private void collapse(double[] m, double[] w, int n) {
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += w[i];
+        }
+        int out = 0;
+        double weightSoFar = 0;
+        double mean = m[0];
+        double weight = w[0];
+        for (int i = 1; i < n; i++) {
+            double proposed = weight + w[i];
+            if (k((weightSoFar + proposed) / total) - k(weightSoFar / total) <= 1) {
+                mean += (m[i] - mean) * w[i] / proposed;
+                weight = proposed;
+            } else {
+                out = emit(out, mean, weight);
+                weightSoFar += weight;
+                mean = m[i];
+                weight = w[i];
+            }
+        }
+        centroids = emit(out, mean, weight);
+    }
+
+    private int emit(int out, double mean, double weight) {
+        if (out == means.length) {
+            means = Arrays.copyOf(means, 2 * out);
+            weights = Arrays.copyOf(weights, 2 * out);
+        }
+        means[out] = mean;
+        weights[out] = weight;
+        return out + 1;
+    }
+
+    private double k(double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * Math.min(1.0, q) - 1);
+    }
+
+    /** Merge two sequences of points that are sorted by mean; on ties, the points of the first come first. */
+    private static void mergeSorted(double[] m1, double[] w1, int n1, double[] m2, double[] w2, int n2,
+                                    double[] m, double[] w) {
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < n1 || j < n2) {
+            if (j == n2 || (i < n1 && m1[i] <= m2[j])) {
+                m[k] = m1[i];
+                w[k++] = w1[i++];
+            } else {
+                m[k] = m2[j];
+                w[k++] = w2[j++];
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.data.RegulatoryElement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that reading several narrowPeak files on worker threads gives the same table as reading them one after
+ * the other.
+ */
+class ChromosomeWithEnhancersTest {
+    private final List<RegulatoryElement> elements = new ArrayList<>();
+    private final List<File> bedfiles = new ArrayList<>();
+    private Path directory;
+
+    @BeforeEach
+    void createFiles() throws IOException {
+        for (String chrom : List.of("chr1", "chr2", "chr3")) {
+            for (int i = 0; i < 400; i++) {
+                elements.add(new RegulatoryElement(chrom, i * 900, i * 900 + 300 + i % 7 * 40, i % 3 == 0));
+            }
+        }
+        directory = Files.createTempDirectory("npi-threads");
+        for (int experiment = 0; experiment < 10; experiment++) {
+            bedfiles.add(write(String.format("ENCFF%03dTHR.bed.gz", experiment), experiment));
+        }
+    }
+
+    @AfterEach
+    void deleteFiles() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /** Write sorted peaks on all chromosomes; the files differ in size, so that they finish out of order. */
+    private File write(String name, long seed) throws IOException {
+        Random random = new Random(seed);
+        int extent = 60_000 + random.nextInt(300_000);
+        File file = directory.resolve(name).toFile();
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)),
+                StandardCharsets.US_ASCII)) {
+            for (String chrom : List.of("chr1", "chr2", "chr3")) {
+                // peaks of one experiment do not overlap each other
+                for (int begin = random.nextInt(100); begin < extent; ) {
+                    int length = 20 + random.nextInt(500);
+                    out.write(String.format("%s\t%d\t%d\tp\t0\t.\t%s\t-1\t-1\t-1\n", chrom, begin,
+                            begin + length, random.nextInt(10_000) / 7.0));
+                    begin += length + 1 + random.nextInt(600);
+                }
+            }
+        }
+        return file;
+    }
+
+    private ChromosomeWithEnhancers read(int threads) {
+        ChromosomeWithEnhancers chromosomes = new ChromosomeWithEnhancers(elements);
+        chromosomes.addDataFromBedFiles(bedfiles, threads);
+        return chromosomes;
+    }
+
+    @Test
+    void workerThreadsDoNotChangeTheResult() {
+        ChromosomeWithEnhancers serial = read(1);
+        ChromosomeWithEnhancers parallel = read(4);
+        ElementTable expected = serial.getElementTable();
+        ElementTable table = parallel.getElementTable();
+        assertEquals(bedfiles.size(), expected.getNumberOfExperiments());
+        assertEquals(expected.getNumberOfExperiments(), table.getNumberOfExperiments());
+        for (int experiment = 0; experiment < table.getNumberOfExperiments(); experiment++) {
+            assertEquals(bedfiles.get(experiment).getName(), table.getExperimentName(experiment));
+            assertEquals(expected.getExperimentName(experiment), table.getExperimentName(experiment));
+            for (int id = 0; id < table.size(); id++) {
+                // bitwise, not within a tolerance
+                assertEquals(Double.doubleToRawLongBits(expected.getMean(experiment, id)),
+                        Double.doubleToRawLongBits(table.getMean(experiment, id)));
+                assertEquals(Double.doubleToRawLongBits(expected.getMax(experiment, id)),
+                        Double.doubleToRawLongBits(table.getMax(experiment, id)));
+            }
+        }
+        assertArrayEquals(serial.getMeanH3K27AcPer1000(), parallel.getMeanH3K27AcPer1000());
+        assertArrayEquals(serial.getMeanMaxH3K27ac(), parallel.getMeanMaxH3K27ac());
+    }
+}
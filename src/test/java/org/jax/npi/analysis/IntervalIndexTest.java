@@ -0,0 +1,133 @@
+package org.jax.npi.analysis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the interval index and the sweep report exactly the elements that overlap a peak, with closed
+ * intervals on both sides, for nested, touching and identical elements.
+ */
+class IntervalIndexTest {
+    private static final String CHROM = "chr1";
+
+    /** Elements sorted by begin: nested in each other, touching each other and one of length 1. */
+    private static final int[] BEGINS = {100, 100, 150, 200, 300, 300, 400, 500};
+    private static final int[] ENDS = {500, 199, 160, 300, 300, 350, 400, 600};
+
+    private static List<Integer> indexOverlaps(IntervalIndex index, int begin, int end) {
+        List<Integer> ids = new ArrayList<>();
+        int n = index.forEachOverlap(begin, end, ids::add);
+        assertEquals(ids.size(), n);
+        return ids;
+    }
+
+    private static List<Integer> bruteForce(int[] begins, int[] ends, int begin, int end) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < begins.length; i++) {
+            if (begins[i] <= end && ends[i] >= begin) {
+                ids.add(i);
+            }
+        }
+        return ids;
+    }
+
+    /** @return the overlaps of each peak as reported by a sweep over the sorted peaks */
+    private static List<List<Integer>> sweepOverlaps(IntervalIndex index, int[][] peaks) {
+        SweepLineJoin sweep = new SweepLineJoin(Collections.singletonMap(CHROM, index));
+        List<List<Integer>> result = new ArrayList<>();
+        for (int[] peak : peaks) {
+            List<Integer> ids = new ArrayList<>();
+            assertTrue(sweep.forEachOverlap(CHROM, peak[0], peak[1], ids::add));
+            Collections.sort(ids);
+            result.add(ids);
+        }
+        return result;
+    }
+
+    @Test
+    void closedIntervalsTouchAtBothEnds() {
+        IntervalIndex index = new IntervalIndex(BEGINS, ENDS);
+        // a peak that ends where elements begin, and one that begins where elements end
+        assertEquals(Arrays.asList(0, 1), indexOverlaps(index, 50, 100));
+        assertEquals(Arrays.asList(0, 3, 4, 5), indexOverlaps(index, 300, 300));
+        assertEquals(Arrays.asList(0, 6), indexOverlaps(index, 400, 400));
+        assertEquals(Arrays.asList(0, 7), indexOverlaps(index, 500, 500));
+        assertEquals(Collections.emptyList(), indexOverlaps(index, 601, 700));
+        assertEquals(Collections.emptyList(), indexOverlaps(index, 0, 99));
+    }
+
+    @Test
+    void nestedElementsAreAllReported() {
+        IntervalIndex index = new IntervalIndex(BEGINS, ENDS);
+        assertEquals(Arrays.asList(0, 1, 2), indexOverlaps(index, 155, 155));
+        assertEquals(Arrays.asList(0, 1, 2, 3), indexOverlaps(index, 160, 200));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7), indexOverlaps(index, 0, 1000));
+    }
+
+    @Test
+    void sweepMatchesIndex() {
+        IntervalIndex index = new IntervalIndex(BEGINS, ENDS);
+        int[][] peaks = {{50, 100}, {155, 155}, {160, 200}, {199, 199}, {300, 300}, {300, 320}, {350, 400},
+                {400, 400}, {401, 499}, {500, 500}, {601, 700}};
+        List<List<Integer>> swept = sweepOverlaps(index, peaks);
+        for (int p = 0; p < peaks.length; p++) {
+            List<Integer> expected = bruteForce(BEGINS, ENDS, peaks[p][0], peaks[p][1]);
+            assertEquals(expected, indexOverlaps(index, peaks[p][0], peaks[p][1]), "index, peak " + p);
+            assertEquals(expected, swept.get(p), "sweep, peak " + p);
+        }
+    }
+
+    @Test
+    void randomIntervalsMatchBruteForce() {
+        Random random = new Random(17);
+        for (int round = 0; round < 50; round++) {
+            int n = random.nextInt(300);
+            int[] begins = new int[n];
+            int[] ends = new int[n];
+            for (int i = 0; i < n; i++) {
+                begins[i] = random.nextInt(10_000);
+            }
+            Arrays.sort(begins);
+            for (int i = 0; i < n; i++) {
+                ends[i] = begins[i] + random.nextInt(random.nextBoolean() ? 20 : 2_000);
+            }
+            IntervalIndex index = new IntervalIndex(begins, ends);
+            int[][] peaks = new int[200][];
+            for (int p = 0; p < peaks.length; p++) {
+                int begin = random.nextInt(10_500);
+                peaks[p] = new int[]{begin, begin + random.nextInt(500)};
+            }
+            Arrays.sort(peaks, Comparator.comparingInt(peak -> peak[0]));
+            List<List<Integer>> swept = sweepOverlaps(index, peaks);
+            for (int p = 0; p < peaks.length; p++) {
+                List<Integer> expected = bruteForce(begins, ends, peaks[p][0], peaks[p][1]);
+                assertEquals(expected, indexOverlaps(index, peaks[p][0], peaks[p][1]));
+                assertEquals(expected, swept.get(p));
+            }
+        }
+    }
+
+    @Test
+    void subrangeOfLargerArrays() {
+        // the index of the second "chromosome" covers positions [3,8) and reports these positions
+        int[] begins = {10, 20, 30, 100, 100, 150, 200, 300};
+        int[] ends = {15, 25, 35, 500, 199, 160, 300, 300};
+        IntervalIndex index = new IntervalIndex(begins, ends, 3, 8);
+        assertEquals(Arrays.asList(3, 4, 5), indexOverlaps(index, 10, 150));
+        assertEquals(Arrays.asList(3, 6, 7), indexOverlaps(index, 300, 300));
+    }
+
+    @Test
+    void sweepRejectsUnsortedPeaks() {
+        IntervalIndex index = new IntervalIndex(BEGINS, ENDS);
+        SweepLineJoin sweep = new SweepLineJoin(Collections.singletonMap(CHROM, index));
+        List<Integer> ids = new ArrayList<>();
+        assertTrue(sweep.forEachOverlap(CHROM, 300, 300, ids::add));
+        ids.clear();
+        assertFalse(sweep.forEachOverlap(CHROM, 100, 100, ids::add));
+        assertTrue(ids.isEmpty());
+    }
+}
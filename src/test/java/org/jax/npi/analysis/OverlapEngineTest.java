@@ -0,0 +1,151 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.data.RegulatoryElement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the overlap engines give the same signal for the same narrowPeak file, and how they treat a file
+ * that is not sorted by coordinate.
+ */
+class OverlapEngineTest {
+    private final List<RegulatoryElement> elements = new ArrayList<>();
+    private Path directory;
+    private File sorted;
+    private File unsorted;
+
+    @BeforeEach
+    void createFiles() throws IOException {
+        for (String chrom : List.of("chr1", "chr2")) {
+            for (int i = 0; i < 300; i++) {
+                elements.add(new RegulatoryElement(chrom, i * 700, i * 700 + 200 + i % 5 * 60, i % 4 == 0));
+            }
+        }
+        directory = Files.createTempDirectory("npi-engine");
+        List<String> lines = peaks();
+        sorted = write("sorted.bed.gz", lines);
+        Collections.shuffle(lines, new Random(11));
+        unsorted = write("unsorted.bed.gz", lines);
+    }
+
+    @AfterEach
+    void deleteFiles() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * @return sorted narrowPeak lines on both chromosomes and a scaffold, including one that ends where an element
+     * begins
+     */
+    private static List<String> peaks() {
+        Random random = new Random(3);
+        List<String> lines = new ArrayList<>();
+        for (String chrom : List.of("chr1", "chr2", "chrUn_gl000220")) {
+            // peaks of one experiment do not overlap each other
+            for (int begin = chrom.equals("chr2") ? 1000 : random.nextInt(50); begin < 215_000; ) {
+                int length = 20 + random.nextInt(400);
+                lines.add(String.format("%s\t%d\t%d\tp\t0\t.\t%s\t-1\t-1\t-1\n", chrom, begin, begin + length,
+                        random.nextInt(1000) / 8.0));
+                begin += length + 1 + random.nextInt(300);
+            }
+        }
+        // a peak that only touches the element chr2:700-960 with its end (intervals are closed)
+        lines.add("chr2\t500\t700\tp\t0\t.\t7.5\t-1\t-1\t-1\n");
+        lines.sort(Comparator.comparing((String line) -> line.split("\t")[0])
+                .thenComparingInt(line -> Integer.parseInt(line.split("\t")[1])));
+        return lines;
+    }
+
+    private File write(String name, List<String> lines) throws IOException {
+        File file = directory.resolve(name).toFile();
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)),
+                StandardCharsets.US_ASCII)) {
+            for (String line : lines) {
+                out.write(line);
+            }
+        }
+        return file;
+    }
+
+    /** @return the means and maxima of the elements with the file as the only experiment */
+    private double[][] signal(File bedfile, OverlapEngine engine) {
+        ChromosomeWithEnhancers chromosomes = new ChromosomeWithEnhancers(elements);
+        chromosomes.setOverlapEngine(engine);
+        chromosomes.addDataFromBedFile(bedfile);
+        ElementTable table = chromosomes.getElementTable();
+        assertEquals(1, table.getNumberOfExperiments());
+        double[][] signal = new double[2][table.size()];
+        for (int id = 0; id < table.size(); id++) {
+            signal[0][id] = table.getMean(0, id);
+            signal[1][id] = table.getMax(0, id);
+        }
+        return signal;
+    }
+
+    /** @return what the engine prints to standard output while the file is added */
+    private String output(File bedfile, OverlapEngine engine) {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true));
+        try {
+            signal(bedfile, engine);
+        } finally {
+            System.setOut(stdout);
+        }
+        return captured.toString();
+    }
+
+    @Test
+    void enginesAgreeOnSortedInput() {
+        double[][] index = signal(sorted, OverlapEngine.INDEX);
+        assertTrue(Arrays.stream(index[1]).filter(v -> v > 0).count() > 100);
+        // the peak that touches the element with its end gives it a signal
+        List<Integer> touched = new ArrayList<>();
+        new ChromosomeWithEnhancers(elements).forEachOverlappingElement("chr2", 700, 700, touched::add);
+        assertEquals(1, touched.size());
+        assertEquals(7.5, index[1][touched.get(0)]);
+        for (OverlapEngine engine : List.of(OverlapEngine.SWEEP, OverlapEngine.AUTO)) {
+            double[][] signal = signal(sorted, engine);
+            assertArrayEquals(index[0], signal[0], engine.toString());
+            assertArrayEquals(index[1], signal[1], engine.toString());
+        }
+        assertFalse(output(sorted, OverlapEngine.AUTO).contains("falling back"));
+    }
+
+    @Test
+    void autoFallsBackToTheIndexOnUnsortedInput() {
+        assertTrue(output(unsorted, OverlapEngine.AUTO).contains(
+                "[INFO] unsorted.bed.gz is not sorted by coordinate, falling back to the interval index."));
+        // the peaks are added in file order by both engines
+        double[][] index = signal(unsorted, OverlapEngine.INDEX);
+        double[][] auto = signal(unsorted, OverlapEngine.AUTO);
+        assertArrayEquals(index[0], auto[0]);
+        assertArrayEquals(index[1], auto[1]);
+        // the same peaks in another order only change the rounding of the sums
+        double[][] expected = signal(sorted, OverlapEngine.INDEX);
+        assertArrayEquals(expected[1], auto[1]);
+        for (int id = 0; id < expected[0].length; id++) {
+            assertEquals(expected[0][id], auto[0][id], 1e-9 * Math.max(1.0, expected[0][id]));
+        }
+    }
+
+    @Test
+    void sweepRejectsUnsortedInput() {
+        RuntimeException e = assertThrows(RuntimeException.class, () -> signal(unsorted, OverlapEngine.SWEEP));
+        assertTrue(e.getMessage().startsWith("unsorted.bed.gz is not sorted by coordinate"), e.getMessage());
+    }
+}
@@ -0,0 +1,135 @@
+package org.jax.npi.analysis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the pipeline hands every peak to the sink of its partition in file order.
+ */
+class PeakPipelineTest {
+    private final ExecutorService parsePool = PeakPipeline.newParsePool(3);
+    private final ExecutorService stagePool = PeakPipeline.newStagePool();
+
+    /** Records the peaks it receives as "chrom:begin-end=value". */
+    private static final class RecordingSink implements PeakPipeline.PeakSink {
+        final List<String> peaks = new ArrayList<>();
+
+        @Override
+        public void add(String chrom, int begin, int end, double value) {
+            peaks.add(chrom + ":" + begin + "-" + end + "=" + value);
+        }
+    }
+
+    @AfterEach
+    void shutdown() {
+        parsePool.shutdownNow();
+        stagePool.shutdownNow();
+    }
+
+    private static String line(String chrom, int begin, int end, String name, double value) {
+        return String.format("%s\t%d\t%d\t%s\t0\t.\t%s\t-1\t-1\t-1\n", chrom, begin, end, name, value);
+    }
+
+    /** @return the sinks of the partitions after running the pipeline over the text */
+    private List<RecordingSink> run(String text, int partitions, String sortedName) throws IOException {
+        List<RecordingSink> sinks = new ArrayList<>();
+        for (int p = 0; p < partitions; p++) {
+            sinks.add(new RecordingSink());
+        }
+        PeakPipeline pipeline = new PeakPipeline(parsePool, 3, stagePool, sinks);
+        if (sortedName != null) {
+            pipeline.requireSortedChromosomes(sortedName);
+        }
+        PeakPipeline.Stats stats = pipeline.run(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(text.length(), stats.getBytesRead());
+        return sinks;
+    }
+
+    /** @return the peaks of the text by chromosome, in file order */
+    private static Map<String, List<String>> byChromosome(List<RecordingSink> sinks) {
+        Map<String, List<String>> peaks = new TreeMap<>();
+        for (RecordingSink sink : sinks) {
+            for (String peak : sink.peaks) {
+                peaks.computeIfAbsent(peak.substring(0, peak.indexOf(':')), k -> new ArrayList<>()).add(peak);
+            }
+        }
+        return peaks;
+    }
+
+    private static String randomPeaks(Random random, int n) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            String chrom = "chr" + (1 + i * 7 / n);
+            int begin = i * 10;
+            text.append(line(chrom, begin, begin + random.nextInt(500), "p" + i, random.nextInt(1000) / 8.0));
+        }
+        return text.toString();
+    }
+
+    @Test
+    void partitionsSeeTheirPeaksInFileOrder() throws IOException {
+        String text = randomPeaks(new Random(11), 200_000);
+        Map<String, List<String>> expected = byChromosome(run(text, 1, null));
+        assertEquals(200_000, expected.values().stream().mapToInt(List::size).sum());
+        for (int partitions = 2; partitions <= 4; partitions++) {
+            assertEquals(expected, byChromosome(run(text, partitions, null)));
+        }
+    }
+
+    @Test
+    void lineLongerThanTheChunk() throws IOException {
+        char[] name = new char[5 * PeakPipeline.CHUNK_SIZE / 2];
+        Arrays.fill(name, 'n');
+        // the chunk grows for the first long line, and the rest of it after the line break is the second one
+        String text = line("chr1", 1, 10, "a", 1.0)
+                + line("chr1", 20, 30, new String(name), 2.0)
+                + line("chr1", 40, 50, new String(name), 3.0)
+                + line("chr1", 60, 70, "d", 4.0);
+        List<RecordingSink> sinks = run(text, 1, null);
+        assertEquals(Arrays.asList("chr1:1-10=1.0", "chr1:20-30=2.0", "chr1:40-50=3.0", "chr1:60-70=4.0"),
+                sinks.get(0).peaks);
+    }
+
+    @Test
+    void chromosomeOrderIsOnlyCheckedOnRequest() throws IOException {
+        String text = line("chr1", 1, 10, "a", 1.0) + line("chr2", 1, 10, "b", 1.0) + line("chr1", 20, 30, "c", 1.0);
+        assertEquals(3, byChromosome(run(text, 2, null)).values().stream().mapToInt(List::size).sum());
+        RuntimeException e = assertThrows(RuntimeException.class, () -> run(text, 2, "x.bed.gz"));
+        assertEquals("x.bed.gz is not sorted by coordinate (chr1:20-30)", e.getMessage());
+    }
+
+    @Test
+    void malformedLineFailsTheRun() {
+        String text = line("chr1", 1, 10, "a", 1.0) + "chr1\t5\n";
+        assertThrows(RuntimeException.class, () -> run(text, 2, null));
+    }
+
+    @Test
+    void filesShareThePools() throws Exception {
+        Random random = new Random(13);
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            texts.add(randomPeaks(random, 50_000));
+        }
+        ExecutorService files = Executors.newFixedThreadPool(texts.size());
+        try {
+            List<Future<Map<String, List<String>>>> results = new ArrayList<>();
+            for (String text : texts) {
+                results.add(files.submit(() -> byChromosome(run(text, 3, null))));
+            }
+            for (int i = 0; i < texts.size(); i++) {
+                assertEquals(byChromosome(run(texts.get(i), 1, null)), results.get(i).get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            files.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.io.NarrowPeakParser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the sweep and the interval index give the same signal for the same regions.
+ */
+class RegionSignalQueryTest {
+    private final List<String> chromosomes = new ArrayList<>();
+    private final List<Integer> begins = new ArrayList<>();
+    private final List<Integer> ends = new ArrayList<>();
+    private RegionSignalQuery query;
+
+    private static PeakIndex experiment(String name, long seed) throws IOException {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (String chrom : List.of("chr1", "chr2")) {
+            // peaks of one experiment do not overlap each other
+            for (int begin = 1000; begin < 100_000; ) {
+                int length = 20 + random.nextInt(400);
+                text.append(String.format("%s\t%d\t%d\tp\t0\t.\t%s\t-1\t-1\t-1\n", chrom, begin, begin + length,
+                        random.nextInt(1000) / 8.0));
+                begin += length + 1 + random.nextInt(300);
+            }
+        }
+        // a peak that the region chr2:200-300 touches with its begin (intervals are closed)
+        text.append("chr2\t100\t200\tp\t0\t.\t3.25\t-1\t-1\t-1\n");
+        try (NarrowPeakParser peaks = new NarrowPeakParser(
+                new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.US_ASCII)))) {
+            return PeakIndex.read(name, peaks);
+        }
+    }
+
+    private void region(String chrom, int begin, int end) {
+        chromosomes.add(chrom);
+        begins.add(begin);
+        ends.add(end);
+    }
+
+    @BeforeEach
+    void createRegions() throws IOException {
+        query = new RegionSignalQuery(List.of(experiment("ENCFF001QRY.bed.gz", 1),
+                experiment("ENCFF002QRY.bed.gz", 2)));
+        region("chr2", 200, 300);
+        // not sorted, overlapping each other, on both chromosomes and on one without peaks
+        Random random = new Random(4);
+        for (int i = 0; i < 300; i++) {
+            String chrom = List.of("chr1", "chr2", "chrX").get(random.nextInt(3));
+            int begin = random.nextInt(100_000);
+            region(chrom, begin, begin + 1 + random.nextInt(3000));
+        }
+        region("chr1", 5000, 5001);
+    }
+
+    private SignalMatrix query(OverlapEngine engine) {
+        query.setOverlapEngine(engine);
+        return query.query(chromosomes.toArray(new String[0]), begins.stream().mapToInt(Integer::intValue).toArray(),
+                ends.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    @Test
+    void sweepAndIndexGiveTheSameSignal() {
+        SignalMatrix index = query(OverlapEngine.INDEX);
+        SignalMatrix sweep = query(OverlapEngine.SWEEP);
+        assertEquals(chromosomes.size(), sweep.getNumberOfRegions());
+        assertEquals(2, sweep.getNumberOfExperiments());
+        assertTrue(Arrays.stream(index.getMaxima()).filter(v -> v > 0).count() > 100);
+        assertArrayEquals(index.getMeans(), sweep.getMeans());
+        assertArrayEquals(index.getMaxima(), sweep.getMaxima());
+        // the default chooses per chromosome
+        SignalMatrix auto = query(OverlapEngine.AUTO);
+        assertArrayEquals(index.getMeans(), auto.getMeans());
+        assertArrayEquals(index.getMaxima(), auto.getMaxima());
+    }
+
+    @Test
+    void regionThatTouchesAPeakEndGetsItsMaximum() {
+        for (OverlapEngine engine : List.of(OverlapEngine.INDEX, OverlapEngine.SWEEP)) {
+            SignalMatrix signal = query(engine);
+            for (int j = 0; j < 2; j++) {
+                // the peak covers no base of the region, but it overlaps the closed interval
+                assertEquals(3.25, signal.getMax(0, j), engine.toString());
+                assertEquals(0.0, signal.getMean(0, j), engine.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.jax.npi.analysis;
+
+import org.jax.npi.data.RegulatoryElement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the result of a narrowPeak file read while it is downloaded is only used once the download is
+ * committed, and only if the whole stream was decompressed.
+ */
+class StreamedExperimentTest {
+    private final List<RegulatoryElement> elements = new ArrayList<>();
+    private File bedfile;
+
+    @BeforeEach
+    void createElements() throws IOException {
+        for (int i = 0; i < 200; i++) {
+            elements.add(new RegulatoryElement("chr1", i * 500, i * 500 + 300, i % 3 == 0));
+        }
+        bedfile = File.createTempFile("ENCFF000STR", ".bed.gz");
+    }
+
+    @AfterEach
+    void deleteFile() {
+        bedfile.delete();
+    }
+
+    /** @return sorted peaks on chr1, different for each seed */
+    private static String peaks(long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        // peaks of one experiment do not overlap each other
+        for (int begin = 0; begin < 100_000; ) {
+            int length = 20 + random.nextInt(300);
+            text.append(String.format("chr1\t%d\t%d\tp\t0\t.\t%s\t-1\t-1\t-1\n", begin,
+                    begin + length, random.nextInt(1000) / 8.0));
+            begin += length + 1 + random.nextInt(400);
+        }
+        return text.toString();
+    }
+
+    /** @return the text compressed as one gzip member per part */
+    private static byte[] gzip(String... parts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (String part : parts) {
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes) {
+                @Override
+                public void close() throws IOException {
+                    finish();
+                }
+            }) {
+                out.write(part.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /** @return the means and maxima of the elements after adding the experiment {@code bedfile} */
+    private double[][] addFile(ChromosomeWithEnhancers target) {
+        target.addDataFromBedFile(bedfile);
+        return new double[][]{target.getMeanH3K27AcPer1000(), target.getMeanMaxH3K27ac()};
+    }
+
+    /** @return the means and maxima of the elements with the peaks as the only experiment */
+    private double[][] expected(String peaks) throws IOException {
+        File file = File.createTempFile("expected", ".bed.gz");
+        try {
+            Files.write(file.toPath(), gzip(peaks));
+            ChromosomeWithEnhancers reference = new ChromosomeWithEnhancers(elements);
+            reference.addDataFromBedFile(file);
+            return new double[][]{reference.getMeanH3K27AcPer1000(), reference.getMeanMaxH3K27ac()};
+        } finally {
+            file.delete();
+        }
+    }
+
+    private Runnable stream(ChromosomeWithEnhancers target, InputStream compressed) throws IOException {
+        return ChromosomeWithEnhancers.readExperimentFromStream(bedfile, compressed, List.of(target));
+    }
+
+    @Test
+    void committedResultIsUsedInsteadOfTheFile() throws IOException {
+        String streamed = peaks(1);
+        // the file on disk differs from the stream, so that we can tell which one was used
+        Files.write(bedfile.toPath(), gzip(peaks(2)));
+        ChromosomeWithEnhancers target = new ChromosomeWithEnhancers(elements);
+        Runnable commit = stream(target, new ByteArrayInputStream(gzip(streamed)));
+        assertNotNull(commit);
+        commit.run();
+        double[][] result = addFile(target);
+        double[][] expected = expected(streamed);
+        assertArrayEquals(expected[0], result[0]);
+        assertArrayEquals(expected[1], result[1]);
+    }
+
+    @Test
+    void resultIsNotUsedWithoutCommit() throws IOException {
+        String onDisk = peaks(2);
+        Files.write(bedfile.toPath(), gzip(onDisk));
+        ChromosomeWithEnhancers target = new ChromosomeWithEnhancers(elements);
+        assertNotNull(stream(target, new ByteArrayInputStream(gzip(peaks(1)))));
+        double[][] result = addFile(target);
+        double[][] expected = expected(onDisk);
+        assertArrayEquals(expected[0], result[0]);
+        assertArrayEquals(expected[1], result[1]);
+    }
+
+    @Test
+    void resultOverTheLimitIsNotKept() throws IOException {
+        String onDisk = peaks(2);
+        Files.write(bedfile.toPath(), gzip(onDisk));
+        ChromosomeWithEnhancers target = new ChromosomeWithEnhancers(elements);
+        target.setStreamedResultLimit(1000);
+        stream(target, new ByteArrayInputStream(gzip(peaks(1)))).run();
+        assertArrayEquals(expected(onDisk)[0], addFile(target)[0]);
+    }
+
+    @Test
+    void streamThatIsNotDecompressedToItsEndIsDropped() throws IOException {
+        String peaks = peaks(1);
+        int half = peaks.indexOf('\n', peaks.length() / 2) + 1;
+        byte[] first = gzip(peaks.substring(0, half));
+        byte[] second = gzip(peaks.substring(half));
+        // the second member has not arrived when the first one ends, like a slow download
+        InputStream slow = new InputStream() {
+            private final byte[][] parts = {first, second};
+            private int part = 0;
+            private int pos = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (part < parts.length && pos == parts[part].length) {
+                    part++;
+                    pos = 0;
+                }
+                if (part == parts.length) {
+                    return -1;
+                }
+                int n = Math.min(len, parts[part].length - pos);
+                System.arraycopy(parts[part], pos, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return 0;
+            }
+        };
+        assertNull(stream(new ChromosomeWithEnhancers(elements), slow));
+        // with both members at hand, the stream is decompressed to its end
+        ByteArrayOutputStream both = new ByteArrayOutputStream();
+        both.write(first);
+        both.write(second);
+        assertNotNull(stream(new ChromosomeWithEnhancers(elements), new ByteArrayInputStream(both.toByteArray())));
+    }
+}
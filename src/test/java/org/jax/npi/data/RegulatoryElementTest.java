@@ -0,0 +1,55 @@
+package org.jax.npi.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the deprecated per-element signal methods and the views of an {@link ElementTable}.
+ */
+class RegulatoryElementTest {
+
+    @Test
+    @SuppressWarnings("deprecation")
+    void standaloneElementCollectsItsSignals() {
+        RegulatoryElement element = new RegulatoryElement("chr1", 1000, 2000, true);
+        element.addH3K27AcValue(new H3K27AcSignal(1000, 1500, 4.0));
+        element.addH3K27AcValue(new H3K27AcSignal(1500, 2000, 2.0));
+        element.processLastExperiment();
+        element.processLastExperiment(); // an experiment without signal
+        element.addExperiment(Collections.singletonList(new H3K27AcSignal(1000, 1100, 10.0)));
+        // length-weighted sums per 1000 bp: 3000, 0, 1000; the fourth experiment is missing and counts as zero
+        assertEquals(1000.0, element.getMeanH3K27AcPer1000(4), 1e-9);
+        assertEquals((4.0 + 0.0 + 10.0) / 4, element.getMeanMaxH3K27ac(4), 1e-12);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    void tooMuchSignalIsRejected() {
+        RegulatoryElement element = new RegulatoryElement("chr1", 1000, 1100, false);
+        assertThrows(RuntimeException.class, () -> element.addExperiment(Arrays.asList(
+                new H3K27AcSignal(1000, 1100, 1.0), new H3K27AcSignal(1000, 1100, 1.0))));
+    }
+
+    @Test
+    void meanWithoutSignalThrows() {
+        RegulatoryElement element = new RegulatoryElement("chr1", 1000, 2000, true);
+        assertThrows(IllegalStateException.class, () -> element.getMeanH3K27AcPer1000(3));
+        assertThrows(IllegalStateException.class, () -> element.getMeanMaxH3K27ac(3));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    void tableElementsReadTheTable() {
+        ElementTable table = ElementTable.fromElements(Arrays.asList(
+                new RegulatoryElement("chr1", 100, 200, true), new RegulatoryElement("chr1", 300, 400, false)));
+        table.addExperiment("a", new double[]{2.0, 4.0}, new double[]{3.0, 5.0});
+        RegulatoryElement element = table.getElement(1);
+        assertEquals(2.0, element.getMeanH3K27AcPer1000(2));
+        assertEquals(2.5, element.getMeanMaxH3K27ac(2));
+        assertThrows(IllegalStateException.class, () -> element.addH3K27AcValue(new H3K27AcSignal(300, 400, 1.0)));
+    }
+}
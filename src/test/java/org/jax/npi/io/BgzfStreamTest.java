@@ -0,0 +1,104 @@
+package org.jax.npi.io;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trip through {@link BgzfOutputStream} and {@link BgzfInputStream}, with and without inflate threads.
+ */
+class BgzfStreamTest {
+    /** Uncompressed bytes per block of {@link BgzfOutputStream}. */
+    private static final int BLOCK = 0xff00;
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(3);
+
+    @AfterEach
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static byte[] bgzf(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BgzfOutputStream out = new BgzfOutputStream(bytes, Deflater.DEFAULT_COMPRESSION)) {
+            // uneven writes, so that the blocks do not follow the writes
+            int pos = 0;
+            for (int k = 0; pos < data.length; k++) {
+                int length = Math.min(1 + k * 7919 % 100_000, data.length - pos);
+                out.write(data, pos, length);
+                pos += length;
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            return stream.readAllBytes();
+        }
+    }
+
+    /** @return text-like data with some incompressible stretches */
+    private static byte[] data(int n) {
+        Random random = new Random(n);
+        byte[] data = new byte[n];
+        for (int i = 0; i < n; i++) {
+            data[i] = (byte) ((i / 5000) % 4 == 3 ? random.nextInt(256) : "chr1\t0123456789.\n".charAt(random.nextInt(17)));
+        }
+        return data;
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        for (int n : new int[]{0, 1, BLOCK - 1, BLOCK, BLOCK + 1, 3 * BLOCK, 1_000_000}) {
+            byte[] data = data(n);
+            byte[] compressed = bgzf(data);
+            assertArrayEquals(data, readAll(new BgzfInputStream(new ByteArrayInputStream(compressed), pool)), "n=" + n);
+            assertArrayEquals(data, readAll(BgzfInputStream.open(new ByteArrayInputStream(compressed), pool)), "n=" + n);
+            assertArrayEquals(data, readAll(BgzfInputStream.open(new ByteArrayInputStream(compressed), null)), "n=" + n);
+            // BGZF is ordinary (multi-member) gzip
+            assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))), "n=" + n);
+        }
+    }
+
+    @Test
+    void endsWithTheEmptyBlock() throws IOException {
+        byte[] compressed = bgzf(data(10));
+        byte[] eof = {31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertArrayEquals(eof, Arrays.copyOfRange(compressed, compressed.length - eof.length, compressed.length));
+    }
+
+    @Test
+    void plainGzipIsReadWithAPool() throws IOException {
+        byte[] data = data(300_000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        InputStream in = BgzfInputStream.open(new ByteArrayInputStream(bytes.toByteArray()), pool);
+        assertFalse(in instanceof BgzfInputStream);
+        assertArrayEquals(data, readAll(in));
+    }
+
+    @Test
+    void corruptBlockIsReported() throws IOException {
+        byte[] compressed = bgzf(data(3 * BLOCK));
+        // a byte in the trailer (CRC32) of the first block
+        int firstBlockSize = ((compressed[16] & 0xff) | (compressed[17] & 0xff) << 8) + 1;
+        compressed[firstBlockSize - 6] ^= 1;
+        assertThrows(IOException.class, () -> readAll(new BgzfInputStream(new ByteArrayInputStream(compressed), pool)));
+    }
+}
@@ -0,0 +1,102 @@
+package org.jax.npi.io;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that a binary peak file holds the peaks of its narrowPeak file, sorted per chromosome, and is only used
+ * while the narrowPeak file is unchanged.
+ */
+class BinaryPeakFileTest {
+    private File bedfile;
+    /** Peaks of the narrowPeak file as "begin-end=value" by chromosome, in file order. */
+    private final Map<String, List<String>> written = new TreeMap<>();
+
+    @BeforeEach
+    void createFile() throws IOException {
+        bedfile = File.createTempFile("ENCFF000BIN", ".bed.gz");
+        Random random = new Random(5);
+        List<String> chromosomes = List.of("chr1", "chr2", "chrX", "chr1_KI270706v1_random");
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(bedfile)),
+                StandardCharsets.US_ASCII)) {
+            // not sorted: the chromosomes are interleaved and the starts are random, some of them equal
+            for (int i = 0; i < 5000; i++) {
+                String chrom = chromosomes.get(random.nextInt(chromosomes.size()));
+                int begin = random.nextInt(2000) * 50;
+                int end = begin + 1 + random.nextInt(800);
+                String value = random.nextInt(100_000) / 1000.0 + (i % 10 == 0 ? "e1" : "");
+                out.write(String.format("%s\t%d\t%d\tpeak%d\t0\t.\t%s\t-1\t-1\t-1\n", chrom, begin, end, i, value));
+                written.computeIfAbsent(chrom, k -> new ArrayList<>())
+                        .add(begin + "-" + end + "=" + Double.parseDouble(value));
+            }
+        }
+    }
+
+    @AfterEach
+    void deleteFiles() {
+        bedfile.delete();
+        BinaryPeakFile.peakFileFor(bedfile).delete();
+    }
+
+    private static int begin(String peak) {
+        return Integer.parseInt(peak.substring(0, peak.indexOf('-')));
+    }
+
+    @Test
+    void peaksAreReadBackSortedByChromosome() throws IOException {
+        assertFalse(BinaryPeakFile.isUpToDate(bedfile));
+        assertThrows(IOException.class, () -> BinaryPeakFile.open(bedfile));
+        assertEquals(5000, BinaryPeakFile.ingest(bedfile));
+        assertTrue(BinaryPeakFile.isUpToDate(bedfile));
+
+        Map<String, List<String>> read = new TreeMap<>();
+        List<String> order = new ArrayList<>();
+        try (PeakReader peaks = BinaryPeakFile.open(bedfile)) {
+            while (peaks.next()) {
+                String chrom = peaks.getChromosome();
+                if (order.isEmpty() || !order.get(order.size() - 1).equals(chrom)) {
+                    order.add(chrom);
+                }
+                read.computeIfAbsent(chrom, k -> new ArrayList<>())
+                        .add(peaks.getBegin() + "-" + peaks.getEnd() + "=" + peaks.getSignalValue());
+            }
+        }
+        // each chromosome comes in one block
+        assertEquals(written.size(), order.size());
+        assertEquals(written.keySet(), new TreeSet<>(order));
+        for (Map.Entry<String, List<String>> entry : written.entrySet()) {
+            // sorted by start; peaks with the same start keep their order from the file
+            List<String> expected = new ArrayList<>(entry.getValue());
+            expected.sort(Comparator.comparingInt(BinaryPeakFileTest::begin));
+            assertEquals(expected, read.get(entry.getKey()), entry.getKey());
+        }
+    }
+
+    @Test
+    void changedNarrowPeakFileIsNotUpToDate() throws IOException {
+        BinaryPeakFile.ingest(bedfile);
+        assertTrue(BinaryPeakFile.isUpToDate(bedfile));
+
+        assertTrue(bedfile.setLastModified(bedfile.lastModified() + 10_000));
+        assertFalse(BinaryPeakFile.isUpToDate(bedfile));
+        assertThrows(IOException.class, () -> BinaryPeakFile.open(bedfile));
+
+        BinaryPeakFile.ingest(bedfile);
+        assertTrue(BinaryPeakFile.isUpToDate(bedfile));
+        // same modification time, other size
+        long mtime = bedfile.lastModified();
+        Files.write(bedfile.toPath(), new byte[]{0}, StandardOpenOption.APPEND);
+        assertTrue(bedfile.setLastModified(mtime));
+        assertFalse(BinaryPeakFile.isUpToDate(bedfile));
+    }
+}
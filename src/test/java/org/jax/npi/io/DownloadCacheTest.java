@@ -0,0 +1,76 @@
+package org.jax.npi.io;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that downloads with the same contents share one object and that objects are removed once no
+ * download links to them.
+ */
+class DownloadCacheTest {
+    private Path directory;
+    private DownloadCache cache;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("npi-cache");
+        cache = new DownloadCache(directory.toString());
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /** Download {@code text} to {@code name} like the downloader does: write a new file and rename it. */
+    private File download(String name, String text) throws IOException {
+        File file = directory.resolve(name).toFile();
+        Path part = directory.resolve(name + ".part");
+        Files.write(part, text.getBytes(StandardCharsets.US_ASCII));
+        Files.move(part, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        cache.add(file, "http://localhost/" + name, null, 0);
+        return file;
+    }
+
+    private File object(File file) {
+        return directory.resolve(".objects").resolve(cache.readMetadata(file).sha256).toFile();
+    }
+
+    @Test
+    void sameContentsAreStoredOnce() throws IOException {
+        File a = download("A.bed.gz", "peaks");
+        File b = download("B.bed.gz", "peaks");
+        assertTrue(Files.isSameFile(a.toPath(), b.toPath()));
+        assertTrue(Files.isSameFile(a.toPath(), object(a).toPath()));
+    }
+
+    @Test
+    void replacedObjectIsDeletedOnceUnused() throws IOException {
+        File a = download("A.bed.gz", "old peaks");
+        download("B.bed.gz", "old peaks");
+        File old = object(a);
+
+        download("A.bed.gz", "new peaks");
+        assertTrue(old.isFile(), "B still links to the old object");
+        assertTrue(object(a).isFile());
+
+        File b = download("B.bed.gz", "new peaks");
+        assertFalse(old.exists());
+        assertTrue(Files.isSameFile(a.toPath(), b.toPath()));
+        assertEquals(1, directory.resolve(".objects").toFile().list().length);
+    }
+}
@@ -0,0 +1,161 @@
+package org.jax.npi.io;
+
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.data.RegulatoryElement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes a small table in each layout and reads the header and values back.
+ */
+class ElementMatrixFileTest {
+    private static final String[] ACCESSIONS = {"ENCFF001MAT", "ENCFF002MAT", "ENCFF003MAT"};
+
+    private Path directory;
+    private ElementTable table;
+
+    @BeforeEach
+    void createTable() throws IOException {
+        directory = Files.createTempDirectory("npi-matrix");
+        List<RegulatoryElement> elements = new ArrayList<>();
+        for (int i = 0; i < 37; i++) {
+            elements.add(new RegulatoryElement(i % 3 == 0 ? "chr2" : "chr1", i * 1000, i * 1000 + 100 + i, i % 4 == 0));
+        }
+        table = ElementTable.fromElements(elements);
+        Random random = new Random(17);
+        // a dense experiment, a sparse one and one without signal
+        double[] means = new double[table.size()];
+        double[] maxima = new double[table.size()];
+        for (int id = 0; id < table.size(); id++) {
+            means[id] = random.nextDouble() * 1000;
+            maxima[id] = random.nextDouble() * 100;
+        }
+        table.addExperiment(ACCESSIONS[0] + ".bed.gz", means, maxima);
+        table.addExperiment(ACCESSIONS[1] + ".bed.gz", new int[]{2, 5, 30}, new double[]{0.0000005, 12.5, 1e-9},
+                new double[]{1, 2, 3});
+        table.addExperiment(ACCESSIONS[2] + ".bed.gz", new int[0], new double[0], new double[0]);
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private File write(ElementMatrixFile.Layout layout) throws IOException {
+        File file = directory.resolve("matrix" + layout.getSuffix()).toFile();
+        assertEquals(3L * table.size(), ElementMatrixFile.write(table, layout, file));
+        return file;
+    }
+
+    @Test
+    void tsvHasAHeaderAndOneLinePerElement() throws IOException {
+        File file = write(ElementMatrixFile.Layout.TSV);
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), StandardCharsets.US_ASCII))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lines.add(line);
+            }
+        }
+        assertEquals("chrom\tbegin\tend\tcpg\t" + String.join("\t", ACCESSIONS), lines.get(0));
+        assertEquals(table.size() + 1, lines.size());
+        for (int id = 0; id < table.size(); id++) {
+            String[] fields = lines.get(id + 1).split("\t");
+            assertEquals(4 + ACCESSIONS.length, fields.length);
+            assertEquals(table.getChromosomeName(table.getChromosomeOfElement(id)), fields[0]);
+            assertEquals(table.getBegin(id), Integer.parseInt(fields[1]));
+            assertEquals(table.getEnd(id), Integer.parseInt(fields[2]));
+            assertEquals(table.isCpG(id) ? "1" : "0", fields[3]);
+            for (int j = 0; j < ACCESSIONS.length; j++) {
+                assertEquals(String.format("%f", table.getMean(j, id)), fields[4 + j]);
+            }
+        }
+    }
+
+    @Test
+    void rowMajorMatrixIsReadBack() throws IOException {
+        double[][] matrix = readBinary(write(ElementMatrixFile.Layout.ROW_MAJOR), 0);
+        for (int id = 0; id < table.size(); id++) {
+            for (int j = 0; j < ACCESSIONS.length; j++) {
+                assertEquals(table.getMean(j, id), matrix[id][j]);
+            }
+        }
+    }
+
+    @Test
+    void columnMajorMatrixIsReadBack() throws IOException {
+        double[][] matrix = readBinary(write(ElementMatrixFile.Layout.COLUMN_MAJOR), 1);
+        for (int j = 0; j < ACCESSIONS.length; j++) {
+            for (int id = 0; id < table.size(); id++) {
+                assertEquals(table.getMean(j, id), matrix[j][id]);
+            }
+        }
+    }
+
+    /**
+     * Read a binary matrix file and check its header against the table.
+     * @return the matrix, rows by columns as stored in the file
+     */
+    private double[][] readBinary(File file, int layout) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        assertEquals(0x4E50494D, in.readInt());
+        assertEquals(1, in.readInt());
+        assertEquals(layout, in.readInt());
+        int n = in.readInt();
+        int experiments = in.readInt();
+        assertEquals(table.size(), n);
+        assertEquals(ACCESSIONS.length, experiments);
+        for (String accession : ACCESSIONS) {
+            assertEquals(accession, readName(in));
+        }
+        assertEquals(table.getNumberOfChromosomes(), in.readInt());
+        for (int c = 0; c < table.getNumberOfChromosomes(); c++) {
+            assertEquals(table.getChromosomeName(c), readName(in));
+            assertEquals(table.getChromosomeStart(c), in.readInt());
+            assertEquals(table.getChromosomeEnd(c) - table.getChromosomeStart(c), in.readInt());
+        }
+        for (int id = 0; id < n; id++) {
+            assertEquals(table.getBegin(id), in.readInt());
+        }
+        for (int id = 0; id < n; id++) {
+            assertEquals(table.getEnd(id), in.readInt());
+        }
+        for (int id = 0; id < n; id++) {
+            assertEquals(table.isCpG(id) ? 1 : 0, in.readByte());
+        }
+        // the matrix starts at a multiple of 8 and fills the rest of the file
+        int offset = bytes.length - in.available();
+        int padding = (8 - offset % 8) % 8;
+        for (int i = 0; i < padding; i++) {
+            assertEquals(0, in.readByte());
+        }
+        assertEquals(8L * n * experiments, in.available());
+        double[][] matrix = layout == 0 ? new double[n][experiments] : new double[experiments][n];
+        for (double[] row : matrix) {
+            for (int k = 0; k < row.length; k++) {
+                row[k] = in.readDouble();
+            }
+        }
+        return matrix;
+    }
+
+    private static String readName(DataInputStream in) throws IOException {
+        byte[] name = new byte[in.readInt()];
+        in.readFully(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+}
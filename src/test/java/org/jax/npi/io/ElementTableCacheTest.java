@@ -0,0 +1,137 @@
+package org.jax.npi.io;
+
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.data.RegulatoryElement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks when the binary element cache is used and when it is rebuilt.
+ */
+class ElementTableCacheTest {
+    private static final String FORMAT = "TestParser/1";
+
+    private File source;
+    private File cacheFile;
+    /** Number of times the source file was parsed. */
+    private final AtomicInteger parses = new AtomicInteger();
+    private final Supplier<List<RegulatoryElement>> parser = () -> {
+        parses.incrementAndGet();
+        return Arrays.asList(new RegulatoryElement("chr1", 100, 200, true),
+                new RegulatoryElement("chr2", 50, 80, false), new RegulatoryElement("chr1", 10, 20, false));
+    };
+
+    @BeforeEach
+    void createSource() throws IOException {
+        source = File.createTempFile("cpg-hg38e", ".txt");
+        write("first version\n");
+        cacheFile = new ElementTableCache(source, FORMAT).getCacheFile();
+    }
+
+    @AfterEach
+    void deleteFiles() {
+        source.delete();
+        cacheFile.delete();
+    }
+
+    private void write(String text) throws IOException {
+        long mtime = source.lastModified();
+        Files.write(source.toPath(), text.getBytes(StandardCharsets.US_ASCII));
+        // make sure the modification time changes even on file systems with a coarse clock
+        source.setLastModified(mtime + 10_000);
+    }
+
+    private ElementTable load(String format, boolean verify) {
+        ElementTableCache cache = new ElementTableCache(source, format);
+        cache.setVerifyChecksum(verify);
+        return cache.loadOrParse(parser);
+    }
+
+    @Test
+    void secondLoadUsesTheCache() {
+        ElementTable parsed = load(FORMAT, false);
+        ElementTable cached = load(FORMAT, false);
+        assertEquals(1, parses.get());
+        assertTrue(cacheFile.isFile());
+        assertEquals(parsed.size(), cached.size());
+        for (int id = 0; id < parsed.size(); id++) {
+            assertEquals(parsed.getBegin(id), cached.getBegin(id));
+            assertEquals(parsed.getEnd(id), cached.getEnd(id));
+            assertEquals(parsed.isCpG(id), cached.isCpG(id));
+            assertEquals(parsed.getChromosomeName(parsed.getChromosomeOfElement(id)),
+                    cached.getChromosomeName(cached.getChromosomeOfElement(id)));
+        }
+    }
+
+    @Test
+    void changedSourceIsParsedAgain() throws IOException {
+        load(FORMAT, false);
+        write("second version, longer\n");
+        load(FORMAT, false);
+        assertEquals(2, parses.get());
+        load(FORMAT, false);
+        assertEquals(2, parses.get());
+    }
+
+    @Test
+    void touchedSourceIsParsedAgain() {
+        load(FORMAT, false);
+        source.setLastModified(source.lastModified() + 10_000);
+        load(FORMAT, false);
+        assertEquals(2, parses.get());
+    }
+
+    @Test
+    void newParserVersionIsParsedAgain() {
+        load(FORMAT, false);
+        load("TestParser/2", false);
+        assertEquals(2, parses.get());
+    }
+
+    @Test
+    void checksumIsOnlyComparedOnRequest() throws IOException {
+        load(FORMAT, true);
+        // same size and modification time, different contents
+        long mtime = source.lastModified();
+        Files.write(source.toPath(), "FIRST VERSION\n".getBytes(StandardCharsets.US_ASCII));
+        source.setLastModified(mtime);
+        load(FORMAT, false);
+        assertEquals(1, parses.get());
+        load(FORMAT, true);
+        assertEquals(2, parses.get());
+        load(FORMAT, true);
+        assertEquals(2, parses.get());
+    }
+
+    @Test
+    void cacheWithoutChecksumIsRebuiltWhenVerifying() {
+        load(FORMAT, false);
+        load(FORMAT, true);
+        assertEquals(2, parses.get());
+        load(FORMAT, true);
+        assertEquals(2, parses.get());
+    }
+
+    @Test
+    void corruptCacheIsRebuilt() throws IOException {
+        load(FORMAT, false);
+        byte[] bytes = Files.readAllBytes(cacheFile.toPath());
+        Files.write(cacheFile.toPath(), Arrays.copyOf(bytes, bytes.length - 12));
+        assertEquals(3, load(FORMAT, false).size());
+        assertEquals(2, parses.get());
+        load(FORMAT, false);
+        assertEquals(2, parses.get());
+    }
+}
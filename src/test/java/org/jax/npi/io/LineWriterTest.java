@@ -0,0 +1,75 @@
+package org.jax.npi.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that {@link LineWriter#appendFormatted(double)} writes the same text as {@code String.format("%f")}.
+ */
+class LineWriterTest {
+
+    private static String formatted(double v) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (LineWriter writer = new LineWriter(bytes)) {
+            writer.appendFormatted(v);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static void check(double v) throws IOException {
+        assertEquals(String.format("%f", v), formatted(v), () -> Double.toString(v));
+    }
+
+    @Test
+    void tiesAreRoundedLikeTheFormatter() throws IOException {
+        for (double v : new double[]{0.0000005, 0.0000015, 0.0000025, 1.0000005, 2.5e-6, 0.1234565, 0.1234575,
+                12.3456785, 1234.5678905, 0.0000004999999, 0.0000005000001, 123456.0000005}) {
+            check(v);
+            check(-v);
+        }
+    }
+
+    @Test
+    void roundingUpAcrossAPowerOfTen() throws IOException {
+        for (double v : new double[]{0.9999995, 9.9999995, 9.99999951, 99.9999996, 999.9999999, 999999.9999996,
+                99999999.9999999, 999999999.9999999}) {
+            check(v);
+            check(-v);
+        }
+    }
+
+    @Test
+    void zeroNegativesAndSmallValues() throws IOException {
+        for (double v : new double[]{0.0, -0.0, -1.5, -0.0000001, -0.0000004, -0.0000006, Double.MIN_VALUE,
+                -Double.MIN_VALUE, 1e-300, 0.1 + 0.2, 1.0 / 3}) {
+            check(v);
+        }
+    }
+
+    @Test
+    void largeValuesAndSpecialValues() throws IOException {
+        for (double v : new double[]{1e9, 1e9 - 0.5, Math.nextDown(1e9), 1e15 + 0.3, -1e20, 123456789012.345678,
+                Double.MAX_VALUE, -Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY}) {
+            check(v);
+        }
+    }
+
+    @Test
+    void randomValues() throws IOException {
+        Random random = new Random(13);
+        for (int i = 0; i < 20_000; i++) {
+            double v = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12) - 3);
+            check(v);
+            // values on the grid of six decimals and halfway between its points
+            check(random.nextInt(100_000_000) / 1e6);
+            check((random.nextInt(100_000_000) + 0.5) / 1e6);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package org.jax.npi.io;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jax.npi.analysis.ChromosomeWithEnhancers;
+import org.jax.npi.data.RegulatoryElement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Downloads from a local HTTP server that can break connections, fail requests and serve ENCODE style metadata,
+ * and reads BGZF files while they are downloaded.
+ */
+class NarrowPeakDownloaderTest {
+    private static final String ACCESSION = "ENCFF000TST";
+
+    private HttpServer server;
+    private Path directory;
+    /** Contents of the file that is served. */
+    private byte[] content;
+    /** MD5 checksum in the metadata of the file, or null to answer the metadata request with 404. */
+    private String metadataMd5;
+    /** Number of requests for the file that are answered with HTTP 500. */
+    private int failures = 0;
+    /** Number of requests for the file whose connection breaks after half of the body. */
+    private int breaks = 0;
+    /** Contents the file is changed to after the connection broke, or null. */
+    private byte[] replacement = null;
+    /** Range headers of the requests for the file (null if there was none). */
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    /** If-Range headers of the requests for the file (null if there was none). */
+    private final List<String> ifRanges = Collections.synchronizedList(new ArrayList<>());
+    /** Path and query of all requests, including the metadata requests. */
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    /** If-None-Match headers of the requests for the file (null if there was none). */
+    private final List<String> ifNoneMatches = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void startServer() throws IOException {
+        directory = Files.createTempDirectory("npi-download");
+        content = new byte[300_000];
+        new Random(7).nextBytes(content);
+        metadataMd5 = null;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/files/", this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        server.stop(0);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            String query = exchange.getRequestURI().getQuery();
+            requests.add(query == null ? path : path + "?" + query);
+            if (path.equals("/files/" + ACCESSION + "/") && "format=json".equals(exchange.getRequestURI().getQuery())) {
+                if (metadataMd5 == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                byte[] json = String.format("{\"accession\": \"%s\", \"md5sum\": \"%s\", \"file_size\": %d}",
+                        ACCESSION, metadataMd5, content.length).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, json.length);
+                exchange.getResponseBody().write(json);
+                return;
+            }
+            if (!path.endsWith(".bed.gz")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            ranges.add(range);
+            ifRanges.add(ifRange);
+            ifNoneMatches.add(exchange.getRequestHeaders().getFirst("If-None-Match"));
+            if (failures > 0) {
+                failures--;
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            String etag = '"' + md5(content) + '"';
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            if (range != null && ifRange != null && !etag.equals(ifRange)) {
+                // the file changed since the first part was sent: send all of it
+                range = null;
+            }
+            int offset = 0;
+            if (range != null) {
+                offset = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                exchange.getResponseHeaders().set("Content-Range",
+                        String.format("bytes %d-%d/%d", offset, content.length - 1, content.length));
+            }
+            exchange.sendResponseHeaders(range != null ? 206 : 200, content.length - offset);
+            OutputStream out = exchange.getResponseBody();
+            if (breaks > 0) {
+                breaks--;
+                out.write(content, offset, (content.length - offset) / 2);
+                out.flush();
+                if (replacement != null) {
+                    content = replacement;
+                }
+                // closing the exchange before the whole body was sent closes the connection
+                throw new IOException("broken on purpose");
+            }
+            out.write(content, offset, content.length - offset);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String url() {
+        return String.format("http://localhost:%d/files/%s/@@download/%s.bed.gz",
+                server.getAddress().getPort(), ACCESSION, ACCESSION);
+    }
+
+    private File downloaded() {
+        return directory.resolve(ACCESSION + ".bed.gz").toFile();
+    }
+
+    private NarrowPeakDownloader downloader() {
+        NarrowPeakDownloader downloader = new NarrowPeakDownloader(directory.toString(), List.of(url()));
+        downloader.setRetries(3, 1);
+        return downloader;
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    void brokenDownloadIsResumed() throws IOException {
+        breaks = 1;
+        assertEquals(0, downloader().download(1));
+        assertArrayEquals(content, Files.readAllBytes(downloaded().toPath()));
+        assertFalse(FileDownloader.partFileFor(downloaded()).exists());
+        assertEquals(2, ranges.size());
+        assertNull(ranges.get(0));
+        assertNotNull(ranges.get(1));
+        assertTrue(ranges.get(1).matches("bytes=[1-9][0-9]*-"), ranges.get(1));
+        assertEquals('"' + md5(content) + '"', ifRanges.get(1));
+        assertFalse(FileDownloader.validatorFileFor(FileDownloader.partFileFor(downloaded())).exists());
+    }
+
+    @Test
+    void onlyTransferredBytesAreCounted() throws IOException {
+        // the first half was downloaded by an earlier run
+        File part = FileDownloader.partFileFor(downloaded());
+        Files.write(part.toPath(), Arrays.copyOf(content, 100_000));
+        Files.write(FileDownloader.validatorFileFor(part).toPath(),
+                ('"' + md5(content) + '"').getBytes(StandardCharsets.US_ASCII));
+        NarrowPeakDownloader downloader = downloader();
+        assertEquals(0, downloader.download(1));
+        assertEquals(Collections.singletonList("bytes=100000-"), ranges);
+        assertArrayEquals(content, Files.readAllBytes(downloaded().toPath()));
+        assertEquals(1, downloader.getFilesDownloaded());
+        assertEquals(content.length - 100_000, downloader.getBytesDownloaded());
+    }
+
+    @Test
+    void fileThatChangedIsDownloadedFromTheStart() throws IOException {
+        breaks = 1;
+        replacement = new byte[200_000];
+        new Random(8).nextBytes(replacement);
+        assertEquals(0, downloader().download(1));
+        assertNotNull(ranges.get(1));
+        assertArrayEquals(replacement, Files.readAllBytes(downloaded().toPath()));
+    }
+
+    @Test
+    void partFileWithoutValidatorIsNotResumed() throws IOException {
+        Files.write(FileDownloader.partFileFor(downloaded()).toPath(), new byte[1000]);
+        assertEquals(0, downloader().download(1));
+        assertEquals(Collections.singletonList(null), ranges);
+        assertArrayEquals(content, Files.readAllBytes(downloaded().toPath()));
+    }
+
+    @Test
+    void failedRequestsAreRetried() throws IOException {
+        failures = 2;
+        assertEquals(0, downloader().download(1));
+        assertArrayEquals(content, Files.readAllBytes(downloaded().toPath()));
+        assertEquals(3, ranges.size());
+    }
+
+    @Test
+    void downloadIsGivenUpAfterTheLastAttempt() {
+        failures = 5;
+        assertEquals(1, downloader().download(1));
+        assertFalse(downloaded().exists());
+        assertEquals(3, ranges.size());
+    }
+
+    @Test
+    void md5MismatchIsNotAccepted() {
+        NarrowPeakDownloader downloader = downloader();
+        downloader.setExpectedMd5(url(), md5(new byte[1]));
+        assertEquals(1, downloader.download(1));
+        assertFalse(downloaded().exists());
+        assertFalse(FileDownloader.partFileFor(downloaded()).exists());
+        // the mismatching file is not resumed but downloaded from the start again
+        assertEquals(Arrays.asList(null, null, null), ranges);
+    }
+
+    @Test
+    void md5IsLookedUpInTheMetadata() throws IOException {
+        metadataMd5 = md5(content);
+        assertEquals(0, downloader().download(1));
+        assertArrayEquals(content, Files.readAllBytes(downloaded().toPath()));
+
+        Files.delete(downloaded().toPath());
+        ranges.clear();
+        metadataMd5 = md5(new byte[1]);
+        assertEquals(1, downloader().download(1));
+        assertFalse(downloaded().exists());
+        assertEquals(3, ranges.size());
+    }
+
+    @Test
+    void refreshOfAnUnchangedFileOnlyMakesTheConditionalRequest() throws IOException {
+        metadataMd5 = md5(content);
+        assertEquals(0, downloader().download(1));
+        requests.clear();
+        ifNoneMatches.clear();
+        NarrowPeakDownloader downloader = downloader();
+        downloader.setRefresh(true);
+        assertEquals(0, downloader.download(1));
+        // no metadata lookup for a file that is not transferred
+        assertEquals(List.of(new URL(url()).getPath()), requests);
+        assertEquals(List.of('"' + md5(content) + '"'), ifNoneMatches);
+        assertEquals(0, downloader.getFilesDownloaded());
+        assertArrayEquals(content, Files.readAllBytes(downloaded().toPath()));
+    }
+
+    @Test
+    void revalidationCostsOneRequestPerUnchangedFile() throws IOException {
+        metadataMd5 = md5(content);
+        assertEquals(0, downloader().download(1));
+        String path = new URL(url()).getPath();
+        for (int refresh = 0; refresh < 3; refresh++) {
+            requests.clear();
+            NarrowPeakDownloader downloader = downloader();
+            downloader.setRefresh(true);
+            assertEquals(0, downloader.download(1));
+            assertEquals(List.of(path), requests);
+        }
+
+        // a changed file is transferred once and checked against the metadata once
+        String oldEtag = '"' + md5(content) + '"';
+        content = new byte[200_000];
+        new Random(9).nextBytes(content);
+        metadataMd5 = md5(content);
+        requests.clear();
+        ifNoneMatches.clear();
+        NarrowPeakDownloader downloader = downloader();
+        downloader.setRefresh(true);
+        assertEquals(0, downloader.download(1));
+        assertEquals(List.of(path, "/files/" + ACCESSION + "/?format=json"), requests);
+        assertEquals(List.of(oldEtag), ifNoneMatches);
+        assertEquals(1, downloader.getFilesDownloaded());
+        assertArrayEquals(content, Files.readAllBytes(downloaded().toPath()));
+
+        // the new validator is stored, so the next refresh is answered with 304 again
+        requests.clear();
+        downloader = downloader();
+        downloader.setRefresh(true);
+        assertEquals(0, downloader.download(1));
+        assertEquals(List.of(path), requests);
+        assertEquals(0, downloader.getFilesDownloaded());
+    }
+
+    @Test
+    void explicitMd5TakesPrecedenceOverTheMetadata() {
+        metadataMd5 = md5(new byte[1]);
+        NarrowPeakDownloader downloader = downloader();
+        downloader.setExpectedMd5(url(), md5(content));
+        assertEquals(0, downloader.download(1));
+        assertTrue(downloaded().isFile());
+    }
+
+    @Test
+    void missingMetadataDoesNotStopTheDownload() {
+        assertEquals(0, downloader().download(1));
+        assertTrue(downloaded().isFile());
+    }
+
+    /** @return narrowPeak lines with peaks on chr1, compressed with BGZF (many gzip members) */
+    private static byte[] bgzfPeaks(long seed) throws IOException {
+        Random random = new Random(seed);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BgzfOutputStream out = new BgzfOutputStream(bytes, Deflater.DEFAULT_COMPRESSION)) {
+            // peaks of one experiment do not overlap each other
+            for (int begin = 0; begin < 2_000_000; ) {
+                int length = 20 + random.nextInt(300);
+                out.write(String.format("chr1\t%d\t%d\tp\t0\t.\t%s\t-1\t-1\t-1\n", begin,
+                        begin + length, random.nextInt(1000) / 8.0).getBytes(StandardCharsets.US_ASCII));
+                begin += length + 1 + random.nextInt(400);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ChromosomeWithEnhancers elements() {
+        List<RegulatoryElement> elements = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            elements.add(new RegulatoryElement("chr1", i * 2000, i * 2000 + 300, i % 3 == 0));
+        }
+        return new ChromosomeWithEnhancers(elements);
+    }
+
+    /**
+     * Stream the download into {@code target}.
+     * @param commits receives, for each committed result, whether the file was in place at that time
+     */
+    private static DownloadTee streamInto(ChromosomeWithEnhancers target, List<Boolean> commits) {
+        return (dest, in) -> {
+            Runnable commit = ChromosomeWithEnhancers.readExperimentFromStream(dest, in, List.of(target));
+            assertNotNull(commit, "stream was not read to its end");
+            return () -> {
+                commits.add(dest.isFile() && !FileDownloader.partFileFor(dest).exists());
+                commit.run();
+            };
+        };
+    }
+
+    @Test
+    void bgzfFileIsStreamedAndKeptOnceInPlace() throws IOException {
+        content = bgzfPeaks(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            ChromosomeWithEnhancers target = elements();
+            target.setInflatePool(pool);
+            List<Boolean> commits = Collections.synchronizedList(new ArrayList<>());
+            NarrowPeakDownloader downloader = downloader();
+            downloader.setTee(streamInto(target, commits));
+            assertEquals(0, downloader.download(1));
+            assertEquals(List.of(true), commits);
+
+            ChromosomeWithEnhancers reference = elements();
+            reference.addDataFromBedFile(downloaded());
+            // other peaks on disk: the streamed result must be used instead of reading the file
+            Files.write(downloaded().toPath(), bgzfPeaks(2));
+            target.addDataFromBedFile(downloaded());
+            assertArrayEquals(reference.getMeanH3K27AcPer1000(), target.getMeanH3K27AcPer1000());
+            assertArrayEquals(reference.getMeanMaxH3K27ac(), target.getMeanMaxH3K27ac());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void streamedResultIsDroppedOnMd5Mismatch() throws IOException {
+        content = bgzfPeaks(1);
+        List<Boolean> commits = Collections.synchronizedList(new ArrayList<>());
+        NarrowPeakDownloader downloader = downloader();
+        downloader.setRetries(1, 1);
+        downloader.setExpectedMd5(url(), md5(new byte[1]));
+        downloader.setTee(streamInto(elements(), commits));
+        assertEquals(1, downloader.download(1));
+        assertEquals(Collections.emptyList(), commits);
+    }
+}
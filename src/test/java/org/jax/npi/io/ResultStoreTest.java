@@ -0,0 +1,148 @@
+package org.jax.npi.io;
+
+import org.jax.npi.data.ElementTable;
+import org.jax.npi.data.ExperimentResult;
+import org.jax.npi.data.RegulatoryElement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that stored results are read back unchanged, that results that do not fit are rejected, and when the
+ * checksums of narrowPeak files and element sets change.
+ */
+class ResultStoreTest {
+    private Path directory;
+    private File bedfile;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("npi-results");
+        bedfile = directory.resolve("ENCFF000RES.bed.gz").toFile();
+        Files.write(bedfile.toPath(), "first version".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static List<RegulatoryElement> elements(int n) {
+        List<RegulatoryElement> elements = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            elements.add(new RegulatoryElement(i % 2 == 0 ? "chr1" : "chr2", i * 100, i * 100 + 50, i % 3 == 0));
+        }
+        return elements;
+    }
+
+    private ResultStore store(List<RegulatoryElement> elements) {
+        return new ResultStore(directory.resolve("store").toFile(), ElementTable.fromElements(elements));
+    }
+
+    private static long[] bits(double[] values) {
+        return Arrays.stream(values).mapToLong(Double::doubleToRawLongBits).toArray();
+    }
+
+    private static ExperimentResult result() {
+        int[] ids = {0, 3, 4, 17, 99};
+        double[] means = {0.1 + 0.2, -0.0, Double.MIN_VALUE, 1e300 / 3, Math.PI};
+        double[] maxima = {Double.MAX_VALUE, 0.3, 2.5, Math.nextUp(1.0), 1e-310};
+        return new ExperimentResult("ENCFF000RES.bed.gz", ids, means, maxima);
+    }
+
+    @Test
+    void storedResultIsReadBackBitForBit() throws IOException {
+        ResultStore store = store(elements(100));
+        String checksum = store.contentChecksum(bedfile);
+        assertNull(store.load(checksum, "renamed.bed.gz"));
+        ExperimentResult expected = result();
+        store.store(checksum, expected);
+        ExperimentResult loaded = store.load(checksum, "renamed.bed.gz");
+        assertNotNull(loaded);
+        assertEquals("renamed.bed.gz", loaded.name);
+        assertArrayEquals(expected.ids, loaded.ids);
+        assertArrayEquals(bits(expected.means), bits(loaded.means));
+        assertArrayEquals(bits(expected.maxima), bits(loaded.maxima));
+    }
+
+    @Test
+    void resultForAnotherNumberOfElementsIsRejected() throws IOException {
+        ResultStore store = store(elements(100));
+        String checksum = store.contentChecksum(bedfile);
+        store.store(checksum, result());
+        ResultStore other = store(elements(120));
+        assertNotEquals(store.getElementSetDirectory(), other.getElementSetDirectory());
+        assertNull(other.load(checksum, "x"));
+        // even if the file ends up in the directory of the other element set
+        File file = new File(store.getElementSetDirectory(), checksum + ".npires");
+        Files.createDirectories(other.getElementSetDirectory().toPath());
+        Files.copy(file.toPath(), new File(other.getElementSetDirectory(), file.getName()).toPath());
+        assertNull(other.load(checksum, "x"));
+    }
+
+    @Test
+    void truncatedResultIsRejected() throws IOException {
+        ResultStore store = store(elements(100));
+        String checksum = store.contentChecksum(bedfile);
+        store.store(checksum, result());
+        File file = new File(store.getElementSetDirectory(), checksum + ".npires");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 8);
+        }
+        assertNull(store.load(checksum, "x"));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(10);
+        }
+        assertNull(store.load(checksum, "x"));
+    }
+
+    @Test
+    void contentChecksumIsReusedUntilTheFileChanges() throws IOException {
+        ResultStore store = store(elements(10));
+        String first = store.contentChecksum(bedfile);
+        assertEquals(FileDownloader.checksum(bedfile, "SHA-256"), first);
+
+        // same size and modification time: the recorded checksum is used without reading the file
+        long mtime = bedfile.lastModified();
+        Files.write(bedfile.toPath(), "other version".getBytes(StandardCharsets.US_ASCII));
+        assertTrue(bedfile.setLastModified(mtime));
+        assertEquals(first, store.contentChecksum(bedfile));
+
+        assertTrue(bedfile.setLastModified(mtime + 10_000));
+        String second = store.contentChecksum(bedfile);
+        assertNotEquals(first, second);
+        assertEquals(FileDownloader.checksum(bedfile, "SHA-256"), second);
+    }
+
+    @Test
+    void elementSetChecksumCoversCoordinatesAndCpG() {
+        List<RegulatoryElement> elements = elements(50);
+        String checksum = ResultStore.elementSetChecksum(ElementTable.fromElements(elements));
+        assertEquals(checksum, ResultStore.elementSetChecksum(ElementTable.fromElements(elements(50))));
+
+        List<RegulatoryElement> moved = elements(50);
+        moved.set(7, new RegulatoryElement("chr2", 701, 750, false));
+        assertNotEquals(checksum, ResultStore.elementSetChecksum(ElementTable.fromElements(moved)));
+
+        List<RegulatoryElement> longer = elements(50);
+        longer.set(7, new RegulatoryElement("chr2", 700, 751, false));
+        assertNotEquals(checksum, ResultStore.elementSetChecksum(ElementTable.fromElements(longer)));
+
+        List<RegulatoryElement> cpg = elements(50);
+        cpg.set(7, new RegulatoryElement("chr2", 700, 750, true));
+        assertNotEquals(checksum, ResultStore.elementSetChecksum(ElementTable.fromElements(cpg)));
+    }
+}
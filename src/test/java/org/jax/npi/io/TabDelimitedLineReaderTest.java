@@ -0,0 +1,138 @@
+package org.jax.npi.io;
+
+import org.jax.npi.data.RegulatoryElement;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the reader splits lines like {@code String.split("\t")} and parses numbers exactly like
+ * {@link Double#parseDouble(String)}, and that the TSS parsers read quoted positions.
+ */
+class TabDelimitedLineReaderTest {
+
+    private static TabDelimitedLineReader reader(String text, int bufferSize) {
+        return new TabDelimitedLineReader(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)),
+                bufferSize);
+    }
+
+    private static String[] fields(TabDelimitedLineReader reader) {
+        String[] fields = new String[reader.getFieldCount()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = reader.getString(i);
+        }
+        return fields;
+    }
+
+    @Test
+    void splitsLikeStringSplit() throws IOException {
+        String[] lines = {"a\tb\tc", "a\tb\t", "a\t\t", "\ta\tb", "", "\t", "\t\t", "a", "a\t\tb", "x\r", "a\tb\t\r"};
+        TabDelimitedLineReader reader = reader(String.join("\n", lines), 1024);
+        for (String line : lines) {
+            assertTrue(reader.nextLine());
+            String expected = line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+            assertArrayEquals(expected.split("\t"), fields(reader), "line \"" + line + "\"");
+        }
+        assertFalse(reader.nextLine());
+    }
+
+    @Test
+    void linesLongerThanTheBuffer() throws IOException {
+        StringBuilder text = new StringBuilder();
+        List<String> lines = new ArrayList<>();
+        Random random = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            StringBuilder line = new StringBuilder();
+            int n = random.nextInt(400);
+            for (int j = 0; j < n; j++) {
+                line.append(random.nextInt(5) == 0 ? '\t' : (char) ('a' + random.nextInt(26)));
+            }
+            lines.add(line.toString());
+            text.append(line).append('\n');
+        }
+        TabDelimitedLineReader reader = reader(text.toString(), 16);
+        for (String line : lines) {
+            assertTrue(reader.nextLine());
+            assertArrayEquals(line.split("\t"), fields(reader));
+        }
+        assertFalse(reader.nextLine());
+    }
+
+    @Test
+    void parseDoubleMatchesDoubleParseDouble() throws IOException {
+        List<String> values = new ArrayList<>(Arrays.asList("0", "-0", "+0.0", "1", "-1", "0.1", "0.3", ".5", "5.",
+                "123.456", "1e5", "1E-5", "2.5e+3", "-1.7976931348623157e308", "4.9e-324", "1e-400", "1e400",
+                "123456789012345", "1234567890123456789", "0.000000000000000000000001", "9007199254740993",
+                "NaN", "Infinity", "-Infinity", "0x1p3", "1.0d", "2f", "00012.5000"));
+        Random random = new Random(5);
+        for (int i = 0; i < 100_000; i++) {
+            switch (i % 4) {
+                case 0:
+                    values.add(String.format("%.6f", random.nextDouble() * 1000));
+                    break;
+                case 1:
+                    values.add(Double.toString(random.nextGaussian() * Math.pow(10, random.nextInt(40) - 20)));
+                    break;
+                case 2:
+                    values.add(Integer.toString(random.nextInt()));
+                    break;
+                default:
+                    values.add(random.nextInt(100000) + "." + random.nextInt(100000) + "e" + (random.nextInt(50) - 25));
+            }
+        }
+        TabDelimitedLineReader reader = reader(String.join("\n", values), 1024);
+        for (String value : values) {
+            assertTrue(reader.nextLine());
+            assertEquals(Double.doubleToRawLongBits(Double.parseDouble(value)),
+                    Double.doubleToRawLongBits(reader.getDouble(0)), value);
+        }
+    }
+
+    @Test
+    void invalidNumbersAreRejected() throws IOException {
+        for (String value : new String[]{"", "-", ".", "e5", "1e", "1.2.3", "abc"}) {
+            TabDelimitedLineReader reader = reader(value + "\tx", 1024);
+            assertTrue(reader.nextLine());
+            assertThrows(NumberFormatException.class, () -> reader.getDouble(0), value);
+        }
+        TabDelimitedLineReader reader = reader("2147483648\t-2147483648", 1024);
+        assertTrue(reader.nextLine());
+        assertThrows(NumberFormatException.class, () -> reader.getInt(0));
+        assertEquals(Integer.MIN_VALUE, reader.getInt(1));
+    }
+
+    @Test
+    void removeByte() throws IOException {
+        TabDelimitedLineReader reader = reader("\"chr1:10\"-\"20,+\"\tx", 1024);
+        assertTrue(reader.nextLine());
+        int end = reader.removeByte(0, (byte) '"');
+        assertEquals("chr1:10-20,+", reader.getString(reader.fieldStart(0), end));
+        assertEquals("chr1:10-20,+", reader.getString(0));
+        assertEquals("x", reader.getString(1));
+    }
+
+    @Test
+    void promoterParserRemovesAllQuotes() throws IOException {
+        File file = File.createTempFile("tss-stats", ".txt");
+        file.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII)) {
+            out.write("tss\tgene\ttags\ttau.c\ttau.t\tdispersion\tdispersion<=12\tCpG.p\tCpG.m\n");
+            out.write("\"chr1:1000-1001,+\"\tA\t0\t0\t0\t0\t0\t1\t0\n");
+            out.write("chr2:\"2000-2001\",-\tB\t0\t0\t0\t0\t0\t0\t1\t\n");
+        }
+        List<RegulatoryElement> promoters = new TssPromoterStatsParser(file.getAbsolutePath()).getEnhancerList();
+        assertEquals(2, promoters.size());
+        assertEquals("chr1", promoters.get(0).getChromosome());
+        assertEquals(500, promoters.get(0).getBegin());
+        assertEquals(1201, promoters.get(0).getEnd());
+        assertTrue(promoters.get(0).isCpG());
+        assertEquals("chr2", promoters.get(1).getChromosome());
+        assertEquals(1800, promoters.get(1).getBegin());
+        assertEquals(2501, promoters.get(1).getEnd());
+        assertFalse(promoters.get(1).isCpG());
+    }
+}
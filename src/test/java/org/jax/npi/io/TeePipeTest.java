@@ -0,0 +1,72 @@
+package org.jax.npi.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the consumer's end of the pipe, in particular that a gzip decoder sees queued members.
+ */
+class TeePipeTest {
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void availableCountsQueuedBuffers() throws IOException {
+        TeePipe pipe = new TeePipe();
+        InputStream in = pipe.inputStream();
+        assertEquals(0, in.available());
+        pipe.write(new byte[]{1, 2, 3}, 3);
+        pipe.write(new byte[]{4, 5}, 2);
+        pipe.finish();
+        assertEquals(3, in.available());
+        assertEquals(1, in.read());
+        assertEquals(2, in.available());
+        assertEquals(2, in.read(new byte[10], 0, 10));
+        assertEquals(2, in.available());
+        assertEquals(2, in.read(new byte[10], 0, 10));
+        assertEquals(0, in.available());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void gzipMembersInSeparateBuffersAreAllRead() throws IOException {
+        StringBuilder first = new StringBuilder();
+        StringBuilder second = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            first.append("chr1\t").append(i).append('\n');
+            second.append("chr2\t").append(i).append('\n');
+        }
+        TeePipe pipe = new TeePipe();
+        byte[] a = gzip(first.toString());
+        byte[] b = gzip(second.toString());
+        pipe.write(a, a.length);
+        pipe.write(b, b.length);
+        pipe.finish();
+        try (InputStream in = new GZIPInputStream(pipe.inputStream())) {
+            assertEquals(first.toString() + second, new String(in.readAllBytes(), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    void failedDownloadFailsTheReader() throws IOException {
+        TeePipe pipe = new TeePipe();
+        InputStream in = pipe.inputStream();
+        pipe.write(new byte[]{1, 2, 3}, 3);
+        pipe.fail(new IOException("connection reset"));
+        assertThrows(IOException.class, in::read);
+    }
+}
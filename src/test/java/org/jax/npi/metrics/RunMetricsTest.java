@@ -0,0 +1,50 @@
+package org.jax.npi.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the peak heap use reported for the run.
+ */
+class RunMetricsTest {
+
+    private static long runPeakHeap(RunMetrics metrics) throws IOException {
+        File file = File.createTempFile("metrics", ".json");
+        try {
+            metrics.writeJson(file);
+            String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            Matcher m = Pattern.compile("^  \"peakHeapBytes\": (\\d+),$", Pattern.MULTILINE).matcher(json);
+            assertTrue(m.find(), json);
+            return Long.parseLong(m.group(1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void runPeakCoversEarlierPhases() throws IOException {
+        RunMetrics metrics = new RunMetrics();
+        long[] big;
+        try (RunMetrics.Timer timer = metrics.start("big")) {
+            big = new long[8 << 20];
+            timer.addRecords(big.length);
+        }
+        big = null;
+        System.gc();
+        // starting a phase resets the peaks of the heap pools
+        try (RunMetrics.Timer timer = metrics.start("small")) {
+            timer.addRecords(1);
+        }
+        long bigPhase = metrics.getPhases().get(0).peakHeapBytes;
+        assertTrue(bigPhase >= 64L << 20, Long.toString(bigPhase));
+        assertTrue(runPeakHeap(metrics) >= bigPhase);
+    }
+}
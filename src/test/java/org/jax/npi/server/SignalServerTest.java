@@ -0,0 +1,137 @@
+package org.jax.npi.server;
+
+import org.jax.npi.analysis.ChromosomeWithEnhancers;
+import org.jax.npi.analysis.PeakIndex;
+import org.jax.npi.data.RegulatoryElement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Queries a server on a free port and checks that a reload only reads the files that changed.
+ */
+class SignalServerTest {
+    private static final String SIGNAL = "/signal?regions=chr1:1000-2000&experiments=ENCFF001SRV,ENCFF002SRV";
+
+    private Path directory;
+    private SnapshotLoader loader;
+    private SignalServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        directory = Files.createTempDirectory("npi-server");
+        write("ENCFF001SRV.bed.gz", 1500, 1600, 2.0);
+        write("ENCFF002SRV.bed.gz", 1200, 1300, 4.0);
+        List<RegulatoryElement> elements = List.of(new RegulatoryElement("chr1", 1000, 2000, true),
+                new RegulatoryElement("chr1", 5000, 6000, false));
+        loader = new SnapshotLoader(directory.toFile(), Map.of("enhancer", new ChromosomeWithEnhancers(elements)), 2);
+        loader.reload();
+        server = new SignalServer(loader, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        server.stop(0);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /** Write a narrowPeak file with one peak on chr1, with a modification time that differs from the last one. */
+    private void write(String name, int begin, int end, double value) throws IOException {
+        File file = directory.resolve(name).toFile();
+        long mtime = file.exists() ? file.lastModified() : System.currentTimeMillis();
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)),
+                StandardCharsets.US_ASCII)) {
+            out.write(String.format("chr1\t%d\t%d\tp\t0\t.\t%s\t-1\t-1\t-1\n", begin, end, value));
+        }
+        // make sure the modification time changes even on file systems with a coarse clock
+        file.setLastModified(mtime + 10_000);
+    }
+
+    /** @return the status code and the body of the response */
+    private String[] request(String method, String path) throws IOException {
+        URL url = new URL("http://localhost:" + server.getPort() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        try {
+            int status = connection.getResponseCode();
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                return new String[]{Integer.toString(status), new String(in.readAllBytes(), StandardCharsets.UTF_8)};
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private Map<String, PeakIndex> experiments() {
+        Map<String, PeakIndex> experiments = new HashMap<>();
+        for (PeakIndex experiment : loader.getSnapshot().getExperiments()) {
+            experiments.put(experiment.getName(), experiment);
+        }
+        return experiments;
+    }
+
+    @Test
+    void signalIsUpdatedByReloadingOnlyTheChangedFile() throws IOException {
+        String[] response = request("GET", SIGNAL);
+        assertEquals("200", response[0], response[1]);
+        assertTrue(response[1].contains("\"experiments\": [\"ENCFF001SRV.bed.gz\", \"ENCFF002SRV.bed.gz\"]"),
+                response[1]);
+        assertTrue(response[1].contains(
+                "{\"region\": \"chr1:1000-2000\", \"mean\": [200.0, 400.0], \"max\": [2.0, 4.0]}"), response[1]);
+
+        Map<String, PeakIndex> before = experiments();
+        write("ENCFF002SRV.bed.gz", 1200, 1300, 8.0);
+        response = request("POST", "/reload");
+        assertEquals("200", response[0], response[1]);
+        Map<String, PeakIndex> after = experiments();
+        // the unchanged file is not read again
+        assertSame(before.get("ENCFF001SRV.bed.gz"), after.get("ENCFF001SRV.bed.gz"));
+        assertNotSame(before.get("ENCFF002SRV.bed.gz"), after.get("ENCFF002SRV.bed.gz"));
+        response = request("GET", SIGNAL);
+        assertTrue(response[1].contains("\"mean\": [200.0, 800.0], \"max\": [2.0, 8.0]"), response[1]);
+
+        write("ENCFF003SRV.bed.gz", 1000, 1100, 1.0);
+        assertEquals("200", request("POST", "/reload")[0]);
+        Map<String, PeakIndex> added = experiments();
+        assertEquals(3, added.size());
+        assertSame(after.get("ENCFF001SRV.bed.gz"), added.get("ENCFF001SRV.bed.gz"));
+        assertSame(after.get("ENCFF002SRV.bed.gz"), added.get("ENCFF002SRV.bed.gz"));
+        response = request("GET", "/signal?regions=chr1:1000-2000&experiments=ENCFF003SRV");
+        assertTrue(response[1].contains("\"mean\": [100.0], \"max\": [1.0]"), response[1]);
+    }
+
+    @Test
+    void reloadRequiresPost() throws IOException {
+        assertEquals("405", request("GET", "/reload")[0]);
+    }
+
+    @Test
+    void thousandsSeparatorsAreRejectedWithAClearMessage() throws IOException {
+        String[] response = request("GET", "/signal?regions=chr1:1,000-2,000");
+        assertEquals("400", response[0]);
+        assertTrue(response[1].contains("without thousands separators"), response[1]);
+
+        response = request("GET", "/signal?regions=chr1:1000-2000,chr1:5000-6000");
+        assertEquals("200", response[0], response[1]);
+        response = request("GET", "/signal?regions=chr1:1000");
+        assertEquals("400", response[0]);
+        assertTrue(response[1].contains("Not a region: chr1:1000"), response[1]);
+    }
+}
@@ -0,0 +1,63 @@
+package org.jax.npi.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the permutation test and the bootstrap depend only on the seed, not on the number of threads.
+ */
+class CgiResamplingTest {
+
+    private static double[] values(Random random, int n, double shift) {
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = shift + Math.exp(random.nextGaussian());
+        }
+        return values;
+    }
+
+    private static void assertSameResult(CgiResampling.Result expected, CgiResampling.Result actual) {
+        assertEquals(expected.getMeanDifference(), actual.getMeanDifference());
+        assertEquals(expected.getMedianDifference(), actual.getMedianDifference());
+        assertEquals(expected.getMeanPValue(), actual.getMeanPValue());
+        assertEquals(expected.getMedianPValue(), actual.getMedianPValue());
+        assertArrayEquals(expected.getMeanInterval(0.95), actual.getMeanInterval(0.95));
+        assertArrayEquals(expected.getMedianInterval(0.95), actual.getMedianInterval(0.95));
+    }
+
+    @Test
+    void resultDoesNotDependOnTheThreads() {
+        Random random = new Random(4);
+        CgiResampling resampling = new CgiResampling(values(random, 501, 0.2), values(random, 1200, 0.0));
+        CgiResampling.Result single = resampling.run(999, 999, 42, 1);
+        for (int threads : new int[]{2, 3, 8}) {
+            assertSameResult(single, resampling.run(999, 999, 42, threads));
+        }
+        CgiResampling.Result otherSeed = resampling.run(999, 999, 43, 4);
+        assertEquals(single.getMeanDifference(), otherSeed.getMeanDifference());
+        assertNotEquals(single.getMeanInterval(0.95)[0], otherSeed.getMeanInterval(0.95)[0]);
+    }
+
+    @Test
+    void shiftIsDetected() {
+        Random random = new Random(5);
+        CgiResampling.Result shifted = new CgiResampling(values(random, 400, 1.0), values(random, 400, 0.0))
+                .run(499, 499, 1, 4);
+        assertTrue(shifted.getMeanPValue() < 0.01, Double.toString(shifted.getMeanPValue()));
+        double[] interval = shifted.getMeanInterval(0.95);
+        assertTrue(interval[0] < shifted.getMeanDifference() && shifted.getMeanDifference() < interval[1]);
+        assertTrue(interval[0] > 0);
+
+        CgiResampling.Result same = new CgiResampling(values(random, 400, 0.0), values(random, 400, 0.0))
+                .run(499, 0, 1, 4);
+        assertTrue(same.getMeanPValue() > 0.01, Double.toString(same.getMeanPValue()));
+    }
+
+    @Test
+    void emptyGroupIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new CgiResampling(new double[0], new double[]{1.0}));
+    }
+}
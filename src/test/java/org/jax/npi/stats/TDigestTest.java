@@ -0,0 +1,107 @@
+package org.jax.npi.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the accuracy of the quantiles of the t-digest and that merging partial digests gives the same
+ * digest for the same order of merges.
+ */
+class TDigestTest {
+    private static final double[] QUANTILES = {0.001, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999};
+
+    private static double[] values(long seed, int n) {
+        Random random = new Random(seed);
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            // skewed like the signal of the elements: many small values, a long tail
+            values[i] = Math.exp(random.nextGaussian() * 1.5);
+        }
+        return values;
+    }
+
+    /** @return fraction of the sorted values that are below {@code x} */
+    private static double rank(double[] sorted, double x) {
+        int i = Arrays.binarySearch(sorted, x);
+        return (i < 0 ? -i - 1 : i) / (double) sorted.length;
+    }
+
+    /** Check that each quantile estimate has about the right rank, more precisely near the tails. */
+    private static void assertAccurate(double[] values, TDigest digest) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        assertEquals(values.length, digest.size());
+        assertEquals(sorted[0], digest.getMin());
+        assertEquals(sorted[sorted.length - 1], digest.getMax());
+        for (double q : QUANTILES) {
+            double tolerance = Math.max(0.0005, 0.02 * Math.sqrt(q * (1 - q)));
+            assertEquals(q, rank(sorted, digest.quantile(q)), tolerance, "quantile " + q);
+        }
+    }
+
+    @Test
+    void quantilesHaveTheRightRank() {
+        double[] values = values(1, 200_000);
+        TDigest digest = new TDigest();
+        for (double v : values) {
+            digest.add(v);
+        }
+        assertAccurate(values, digest);
+    }
+
+    @Test
+    void mergedDigestsAreAccurate() {
+        double[] values = values(2, 200_000);
+        TDigest merged = new TDigest();
+        for (int part = 0; part < 8; part++) {
+            TDigest digest = new TDigest();
+            for (int i = part; i < values.length; i += 8) {
+                digest.add(values[i]);
+            }
+            merged.merge(digest);
+        }
+        assertAccurate(values, merged);
+    }
+
+    @Test
+    void sameMergeOrderGivesTheSameDigest() {
+        double[] values = values(3, 100_000);
+        TDigest[] parts = new TDigest[5];
+        for (int part = 0; part < parts.length; part++) {
+            parts[part] = new TDigest();
+            for (int i = part * 20_000; i < (part + 1) * 20_000; i++) {
+                parts[part].add(values[i]);
+            }
+        }
+        TDigest first = new TDigest();
+        TDigest second = new TDigest();
+        TDigest reversed = new TDigest();
+        for (int part = 0; part < parts.length; part++) {
+            first.merge(parts[part]);
+            second.merge(parts[part]);
+            reversed.merge(parts[parts.length - 1 - part]);
+        }
+        for (double q : QUANTILES) {
+            assertEquals(Double.doubleToLongBits(first.quantile(q)), Double.doubleToLongBits(second.quantile(q)));
+        }
+        // another order may give another digest, but just as accurate
+        assertAccurate(values, reversed);
+        // merging does not change the parts
+        assertEquals(20_000, parts[0].size());
+    }
+
+    @Test
+    void smallAndEmptyDigests() {
+        TDigest digest = new TDigest();
+        assertTrue(Double.isNaN(digest.quantile(0.5)));
+        digest.add(3.0);
+        assertEquals(3.0, digest.quantile(0.5));
+        digest.merge(new TDigest());
+        assertEquals(1, digest.size());
+        assertThrows(IllegalArgumentException.class, () -> digest.quantile(1.5));
+    }
+}